@@ -211,6 +211,16 @@ public interface EntityBrokerManager {
      */
     public Object getSampleEntityObject(String prefix, String id);
 
+    /**
+     * Get the entity object which input (from a POST or PUT) should be translated into,
+     * this is the current entity unless the provider is FullReplaceUpdateable,
+     * in which case it is a new sample object with the id (if there is one) set on it
+     * @param prefix the entity prefix
+     * @param id (optional) the id of the entity being updated
+     * @return an entity object to translate the input into OR null if none can be found
+     */
+    public Object getInputEntityObject(String prefix, String id);
+
     
     // Special service handling methods
     /**
@@ -30,6 +30,7 @@ import java.util.Map.Entry;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplate;
+import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplateList;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.ProcessedTemplate;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.Template;
 
@@ -387,7 +388,7 @@ public class EntityView implements Cloneable, Serializable {
         if (templates == null || templates.isEmpty()) {
             // just load in the already processed and made templates and preproced templates for efficiency
             parseTemplates.addAll(TemplateParseUtil.defaultTemplates);
-            anazlyzedTemplates = new ArrayList<PreProcessedTemplate>(TemplateParseUtil.defaultPreprocessedTemplates);
+            anazlyzedTemplates = new PreProcessedTemplateList(TemplateParseUtil.defaultPreprocessedTemplates);
         } else {
             for (Template t : templates) {
                 TemplateParseUtil.validateTemplateKey(t.templateKey);
@@ -400,8 +401,8 @@ public class EntityView implements Cloneable, Serializable {
                     parseTemplates.add(t);
                 }
             }
+            anazlyzedTemplates = TemplateParseUtil.preprocessTemplates(parseTemplates);
         }
-        anazlyzedTemplates = TemplateParseUtil.preprocessTemplates(parseTemplates);
     }
 
     /**
@@ -411,15 +412,15 @@ public class EntityView implements Cloneable, Serializable {
     public void preloadParseTemplates(List<PreProcessedTemplate> preprocessedTemplates) {
         // remake the internal lists and copy in the preprocessed templates
         parseTemplates = new ArrayList<Template>();
-        anazlyzedTemplates = new ArrayList<PreProcessedTemplate>();
+        anazlyzedTemplates = new PreProcessedTemplateList();
         if (preprocessedTemplates == null || preprocessedTemplates.isEmpty()) {
             // just load in the already processed and made templates and preproced templates for efficiency
             parseTemplates.addAll(TemplateParseUtil.defaultTemplates);
-            anazlyzedTemplates = new ArrayList<PreProcessedTemplate>(TemplateParseUtil.defaultPreprocessedTemplates);
+            anazlyzedTemplates = new PreProcessedTemplateList(TemplateParseUtil.defaultPreprocessedTemplates);
         } else {
             // load in the ones that were provided
+            anazlyzedTemplates = new PreProcessedTemplateList(preprocessedTemplates);
             for (PreProcessedTemplate preProcessedTemplate : preprocessedTemplates) {
-                anazlyzedTemplates.add(preProcessedTemplate);
                 parseTemplates.add( new Template(preProcessedTemplate.templateKey, preProcessedTemplate.template) );
             }
         }
@@ -132,6 +132,14 @@ public interface EntityProviderManager {
      */
     public Map<String, List<Class<? extends EntityProvider>>> getRegisteredEntityCapabilities();
 
+    /**
+     * Get the current version of the registry, this changes every time a provider or capability
+     * is registered or unregistered so it can be used to tell when anything derived from the
+     * registered providers (like the entity descriptions) is out of date
+     * @return the current registry version
+     */
+    public long getRegistryVersion();
+
     /**
      * Registers an entity provider with the manager, this allows registration to happen
      * programatically but the preferred method is to use the {@link AutoRegisterEntityProvider}
@@ -52,7 +52,9 @@ public interface Exportable extends EntityProvider {
     * @param params (optional) incoming set of parameters which may be used to send data specific to this request, may be null
     * @return a string key representing the encoding used and possibly other info like a version, this
     *         allows the export to provide tips to the import when data is streamed back in, if
-    *         there is no data to export then a null will be returned
+    *         there is no data to export then a null will be returned,
+    *         NOTE: exports through /direct are streamed so this key is only sent back to the client
+    *         (in a header) when the export is small enough to be held until this returns
     */
    public String exportData(String reference, Search search, OutputStream data, boolean destructive, Map<String, Object> params);
 
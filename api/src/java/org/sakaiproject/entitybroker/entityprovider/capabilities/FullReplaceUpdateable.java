@@ -0,0 +1,41 @@
+/**
+ * $Id$
+ * $URL$
+ * FullReplaceUpdateable.java - entity-broker - Oct 18, 2026 1:46:10 AM
+ **************************************************************************
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.capabilities;
+
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+
+/**
+ * Indicates that updates to these entities always replace the whole entity, the input for an update is translated
+ * into a new entity object (from {@link Sampleable}) with only the id from the reference set on it
+ * before it is passed to {@link Updateable#updateEntity(EntityReference, Object, Map)},
+ * this avoids fetching the current entity (using {@link Resolvable}) on every write request<br/>
+ * Without this the input is applied on top of the current entity so any fields which are not in the input
+ * keep their current values, only use this if the provider does not need those values<br/>
+ * This is one of the capability extensions for the {@link EntityProvider} interface<br/>
+ */
+public interface FullReplaceUpdateable extends Updateable {
+
+   // no methods
+
+}
@@ -0,0 +1,63 @@
+/**
+ * $Id$
+ * $URL$
+ * ResponseCacheable.java - entity-broker - Oct 17, 2026 4:05:23 PM
+ **************************************************************************
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.capabilities;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+
+/**
+ * Allows the encoded output of read requests (GET) for the entities handled by this provider
+ * to be cached on the server by the REST handler, the cached output is thrown away when
+ * the time to live runs out or when an event occurs for an entity with this prefix
+ * (so the provider should fire events when the entities change)<br/>
+ * Fetching the entities (and any access checks done while fetching them) is skipped when the output
+ * comes from the cache so {@link #isResponseCacheAccessAllowed(EntityReference, String)} is checked
+ * before every cached response is sent<br/>
+ * Only use this for data which is read much more often than it changes<br/>
+ * <b>NOTE:</b> the response cache also has to be enabled in the system config<br/>
+ * This is one of the capability extensions for the {@link EntityProvider} interface<br/>
+ */
+public interface ResponseCacheable extends EntityProvider {
+
+   /**
+    * @return the maximum number of seconds that the output for a request may be cached,
+    * 0 or less means do not cache
+    */
+   public int getResponseCacheSeconds();
+
+   /**
+    * @return true if the output is the same for all users (only one copy is cached),
+    * false if the output can differ by user (a copy is cached for each user)
+    */
+   public boolean isResponseCacheShared();
+
+   /**
+    * Checks if the current user can be sent the cached output for a reference,
+    * this is called before every cached response is sent
+    * 
+    * @param ref the reference for the entity or collection being requested
+    * @param userReference the current user reference OR null if there is no current user
+    * @return true if the cached output can be sent, false to handle the request as if nothing was cached
+    * (so the normal fetching and access checks for the entity are run)
+    */
+   public boolean isResponseCacheAccessAllowed(EntityReference ref, String userReference);
+
+}
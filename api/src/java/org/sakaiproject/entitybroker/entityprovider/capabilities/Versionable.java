@@ -0,0 +1,68 @@
+/**
+ * $Id$
+ * $URL$
+ * Versionable.java - entity-broker - Oct 17, 2026 10:12:41 AM
+ **************************************************************************
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.capabilities;
+
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+
+/**
+ * Allows the current version of an entity (or a collection of entities) to be determined
+ * without fetching the entity data, this is used to answer conditional requests
+ * (If-None-Match and If-Modified-Since) with a 304 (not modified) and to set the
+ * ETag and Last-Modified headers<br/>
+ * The methods here should be cheap (e.g. read a version column or a modification counter),
+ * if the version cannot be found cheaply then return null/-1 and the entity data will be fetched as usual<br/>
+ * <b>NOTE:</b> a conditional request can be answered with a 304 using only these methods (the entity data
+ * is never fetched so none of the access checks done while fetching it are run), these methods MUST check
+ * that the current user can read the entity or collection (the same checks as getting the data)
+ * and throw a {@link SecurityException} if not, otherwise users without access can find out
+ * whether an entity exists and when it changes<br/>
+ * This is one of the capability extensions for the {@link EntityProvider} interface<br/>
+ */
+public interface Versionable extends EntityProvider {
+
+   /**
+    * Get the ETag (opaque version identifier) for the current version of an entity or collection
+    *
+    * @param ref the parsed reference object which uniquely represents an entity OR
+    * only a prefix (indicating the collection of all entities of this type)
+    * @param params (optional) incoming set of parameters which may be used to narrow the request,
+    * this will include the search params if this is a request for a collection
+    * @return the ETag for the current version of the data (without quotes) OR null if it cannot be determined cheaply
+    * @throws SecurityException if the current user is not allowed to read this entity or collection (this must be checked)
+    */
+   public String getEntityETag(EntityReference ref, Map<String, Object> params);
+
+   /**
+    * Get the last modified time for the current version of an entity or collection
+    *
+    * @param ref the parsed reference object which uniquely represents an entity OR
+    * only a prefix (indicating the collection of all entities of this type)
+    * @param params (optional) incoming set of parameters which may be used to narrow the request,
+    * this will include the search params if this is a request for a collection
+    * @return the last modified time (milliseconds since the epoch) OR -1 if it cannot be determined cheaply
+    * @throws SecurityException if the current user is not allowed to read this entity or collection (this must be checked)
+    */
+   public long getEntityLastModified(EntityReference ref, Map<String, Object> params);
+
+}
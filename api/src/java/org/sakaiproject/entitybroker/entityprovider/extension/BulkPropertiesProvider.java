@@ -0,0 +1,61 @@
+/**
+ * $Id$
+ * $URL$
+ * BulkPropertiesProvider.java - entity-broker - Oct 17, 2026 10:58:31 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.extension;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.entityprovider.capabilities.PropertyProvideable;
+
+/**
+ * Adds methods for getting and setting the meta properties of many entities at once
+ * to the {@link PropertiesProvider} methods (shared interface)<br/>
+ * A {@link PropertyProvideable} provider can also implement this to receive the
+ * references for its prefix in one call instead of one call per reference
+ */
+public interface BulkPropertiesProvider extends PropertiesProvider {
+
+   /**
+    * Retrieve all meta properties for a set of entities<br/>
+    * <b>NOTE:</b> unlike {@link #getProperties(String)} this does not check that every entity exists
+    * (that would mean a call to the provider for each reference), references which are not valid
+    * are simply left out of the results
+    * 
+    * @param references
+    *           a collection of globally unique references to entities
+    * @return a map of String (reference) -> map of String (name) -> String (value),
+    * in the order of the given references, each valid reference will have a map even if it has no properties
+    */
+   public Map<String, Map<String, String>> getProperties(Collection<String> references);
+
+   /**
+    * Set meta property values on a set of entities, 
+    * this works like calling {@link #setPropertyValue(String, String, String)} for each name and value
+    * but all of the values are stored together
+    * 
+    * @param referenceProperties
+    *           a map of String (reference) -> map of String (name) -> String (value),
+    *           setting a value to null will remove the related value from persistence,
+    *           names cannot be null
+    */
+   public void setPropertyValues(Map<String, Map<String, String>> referenceProperties);
+
+}
@@ -26,6 +26,7 @@ import java.lang.reflect.Method;
 import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.annotations.EntityCustomAction;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsDefineable;
+import org.sakaiproject.entitybroker.util.MethodInvoker;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 
 
@@ -88,6 +89,22 @@ public class CustomAction {
         }
     }
 
+    // NOTE: the precompiled invoker for the method (built when the method is found), avoids reflection on each call,
+    // held strongly since it is expensive to rebuild and lives only as long as this action
+    private MethodInvoker invoker;
+    /**
+     * INTERNAL USE ONLY
+     */
+    public MethodInvoker getInvoker() {
+        return invoker;
+    }
+    /**
+     * INTERNAL USE ONLY
+     */
+    public void setInvoker(MethodInvoker mi) {
+        invoker = mi;
+    }
+
     /**
      * Construct a custom action for entities
      * @param action key which will be used to trigger the action (e.g. promote),
@@ -24,6 +24,7 @@ import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 
 import org.sakaiproject.entitybroker.entityprovider.annotations.EntityCustomAction;
+import org.sakaiproject.entitybroker.util.MethodInvoker;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplate;
 
@@ -90,6 +91,22 @@ public class URLRedirect implements Comparable <URLRedirect> {
        }
    }
 
+   // NOTE: the precompiled invoker for the method (built when the method is found), avoids reflection on each call,
+   // held strongly since it is expensive to rebuild and lives only as long as this redirect
+   private MethodInvoker invoker;
+   /**
+    * INTERNAL USE ONLY
+    */
+   public MethodInvoker getInvoker() {
+       return invoker;
+   }
+   /**
+    * INTERNAL USE ONLY
+    */
+   public void setInvoker(MethodInvoker mi) {
+       invoker = mi;
+   }
+
    /**
     * Use this for controllable template matches only
     * @param template
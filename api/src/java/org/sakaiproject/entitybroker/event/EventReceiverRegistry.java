@@ -0,0 +1,43 @@
+/**
+ * $Id$
+ * $URL$
+ * EventReceiverRegistry.java - entity-broker - Oct 17, 2026 4:12:48 PM
+ **************************************************************************
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.event;
+
+/**
+ * Allows {@link EventReceiver}s to be registered manually (rather than being found as beans in a context)
+ */
+public interface EventReceiverRegistry {
+
+   /**
+    * Register an event receiver so it is called when matching events occur,
+    * registering the same receiver again does nothing
+    * 
+    * @param receiver the event receiver
+    */
+   public void registerEventReceiver(EventReceiver receiver);
+
+   /**
+    * Unregister an event receiver so it is no longer called
+    * 
+    * @param receiver the event receiver
+    */
+   public void unregisterEventReceiver(EventReceiver receiver);
+
+}
@@ -43,6 +43,16 @@ public interface EntityRequestHandler {
      */
     public static String BATCH = "batch";
     public static String SLASH_BATCH = EntityReference.SEPARATOR + BATCH;
+    /**
+     * The reserved words used to trigger the streaming export and import of the data related to an entity,
+     * Example: /forum/export?_reference=/site/123 (only for providers which are
+     * {@link org.sakaiproject.entitybroker.entityprovider.capabilities.Exportable} or
+     * {@link org.sakaiproject.entitybroker.entityprovider.capabilities.Importable}),
+     * the export is streamed into the response as it is written so the encoding key returned by the provider
+     * can only be sent in the {@link #HEADER_EXPORT_ENCODING} header if the whole export is small enough to be held
+     */
+    public static String EXPORT = "export";
+    public static String IMPORT = "import";
     /**
      * This is the name of the header which will contain the id of newly created entities
      */
@@ -55,6 +65,23 @@ public interface EntityRequestHandler {
      * This is the name of the header that will contain created/updated entities SHOW URL
      */
     public static String HEADER_ENTITY_URL = "Location";
+    /**
+     * This is the name of the header which will contain the encoding key returned by an export,
+     * this is NOT always present: it is only sent when the whole export is small enough (64KB or less) to be held
+     * until the provider returns the key, larger exports are streamed before the key is known and go out without it,
+     * this can also be sent with an import instead of the {@link #IMPORT_ENCODING} parameter
+     */
+    public static String HEADER_EXPORT_ENCODING = "EntityExportEncoding";
+    /**
+     * This is the name of the header which will contain the total number of entities created by an import,
+     * set once the import completes (this is a final total, not progress)
+     */
+    public static String HEADER_IMPORT_TOTAL_COUNT = "EntityImportTotalCount";
+    /**
+     * This is the name of the header which will contain the total number of bytes read by an import,
+     * set once the import completes (this is a final total, not progress)
+     */
+    public static String HEADER_IMPORT_TOTAL_SIZE = "EntityImportTotalSize";
     /**
      * The id used in generated URLs
      */
@@ -65,6 +92,19 @@ public interface EntityRequestHandler {
      * Example: /people/1?_method=PUT
      */
     public static String COMPENSATE_METHOD = "_method";
+    /**
+     * The parameter which holds the reference of the entity that exported or imported data is related to,
+     * Example: /forum/export?_reference=/site/123
+     */
+    public static String EXPORT_REFERENCE = "_reference";
+    /**
+     * Set this parameter to true to make an export destructive, only allowed for POST
+     */
+    public static String EXPORT_DESTRUCTIVE = "_destructive";
+    /**
+     * The parameter which holds the encoding key returned by the export when importing the data
+     */
+    public static String IMPORT_ENCODING = "_encoding";
 
     /**
      * Handles the servlet request response cycle for all direct servlet accesses,
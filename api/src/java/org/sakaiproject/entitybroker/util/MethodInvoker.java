@@ -0,0 +1,127 @@
+/**
+ * $Id$
+ * $URL$
+ * MethodInvoker.java - entity-broker - Oct 17, 2026 7:12:40 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import org.sakaiproject.entitybroker.entityprovider.extension.CustomAction;
+import org.sakaiproject.entitybroker.entityprovider.extension.URLRedirect;
+
+/**
+ * INTERNAL USE ONLY<br/>
+ * A precompiled invoker for an entity provider method (like the ones behind {@link CustomAction}
+ * and {@link URLRedirect}), the method is bound once to a fixed set of binding types so the
+ * caller passes every possible argument in binding order and the handle picks out the ones the
+ * method actually takes, this avoids reflection and working out the argument order on every call<br/>
+ * The handle has the type (Object target, bindingTypes...) -> Object and should be called with
+ * {@link MethodHandle#invokeExact(Object...)} using exactly those static types,
+ * exceptions thrown by the method are thrown as is (they are not wrapped)
+ */
+public final class MethodInvoker {
+
+    private final Method method;
+    private final MethodHandle handle;
+    private final boolean[] bound;
+
+    /**
+     * @param method the method to invoke
+     * @param methodArgTypes the argument types of the method in order, each one must be one of the bindingTypes
+     * (the declared parameter types of the method may be subclasses of these)
+     * @param bindingTypes all the argument types which can be supplied to the method in the order they will be passed in
+     * @throws IllegalArgumentException if the method args cannot be bound or the method is not accessible
+     */
+    public MethodInvoker(Method method, Class<?>[] methodArgTypes, Class<?>[] bindingTypes) {
+        if (method == null || methodArgTypes == null || bindingTypes == null) {
+            throw new IllegalArgumentException("method, methodArgTypes, and bindingTypes must not be null");
+        }
+        if (Modifier.isStatic(method.getModifiers())) {
+            throw new IllegalArgumentException("method ("+method.getName()+") must not be static");
+        }
+        if (methodArgTypes.length != method.getParameterTypes().length) {
+            throw new IllegalArgumentException("methodArgTypes do not match the parameters of method ("+method.getName()+")");
+        }
+        this.method = method;
+        this.bound = new boolean[bindingTypes.length];
+        int[] reorder = new int[methodArgTypes.length + 1];
+        reorder[0] = 0; // the target
+        for (int i = 0; i < methodArgTypes.length; i++) {
+            int index = -1;
+            for (int j = 0; j < bindingTypes.length; j++) {
+                if (bindingTypes[j].equals(methodArgTypes[i])) {
+                    index = j;
+                    break;
+                }
+            }
+            if (index < 0) {
+                throw new IllegalArgumentException("Invalid method ("+method.getName()+") arg type (" + methodArgTypes[i]
+                        + "), valid types include: " + Arrays.toString(bindingTypes));
+            }
+            bound[index] = true;
+            reorder[i + 1] = index + 1;
+        }
+        MethodHandle mh;
+        try {
+            mh = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // public method on a class which is not public (inner or proxy classes)
+            try {
+                method.setAccessible(true);
+                mh = MethodHandles.lookup().unreflect(method);
+            } catch (Exception e1) {
+                throw new IllegalArgumentException("Method ("+method.getName()+") is not accessible: " + e1.getMessage(), e1);
+            }
+        }
+        // (Object target, methodArgTypes...) -> Object
+        mh = mh.asType( MethodType.methodType(Object.class, methodArgTypes).insertParameterTypes(0, Object.class) );
+        // (Object target, bindingTypes...) -> Object, unused bindings are dropped
+        MethodType bindingType = MethodType.methodType(Object.class, bindingTypes).insertParameterTypes(0, Object.class);
+        this.handle = MethodHandles.permuteArguments(mh, bindingType, reorder);
+    }
+
+    /**
+     * @return the method which is invoked
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the handle with type (Object target, bindingTypes...) -> Object,
+     * void methods return null
+     */
+    public MethodHandle getHandle() {
+        return handle;
+    }
+
+    /**
+     * @param bindingIndex the position of the argument in the binding types
+     * @return true if the method takes this argument, false if any value (like null) can be passed for it
+     */
+    public boolean isBound(int bindingIndex) {
+        return bound[bindingIndex];
+    }
+
+}
@@ -21,6 +21,7 @@
 package org.sakaiproject.entitybroker.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -92,6 +94,37 @@ public class TemplateParseUtil {
     * Defines the valid template chars for an outgoing template (allows ?)
     */
    public static final String VALID_TEMPLATE_CHARS_OUTGOING = "[A-Za-z0-9\\\\(\\\\)\\+\\*\\.\\-_=,:;&!~@%"+SEPARATOR+"\\{\\}\\?]";
+   /**
+    * Matches the trailing part of an input (extras) which is not part of the template
+    */
+   public static final String EXTRAS_REGEX = "(?:/"+VALID_INPUT_CHARS+"+|$)";
+
+   /**
+    * Compiled version of {@link #VALID_INPUT_CHARS} which matches a complete input
+    */
+   private static final Pattern VALID_INPUT_PATTERN = Pattern.compile(VALID_INPUT_CHARS+"+");
+   /**
+    * Compiled version of {@link #VALID_TEMPLATE_CHARS} which matches a complete template
+    */
+   private static final Pattern VALID_TEMPLATE_PATTERN = Pattern.compile(VALID_TEMPLATE_CHARS+"+");
+   /**
+    * Compiled version of {@link #VALID_TEMPLATE_CHARS_OUTGOING} which matches a complete template
+    */
+   private static final Pattern VALID_TEMPLATE_OUTGOING_PATTERN = Pattern.compile(VALID_TEMPLATE_CHARS_OUTGOING+"+");
+
+   /**
+    * Holds the templates which have already been preprocessed (key is made by {@link #makeTemplateCacheKey(Template)}),
+    * custom templates are loaded every time an entity view is created so this keeps us from
+    * reprocessing (and recompiling) them over and over,
+    * reads take no lock since this is checked on every parse, it is cleared if it fills up
+    * to {@link #MAX_PREPROCESSED_CACHE_SIZE} (the number of templates is normally far lower)
+    */
+   private static final ConcurrentHashMap<String, PreProcessedTemplate> preprocessedCache = 
+         new ConcurrentHashMap<String, PreProcessedTemplate>(64);
+   /**
+    * Limits the size of the preprocessed cache
+    */
+   private static final int MAX_PREPROCESSED_CACHE_SIZE = 1000;
 
 
    /**
@@ -236,7 +269,7 @@ public class TemplateParseUtil {
       } else if (template.indexOf("{}") != -1) {
          throw new IllegalArgumentException("Template ("+template+") replacement variables ({var}) " +
                "cannot be empty ({}), there must be a value between them");
-      } else if (! template.matches(VALID_TEMPLATE_CHARS+"+")) {
+      } else if (! VALID_TEMPLATE_PATTERN.matcher(template).matches()) {
          // take out {} and check if the template uses valid chars
          throw new IllegalArgumentException("Template ("+template+") can only contain the following (not counting []): " + VALID_TEMPLATE_CHARS);
       }
@@ -256,7 +289,7 @@ public class TemplateParseUtil {
       } else if (template.indexOf("{}") != -1) {
          throw new IllegalArgumentException("Template ("+template+") replacement variables ({var}) " +
                "cannot be empty ({}), there must be a value between them");
-      } else if (! template.matches(VALID_TEMPLATE_CHARS_OUTGOING+"+")) {
+      } else if (! VALID_TEMPLATE_OUTGOING_PATTERN.matcher(template).matches()) {
          // take out {} and check if the template uses valid chars
          throw new IllegalArgumentException("Template ("+template+") can only contain the following (not counting []): " + VALID_TEMPLATE_CHARS_OUTGOING);
       }
@@ -369,23 +402,25 @@ public class TemplateParseUtil {
       if (input == null || "".equals(input)) {
          throw new IllegalArgumentException("input cannot be null or empty");
       }
-      if (! input.matches(VALID_INPUT_CHARS+"+")) {
+      if (! VALID_INPUT_PATTERN.matcher(input).matches()) {
          throw new IllegalArgumentException("input must consist of the following chars only (not counting []): " + VALID_INPUT_CHARS);         
       }
       ProcessedTemplate analysis = null;
-      Map<String, String> segments = new HashMap<String, String>();
       // strip off the extension if there is one
       String[] ext = findExtension(input);
       input = ext[1];
       String extension = ext[2];
+      // only try the templates which could possibly match (all of them if we cannot tell)
+      List<PreProcessedTemplate> candidates = preprocessed;
+      if (preprocessed instanceof PreProcessedTemplateList) {
+         candidates = ((PreProcessedTemplateList) preprocessed).findCandidates(input);
+      }
       // try to get matches
-      for (PreProcessedTemplate ppt : preprocessed) {
-         segments.clear();
-         String regex = ppt.regex + "(?:/"+VALID_INPUT_CHARS+"+|$)"; // match extras if there are any (greedy match)
-         Pattern p = Pattern.compile(regex);
-         Matcher m = p.matcher(input);
+      for (PreProcessedTemplate ppt : candidates) {
+         Matcher m = ppt.getPattern().matcher(input);
          if ( m.matches() ) {
             if ( m.groupCount() == ppt.variableNames.size() ) {
+               Map<String, String> segments = new HashMap<String, String>();
                for (int j = 0; j < m.groupCount(); j++) {
                   String subseq = m.group(j+1); // ignore first group, it is the whole pattern
                   if (subseq != null) {
@@ -393,9 +428,8 @@ public class TemplateParseUtil {
                   }
                }
                // fill in the analysis object
-               analysis = new ProcessedTemplate(ppt.templateKey, ppt.template, regex, 
-                     new ArrayList<String>(ppt.variableNames), 
-                     new HashMap<String, String>(segments), extension);
+               analysis = new ProcessedTemplate(ppt.templateKey, ppt.template, ppt.regex + EXTRAS_REGEX, 
+                     new ArrayList<String>(ppt.variableNames), segments, extension);
                break;
             }
          }
@@ -417,7 +451,7 @@ public class TemplateParseUtil {
       if (templates == null) {
          templates = defaultTemplates;
       }
-      List<PreProcessedTemplate> analyzedTemplates = new ArrayList<PreProcessedTemplate>();
+      List<PreProcessedTemplate> analyzedTemplates = new PreProcessedTemplateList(templates.size());
       for (Template t : templates) {
          analyzedTemplates.add( preprocessTemplate(t) );
       }      
@@ -425,11 +459,42 @@ public class TemplateParseUtil {
    }
 
    /**
-    * process a template into a preprocessed template which can be cached
+    * process a template into a preprocessed template which can be cached,
+    * templates which were already processed are reused
     * @param t the template
     * @return the preprocessed template
     */
    public static PreProcessedTemplate preprocessTemplate(Template t) {
+      String cacheKey = makeTemplateCacheKey(t);
+      PreProcessedTemplate ppt = preprocessedCache.get(cacheKey);
+      if (ppt == null) {
+         ppt = makePreprocessedTemplate(t);
+         if (preprocessedCache.size() >= MAX_PREPROCESSED_CACHE_SIZE) {
+            // templates which are still in use are put back as they are parsed
+            preprocessedCache.clear();
+         }
+         preprocessedCache.put(cacheKey, ppt);
+      } else if (! t.incoming) {
+         // outgoing templates are corrected during processing
+         t.template = ppt.template;
+      }
+      return ppt;
+   }
+
+   /**
+    * @param t a template
+    * @return the key for this template in the preprocessed cache
+    */
+   private static String makeTemplateCacheKey(Template t) {
+      return (t.incoming ? "I:" : "O:") + t.templateKey + SEPARATOR + t.template;
+   }
+
+   /**
+    * process a template into a preprocessed template
+    * @param t the template
+    * @return the preprocessed template
+    */
+   private static PreProcessedTemplate makePreprocessedTemplate(Template t) {
       if (t.incoming) {
          TemplateParseUtil.validateTemplate(t.template);
       } else {
@@ -457,6 +522,23 @@ public class TemplateParseUtil {
             t.template, regex.toString(), new ArrayList<String>(vars));
    }
 
+   /**
+    * Splits a template or input path into its path segments (the leading separator is skipped)
+    * @param path a path which starts with the {@link #SEPARATOR}
+    * @return the segments in the path
+    */
+   private static List<String> splitSegments(String path) {
+      List<String> segments = new ArrayList<String>();
+      int start = 1;
+      int end;
+      while ((end = path.indexOf(SEPARATOR, start)) != -1) {
+         segments.add(path.substring(start, end));
+         start = end + 1;
+      }
+      segments.add(path.substring(start));
+      return segments;
+   }
+
    /**
     * Represents a parseable template (which is basically a key and the template string),
     * the array which defines the set of template keys is {@link #PARSE_TEMPLATE_KEYS}<br/>
@@ -550,11 +632,167 @@ public class TemplateParseUtil {
        */
       public List<String> variableNames;
 
+      /**
+       * The compiled pattern which matches this template and any extras after it,
+       * made the first time it is needed
+       */
+      private volatile Pattern pattern;
+
       protected PreProcessedTemplate(String templateKey, String template, String regex, List<String> variableNames) {
          super(templateKey, template);
          this.regex = regex;
          this.variableNames = variableNames;
       }
+
+      /**
+       * @return the compiled pattern for this template ({@link #regex} followed by the extras matcher)
+       */
+      public Pattern getPattern() {
+         Pattern p = pattern;
+         if (p == null) {
+            p = Pattern.compile(regex + EXTRAS_REGEX);
+            pattern = p;
+         }
+         return p;
+      }
+   }
+
+   /**
+    * A list of preprocessed templates which also knows how to quickly narrow down which
+    * of the templates could match an input (using a tree of the template path segments),
+    * this avoids trying the regex for every template in turn,
+    * the tree is rebuilt whenever the list changes
+    * 
+    * @author Aaron Zeckoski (aaron@caret.cam.ac.uk)
+    */
+   public static class PreProcessedTemplateList extends ArrayList<PreProcessedTemplate> {
+      private static final long serialVersionUID = 1L;
+
+      private transient volatile SegmentNode root;
+      private transient volatile int rootModCount = -1;
+
+      public PreProcessedTemplateList() {
+         super();
+      }
+
+      public PreProcessedTemplateList(int initialCapacity) {
+         super(initialCapacity);
+      }
+
+      /**
+       * Makes a copy of the templates, the segment tree is shared if the source is also one of these
+       * @param templates the preprocessed templates
+       */
+      public PreProcessedTemplateList(Collection<? extends PreProcessedTemplate> templates) {
+         super(templates);
+         if (templates instanceof PreProcessedTemplateList) {
+            PreProcessedTemplateList other = (PreProcessedTemplateList) templates;
+            SegmentNode otherRoot = other.root;
+            if (otherRoot != null && other.rootModCount == other.modCount) {
+               this.root = otherRoot;
+               this.rootModCount = this.modCount;
+            }
+         }
+      }
+
+      /**
+       * Find the templates in this list which might match the input,
+       * anything returned still has to be matched using the template pattern
+       * @param input the input without the extension
+       * @return the candidate templates in the same order as they are in this list
+       */
+      public List<PreProcessedTemplate> findCandidates(String input) {
+         SegmentNode node = root;
+         if (node == null || rootModCount != modCount) {
+            node = buildTree();
+         }
+         if (input.length() == 0 || input.charAt(0) != SEPARATOR) {
+            // only the templates which could not be placed in the tree can match this
+            return indexesToTemplates(node.unplaced);
+         }
+         List<String> segments = splitSegments(input);
+         List<Integer> indexes = new ArrayList<Integer>(node.unplaced);
+         collectCandidates(node, segments, 0, indexes);
+         if (indexes.size() > 1) {
+            Collections.sort(indexes);
+         }
+         return indexesToTemplates(indexes);
+      }
+
+      private List<PreProcessedTemplate> indexesToTemplates(List<Integer> indexes) {
+         List<PreProcessedTemplate> candidates = new ArrayList<PreProcessedTemplate>(indexes.size());
+         for (Integer index : indexes) {
+            candidates.add( get(index) );
+         }
+         return candidates;
+      }
+
+      private void collectCandidates(SegmentNode node, List<String> segments, int depth, List<Integer> indexes) {
+         // templates ending here match since anything extra is allowed after the template
+         indexes.addAll(node.ending);
+         if (depth < segments.size()) {
+            String segment = segments.get(depth);
+            SegmentNode literal = node.literals.get(segment);
+            if (literal != null) {
+               collectCandidates(literal, segments, depth + 1, indexes);
+            }
+            if (node.variable != null && segment.length() > 0) {
+               collectCandidates(node.variable, segments, depth + 1, indexes);
+            }
+         }
+      }
+
+      private synchronized SegmentNode buildTree() {
+         SegmentNode node = new SegmentNode();
+         int currentModCount = modCount;
+         for (int i = 0; i < size(); i++) {
+            String template = get(i).template;
+            if (template == null || template.length() == 0 || template.charAt(0) != SEPARATOR) {
+               node.unplaced.add(i);
+               continue;
+            }
+            SegmentNode current = node;
+            for (String segment : splitSegments(template)) {
+               if (segment.indexOf('{') != -1 
+                     || segment.indexOf('(') != -1 
+                     || segment.indexOf(')') != -1
+                     || segment.indexOf('\\') != -1) {
+                  // anything with variables or odd escaping is treated as a variable segment
+                  if (current.variable == null) {
+                     current.variable = new SegmentNode();
+                  }
+                  current = current.variable;
+               } else {
+                  SegmentNode next = current.literals.get(segment);
+                  if (next == null) {
+                     next = new SegmentNode();
+                     current.literals.put(segment, next);
+                  }
+                  current = next;
+               }
+            }
+            current.ending.add(i);
+         }
+         root = node;
+         rootModCount = currentModCount;
+         return node;
+      }
+   }
+
+   /**
+    * A node in the tree of template path segments
+    */
+   private static class SegmentNode {
+      public final Map<String, SegmentNode> literals = new HashMap<String, SegmentNode>();
+      public SegmentNode variable;
+      /**
+       * indexes of the templates which end at this node
+       */
+      public final List<Integer> ending = new ArrayList<Integer>();
+      /**
+       * (root only) indexes of the templates which cannot be placed in the tree
+       */
+      public final List<Integer> unplaced = new ArrayList<Integer>();
    }
 
    /**
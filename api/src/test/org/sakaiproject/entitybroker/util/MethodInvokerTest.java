@@ -0,0 +1,121 @@
+/**
+ * $Id$
+ * $URL$
+ * MethodInvokerTest.java - entity-broker - Oct 17, 2026 7:48:05 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing the precompiled method invoker
+ */
+public class MethodInvokerTest extends TestCase {
+
+    private static final Class<?>[] BINDING_TYPES = {String.class, String[].class, Map.class};
+
+    /**
+     * Methods shaped like the URL redirect methods
+     */
+    public static class Target {
+        public int calls = 0;
+        public String redirect(Map<String, String> values, String url) {
+            calls++;
+            return url + ":" + values.get("id");
+        }
+        public int count(String[] names) {
+            return names.length;
+        }
+        public void nothing() {
+            calls++;
+        }
+        public String fail(String url) {
+            throw new IllegalStateException("failed: " + url);
+        }
+        public String other(Object thing) {
+            return null;
+        }
+    }
+
+    private MethodInvoker makeInvoker(String methodName, Class<?>... argTypes) throws Exception {
+        Method method = Target.class.getMethod(methodName, argTypes);
+        return new MethodInvoker(method, argTypes, BINDING_TYPES);
+    }
+
+    public void testInvoke() throws Throwable {
+        Target target = new Target();
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("id", "123");
+        String url = "/prefix/123";
+        String[] names = new String[] {"prefix", "id"};
+
+        MethodInvoker invoker = makeInvoker("redirect", Map.class, String.class);
+        assertNotNull(invoker.getMethod());
+        assertTrue(invoker.isBound(0));
+        assertFalse(invoker.isBound(1));
+        assertTrue(invoker.isBound(2));
+        Object result = (Object) invoker.getHandle().invokeExact((Object) target, url, names, values);
+        assertEquals("/prefix/123:123", result);
+        assertEquals(1, target.calls);
+
+        // unbound args can be null
+        result = (Object) invoker.getHandle().invokeExact((Object) target, url, (String[]) null, values);
+        assertEquals("/prefix/123:123", result);
+
+        // primitive returns are boxed
+        invoker = makeInvoker("count", String[].class);
+        assertFalse(invoker.isBound(0));
+        assertTrue(invoker.isBound(1));
+        result = (Object) invoker.getHandle().invokeExact((Object) target, (String) null, names, (Map) null);
+        assertEquals(Integer.valueOf(2), result);
+
+        // void methods return null
+        invoker = makeInvoker("nothing");
+        result = (Object) invoker.getHandle().invokeExact((Object) target, url, names, values);
+        assertNull(result);
+        assertEquals(3, target.calls);
+
+        // exceptions are not wrapped
+        invoker = makeInvoker("fail", String.class);
+        try {
+            result = (Object) invoker.getHandle().invokeExact((Object) target, url, names, values);
+            fail("should have thrown exception");
+        } catch (IllegalStateException e) {
+            assertEquals("failed: " + url, e.getMessage());
+        }
+
+        // invalid arg types
+        try {
+            makeInvoker("other", Object.class);
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+        try {
+            new MethodInvoker(Target.class.getMethod("count", String[].class), new Class<?>[0], BINDING_TYPES);
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+}
@@ -20,6 +20,7 @@
 
 package org.sakaiproject.entitybroker.util;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,7 +29,9 @@ import junit.framework.TestCase;
 
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplate;
+import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplateList;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.ProcessedTemplate;
+import org.sakaiproject.entitybroker.util.TemplateParseUtil.Template;
 
 /**
  * Testing the template parsing utility class
@@ -495,4 +498,82 @@ public class TemplateParseUtilTest extends TestCase {
 
    }
 
+   /**
+    * Test method for {@link TemplateParseUtil.PreProcessedTemplateList#findCandidates(String)}
+    */
+   public void testFindCandidates() {
+      List<Template> templates = new ArrayList<Template>();
+      templates.add( new Template("site", "/{prefix}/site/{siteId}") );
+      templates.add( new Template("user", "/{prefix}/user_{userId}/tools") );
+      templates.add( new Template("thing", "/{prefix}/{id}/{thing}") );
+      templates.addAll(TemplateParseUtil.defaultTemplates);
+      List<PreProcessedTemplate> preprocessed = TemplateParseUtil.preprocessTemplates(templates);
+      assertTrue(preprocessed instanceof PreProcessedTemplateList);
+      PreProcessedTemplateList ppl = (PreProcessedTemplateList) preprocessed;
+
+      // only templates with enough segments are candidates, in the original order
+      List<PreProcessedTemplate> candidates = ppl.findCandidates("/myPrefix");
+      assertEquals(1, candidates.size());
+      assertEquals(TemplateParseUtil.TEMPLATE_LIST, candidates.get(0).templateKey);
+
+      candidates = ppl.findCandidates("/myPrefix/site/mysite");
+      assertEquals(4, candidates.size());
+      assertEquals("site", candidates.get(0).templateKey);
+      assertEquals("thing", candidates.get(1).templateKey);
+      assertEquals(TemplateParseUtil.TEMPLATE_SHOW, candidates.get(2).templateKey);
+      assertEquals(TemplateParseUtil.TEMPLATE_LIST, candidates.get(3).templateKey);
+
+      candidates = ppl.findCandidates("/myPrefix/myId/edit");
+      assertEquals(4, candidates.size());
+      assertEquals("thing", candidates.get(0).templateKey);
+      assertEquals(TemplateParseUtil.TEMPLATE_EDIT, candidates.get(1).templateKey);
+      assertEquals(TemplateParseUtil.TEMPLATE_SHOW, candidates.get(2).templateKey);
+
+      // no leading separator so nothing in the tree can match
+      candidates = ppl.findCandidates("myPrefix/stuff/stuff");
+      assertEquals(0, candidates.size());
+
+      // the tree has to follow changes to the list
+      ppl.remove(0);
+      candidates = ppl.findCandidates("/myPrefix/site/mysite");
+      assertEquals(3, candidates.size());
+      assertEquals("thing", candidates.get(0).templateKey);
+
+      // parsing with the tree gives the same results as parsing all templates in turn
+      List<PreProcessedTemplate> plain = new ArrayList<PreProcessedTemplate>(ppl);
+      String[] inputs = new String[] {"/myPrefix", "/myPrefix/myId", "/myPrefix/myId.xml", "/myPrefix/new",
+            "/myPrefix/myId/edit", "/myPrefix/myId/delete/extra", "/myPrefix/user_aaron/tools",
+            "/myPrefix/user_aaron/tools.json", "/myPrefix/site/mysite", "/myPrefix/a/b/c/d", "myPrefix/stuff"};
+      for (String input : inputs) {
+         ProcessedTemplate fast = TemplateParseUtil.parseTemplate(input, ppl);
+         ProcessedTemplate slow = TemplateParseUtil.parseTemplate(input, plain);
+         if (slow == null) {
+            assertNull(input, fast);
+         } else {
+            assertNotNull(input, fast);
+            assertEquals(input, slow.templateKey, fast.templateKey);
+            assertEquals(input, slow.segmentValues, fast.segmentValues);
+            assertEquals(input, slow.extension, fast.extension);
+         }
+      }
+   }
+
+   /**
+    * Test method for {@link TemplateParseUtil#preprocessTemplate(Template)}
+    */
+   public void testPreprocessTemplateCached() {
+      PreProcessedTemplate ppt1 = TemplateParseUtil.preprocessTemplate( new Template("cached", "/{prefix}/cached/{id}") );
+      PreProcessedTemplate ppt2 = TemplateParseUtil.preprocessTemplate( new Template("cached", "/{prefix}/cached/{id}") );
+      assertSame(ppt1, ppt2);
+      assertSame(ppt1.getPattern(), ppt2.getPattern());
+
+      // outgoing templates still get corrected when they come from the cache
+      Template outgoing = new Template("out", "/{prefix}/out/{id}", false);
+      PreProcessedTemplate ppt3 = TemplateParseUtil.preprocessTemplate(outgoing);
+      outgoing = new Template("out", "/{prefix}/out/{id}", false);
+      PreProcessedTemplate ppt4 = TemplateParseUtil.preprocessTemplate(outgoing);
+      assertSame(ppt3, ppt4);
+      assertEquals(ppt3.template, outgoing.template);
+   }
+
 }
@@ -0,0 +1,180 @@
+/**
+ * $Id$
+ * $URL$
+ * ActionInvokeBenchmark.java - entity-broker - Oct 18, 2026 4:21:37 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.util.MethodInvoker;
+
+/**
+ * Benchmarks for calling the provider methods behind custom actions and URL redirects,
+ * compares the reflective dispatch (building the args for the method and then {@link Method#invoke(Object, Object...)})
+ * with the compiled {@link MethodInvoker} (invokeExact with every possible arg in binding order),
+ * the methods do almost nothing so the cost of the dispatch is what is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionInvokeBenchmark {
+
+    /**
+     * the same binding order as the custom actions in the EntityProviderMethodStoreImpl
+     */
+    private static final Class<?>[] ACTION_BINDING_TYPES = {
+        EntityReference.class, EntityView.class, Search.class, String.class, OutputStream.class, Map.class
+    };
+    /**
+     * the same binding order as the URL redirects in the EntityProviderMethodStoreImpl
+     */
+    private static final Class<?>[] REDIRECT_BINDING_TYPES = {
+        String.class, String[].class, Map.class
+    };
+
+    /**
+     * Provider with a custom action and a URL redirect method (must be public for the invoker)
+     */
+    public static class BenchActionsProvider {
+        public Object countAction(EntityView view, Map<String, Object> params) {
+            return params.size() + view.getViewKey().length();
+        }
+        public String bounceRedirect(String incomingURL, Map<String, String> values) {
+            return incomingURL + values.size();
+        }
+    }
+
+    private BenchActionsProvider provider;
+    private Method actionMethod;
+    private Class<?>[] actionArgTypes;
+    private MethodInvoker actionInvoker;
+    private Method redirectMethod;
+    private Class<?>[] redirectArgTypes;
+    private MethodInvoker redirectInvoker;
+
+    private EntityReference ref;
+    private EntityView view;
+    private Search search;
+    private String prefix;
+    private OutputStream outputStream;
+    private Map<String, Object> actionParams;
+    private String incomingURL;
+    private String[] variableNames;
+    private Map<String, String> segmentValues;
+
+    @Setup
+    public void setup() throws Exception {
+        provider = new BenchActionsProvider();
+        actionArgTypes = new Class<?>[] {EntityView.class, Map.class};
+        actionMethod = BenchActionsProvider.class.getMethod("countAction", actionArgTypes);
+        actionInvoker = new MethodInvoker(actionMethod, actionArgTypes, ACTION_BINDING_TYPES);
+        redirectArgTypes = new Class<?>[] {String.class, Map.class};
+        redirectMethod = BenchActionsProvider.class.getMethod("bounceRedirect", redirectArgTypes);
+        redirectInvoker = new MethodInvoker(redirectMethod, redirectArgTypes, REDIRECT_BINDING_TYPES);
+
+        ref = new EntityReference(BenchmarkServiceManager.PREFIX, "bench-1");
+        view = new EntityView(ref, EntityView.VIEW_SHOW, null);
+        search = new Search();
+        prefix = BenchmarkServiceManager.PREFIX;
+        outputStream = new ByteArrayOutputStream();
+        actionParams = new HashMap<String, Object>();
+        actionParams.put("count", "1");
+        incomingURL = "/" + prefix + "/site/123";
+        variableNames = new String[] {"prefix", "site"};
+        segmentValues = new HashMap<String, String>();
+        segmentValues.put("prefix", prefix);
+        segmentValues.put("site", "123");
+    }
+
+    /**
+     * the reflective dispatch which was used before the invokers were compiled
+     */
+    @Benchmark
+    public Object actionReflect() throws Exception {
+        Object[] args = new Object[actionArgTypes.length];
+        for (int i = 0; i < actionArgTypes.length; i++) {
+            Class<?> argType = actionArgTypes[i];
+            if (EntityReference.class.equals(argType)) {
+                args[i] = ref;
+            } else if (EntityView.class.equals(argType)) {
+                args[i] = view;
+            } else if (String.class.equals(argType)) {
+                args[i] = prefix;
+            } else if (Search.class.equals(argType)) {
+                args[i] = search;
+            } else if (OutputStream.class.equals(argType)) {
+                args[i] = outputStream;
+            } else if (Map.class.equals(argType)) {
+                args[i] = actionParams;
+            }
+        }
+        return actionMethod.invoke(provider, args);
+    }
+
+    @Benchmark
+    public Object actionInvoker() throws Throwable {
+        return (Object) actionInvoker.getHandle().invokeExact((Object) provider, ref, view, search, prefix, outputStream, actionParams);
+    }
+
+    /**
+     * the reflective dispatch which was used before the invokers were compiled
+     */
+    @Benchmark
+    public Object redirectReflect() throws Exception {
+        Object[] args = new Object[redirectArgTypes.length];
+        for (int i = 0; i < redirectArgTypes.length; i++) {
+            Class<?> argType = redirectArgTypes[i];
+            if (String.class.equals(argType)) {
+                args[i] = incomingURL;
+            } else if (String[].class.equals(argType)) {
+                args[i] = variableNames;
+            } else if (Map.class.equals(argType)) {
+                args[i] = segmentValues;
+            }
+        }
+        return redirectMethod.invoke(provider, args);
+    }
+
+    @Benchmark
+    public Object redirectInvoker() throws Throwable {
+        return (Object) redirectInvoker.getHandle().invokeExact((Object) provider, incomingURL, variableNames, segmentValues);
+    }
+
+}
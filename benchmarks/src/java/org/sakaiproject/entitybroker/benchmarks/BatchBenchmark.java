@@ -0,0 +1,89 @@
+/**
+ * $Id$
+ * $URL$
+ * BatchBenchmark.java - entity-broker - Oct 18, 2026 12:05:02 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.rest.EntityBatchHandler;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+
+/**
+ * Benchmarks for batch requests (/direct/batch) of internal references,
+ * the batch is handled by {@link EntityBatchHandler#handleBatch(EntityView, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    /**
+     * the number of references in the batch
+     */
+    @Param({"1", "10", "50"})
+    public int refs;
+
+    @Param({"json", "xml"})
+    public String format;
+
+    private BenchmarkServiceManager serviceManager;
+    private String batchPath;
+    private String refsParam;
+
+    @Setup
+    public void setup() {
+        serviceManager = new BenchmarkServiceManager(refs);
+        batchPath = EntityView.DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + EntityView.PERIOD + format;
+        StringBuilder sb = new StringBuilder();
+        for (String id : BenchmarkServiceManager.makeIds(refs)) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(EntityView.DIRECT_PREFIX).append(BenchmarkServiceManager.makeReference(id)).append(EntityView.PERIOD).append(format);
+        }
+        refsParam = sb.toString();
+    }
+
+    @Benchmark
+    public int handleBatch() {
+        EntityHttpServletRequest req = new EntityHttpServletRequest("GET", batchPath, EntityBatchHandler.REFS_PARAM_NAME, refsParam);
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        serviceManager.entityRequestHandler.handleEntityAccess(req, res, null);
+        return res.getContentAsByteArray().length;
+    }
+
+}
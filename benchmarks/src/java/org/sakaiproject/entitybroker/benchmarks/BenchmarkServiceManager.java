@@ -0,0 +1,130 @@
+/**
+ * $Id$
+ * $URL$
+ * BenchmarkServiceManager.java - entity-broker - Oct 17, 2026 11:58:20 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.impl.EntityBrokerImpl;
+import org.sakaiproject.entitybroker.impl.EntityBrokerManagerImpl;
+import org.sakaiproject.entitybroker.impl.entityprovider.EntityProviderManagerImpl;
+import org.sakaiproject.entitybroker.mocks.EntityViewAccessProviderManagerMock;
+import org.sakaiproject.entitybroker.mocks.HttpServletAccessProviderManagerMock;
+import org.sakaiproject.entitybroker.mocks.ResolvableEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.data.TestData;
+import org.sakaiproject.entitybroker.providers.EntityPropertiesService;
+import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
+import org.sakaiproject.entitybroker.rest.EntityBatchHandler;
+import org.sakaiproject.entitybroker.rest.EntityBrokerRESTServiceManager;
+import org.sakaiproject.entitybroker.rest.EntityEncodingManager;
+import org.sakaiproject.entitybroker.rest.EntityHandlerImpl;
+import org.sakaiproject.entitybroker.util.core.EntityPropertiesServiceSimple;
+import org.sakaiproject.entitybroker.util.core.EntityProviderMethodStoreImpl;
+import org.sakaiproject.entitybroker.util.external.ExternalIntegrationProviderMock;
+import org.sakaiproject.entitybroker.util.request.RequestGetterImpl;
+import org.sakaiproject.entitybroker.util.request.RequestStorageImpl;
+
+/**
+ * This creates the full /direct request handling stack in process (the same way the
+ * ServiceTestManager in the rest tests does) along with a provider which has a set number of entities
+ * so the benchmarks can run against it without a sakai server
+ */
+public class BenchmarkServiceManager {
+
+    /**
+     * the prefix of the provider which has the set number of entities
+     */
+    public static final String PREFIX = "bench";
+
+    public final TestData td;
+    public final EntityProviderManagerImpl entityProviderManager;
+    public final EntityBrokerManagerImpl entityBrokerManager;
+    public final EntityBrokerImpl entityBroker;
+    public final EntityEncodingManager entityEncodingManager;
+    public final EntityBatchHandler entityBatchHandler;
+    public final EntityHandlerImpl entityRequestHandler;
+    public final ResolvableEntityProviderMock benchProvider;
+
+    /**
+     * @param entities the number of entities the {@link #PREFIX} provider has
+     */
+    public BenchmarkServiceManager(int entities) {
+        td = new TestData();
+        RequestGetterImpl requestGetter = new RequestGetterImpl();
+        ExternalIntegrationProvider externalIntegrationProvider = new ExternalIntegrationProviderMock();
+        EntityPropertiesService entityPropertiesService = new EntityPropertiesServiceSimple();
+        HttpServletAccessProviderManagerMock httpServletAccessProviderManager = new HttpServletAccessProviderManagerMock();
+        EntityViewAccessProviderManagerMock entityViewAccessProviderManager = new EntityViewAccessProviderManagerMock();
+        EntityProviderMethodStoreImpl entityProviderMethodStore = new EntityProviderMethodStoreImpl();
+        RequestStorageImpl requestStorage = new RequestStorageImpl(requestGetter);
+
+        entityProviderManager = new EntityProviderManagerImpl(requestStorage, requestGetter, entityPropertiesService, entityProviderMethodStore);
+        entityProviderManager.registerEntityProvider(td.entityProvider1);
+        entityProviderManager.registerEntityProvider(td.entityProvider1T);
+        entityProviderManager.registerEntityProvider(td.entityProvider2);
+        entityProviderManager.registerEntityProvider(td.entityProvider3);
+        entityProviderManager.registerEntityProvider(td.entityProvider4);
+        entityProviderManager.registerEntityProvider(td.entityProvider5);
+        entityProviderManager.registerEntityProvider(td.entityProvider6);
+        entityProviderManager.registerEntityProvider(td.entityProvider7);
+        entityProviderManager.registerEntityProvider(td.entityProvider8);
+        entityProviderManager.registerEntityProvider(td.entityProviderA);
+        entityProviderManager.registerEntityProvider(td.entityProviderA1);
+        entityProviderManager.registerEntityProvider(td.entityProviderA2);
+        entityProviderManager.registerEntityProvider(td.entityProviderA3);
+        entityProviderManager.registerEntityProvider(td.entityProviderU1);
+        entityProviderManager.registerEntityProvider(td.entityProviderU2);
+        entityProviderManager.registerEntityProvider(td.entityProviderU3);
+        entityProviderManager.registerEntityProvider(td.entityProviderTag);
+        entityProviderManager.registerEntityProvider(td.entityProviderB1);
+        entityProviderManager.registerEntityProvider(td.entityProviderB2);
+        entityProviderManager.registerEntityProvider(td.entityProviderS1);
+        benchProvider = new ResolvableEntityProviderMock(PREFIX, makeIds(entities));
+        entityProviderManager.registerEntityProvider(benchProvider);
+
+        entityBrokerManager = new EntityBrokerManagerImpl(entityProviderManager, entityPropertiesService, entityViewAccessProviderManager, externalIntegrationProvider);
+        entityBroker = new EntityBrokerImpl(entityProviderManager, entityBrokerManager, requestStorage);
+
+        EntityBrokerRESTServiceManager restServiceManager = new EntityBrokerRESTServiceManager(entityBrokerManager, httpServletAccessProviderManager);
+        entityEncodingManager = restServiceManager.getEntityEncodingManager();
+        entityBatchHandler = restServiceManager.getEntityBatchHandler();
+        entityRequestHandler = restServiceManager.getEntityRequestHandler();
+    }
+
+    /**
+     * @param count the number of ids
+     * @return the ids of the entities in the {@link #PREFIX} provider
+     */
+    public static String[] makeIds(int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = PREFIX + "-" + i;
+        }
+        return ids;
+    }
+
+    /**
+     * @param id an entity id
+     * @return the reference for an entity in the {@link #PREFIX} provider
+     */
+    public static String makeReference(String id) {
+        return EntityReference.SEPARATOR + PREFIX + EntityReference.SEPARATOR + id;
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * $Id$
+ * $URL$
+ * EncodingBenchmark.java - entity-broker - Oct 18, 2026 12:01:15 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
+
+/**
+ * Benchmarks for encoding entities into the output formats and
+ * adding the meta data (URLs, titles) to the entity data before it is encoded
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    /**
+     * the number of entities in the collection
+     */
+    @Param({"1", "10", "100", "1000"})
+    public int size;
+
+    @Param({"json", "xml"})
+    public String format;
+
+    private BenchmarkServiceManager serviceManager;
+    private EntityReference collectionRef;
+    private EntityView collectionView;
+    private EntityView entityView;
+    private EntityData entityData;
+    private List<EntityData> entities;
+    private ByteArrayOutputStream output;
+
+    @Setup
+    public void setup() {
+        serviceManager = new BenchmarkServiceManager(size);
+        collectionRef = new EntityReference(BenchmarkServiceManager.PREFIX, "");
+        collectionView = serviceManager.entityBrokerManager.makeEntityView(collectionRef, EntityView.VIEW_LIST, format);
+        EntityReference ref = new EntityReference(BenchmarkServiceManager.makeReference(BenchmarkServiceManager.PREFIX + "-0"));
+        entityView = serviceManager.entityBrokerManager.makeEntityView(ref, EntityView.VIEW_SHOW, format);
+        entityData = serviceManager.entityBrokerManager.getEntityData(ref);
+        entities = serviceManager.entityBrokerManager.getEntitiesData(collectionRef, new Search(), null);
+        output = new ByteArrayOutputStream(size * 512);
+    }
+
+    @Benchmark
+    public String encodeEntity() {
+        return serviceManager.entityEncodingManager.encodeEntity(BenchmarkServiceManager.PREFIX, format, entityData, entityView);
+    }
+
+    /**
+     * encodes the whole collection the same way a /direct/prefix.format request does
+     */
+    @Benchmark
+    public int encodeCollection() {
+        output.reset();
+        serviceManager.entityEncodingManager.internalOutputFormatter(collectionRef, format, entities, null, output, collectionView);
+        return output.size();
+    }
+
+    /**
+     * includes making the unpopulated entity data since populated data is skipped
+     */
+    @Benchmark
+    public List<EntityData> populateEntityData() {
+        List<EntityData> data = new ArrayList<EntityData>(size);
+        for (int i = 0; i < size; i++) {
+            String id = BenchmarkServiceManager.PREFIX + "-" + i;
+            data.add( new EntityData(BenchmarkServiceManager.makeReference(id), null, new MyEntity(id, "something" + i)) );
+        }
+        serviceManager.entityBrokerManager.populateEntityData(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * $Id$
+ * $URL$
+ * InputBindingBenchmark.java - entity-broker - Oct 18, 2026 1:24:36 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
+import org.sakaiproject.entitybroker.rest.EntityInputBinder;
+
+/**
+ * Benchmarks for translating PUT/POST input into an entity,
+ * compares binding straight from the stream with the old round trip
+ * (read the body into a String, decode it into a map, then populate the entity from the map)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputBindingBenchmark {
+
+    /**
+     * the length of the largest value in the input
+     */
+    @Param({"16", "4096", "262144"})
+    public int valueLength;
+
+    @Param({"json", "xml"})
+    public String format;
+
+    private BenchmarkServiceManager serviceManager;
+    private EntityInputBinder binder;
+    private EntityReference ref;
+    private byte[] input;
+
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        serviceManager = new BenchmarkServiceManager(10);
+        binder = new EntityInputBinder(0, EntityInputBinder.DEFAULT_MAX_INPUT_DEPTH);
+        ref = new EntityReference(BenchmarkServiceManager.PREFIX, "");
+        StringBuilder value = new StringBuilder(valueLength);
+        for (int i = 0; i < valueLength; i++) {
+            value.append((char) ('a' + (i % 26)));
+        }
+        String data;
+        if ("json".equals(format)) {
+            data = "{\"id\":\"bench-1\",\"stuff\":\"" + value + "\",\"number\":5,\"extra\":{\"a\":[1,2,3]}}";
+        } else {
+            data = "<" + BenchmarkServiceManager.PREFIX + "><id>bench-1</id><stuff>" + value + "</stuff><number type='number'>5</number>"
+                + "<extra><a>1</a><a>2</a><a>3</a></extra></" + BenchmarkServiceManager.PREFIX + ">";
+        }
+        input = data.getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public MyEntity streamingBind() {
+        MyEntity entity = new MyEntity();
+        binder.bind(ref, format, new ByteArrayInputStream(input), entity);
+        return entity;
+    }
+
+    /**
+     * the way the input was translated before the binder
+     */
+    @Benchmark
+    public MyEntity mapRoundTrip() {
+        MyEntity entity = new MyEntity();
+        String data = StringUtils.makeStringFromInputStream(new ByteArrayInputStream(input));
+        Map<String, Object> decoded = serviceManager.entityEncodingManager.decodeData(data, format);
+        ReflectUtils.getInstance().populate(entity, decoded);
+        return entity;
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * $Id$
+ * $URL$
+ * ParsingBenchmark.java - entity-broker - Oct 17, 2026 11:59:42 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
+import org.sakaiproject.entitybroker.util.TemplateParseUtil;
+import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplate;
+import org.sakaiproject.entitybroker.util.TemplateParseUtil.ProcessedTemplate;
+
+/**
+ * Benchmarks for the parsing done at the start of every /direct request,
+ * matching the path to a template, making the entity view and finding the provider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    /**
+     * show, edit and list views
+     */
+    @Param({"/bench/bench-1", "/bench/bench-1/edit.xml", "/bench.json"})
+    public String path;
+
+    private BenchmarkServiceManager serviceManager;
+
+    @Setup
+    public void setup() {
+        serviceManager = new BenchmarkServiceManager(10);
+    }
+
+    @Benchmark
+    public ProcessedTemplate parseTemplate() {
+        return TemplateParseUtil.parseTemplate(path, null);
+    }
+
+    /**
+     * the parsing which was used before the template patterns were compiled once,
+     * each template regex is compiled for every parse and the input is checked with String.matches
+     */
+    @Benchmark
+    public ProcessedTemplate parseTemplateBaseline() {
+        String input = path;
+        if (! input.matches(TemplateParseUtil.VALID_INPUT_CHARS+"+")) {
+            throw new IllegalArgumentException("invalid input: " + input);
+        }
+        ProcessedTemplate analysis = null;
+        Map<String, String> segments = new HashMap<String, String>();
+        String[] ext = TemplateParseUtil.findExtension(input);
+        input = ext[1];
+        String extension = ext[2];
+        for (PreProcessedTemplate ppt : TemplateParseUtil.defaultPreprocessedTemplates) {
+            segments.clear();
+            String regex = ppt.regex + TemplateParseUtil.EXTRAS_REGEX;
+            Pattern p = Pattern.compile(regex);
+            Matcher m = p.matcher(input);
+            if ( m.matches() ) {
+                if ( m.groupCount() == ppt.variableNames.size() ) {
+                    for (int j = 0; j < m.groupCount(); j++) {
+                        String subseq = m.group(j+1);
+                        if (subseq != null) {
+                            segments.put(ppt.variableNames.get(j), subseq);
+                        }
+                    }
+                    analysis = new ProcessedTemplate(ppt.templateKey, ppt.template, regex, 
+                            new ArrayList<String>(ppt.variableNames), 
+                            new HashMap<String, String>(segments), extension);
+                    break;
+                }
+            }
+        }
+        return analysis;
+    }
+
+    @Benchmark
+    public EntityView makeEntityView() {
+        return new EntityView(path);
+    }
+
+    /**
+     * parses using the templates for the provider (includes the provider lookup)
+     */
+    @Benchmark
+    public EntityView parseEntityURL() {
+        return serviceManager.entityBrokerManager.parseEntityURL(path);
+    }
+
+    @Benchmark
+    public EntityProvider getProviderByPrefix() {
+        return serviceManager.entityProviderManager.getProviderByPrefix(BenchmarkServiceManager.PREFIX);
+    }
+
+    @Benchmark
+    public Outputable getProviderByPrefixAndCapability() {
+        return serviceManager.entityProviderManager.getProviderByPrefixAndCapability(BenchmarkServiceManager.PREFIX, Outputable.class);
+    }
+
+}
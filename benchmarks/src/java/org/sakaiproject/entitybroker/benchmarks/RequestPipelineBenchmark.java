@@ -0,0 +1,91 @@
+/**
+ * $Id$
+ * $URL$
+ * RequestPipelineBenchmark.java - entity-broker - Oct 18, 2026 12:03:37 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+
+/**
+ * Benchmarks for complete GET requests through {@link org.sakaiproject.entitybroker.rest.EntityHandlerImpl},
+ * this covers everything from parsing the path to writing the encoded entities into the response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPipelineBenchmark {
+
+    /**
+     * the number of entities in the collection
+     */
+    @Param({"1", "10", "100", "1000"})
+    public int size;
+
+    @Param({"json", "xml"})
+    public String format;
+
+    private BenchmarkServiceManager serviceManager;
+    private String entityPath;
+    private String collectionPath;
+
+    @Setup
+    public void setup() {
+        serviceManager = new BenchmarkServiceManager(size);
+        entityPath = EntityView.DIRECT_PREFIX + BenchmarkServiceManager.makeReference(BenchmarkServiceManager.PREFIX + "-0") 
+            + EntityView.PERIOD + format;
+        collectionPath = EntityView.DIRECT_PREFIX + EntityView.SEPARATOR + BenchmarkServiceManager.PREFIX 
+            + EntityView.PERIOD + format;
+    }
+
+    @Benchmark
+    public int getEntity() {
+        return handle(entityPath);
+    }
+
+    @Benchmark
+    public int getCollection() {
+        return handle(collectionPath);
+    }
+
+    private int handle(String path) {
+        EntityHttpServletRequest req = new EntityHttpServletRequest("GET", path);
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        serviceManager.entityRequestHandler.handleEntityAccess(req, res, null);
+        return res.getContentAsByteArray().length;
+    }
+
+}
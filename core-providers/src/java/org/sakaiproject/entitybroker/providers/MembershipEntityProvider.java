@@ -30,6 +30,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -59,6 +60,7 @@ import org.sakaiproject.entitybroker.providers.model.EntityUser;
 import org.sakaiproject.entitybroker.util.AbstractEntityProvider;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.exception.PermissionException;
+import org.sakaiproject.javax.PagingPosition;
 import org.sakaiproject.site.api.Group;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
@@ -538,6 +540,16 @@ RESTful, ActionsExecutable {
                             + "OR you must provide a search with the following restrictions (getting all is not supported): "
                             + "siteId, locationReference, groupId AND (optionally) roleId OR userReference, userId, user");
         }
+        int start = 0;
+        if (search.getStart() > 0 && search.getStart() < Integer.MAX_VALUE) {
+            start = (int) search.getStart();
+        }
+        int limit = 0;
+        if (search.getLimit() > 0 && search.getLimit() < Integer.MAX_VALUE) {
+            limit = (int) search.getLimit();
+        }
+        // set when the page was already selected by the site service
+        boolean paged = false;
         List<EntityMember> members = new ArrayList<EntityMember>();
         boolean findByLocation = false;
         if (locationReference != null) {
@@ -570,8 +582,16 @@ RESTful, ActionsExecutable {
             	if (!userCurrent) {
             		developerHelperService.setCurrentUser("/user/" + userId);
             	}
+            	PagingPosition page = null;
+            	if (!includeMemberDetails && roleId == null && limit > 0) {
+            		/* every site makes exactly one membership (all for the same user so the sort order
+            		 * does not matter) so the site service can do the paging
+            		 */
+            		page = new PagingPosition(start + 1, start + limit);
+            		paged = true;
+            	}
             	List<Site> sites = siteService.getSites(SelectionType.ACCESS, null, null, null,
-            			null, null);
+            			null, page);
             	if (includeMemberDetails) {
             		for (Site site : sites) {
             			Member sm = site.getMember(userId);
@@ -608,47 +628,44 @@ RESTful, ActionsExecutable {
             	}
             }
         }
-        ArrayList<EntityMember> sortedMembers = new ArrayList<EntityMember>();
-        int count = 0;
+        // filter out users and roles (before paging so the page is filled)
+        ArrayList<EntityMember> filteredMembers = new ArrayList<EntityMember>(members.size());
         for (EntityMember em : members) {
-            // filter out users and roles
-            if (count < search.getStart()) {
-                continue;
-            } else if (search.getLimit() > 0 && count > search.getLimit()) {
-                break; // no more, limit reached
-            } else {
-                // between the start and limit
-                if (roleId != null) {
-                    if (!roleId.equals(em.getMemberRole())) {
-                        continue;
-                    }
+            if (roleId != null) {
+                if (!roleId.equals(em.getMemberRole())) {
+                    continue;
                 }
-                if (findByLocation) {
-                    if (userId != null) {
-                        if (!userId.equals(em.getUserId())) {
-                            continue;
-                        }
+            }
+            if (findByLocation) {
+                if (userId != null) {
+                    if (!userId.equals(em.getUserId())) {
+                        continue;
                     }
                 }
-                sortedMembers.add(em);
             }
-            count++;
-        }
-        // handle the sorting
-        Comparator<EntityMember> memberComparator = new EntityMember.MemberSortName(); // default by
-        // sortname
-        if (search.getOrders().length > 0) {
-            Order order = search.getOrders()[0]; // only one sort allowed
-            if ("email".equals(order.getProperty())) {
-                memberComparator = new EntityMember.MemberEmail();
-            } else if ("displayName".equals(order.getProperty())) {
-                memberComparator = new EntityMember.MemberDisplayName();
-            } else if ("lastLogin".equals(order.getProperty())) {
-                memberComparator = new EntityMember.MemberLastLogin();
+            filteredMembers.add(em);
+        }
+        List<EntityMember> sortedMembers = filteredMembers;
+        if (!paged) {
+            // handle the sorting
+            Comparator<EntityMember> memberComparator = new EntityMember.MemberSortName(); // default by
+            // sortname
+            if (search.getOrders().length > 0) {
+                Order order = search.getOrders()[0]; // only one sort allowed
+                if ("email".equals(order.getProperty())) {
+                    memberComparator = new EntityMember.MemberEmail();
+                } else if ("displayName".equals(order.getProperty())) {
+                    memberComparator = new EntityMember.MemberDisplayName();
+                } else if ("lastLogin".equals(order.getProperty())) {
+                    memberComparator = new EntityMember.MemberLastLogin();
+                }
+                if (!order.isAscending()) {
+                    memberComparator = Collections.reverseOrder(memberComparator);
+                }
             }
+            // sort and then page, only the members up to the end of the page are ever sorted
+            sortedMembers = selectPage(filteredMembers, memberComparator, start, limit);
         }
-        Collections.sort(sortedMembers, memberComparator);
-        // TODO reverse sorting?
 
         // now we put the members into entity data objects
         ArrayList<EntityData> l = new ArrayList<EntityData>();
@@ -665,6 +682,83 @@ RESTful, ActionsExecutable {
         return l;
     }
 
+    /**
+     * Selects a page of items in sorted order without sorting all of them,
+     * a bounded heap holds only the items up to the end of the page (start + limit)
+     * and items which compare equal keep their original order
+     * 
+     * @param items the items to select the page from
+     * @param comparator the sort order
+     * @param start the index of the first item on the page (0 for the first page)
+     * @param limit the maximum number of items on the page, 0 or less for all of them
+     * @return the sorted page of items
+     */
+    protected static <T> List<T> selectPage(List<T> items, final Comparator<T> comparator, int start, int limit) {
+        if (start < 0) {
+            start = 0;
+        }
+        List<T> sorted;
+        if (limit <= 0 || (long) start + limit >= items.size()) {
+            sorted = new ArrayList<T>(items);
+            Collections.sort(sorted, comparator);
+        } else {
+            int size = start + limit;
+            // the heap head is the last of the items held so it is the one to drop
+            PriorityQueue<Ranked<T>> heap = new PriorityQueue<Ranked<T>>(size + 1, new Comparator<Ranked<T>>() {
+                public int compare(Ranked<T> o1, Ranked<T> o2) {
+                    return o2.compareTo(o1, comparator);
+                }
+            });
+            int index = 0;
+            for (T item : items) {
+                Ranked<T> ranked = new Ranked<T>(item, index++);
+                if (heap.size() < size) {
+                    heap.add(ranked);
+                } else if (ranked.compareTo(heap.peek(), comparator) < 0) {
+                    heap.poll();
+                    heap.add(ranked);
+                }
+            }
+            ArrayList<Ranked<T>> top = new ArrayList<Ranked<T>>(heap);
+            Collections.sort(top, new Comparator<Ranked<T>>() {
+                public int compare(Ranked<T> o1, Ranked<T> o2) {
+                    return o1.compareTo(o2, comparator);
+                }
+            });
+            sorted = new ArrayList<T>(top.size());
+            for (Ranked<T> ranked : top) {
+                sorted.add(ranked.item);
+            }
+        }
+        if (start >= sorted.size()) {
+            return new ArrayList<T>();
+        }
+        int end = sorted.size();
+        if (limit > 0 && start + limit < end) {
+            end = start + limit;
+        }
+        return new ArrayList<T>(sorted.subList(start, end));
+    }
+
+    /**
+     * An item and its original position (used to keep the sort stable)
+     */
+    private static class Ranked<T> {
+        final T item;
+        final int index;
+        Ranked(T item, int index) {
+            this.item = item;
+            this.index = index;
+        }
+        int compareTo(Ranked<T> other, Comparator<T> comparator) {
+            int compare = comparator.compare(item, other.item);
+            if (compare == 0) {
+                compare = index < other.index ? -1 : (index == other.index ? 0 : 1);
+            }
+            return compare;
+        }
+    }
+
     public String createEntity(EntityReference ref, Object entity, Map<String, Object> params) {
         SiteGroup sg = null;
         String roleId = null;
@@ -865,8 +959,15 @@ RESTful, ActionsExecutable {
         	hiddenUsers = privacyManager.findHidden(sg.site.getReference(), memberIds);
         }
         // filter out possible invalid/orphaned users (SAK-22396, SAK-17498, SAK-23863)
+        List<String> userIds = new ArrayList<String>(members.size());
+        for (Member member : members) {
+            if (!hiddenUsers.contains(member.getUserId())) {
+                userIds.add(member.getUserId());
+            }
+        }
+        Map<String, EntityUser> users = userEntityProvider.getUsersByIds(userIds);
         for (Member member : members) {
-            EntityUser eu = userEntityProvider.getUserById(member.getUserId());
+            EntityUser eu = users.get(member.getUserId());
             if (eu != null && !hiddenUsers.contains(member.getUserId())) {
                 EntityMember em = new EntityMember(member, sg.locationReference, eu);
                 l.add(em);
@@ -44,6 +44,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResol
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Describeable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
@@ -59,7 +60,7 @@ import org.sakaiproject.entitybroker.util.AbstractEntityProvider;
  * @author Aaron Zeckoski (azeckoski @ gmail.com)
  */
 public class ServerConfigEntityProvider extends AbstractEntityProvider implements CoreEntityProvider, Outputable, Resolvable, 
-    CollectionResolvable, ActionsExecutable, Describeable {
+    CollectionResolvable, ActionsExecutable, Describeable, ResponseCacheable {
 
     public String[] includedStringSettings = new String[] {
             "portalPath",
@@ -182,6 +183,23 @@ public class ServerConfigEntityProvider extends AbstractEntityProvider implement
         return new String[] { Formats.XML, Formats.HTML, Formats.JSON };
     }
 
+    public int getResponseCacheSeconds() {
+        return 300;
+    }
+
+    public boolean isResponseCacheShared() {
+        return false; // admins can see more of the config
+    }
+
+    public boolean isResponseCacheAccessAllowed(EntityReference ref, String userReference) {
+        // the basic set of settings is visible to everyone, the rest only to admins (same as getConfig)
+        if (ref.getId() != null 
+                && getKnownSettings().containsKey(ref.getId())) {
+            return true;
+        }
+        return userReference != null && developerHelperService.isUserAdmin(userReference);
+    }
+
 
 
     public Object getConfig(String name) {
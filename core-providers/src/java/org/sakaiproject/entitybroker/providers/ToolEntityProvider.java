@@ -35,6 +35,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResol
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Describeable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
@@ -51,7 +52,7 @@ import org.sakaiproject.tool.api.ToolManager;
  * 
  */
 public class ToolEntityProvider extends AbstractEntityProvider implements CoreEntityProvider, 
-        Outputable, Resolvable, Describeable, ActionsExecutable, CollectionResolvable {
+        Outputable, Resolvable, Describeable, ActionsExecutable, CollectionResolvable, ResponseCacheable {
 
     public final static String ENTITY_PREFIX = "tool";
 
@@ -85,6 +86,27 @@ public class ToolEntityProvider extends AbstractEntityProvider implements CoreEn
         return new String[] { Formats.XML, Formats.HTML, Formats.JSON };
     }
 
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable#getResponseCacheSeconds()
+     */
+    public int getResponseCacheSeconds() {
+        return 300; // tools are only registered at startup
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable#isResponseCacheShared()
+     */
+    public boolean isResponseCacheShared() {
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable#isResponseCacheAccessAllowed(org.sakaiproject.entitybroker.EntityReference, java.lang.String)
+     */
+    public boolean isResponseCacheAccessAllowed(EntityReference ref, String userReference) {
+        return true; // tool registrations are visible to everyone
+    }
+
     /* (non-Javadoc)
      * @see org.sakaiproject.entitybroker.entityprovider.CoreEntityProvider#entityExists(java.lang.String)
      */
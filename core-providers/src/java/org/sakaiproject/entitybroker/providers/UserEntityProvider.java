@@ -23,8 +23,11 @@ package org.sakaiproject.entitybroker.providers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +48,7 @@ import org.sakaiproject.entitybroker.entityprovider.search.Restriction;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
 import org.sakaiproject.entitybroker.providers.model.EntityUser;
 import org.sakaiproject.entitybroker.util.AbstractEntityProvider;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.api.UserAlreadyDefinedException;
 import org.sakaiproject.user.api.UserDirectoryService;
@@ -65,6 +69,10 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
     private static Log log = LogFactory.getLog(UserEntityProvider.class);
 
     private static final String ID_PREFIX = "id=";
+    /**
+     * the key of the request scoped (thread local) cache of users which were already looked up
+     */
+    private static final String REQUEST_USER_CACHE_KEY = "entitybroker:UserEntityProvider:users";
 
     private UserDirectoryService userDirectoryService;
     public void setUserDirectoryService(UserDirectoryService userDirectoryService) {
@@ -85,6 +93,16 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
     }
 
 
+    private ThreadLocalManager threadLocalManager;
+    /**
+     * (OPTIONAL) allows users to be cached for the length of the request,
+     * lookups are not cached if this is not set
+     */
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+
     public static String PREFIX = "user";
     public String getEntityPrefix() {
         return PREFIX;
@@ -257,6 +275,7 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
         } catch (UserAlreadyDefinedException e) {
             throw new RuntimeException(ref + ": This exception should not be possible: " + e.getMessage(), e);
         }
+        uncacheRequestUser(user.getId());
     }
 
     public void deleteEntity(EntityReference ref, Map<String, Object> params) {
@@ -269,6 +288,7 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
             try {
                 UserEdit edit = userDirectoryService.editUser(user.getId());
                 userDirectoryService.removeUser(edit);
+                uncacheRequestUser(user.getId());
             } catch (UserNotDefinedException e) {
                 throw new IllegalArgumentException("Invalid user: " + ref + ":" + e.getMessage());
             } catch (UserPermissionException e) {
@@ -398,13 +418,101 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
         EntityReference ref = new EntityReference("user", userId);
         EntityUser eu = (EntityUser) getEntity(ref);
          */
-        // ID only lookup so prefix with "id="
-        User user = getUserByIdEid(ID_PREFIX+userId);
+        User user = getRequestCachedUser(userId);
+        if (user == null) {
+            // ID only lookup so prefix with "id="
+            user = getUserByIdEid(ID_PREFIX+userId);
+        }
         // convert
         EntityUser eu = convertUser(user);
         return eu;
     }
 
+    /**
+     * Allows for efficient retrieval of many users at once (e.g. all the members of a site),
+     * the users are fetched with a single call to the user directory service
+     * @param userIds a collection of user IDs (must be internal IDs only and not EIDs)
+     * @return a map of user ID to user object, IDs which no longer refer to a user are left out
+     */
+    public Map<String, EntityUser> getUsersByIds(Collection<String> userIds) {
+        Map<String, EntityUser> users = new HashMap<String, EntityUser>(userIds.size());
+        Set<String> fetchIds = new LinkedHashSet<String>();
+        for (String userId : userIds) {
+            if (userId == null) {
+                continue;
+            }
+            User user = getRequestCachedUser(userId);
+            if (user != null) {
+                users.put(userId, convertUser(user));
+            } else {
+                fetchIds.add(userId);
+            }
+        }
+        if (! fetchIds.isEmpty()) {
+            List<User> fetched = userDirectoryService.getUsers(fetchIds);
+            if (fetched != null) {
+                for (User user : fetched) {
+                    if (user != null) {
+                        cacheRequestUser(user);
+                        users.put(user.getId(), convertUser(user));
+                    }
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * @return the request scoped cache of users (by ID) OR null if there is no way to cache them
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, User> getRequestUserCache(boolean create) {
+        Map<String, User> cache = null;
+        if (threadLocalManager != null) {
+            cache = (Map<String, User>) threadLocalManager.get(REQUEST_USER_CACHE_KEY);
+            if (cache == null && create) {
+                cache = new HashMap<String, User>();
+                threadLocalManager.set(REQUEST_USER_CACHE_KEY, cache);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param userId a user ID
+     * @return the user if it was already looked up during this request OR null if not
+     */
+    private User getRequestCachedUser(String userId) {
+        User user = null;
+        Map<String, User> cache = getRequestUserCache(false);
+        if (cache != null) {
+            user = cache.get(userId);
+        }
+        return user;
+    }
+
+    /**
+     * Forget a user which was changed during this request
+     * @param userId a user ID
+     */
+    private void uncacheRequestUser(String userId) {
+        Map<String, User> cache = getRequestUserCache(false);
+        if (cache != null) {
+            cache.remove(userId);
+        }
+    }
+
+    /**
+     * Remember a user for the rest of this request
+     * @param user a user
+     */
+    private void cacheRequestUser(User user) {
+        Map<String, User> cache = getRequestUserCache(true);
+        if (cache != null) {
+            cache.put(user.getId(), user);
+        }
+    }
+
     /*
      * This ugliness is needed because of the edge case where people are using identical ID/EIDs,
      * this is a really really bad hack to attempt to get the server to tell us if the eid==id for users
@@ -512,7 +620,10 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
             }
 
             // verify the userId is valid
-            if (isUsingSameIdEid()) {
+            if (getRequestCachedUser(currentUserId) != null) {
+                // already looked up this user during this request
+                userId = currentUserId;
+            } else if (isUsingSameIdEid()) {
                 // have to actually fetch the user
                 try {
                     User u = getUserByIdEid(currentUserId);
@@ -641,6 +752,7 @@ public class UserEntityProvider extends AbstractEntityProvider implements CoreEn
             if (user == null) {
                 throw new IllegalArgumentException("Could not find user with eid="+userEid+" or id="+userId);
             }
+            cacheRequestUser(user);
         }
         return user;
     }
@@ -30,6 +30,7 @@ import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResolvable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
+import org.sakaiproject.entitybroker.entityprovider.search.Order;
 import org.sakaiproject.entitybroker.entityprovider.search.Restriction;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
 import org.sakaiproject.entitybroker.providers.model.EntityMember;
@@ -43,11 +44,17 @@ import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.api.privacy.PrivacyManager;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -96,6 +103,7 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserReference()).thenReturn("/user/me");
         when(siteService.allowViewRoster("site.with.dots")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         ActionReturn result =
                 provider.handleSiteMemberships(entityView, new HashMap<String, Object>());
@@ -125,6 +133,7 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserReference()).thenReturn("/user/me");
         when(siteService.allowViewRoster("site.with.dots")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         ActionReturn result =
                 provider.handleSiteMemberships(entityView, params);
@@ -159,6 +168,7 @@ public class MembershipEntityProviderTest {
         when(userEntityProvider.findUserFromSearchValue("user-foo")).thenReturn(user);
         when(userEntityProvider.getCurrentUser(null)).thenReturn(user);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         ActionReturn result =
                 provider.handleSiteMemberships(entityView, params);
@@ -195,6 +205,7 @@ public class MembershipEntityProviderTest {
         when(userEntityProvider.findUserFromSearchValue("user-foo")).thenReturn(user);
         when(userEntityProvider.getCurrentUser(null)).thenReturn(user);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         ActionReturn result =
                 provider.handleSiteMemberships(entityView, params);
@@ -226,6 +237,7 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserReference()).thenReturn("/user/me");
         when(siteService.allowViewRoster("site-foo")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         List<EntityData> result =
                 provider.getGroupMemberships(entityView, new HashMap<String, Object>());
@@ -258,6 +270,7 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserReference()).thenReturn("/user/me");
         when(siteService.allowViewRoster("site-foo")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         List<EntityData> result =
                 provider.getGroupMemberships(entityView, params);
@@ -322,6 +335,7 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserId()).thenReturn("me");
         when(siteService.allowViewRoster("site.with.dots")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         // This is the constructor EB actually uses when building an EntityReference to pass to getEntity() for a GET
         // request. For a dotted ID to work at all, an extension would have been specified on the originally requested
@@ -359,6 +373,7 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserId()).thenReturn("me");
         when(siteService.allowViewRoster("site.with.dots")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         List<EntityData> results = (List<EntityData>)provider.getEntities(null, search);
         assertEquals(1, results.size());
@@ -391,12 +406,121 @@ public class MembershipEntityProviderTest {
         when(developerHelperService.getCurrentUserId()).thenReturn("me");
         when(siteService.allowViewRoster("site-foo")).thenReturn(true);
         when(userEntityProvider.getUserById("user-foo")).thenReturn(user);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap("user-foo", user));
 
         List<EntityData> results = (List<EntityData>)provider.getEntities(null, search);
         assertEquals(1, results.size());
         assertEquals("user-foo::group:group.with.dots", results.get(0).getEntityId());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getEntitiesLooksUpMemberUsersInBulk() throws IdUnusedException {
+        Search search = new Search();
+        search.addRestriction(new Restriction(CollectionResolvable.SEARCH_LOCATION_REFERENCE, "/site/site-foo"));
+
+        Site site = new Site();
+        site.setId("site-foo");
+        Map<String,org.sakaiproject.authz.api.Member> members = new HashMap<String,org.sakaiproject.authz.api.Member>();
+        Map<String,EntityUser> users = new HashMap<String,EntityUser>();
+        for (int i = 0; i < 50; i++) {
+            Member member = new Member();
+            member.setUserId("user-" + i);
+            member.setUserEid("user-" + i);
+            members.put("user-" + i, member);
+            // every tenth member is an orphaned user
+            if (i % 10 != 0) {
+                EntityUser user = new EntityUser();
+                user.setId("user-" + i);
+                user.setEid("user-" + i);
+                users.put("user-" + i, user);
+            }
+        }
+        site.setMembers(members);
+
+        when(siteService.getSite("site-foo")).thenReturn(site);
+        when(developerHelperService.getCurrentUserReference()).thenReturn("/user/me");
+        when(developerHelperService.getCurrentUserId()).thenReturn("me");
+        when(siteService.allowViewRoster("site-foo")).thenReturn(true);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(users);
+
+        List<EntityData> results = (List<EntityData>)provider.getEntities(null, search);
+        assertEquals(45, results.size());
+        verify(userEntityProvider, times(1)).getUsersByIds(anyCollectionOf(String.class));
+        verify(userEntityProvider, never()).getUserById(anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getEntitiesSortsBeforePaging() throws IdUnusedException {
+        Site site = new Site();
+        site.setId("site-foo");
+        Map<String,org.sakaiproject.authz.api.Member> members = new HashMap<String,org.sakaiproject.authz.api.Member>();
+        Map<String,EntityUser> users = new HashMap<String,EntityUser>();
+        for (int i = 0; i < 30; i++) {
+            String userId = "user-" + i;
+            Member member = new Member();
+            member.setUserId(userId);
+            member.setUserEid(userId);
+            members.put(userId, member);
+            EntityUser user = new EntityUser();
+            user.setId(userId);
+            user.setEid(userId);
+            user.setEmail(String.format("%02d@school.edu", 29 - i)); // reverse of the id order
+            users.put(userId, user);
+        }
+        site.setMembers(members);
+
+        when(siteService.getSite("site-foo")).thenReturn(site);
+        when(developerHelperService.getCurrentUserReference()).thenReturn("/user/me");
+        when(developerHelperService.getCurrentUserId()).thenReturn("me");
+        when(siteService.allowViewRoster("site-foo")).thenReturn(true);
+        when(userEntityProvider.getUsersByIds(anyCollectionOf(String.class))).thenReturn(users);
+
+        Search search = new Search();
+        search.addRestriction(new Restriction(CollectionResolvable.SEARCH_LOCATION_REFERENCE, "/site/site-foo"));
+        search.addOrder(new Order("email"));
+        search.setStart(5);
+        search.setLimit(10);
+        List<EntityData> results = (List<EntityData>)provider.getEntities(null, search);
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++) {
+            EntityMember em = (EntityMember) results.get(i).getData();
+            assertEquals(String.format("%02d@school.edu", i + 5), em.getUserEmail());
+        }
+
+        // descending
+        search = new Search();
+        search.addRestriction(new Restriction(CollectionResolvable.SEARCH_LOCATION_REFERENCE, "/site/site-foo"));
+        search.addOrder(new Order("email", false));
+        search.setStart(25);
+        search.setLimit(10);
+        results = (List<EntityData>)provider.getEntities(null, search);
+        assertEquals(5, results.size());
+        assertEquals("04@school.edu", ((EntityMember) results.get(0).getData()).getUserEmail());
+        assertEquals("00@school.edu", ((EntityMember) results.get(4).getData()).getUserEmail());
+    }
+
+    @Test
+    public void selectPageMatchesFullSort() {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            items.add((i * 37) % 100);
+        }
+        List<Integer> sorted = new ArrayList<Integer>(items);
+        Collections.sort(sorted);
+        Comparator<Integer> natural = new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return o1.compareTo(o2);
+            }
+        };
+        assertEquals(sorted.subList(0, 10), MembershipEntityProvider.selectPage(items, natural, 0, 10));
+        assertEquals(sorted.subList(40, 60), MembershipEntityProvider.selectPage(items, natural, 40, 20));
+        assertEquals(sorted.subList(95, 100), MembershipEntityProvider.selectPage(items, natural, 95, 20));
+        assertEquals(sorted.subList(10, 100), MembershipEntityProvider.selectPage(items, natural, 10, 0));
+        assertTrue(MembershipEntityProvider.selectPage(items, natural, 200, 10).isEmpty());
+    }
+
     // we don't have a createEntityPreservesDotsInSiteIdQueryParams() test b/c passing a
     // org.sakaiproject.mock.domain.Member to createEntity() doesn't actually work.
 
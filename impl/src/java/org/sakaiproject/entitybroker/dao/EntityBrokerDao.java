@@ -20,6 +20,7 @@
 
 package org.sakaiproject.entitybroker.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.sakaiproject.genericdao.api.GeneralGenericDao;
@@ -61,14 +62,61 @@ public interface EntityBrokerDao extends GeneralGenericDao {
    public int deleteProperties(String entityReference, String name);
 
    /**
-    * Get all entity refs which match the given search and either match all tags or any tag
+    * Get all the properties for a set of entities in as few queries as possible,
+    * the references are split into chunks so the in-lists stay under the database limits
+    * (Oracle only allows 1000 items)
     * 
-    * @param search should include restrictions on tags and optionally prefixes,
-    * may optionally include order by tag, prefix, or ref
-    * @param matchAll if true then all tags must match, if false then any tag can match
-    * @return the list of refs
+    * @param references
+    *           unique references to entities
+    * @return the properties for all the entities ordered by reference
     */
-   //public List<String> getEntityRefsForTags(Search search, boolean matchAll);
+   public List<EntityProperty> getPropertiesForRefs(Collection<String> references);
+
+   /**
+    * Add, update, or remove a set of properties using batched statements,
+    * properties are matched to the existing ones by the entity reference and property name,
+    * a property with a null value is removed
+    * 
+    * @param properties
+    *           the properties to store (the ids are ignored), 
+    *           if the same reference and name appear more than once the last one is used
+    * @return the number of properties added, updated, or removed
+    */
+   public int saveProperties(Collection<EntityProperty> properties);
+
+   /**
+    * Get the entity refs which have all of the given tags applied to them,
+    * the matching, ordering (by entity ref) and paging are all done in the database
+    * 
+    * @param tags
+    *           the tags which must all be applied to the entity (duplicates are ignored)
+    * @param prefixes
+    *           (optional) limit the refs to these entity prefixes, null or empty for all prefixes
+    * @param start
+    *           the number of matching refs to skip, 0 to start at the beginning
+    * @param limit
+    *           the maximum number of refs to return, 0 or less for no limit
+    * @return the list of unique refs ordered by ref
+    */
+   public List<String> getEntityRefsForAllTags(String[] tags, String[] prefixes, int start, int limit);
+
+   /**
+    * Get the entity refs which have all of the given tags applied to them
+    * and which sort after the given ref (keyset paging), 
+    * pass the last ref from the previous page to get the next page without the database having to
+    * count through all the refs before it
+    * 
+    * @param tags
+    *           the tags which must all be applied to the entity (duplicates are ignored)
+    * @param prefixes
+    *           (optional) limit the refs to these entity prefixes, null or empty for all prefixes
+    * @param afterRef
+    *           only refs which sort after this one are returned, null to start at the beginning
+    * @param limit
+    *           the maximum number of refs to return, 0 or less for no limit
+    * @return the list of unique refs ordered by ref
+    */
+   public List<String> getEntityRefsForAllTagsAfter(String[] tags, String[] prefixes, String afterRef, int limit);
 
    /**
     * Remove all given tags from an entity reference
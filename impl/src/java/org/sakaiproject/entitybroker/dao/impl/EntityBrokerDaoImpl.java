@@ -20,18 +20,27 @@
 
 package org.sakaiproject.entitybroker.dao.impl;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.sakaiproject.entitybroker.dao.EntityBrokerDao;
 import org.sakaiproject.entitybroker.dao.EntityProperty;
 import org.sakaiproject.entitybroker.dao.EntityTagApplication;
 import org.sakaiproject.genericdao.api.mappers.NamesRecord;
 import org.sakaiproject.genericdao.api.mappers.StatementMapper;
+import org.sakaiproject.genericdao.api.search.Order;
 import org.sakaiproject.genericdao.api.search.Restriction;
 import org.sakaiproject.genericdao.api.search.Search;
 import org.sakaiproject.genericdao.springjdbc.JdbcGeneralGenericDao;
 import org.sakaiproject.genericdao.util.JDBCUtils.QueryData;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 
 /**
  * Internal dao for entity broker internal services
@@ -40,6 +49,11 @@ import org.sakaiproject.genericdao.util.JDBCUtils.QueryData;
  */
 public class EntityBrokerDaoImpl extends JdbcGeneralGenericDao implements EntityBrokerDao {
 
+   /**
+    * The max number of values to put in a single in-list (Oracle fails with more than 1000)
+    */
+   protected static final int MAX_IN_LIST_SIZE = 1000;
+
    /**
     * Get a list of unique entity references for a set of search params, all lists must be the same
     * size
@@ -124,6 +138,221 @@ public class EntityBrokerDaoImpl extends JdbcGeneralGenericDao implements Entity
       return getJdbcTemplate().update(sql, sd.getArgs());
    }
 
+   @SuppressWarnings("unchecked")
+   public List<EntityProperty> getPropertiesForRefs(Collection<String> references) {
+      List<EntityProperty> results = new ArrayList<EntityProperty>();
+      if (references == null || references.isEmpty()) {
+         return results;
+      }
+      LinkedHashSet<String> uniqueRefs = new LinkedHashSet<String>(references);
+      uniqueRefs.remove(null);
+      String[] refs = uniqueRefs.toArray(new String[uniqueRefs.size()]);
+      for (int i = 0; i < refs.length; i += MAX_IN_LIST_SIZE) {
+         String[] chunk = new String[Math.min(MAX_IN_LIST_SIZE, refs.length - i)];
+         System.arraycopy(refs, i, chunk, 0, chunk.length);
+         Search search = new Search("entityRef", chunk);
+         search.addOrder( new Order("entityRef") );
+         results.addAll( findBySearch(EntityProperty.class, search) );
+      }
+      return results;
+   }
+
+   public int saveProperties(Collection<EntityProperty> properties) {
+      if (properties == null || properties.isEmpty()) {
+         return 0;
+      }
+      // only the last value for a reference and name is used
+      LinkedHashMap<String, EntityProperty> toSave = new LinkedHashMap<String, EntityProperty>();
+      LinkedHashSet<String> refs = new LinkedHashSet<String>();
+      for (EntityProperty property : properties) {
+         if (property.getEntityRef() == null || property.getPropertyName() == null) {
+            throw new IllegalArgumentException("entityRef and propertyName must be set for all properties");
+         }
+         toSave.put(makePropertyKey(property), property);
+         refs.add(property.getEntityRef());
+      }
+      // one lookup for all the existing properties and then the changes are split into batches
+      HashMap<String, EntityProperty> existing = new HashMap<String, EntityProperty>();
+      for (EntityProperty property : getPropertiesForRefs(refs)) {
+         existing.put(makePropertyKey(property), property);
+      }
+      List<Object[]> inserts = new ArrayList<Object[]>();
+      List<Object[]> updates = new ArrayList<Object[]>();
+      List<Object[]> deletes = new ArrayList<Object[]>();
+      for (Map.Entry<String, EntityProperty> entry : toSave.entrySet()) {
+         EntityProperty property = entry.getValue();
+         EntityProperty current = existing.get(entry.getKey());
+         if (property.getPropertyValue() == null) {
+            if (current != null) {
+               deletes.add( new Object[] {current.getId()} );
+            }
+         } else if (current == null) {
+            inserts.add( new Object[] {property.getEntityRef(), property.getEntityPrefix(), 
+                  property.getPropertyName(), property.getPropertyValue()} );
+         } else if (! property.getPropertyValue().equals(current.getPropertyValue())) {
+            updates.add( new Object[] {property.getPropertyValue(), current.getId()} );
+         }
+      }
+
+      NamesRecord nr = getNamesRecord(EntityProperty.class);
+      String tableName = getTableNameFromClass(EntityProperty.class);
+      String idColumn = nr.getColumnForProperty("id");
+      int changed = 0;
+      changed += batchUpdate("delete from " + tableName + " where " + idColumn + " = ?", deletes);
+      changed += batchUpdate("update " + tableName + " set " + nr.getColumnForProperty("propertyValue") 
+            + " = ? where " + idColumn + " = ?", updates);
+      changed += batchUpdate("insert into " + tableName + " (" + nr.getColumnForProperty("entityRef") 
+            + "," + nr.getColumnForProperty("entityPrefix") + "," + nr.getColumnForProperty("propertyName")
+            + "," + nr.getColumnForProperty("propertyValue") + ") values (?,?,?,?)", inserts);
+      return changed;
+   }
+
+   private String makePropertyKey(EntityProperty property) {
+      return property.getEntityRef() + "\u0000" + property.getPropertyName();
+   }
+
+   /**
+    * Runs the statement once for each set of args as a single jdbc batch
+    * @return the number of statements run
+    */
+   private int batchUpdate(String sql, final List<Object[]> batchArgs) {
+      if (batchArgs.isEmpty()) {
+         return 0;
+      }
+      getJdbcTemplate().batchUpdate(sql, new BatchPreparedStatementSetter() {
+         public void setValues(PreparedStatement ps, int i) throws SQLException {
+            Object[] args = batchArgs.get(i);
+            for (int j = 0; j < args.length; j++) {
+               ps.setObject(j + 1, args[j]);
+            }
+         }
+         public int getBatchSize() {
+            return batchArgs.size();
+         }
+      });
+      return batchArgs.size();
+   }
+
+   public List<String> getEntityRefsForAllTags(String[] tags, String[] prefixes, int start, int limit) {
+      return getEntityRefsForAllTags(tags, prefixes, null, start, limit);
+   }
+
+   public List<String> getEntityRefsForAllTagsAfter(String[] tags, String[] prefixes, String afterRef, int limit) {
+      return getEntityRefsForAllTags(tags, prefixes, afterRef, 0, limit);
+   }
+
+   /**
+    * Finds the refs which have all the tags by grouping the tag applications by ref and
+    * only keeping the groups which have one row for every distinct tag
+    * 
+    * @param tags the tags which must all match
+    * @param prefixes (optional) the prefixes to limit the refs to
+    * @param afterRef (optional) only refs greater than this are included
+    * @param start the number of refs to skip
+    * @param limit the max number of refs to return, 0 or less for all
+    * @return the list of refs ordered by ref
+    */
+   @SuppressWarnings("unchecked")
+   private List<String> getEntityRefsForAllTags(String[] tags, String[] prefixes, String afterRef, int start, int limit) {
+      if (tags == null || tags.length == 0) {
+         throw new IllegalArgumentException("At least one tag must be supplied, tags cannot be null or empty");
+      }
+      // the count of distinct tags has to match the number of distinct tags requested
+      LinkedHashSet<String> uniqueTags = new LinkedHashSet<String>();
+      for (String tag : tags) {
+         if (tag != null) {
+            uniqueTags.add(tag);
+         }
+      }
+      if (uniqueTags.isEmpty()) {
+         throw new IllegalArgumentException("At least one tag must be supplied, tags cannot all be null");
+      }
+
+      NamesRecord nr = getNamesRecord(EntityTagApplication.class);
+      String entityRefColumn = nr.getColumnForProperty("entityRef");
+      String tagColumn = nr.getColumnForProperty("tag");
+      List<Object> params = new ArrayList<Object>();
+
+      StringBuilder whereSQL = new StringBuilder();
+      whereSQL.append(" where ");
+      appendInSQL(whereSQL, params, tagColumn, uniqueTags.toArray());
+      if (prefixes != null && prefixes.length > 0) {
+         whereSQL.append(" and ");
+         appendInSQL(whereSQL, params, nr.getColumnForProperty("entityPrefix"), prefixes);
+      }
+      if (afterRef != null) {
+         whereSQL.append(" and ");
+         whereSQL.append(entityRefColumn);
+         whereSQL.append(" > ?");
+         params.add(afterRef);
+      }
+      whereSQL.append(" group by ");
+      whereSQL.append(entityRefColumn);
+      whereSQL.append(" having count(distinct ");
+      whereSQL.append(tagColumn);
+      whereSQL.append(") = ?");
+      params.add( Integer.valueOf(uniqueTags.size()) );
+
+      String sql = makeSQL(getSelectTemplate(EntityTagApplication.class), 
+            getTableNameFromClass(EntityTagApplication.class), 
+            StatementMapper.SELECT, entityRefColumn,
+            StatementMapper.WHERE, whereSQL.toString());
+      sql = makeOrderedPageSQL(sql, entityRefColumn, start, limit);
+
+      List<String> results = getJdbcTemplate().queryForList(sql, params.toArray(), String.class);
+      return results;
+   }
+
+   private void appendInSQL(StringBuilder sql, List<Object> params, String column, Object[] values) {
+      sql.append(column);
+      sql.append(" in (");
+      for (int i = 0; i < values.length; i++) {
+         if (i > 0) {
+            sql.append(",");
+         }
+         sql.append("?");
+         params.add(values[i]);
+      }
+      sql.append(")");
+   }
+
+   /**
+    * Adds the ordering and paging to a select of a single column in the syntax for the current database,
+    * the start and limit are ints so they are written into the sql directly since not all
+    * of the databases allow them to be bound as params
+    * 
+    * @param sql a select of the column without any order by
+    * @param column the selected column which is also the one to order by
+    * @param start the number of rows to skip
+    * @param limit the max number of rows to return, 0 or less for all
+    * @return the sql which orders and pages the results
+    */
+   private String makeOrderedPageSQL(String sql, String column, int start, int limit) {
+      if (start < 0) {
+         start = 0;
+      }
+      if (start == 0 && limit <= 0) {
+         return sql + " order by " + column;
+      }
+      String dbType = getDatabaseType();
+      if ("HSQLDB".equalsIgnoreCase(dbType) 
+            || "MYSQL".equalsIgnoreCase(dbType)) {
+         // mysql has no offset without a limit so the limit is always included
+         return sql + " order by " + column + " limit " + (limit > 0 ? limit : Integer.MAX_VALUE) + " offset " + start;
+      }
+      String endSQL = limit > 0 ? " <= " + ((long) start + limit) : null;
+      if ("ORACLE".equalsIgnoreCase(dbType)) {
+         return "select " + column + " from (select eb_ordered." + column + ", rownum eb_rownum from (" 
+            + sql + " order by " + column + ") eb_ordered" + (endSQL == null ? "" : " where rownum" + endSQL) 
+            + ") where eb_rownum > " + start + " order by eb_rownum";
+      } else {
+         // DB2 and the rest use the standard row number function
+         return "select " + column + " from (select eb_grouped." + column + ", row_number() over (order by eb_grouped." 
+            + column + ") as eb_rownum from (" + sql + ") eb_grouped) eb_numbered where eb_rownum > " + start 
+            + (endSQL == null ? "" : " and eb_rownum" + endSQL) + " order by eb_rownum";
+      }
+   }
+
    public int deleteTags(String entityReference, String[] tags) {
       Search search = new Search("entityRef", entityReference);
       if (tags != null && tags.length > 0) {
@@ -23,10 +23,13 @@ package org.sakaiproject.entitybroker.impl;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.sakaiproject.entitybroker.EntityBroker;
@@ -36,6 +39,7 @@ import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsExecutable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.BrowseEntity;
+import org.sakaiproject.entitybroker.entityprovider.extension.BulkPropertiesProvider;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.PropertiesProvider;
 import org.sakaiproject.entitybroker.entityprovider.extension.QuerySearch;
@@ -451,6 +455,35 @@ public class EntityBrokerImpl implements EntityBroker, PropertiesProvider {
         }
     }
 
+    public Map<String, Map<String, String>> getProperties(Collection<String> references) {
+        if (propertiesProvider instanceof BulkPropertiesProvider) {
+            return ((BulkPropertiesProvider) propertiesProvider).getProperties(references);
+        } else if (propertiesProvider != null) {
+            Map<String, Map<String, String>> properties = new LinkedHashMap<String, Map<String,String>>();
+            for (String reference : references) {
+                properties.put(reference, propertiesProvider.getProperties(reference));
+            }
+            return properties;
+        } else {
+            System.err.println("WARN No propertiesProvider defined");
+            return new HashMap<String, Map<String, String>>(0);
+        }
+    }
+
+    public void setPropertyValues(Map<String, Map<String, String>> referenceProperties) {
+        if (propertiesProvider instanceof BulkPropertiesProvider) {
+            ((BulkPropertiesProvider) propertiesProvider).setPropertyValues(referenceProperties);
+        } else if (propertiesProvider != null) {
+            for (Entry<String, Map<String, String>> entry : referenceProperties.entrySet()) {
+                for (Entry<String, String> property : entry.getValue().entrySet()) {
+                    propertiesProvider.setPropertyValue(entry.getKey(), property.getKey(), property.getValue());
+                }
+            }
+        } else {
+            System.err.println("WARN No propertiesProvider defined");
+        }
+    }
+
 
     // TAGS
 
@@ -30,7 +30,6 @@ import java.util.Map;
 
 import javax.servlet.http.HttpServletResponse;
 
-import org.azeckoski.reflectutils.ConstructorUtils;
 import org.azeckoski.reflectutils.ReflectUtils;
 import org.azeckoski.reflectutils.exceptions.FieldnameNotFoundException;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
@@ -51,6 +50,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.BrowseableColle
 import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResolvable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Describeable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.EntityViewUrlCustomizable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.FullReplaceUpdateable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.ReferenceParseable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Sampleable;
@@ -63,6 +63,7 @@ import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.providers.EntityPropertiesService;
 import org.sakaiproject.entitybroker.providers.EntityRESTProvider;
 import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
+import org.sakaiproject.entitybroker.util.EntityClassMetadata;
 import org.sakaiproject.entitybroker.util.EntityDataUtils;
 import org.sakaiproject.entitybroker.util.request.RequestUtils;
 
@@ -686,8 +687,11 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
             entityData.setEntityURL( fullURL );
             // check what we are dealing with
             boolean isPOJO = false;
+            EntityClassMetadata metadata = null;
             if (entityData.getData() != null) {
-                if ( ConstructorUtils.isClassBean(entityData.getData().getClass()) ) {
+                // the class metadata is only worked out once per class
+                metadata = EntityClassMetadata.getMetadata(entityData.getData().getClass());
+                if ( metadata.isBean() ) {
                     isPOJO = true;
                 }
             }
@@ -703,7 +707,13 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
                     }
                 }
                 // check the object itself next
-                if (isPOJO && titleNotSet) {
+                if (isPOJO && titleNotSet && metadata.isResolved()) {
+                    String title = metadata.getTitle(entityData.getData());
+                    if (title != null) {
+                        entityData.setDisplayTitle(title);
+                        titleNotSet = false;
+                    }
+                } else if (isPOJO && titleNotSet) {
                     try {
                         String title = ReflectUtils.getInstance().getFieldValueAsString(entityData.getData(), "title", EntityTitle.class);
                         if (title != null) {
@@ -766,6 +776,37 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
         return entity;
     }
 
+    /**
+     * Get the entity object which input should be translated into,
+     * this is the current entity (so fields missing from the input keep their values) unless the provider is
+     * {@link FullReplaceUpdateable}, then the current entity is not fetched and this is the sample entity
+     * with the id from the reference set on it (when it has a writeable id property)
+     * @param prefix the entity prefix
+     * @param id (optional) the id of the entity being updated
+     * @return an entity object to translate the input into OR null if none can be found
+     */
+    public Object getInputEntityObject(String prefix, String id) {
+        Object entity = null;
+        if (id == null || entityProviderManager.getProviderByPrefixAndCapability(prefix, FullReplaceUpdateable.class) == null) {
+            // the input is applied on top of the current entity (or a sample for new entities)
+            entity = getSampleEntityObject(prefix, id);
+        } else {
+            entity = getSampleEntityObject(prefix, null);
+            if (entity != null && ! "".equals(id)) {
+                EntityClassMetadata metadata = EntityClassMetadata.getMetadata(entity.getClass());
+                String idField = metadata.getIdField();
+                if (idField != null) {
+                    try {
+                        metadata.setPropertyValue(entity, idField, id);
+                    } catch (RuntimeException e) {
+                        // the id cannot be set on this object so the provider will have to use the reference
+                    }
+                }
+            }
+        }
+        return entity;
+    }
+
     // GETTERS
 
     /* (non-Javadoc)
@@ -22,9 +22,13 @@ package org.sakaiproject.entitybroker.impl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
@@ -33,7 +37,8 @@ import org.sakaiproject.entitybroker.dao.EntityProperty;
 import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.PropertyProvideable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Propertyable;
-import org.sakaiproject.entitybroker.entityprovider.extension.PropertiesProvider;
+import org.sakaiproject.entitybroker.entityprovider.extension.BulkPropertiesProvider;
+import org.sakaiproject.entitybroker.event.EventReceiverRegistry;
 import org.sakaiproject.genericdao.api.search.Restriction;
 import org.sakaiproject.genericdao.api.search.Search;
 
@@ -44,7 +49,7 @@ import org.sakaiproject.genericdao.api.search.Search;
  * 
  * @author Aaron Zeckoski (azeckoski @ gmail.com)
  */
-public class EntityMetaPropertiesService implements PropertiesProvider {
+public class EntityMetaPropertiesService implements BulkPropertiesProvider {
 
    private EntityProviderManager entityProviderManager;
    public void setEntityProviderManager(EntityProviderManager entityProviderManager) {
@@ -61,6 +66,62 @@ public class EntityMetaPropertiesService implements PropertiesProvider {
       this.dao = dao;
    }
 
+   /**
+    * The event fired when internally stored properties change so every server throws away its cached copy
+    */
+   public static final String EVENT_PROPERTIES_UPDATE = "entitybroker.properties.update";
+
+   private EventReceiverRegistry eventReceiverRegistry;
+   /**
+    * Set the registry the properties cache is registered with so cached properties are thrown away
+    * when the entities are deleted or changed on another server
+    */
+   public void setEventReceiverRegistry(EventReceiverRegistry eventReceiverRegistry) {
+      this.eventReceiverRegistry = eventReceiverRegistry;
+      if (propertiesCache != null && eventReceiverRegistry != null) {
+         eventReceiverRegistry.registerEventReceiver(propertiesCache);
+      }
+   }
+
+   /**
+    * Enable the cache of internally stored properties (off by default), this can be set in sakai.properties with
+    * cacheEnabled@org.sakaiproject.entitybroker.impl.EntityMetaPropertiesService=true<br/>
+    * Changes are sent to the other servers with the {@link #EVENT_PROPERTIES_UPDATE} event
+    * but cached values can be out of date until that event arrives
+    * @param cacheEnabled true to cache the properties, false to always read them from storage
+    */
+   public void setCacheEnabled(boolean cacheEnabled) {
+      if (! cacheEnabled) {
+         setPropertiesCache(null);
+      } else if (propertiesCache == null) {
+         setPropertiesCache(new EntityReferenceCache<Map<String, String>>());
+      }
+   }
+
+   private EntityReferenceCache<Map<String, String>> propertiesCache = null;
+   /**
+    * Set the cache which holds the internally stored properties for each reference,
+    * set to null to always read the properties from storage (default)
+    */
+   public void setPropertiesCache(EntityReferenceCache<Map<String, String>> propertiesCache) {
+      if (this.propertiesCache != null && eventReceiverRegistry != null) {
+         eventReceiverRegistry.unregisterEventReceiver(this.propertiesCache);
+      }
+      this.propertiesCache = propertiesCache;
+      if (propertiesCache != null) {
+         propertiesCache.setInvalidateEventName(EVENT_PROPERTIES_UPDATE);
+         if (eventReceiverRegistry != null) {
+            eventReceiverRegistry.registerEventReceiver(propertiesCache);
+         }
+      }
+   }
+   /**
+    * @return the cache of internally stored properties (includes the hit, miss, and eviction stats) OR null if there is none
+    */
+   public EntityReferenceCache<Map<String, String>> getPropertiesCache() {
+      return propertiesCache;
+   }
+
    // PROPERTIES
 
    /* (non-Javadoc)
@@ -170,11 +231,7 @@ public class EntityMetaPropertiesService implements PropertiesProvider {
                m.putAll( epMap );
             }
          } else {
-            List<EntityProperty> properties = dao.findBySearch(EntityProperty.class,
-                  new Search( "entityRef", reference ) );
-            for (EntityProperty property : properties) {
-               m.put(property.getPropertyName(), property.getPropertyValue());
-            }
+            m.putAll( getStoredProperties(reference) );
          }
       }
       return m;
@@ -200,13 +257,7 @@ public class EntityMetaPropertiesService implements PropertiesProvider {
          if (provider != null) {
             value = provider.getPropertyValue(reference, name);
          } else {
-            List<EntityProperty> properties = dao.findBySearch(EntityProperty.class, 
-                  new Search( 
-                        new String[] { "entityRef", "propertyName" }, 
-                        new Object[] { reference, name } ) );
-            if (properties.size() > 0) {
-               value = properties.get(0).getPropertyValue();
-            }
+            value = getStoredProperties(reference).get(name);
          }
       }
       return value;
@@ -240,22 +291,207 @@ public class EntityMetaPropertiesService implements PropertiesProvider {
                dao.deleteProperties(reference, name);
             } else {
                // add or update property
-               List<EntityProperty> properties = dao.findBySearch(EntityProperty.class,
-                     new Search(
-                           new String[] { "entityRef", "propertyName" }, 
-                           new Object[] { reference, name }) );
-               if (properties.size() == 0) {
-                  // make new one
-                  dao.create(new EntityProperty(reference, ref.getPrefix(), name, value));
+               List<EntityProperty> properties = new ArrayList<EntityProperty>(1);
+               properties.add( new EntityProperty(reference, ref.getPrefix(), name, value) );
+               dao.saveProperties(properties);
+            }
+            invalidateCachedProperties(reference);
+         }
+      }
+   }
+
+   /* (non-Javadoc)
+    * @see org.sakaiproject.entitybroker.entityprovider.extension.BulkPropertiesProvider#getProperties(java.util.Collection)
+    */
+   public Map<String, Map<String, String>> getProperties(Collection<String> references) {
+      if (references == null) {
+         throw new IllegalArgumentException("references cannot be null");
+      }
+      Map<String, Map<String, String>> results = new LinkedHashMap<String, Map<String,String>>();
+      // the references are split up by who stores the properties so each store is only called once
+      HashMap<String, PropertyProvideable> prefixProviders = new HashMap<String, PropertyProvideable>();
+      HashMap<String, List<String>> providerRefs = new HashMap<String, List<String>>();
+      List<String> internalRefs = new ArrayList<String>();
+      for (String reference : references) {
+         if (reference == null || results.containsKey(reference)) {
+            continue;
+         }
+         EntityReference ref = null;
+         try {
+            ref = entityBrokerManager.parseReference(reference);
+         } catch (IllegalArgumentException e) {
+            // invalid references are left out
+         }
+         if (ref == null) {
+            continue;
+         }
+         results.put(reference, new HashMap<String, String>());
+         String prefix = ref.getPrefix();
+         if (! prefixProviders.containsKey(prefix)) {
+            prefixProviders.put(prefix, entityProviderManager.getProviderByPrefixAndCapability(prefix, PropertyProvideable.class));
+            providerRefs.put(prefix, new ArrayList<String>());
+         }
+         if (prefixProviders.get(prefix) == null) {
+            internalRefs.add(reference);
+         } else {
+            providerRefs.get(prefix).add(reference);
+         }
+      }
+
+      if (! internalRefs.isEmpty()) {
+         // only the references which are not cached are read from storage
+         List<String> uncachedRefs = internalRefs;
+         if (propertiesCache != null) {
+            uncachedRefs = new ArrayList<String>();
+            for (String reference : internalRefs) {
+               Map<String, String> cached = propertiesCache.get(reference);
+               if (cached == null) {
+                  uncachedRefs.add(reference);
                } else {
-                  // update existing one
-                  EntityProperty property = properties.get(0);
-                  property.setPropertyValue(value);
-                  dao.save(property);
+                  results.get(reference).putAll(cached);
+               }
+            }
+         }
+         if (! uncachedRefs.isEmpty()) {
+            long generation = propertiesCache == null ? 0 : propertiesCache.getGeneration();
+            for (EntityProperty property : dao.getPropertiesForRefs(uncachedRefs)) {
+               Map<String, String> m = results.get(property.getEntityRef());
+               if (m != null) {
+                  m.put(property.getPropertyName(), property.getPropertyValue());
+               }
+            }
+            if (propertiesCache != null) {
+               for (String reference : uncachedRefs) {
+                  propertiesCache.put(reference, Collections.unmodifiableMap( new HashMap<String, String>(results.get(reference)) ), generation);
+               }
+            }
+         }
+      }
+      for (Entry<String, List<String>> entry : providerRefs.entrySet()) {
+         PropertyProvideable provider = prefixProviders.get(entry.getKey());
+         if (provider == null || entry.getValue().isEmpty()) {
+            continue;
+         }
+         if (provider instanceof BulkPropertiesProvider) {
+            Map<String, Map<String, String>> epMap = ((BulkPropertiesProvider) provider).getProperties(entry.getValue());
+            if (epMap != null) {
+               for (Entry<String, Map<String, String>> epEntry : epMap.entrySet()) {
+                  Map<String, String> m = results.get(epEntry.getKey());
+                  if (m != null && epEntry.getValue() != null) {
+                     m.putAll( epEntry.getValue() );
+                  }
+               }
+            }
+         } else {
+            for (String reference : entry.getValue()) {
+               Map<String, String> epMap = provider.getProperties(reference);
+               if (epMap != null) {
+                  results.get(reference).putAll( epMap );
+               }
+            }
+         }
+      }
+      return results;
+   }
+
+   /* (non-Javadoc)
+    * @see org.sakaiproject.entitybroker.entityprovider.extension.BulkPropertiesProvider#setPropertyValues(java.util.Map)
+    */
+   public void setPropertyValues(Map<String, Map<String, String>> referenceProperties) {
+      if (referenceProperties == null) {
+         throw new IllegalArgumentException("referenceProperties cannot be null");
+      }
+      List<EntityProperty> internalProperties = new ArrayList<EntityProperty>();
+      HashMap<PropertyProvideable, Map<String, Map<String, String>>> providerProperties = 
+         new HashMap<PropertyProvideable, Map<String,Map<String,String>>>();
+      for (Entry<String, Map<String, String>> entry : referenceProperties.entrySet()) {
+         String reference = entry.getKey();
+         if (entry.getValue() == null || entry.getValue().isEmpty()) {
+            continue;
+         }
+         if (entry.getValue().containsKey(null)) {
+            throw new IllegalArgumentException("Invalid params for reference (" + reference
+                  + "), names cannot be null");
+         }
+         EntityReference ref = entityBrokerManager.parseReference(reference);
+         if (ref == null) {
+            throw new IllegalArgumentException("Invalid reference (" + reference
+                  + "), entity type not handled");
+         }
+         if (! entityBrokerManager.entityExists(ref)) {
+            throw new IllegalArgumentException("Invalid reference (" + reference
+                  + "), entity does not exist");
+         }
+
+         PropertyProvideable provider = entityProviderManager.getProviderByPrefixAndCapability(ref.getPrefix(), PropertyProvideable.class);
+         if (provider != null) {
+            if (! providerProperties.containsKey(provider)) {
+               providerProperties.put(provider, new LinkedHashMap<String, Map<String,String>>());
+            }
+            providerProperties.get(provider).put(reference, entry.getValue());
+         } else {
+            for (Entry<String, String> property : entry.getValue().entrySet()) {
+               internalProperties.add( new EntityProperty(reference, ref.getPrefix(), property.getKey(), property.getValue()) );
+            }
+         }
+      }
+
+      // all the references are checked before anything is stored
+      if (! internalProperties.isEmpty()) {
+         dao.saveProperties(internalProperties);
+         for (String reference : referenceProperties.keySet()) {
+            invalidateCachedProperties(reference);
+         }
+      }
+      for (Entry<PropertyProvideable, Map<String, Map<String, String>>> entry : providerProperties.entrySet()) {
+         PropertyProvideable provider = entry.getKey();
+         if (provider instanceof BulkPropertiesProvider) {
+            ((BulkPropertiesProvider) provider).setPropertyValues(entry.getValue());
+         } else {
+            for (Entry<String, Map<String, String>> refEntry : entry.getValue().entrySet()) {
+               for (Entry<String, String> property : refEntry.getValue().entrySet()) {
+                  provider.setPropertyValue(refEntry.getKey(), property.getKey(), property.getValue());
                }
             }
          }
       }
    }
 
+   /**
+    * Get the internally stored properties for an entity, uses the cache if there is one
+    * @param reference a globally unique reference to an entity
+    * @return the map of properties (must not be changed)
+    */
+   protected Map<String, String> getStoredProperties(String reference) {
+      Map<String, String> m = propertiesCache == null ? null : propertiesCache.get(reference);
+      if (m == null) {
+         long generation = propertiesCache == null ? 0 : propertiesCache.getGeneration();
+         m = new HashMap<String, String>();
+         List<EntityProperty> properties = dao.findBySearch(EntityProperty.class,
+               new Search( "entityRef", reference ) );
+         for (EntityProperty property : properties) {
+            m.put(property.getPropertyName(), property.getPropertyValue());
+         }
+         m = Collections.unmodifiableMap(m);
+         if (propertiesCache != null) {
+            propertiesCache.put(reference, m, generation);
+         }
+      }
+      return m;
+   }
+
+   /**
+    * Throws away the cached properties for a reference after they are stored
+    * and tells the other servers to do the same
+    * @param reference a globally unique reference to an entity
+    */
+   private void invalidateCachedProperties(String reference) {
+      if (propertiesCache != null) {
+         propertiesCache.invalidate(reference);
+         if (entityBrokerManager.getExternalIntegrationProvider() != null) {
+            entityBrokerManager.getExternalIntegrationProvider().fireEvent(EVENT_PROPERTIES_UPDATE, reference);
+         }
+      }
+   }
+
 }
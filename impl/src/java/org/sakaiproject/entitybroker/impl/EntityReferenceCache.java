@@ -0,0 +1,304 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityReferenceCache.java - entity-broker - Oct 17, 2026 11:26:05 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.event.EventReceiver;
+
+/**
+ * Holds values which are stored per entity reference (like meta properties or tags) so they do not
+ * have to be read from storage every time, entries are evicted when they expire, when the cache is over
+ * the maximum number of entries (least recently used first), or when a delete event or the invalidate event
+ * happens for the entity<br/>
+ * Writers should {@link #invalidate(String)} the reference and fire the invalidate event so the other servers
+ * in the cluster throw away their copy as well, readers should get the {@link #getGeneration()} before reading
+ * from storage and cache the value with {@link #put(String, Object, long)} so a value read while a write was
+ * happening is never cached<br/>
+ * The values are shared by everything which reads them so they should not be changed once cached
+ *
+ * @param <V> the type of value cached for each reference
+ */
+public class EntityReferenceCache<V> implements EventReceiver {
+
+    public static final int DEFAULT_MAX_ENTRIES = 5000;
+    public static final long DEFAULT_TTL = 5l * 60l * 1000l;
+
+    private final int maxEntries;
+    private final long ttl;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    /**
+     * changed every time something is invalidated so values read before that are not cached
+     */
+    private long generation = 0;
+    private String invalidateEventName = null;
+    /**
+     * access ordered so the eldest entry is the least recently used one
+     */
+    private final LinkedHashMap<String, CachedValue<V>> cache = new LinkedHashMap<String, CachedValue<V>>(64, 0.75f, true);
+
+    /**
+     * Make a cache with the default limits
+     */
+    public EntityReferenceCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxEntries the maximum number of references to hold values for
+     * @param ttl the number of milliseconds a value can be cached for,
+     * this limits how long values changed on other servers can be out of date
+     */
+    public EntityReferenceCache(int maxEntries, long ttl) {
+        if (maxEntries <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("maxEntries and ttl must both be greater than 0");
+        }
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get the cached value for a reference
+     * @param reference an entity reference
+     * @return the cached value OR null if there is none or it has expired
+     */
+    public synchronized V get(String reference) {
+        CachedValue<V> cached = cache.get(reference);
+        if (cached != null
+                && cached.expires < System.currentTimeMillis()) {
+            cache.remove(reference);
+            evictions++;
+            cached = null;
+        }
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.value;
+    }
+
+    /**
+     * @param invalidateEventName the name of the event which throws away the cached value for the event resource,
+     * writers fire this so the caches on all servers are invalidated (null to only handle delete events)
+     */
+    public void setInvalidateEventName(String invalidateEventName) {
+        this.invalidateEventName = invalidateEventName;
+    }
+
+    public String getInvalidateEventName() {
+        return invalidateEventName;
+    }
+
+    /**
+     * @return the current generation of the cache, get this before reading a value from storage
+     * and pass it to {@link #put(String, Object, long)} when caching the value
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache the value read from storage for a reference only if nothing was invalidated since the read started,
+     * this keeps a read which overlaps a write from caching the old value
+     * @param reference an entity reference
+     * @param value the value to cache (should not be changed after this)
+     * @param generation the {@link #getGeneration()} from before the value was read
+     * @return true if the value was cached, false if something was invalidated since the generation
+     */
+    public synchronized boolean put(String reference, V value, long generation) {
+        if (this.generation != generation) {
+            return false;
+        }
+        put(reference, value);
+        return true;
+    }
+
+    /**
+     * Cache the value for a reference, the least recently used values are evicted to make space for it
+     * @param reference an entity reference
+     * @param value the value to cache (should not be changed after this)
+     */
+    public synchronized void put(String reference, V value) {
+        if (value == null) {
+            cache.remove(reference);
+            return;
+        }
+        cache.put(reference, new CachedValue<V>(value, System.currentTimeMillis() + ttl));
+        Iterator<Entry<String, CachedValue<V>>> it = cache.entrySet().iterator();
+        while (cache.size() > maxEntries
+                && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Get the cached value for a reference without counting it as a hit or miss,
+     * this is for checking the current value when it is about to be changed
+     * @param reference an entity reference
+     * @return the cached value OR null if there is none or it has expired
+     */
+    public synchronized V peek(String reference) {
+        CachedValue<V> cached = cache.get(reference);
+        if (cached == null
+                || cached.expires < System.currentTimeMillis()) {
+            return null;
+        }
+        return cached.value;
+    }
+
+    /**
+     * Throw away the cached value for a reference, call this whenever the stored value is changed
+     * @param reference an entity reference
+     */
+    public synchronized void invalidate(String reference) {
+        if (reference != null) {
+            generation++;
+            if (cache.remove(reference) != null) {
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Throw away all cached values
+     */
+    public synchronized void clear() {
+        generation++;
+        cache.clear();
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of times a cached value was found
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of times no cached value was found
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of values thrown away because they expired or the cache was full
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of values thrown away because they were invalidated (writes, delete or invalidate events)
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + cache.size() + ":max=" + maxEntries + ":hits=" + hits + ":misses=" + misses
+            + ":evictions=" + evictions + ":invalidations=" + invalidations;
+    }
+
+    /**
+     * @param eventName the name of an event
+     * @return true if the event is for a deletion (e.g. content.delete, site.del, thing.remove)
+     */
+    protected boolean isDeleteEvent(String eventName) {
+        if (eventName == null) {
+            return false;
+        }
+        for (String part : eventName.toLowerCase().split("\\.")) {
+            if (part.startsWith("del")
+                    || part.startsWith("remove")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // EVENTS
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiver#getEventNamePrefixes()
+     */
+    public String[] getEventNamePrefixes() {
+        return null; // all events, they are checked in receiveEvent
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiver#getResourcePrefix()
+     */
+    public String getResourcePrefix() {
+        return null; // all resources
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiver#receiveEvent(java.lang.String, java.lang.String)
+     */
+    public void receiveEvent(String eventName, String resource) {
+        if (invalidateEventName != null
+                && invalidateEventName.equals(eventName)) {
+            invalidate(resource);
+        } else if (resource != null
+                && resource.length() > 1
+                && resource.charAt(0) == EntityReference.SEPARATOR
+                && isDeleteEvent(eventName)) {
+            invalidate(resource);
+            // the resource may have extra path parts after the entity id
+            try {
+                EntityReference ref = new EntityReference(resource);
+                if (ref.getId() != null) {
+                    invalidate(EntityReference.SEPARATOR + ref.getPrefix() + EntityReference.SEPARATOR + ref.getId());
+                }
+            } catch (RuntimeException e) {
+                // not an entity reference so only the resource itself could be cached
+            }
+        }
+    }
+
+    private static class CachedValue<V> {
+        final V value;
+        final long expires;
+        CachedValue(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -26,7 +26,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Map.Entry;
 
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
@@ -38,6 +37,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.TagProvideable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Taggable;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.TagSearchService;
+import org.sakaiproject.entitybroker.event.EventReceiverRegistry;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 import org.sakaiproject.genericdao.api.search.Order;
 import org.sakaiproject.genericdao.api.search.Restriction;
@@ -67,10 +67,66 @@ public class EntityTaggingService implements TagSearchService {
       this.entityBrokerManager = entityBrokerManager;
    }
 
+   /**
+    * The event fired when internally stored tags change so every server throws away its cached copy
+    */
+   public static final String EVENT_TAGS_UPDATE = "entitybroker.tags.update";
+
+   private EventReceiverRegistry eventReceiverRegistry;
+   /**
+    * Set the registry the tags cache is registered with so cached tags are thrown away
+    * when the entities are deleted or changed on another server
+    */
+   public void setEventReceiverRegistry(EventReceiverRegistry eventReceiverRegistry) {
+      this.eventReceiverRegistry = eventReceiverRegistry;
+      if (tagsCache != null && eventReceiverRegistry != null) {
+         eventReceiverRegistry.registerEventReceiver(tagsCache);
+      }
+   }
+
+   /**
+    * Enable the cache of internally stored tags (off by default), this can be set in sakai.properties with
+    * cacheEnabled@org.sakaiproject.entitybroker.impl.EntityTaggingService=true<br/>
+    * Changes are sent to the other servers with the {@link #EVENT_TAGS_UPDATE} event
+    * but cached tags can be out of date until that event arrives
+    * @param cacheEnabled true to cache the tags, false to always read them from storage
+    */
+   public void setCacheEnabled(boolean cacheEnabled) {
+      if (! cacheEnabled) {
+         setTagsCache(null);
+      } else if (tagsCache == null) {
+         setTagsCache(new EntityReferenceCache<List<String>>());
+      }
+   }
+
+   private EntityReferenceCache<List<String>> tagsCache = null;
+   /**
+    * Set the cache which holds the internally stored tags for each reference,
+    * set to null to always read the tags from storage (default)
+    */
+   public void setTagsCache(EntityReferenceCache<List<String>> tagsCache) {
+      if (this.tagsCache != null && eventReceiverRegistry != null) {
+         eventReceiverRegistry.unregisterEventReceiver(this.tagsCache);
+      }
+      this.tagsCache = tagsCache;
+      if (tagsCache != null) {
+         tagsCache.setInvalidateEventName(EVENT_TAGS_UPDATE);
+         if (eventReceiverRegistry != null) {
+            eventReceiverRegistry.registerEventReceiver(tagsCache);
+         }
+      }
+   }
+   /**
+    * @return the cache of internally stored tags (includes the hit, miss, and eviction stats) OR null if there is none
+    */
+   public EntityReferenceCache<List<String>> getTagsCache() {
+      return tagsCache;
+   }
+
 
    public List<EntityData> findEntitesByTags(String[] tags, String[] prefixes,
          boolean matchAll, org.sakaiproject.entitybroker.entityprovider.search.Search search) {
-      // FIXME the match all and handling of merging results from multiple providers is currently a mess -AZ
+      // FIXME the handling of merging results from multiple providers is currently a mess -AZ
       // check for valid inputs
       if (tags == null || tags.length == 0) {
          throw new IllegalArgumentException(
@@ -103,44 +159,35 @@ public class EntityTaggingService implements TagSearchService {
 
       if (doSearch) {
          // search the internal storage first
-         Search dbSearch = new Search();
-         if (!matchAll && search != null) {
-            // cannot use limits with match all...
-            dbSearch.setLimit(search.getLimit());
-            dbSearch.setStart(search.getStart());
-         }
-         dbSearch.addRestriction( new Restriction("tag", tags) );
-         if (validPrefixes.size() > 0) {
-            dbSearch.addRestriction( new Restriction("entityPrefix", validPrefixes.toArray(new String[validPrefixes.size()])) );
-         }
-         dbSearch.addOrder( new Order("entityRef") );
-         List<EntityTagApplication> tagApps = dao.findBySearch(EntityTagApplication.class, dbSearch);
+         String[] searchPrefixes = validPrefixes.size() > 0 ? validPrefixes.toArray(new String[validPrefixes.size()]) : null;
          if (matchAll) {
-            // handle match all
-            HashMap<String, Integer> matchMap = new HashMap<String, Integer>();
-            for (EntityTagApplication tagApp : tagApps) {
-               if (matchMap.containsKey(tagApp.getEntityRef())) {
-                  int current = matchMap.get(tagApp.getEntityRef()).intValue();
-                  matchMap.put(tagApp.getEntityRef(), current + 1);
-               } else {
-                  matchMap.put(tagApp.getEntityRef(), 1);
-               }
-            }
-            int allCount = tags.length;
-            for (Entry<String, Integer> entry : matchMap.entrySet()) {
-               if (entry.getValue() >= allCount) {
-                  results.add( new EntityData(entry.getKey(), (String)null) );
-               }
+            // the database does the matching, ordering and paging
+            int start = search == null ? 0 : (int) search.getStart();
+            int limit = search == null ? 0 : (int) search.getLimit();
+            List<String> refs = dao.getEntityRefsForAllTags(tags, searchPrefixes, start, limit);
+            for (String ref : refs) {
+               results.add( new EntityData(ref, (String)null) );
             }
-            Collections.sort(results, new EntityData.ReferenceComparator());
          } else {
+            Search dbSearch = new Search();
+            if (search != null) {
+               dbSearch.setLimit(search.getLimit());
+               dbSearch.setStart(search.getStart());
+            }
+            dbSearch.addRestriction( new Restriction("tag", tags) );
+            if (searchPrefixes != null) {
+               dbSearch.addRestriction( new Restriction("entityPrefix", searchPrefixes) );
+            }
+            dbSearch.addOrder( new Order("entityRef") );
+            List<EntityTagApplication> tagApps = dao.findBySearch(EntityTagApplication.class, dbSearch);
             // filter the list down to the references first
-            HashMap<String, String> refToTags = new HashMap<String, String>();
+            HashMap<String, StringBuilder> refToTags = new HashMap<String, StringBuilder>();
             for (EntityTagApplication tagApp : tagApps) {
-               if (refToTags.containsKey(tagApp.getEntityRef())) {
-                  refToTags.put(tagApp.getEntityRef(), refToTags.get(tagApp.getEntityRef()) + EntityView.SEPARATOR + tagApp.getTag());
+               StringBuilder refTags = refToTags.get(tagApp.getEntityRef());
+               if (refTags != null) {
+                  refTags.append(EntityView.SEPARATOR).append(tagApp.getTag());
                } else {
-                  refToTags.put(tagApp.getEntityRef(), tagApp.getTag());
+                  refToTags.put(tagApp.getEntityRef(), new StringBuilder(tagApp.getTag()));
                   // note: no display available here
                   results.add( new EntityData(tagApp.getEntityRef(), (String)null) );
                }
@@ -148,7 +195,7 @@ public class EntityTaggingService implements TagSearchService {
             // add in the tags property
             for (EntityData ed : results) {
                String reference = ed.getEntityReference().toString();
-               ed.getEntityProperties().put("tags", refToTags.get(reference));
+               ed.getEntityProperties().put("tags", refToTags.get(reference).toString());
             }
          }
 
@@ -214,11 +261,7 @@ public class EntityTaggingService implements TagSearchService {
             TagProvideable provider = entityProviderManager.getProviderByPrefixAndCapability(ref.getPrefix(), TagProvideable.class);
             if (provider == null) {
                // put in call to central tag system here if desired
-
-               List<EntityTagApplication> results = dao.findBySearch(EntityTagApplication.class, new Search("entityRef", reference));
-               for (EntityTagApplication entityTagApplication : results) {
-                  tags.add(entityTagApplication.getTag());
-               }
+               tags.addAll( getStoredTags(reference) );
             } else {
                List<String> tList = provider.getTagsForEntity(reference);
                if (tList != null) {
@@ -263,6 +306,7 @@ public class EntityTaggingService implements TagSearchService {
                }
                if (newTagApps.size() > 0) {
                   dao.saveSet(newTagApps);
+                  invalidateCachedTags(reference);
                }
             } else {
                provider.addTagsToEntity(reference, tags);
@@ -293,6 +337,7 @@ public class EntityTaggingService implements TagSearchService {
             if (provider == null) {
                // put in call to central tag system here if desired
                dao.deleteTags(reference, tags);
+               invalidateCachedTags(reference);
             } else {
                provider.removeTagsFromEntity(reference, tags);
             }
@@ -336,6 +381,9 @@ public class EntityTaggingService implements TagSearchService {
                if (removeTags.size() > 0) {
                   dao.deleteTags(reference, removeTags.toArray(new String[removeTags.size()]));
                }
+               if (newTagApps.size() > 0 || removeTags.size() > 0) {
+                  invalidateCachedTags(reference);
+               }
             } else {
                provider.setTagsForEntity(reference, tags);
             }
@@ -354,11 +402,8 @@ public class EntityTaggingService implements TagSearchService {
     */
    protected void diffEntityTags(String reference, String[] tags, Set<String> addTags, Set<String> removeTags) {
       // first get the current set of tags for this reference
-      Set<String> curTags = new HashSet<String>();
-      List<EntityTagApplication> results = dao.findBySearch(EntityTagApplication.class, new Search("entityRef", reference));
-      for (EntityTagApplication entityTagApplication : results) {
-         curTags.add(entityTagApplication.getTag());
-      }
+      // always read from storage so a stale cached value cannot cause duplicate tags
+      Set<String> curTags = readStoredTags(reference);
 
       Set<String> setTags = new HashSet<String>();
       for (String tag : tags) {
@@ -386,4 +431,49 @@ public class EntityTaggingService implements TagSearchService {
       }
    }
 
+   /**
+    * Get the internally stored tags for an entity, uses the cache if there is one
+    * @param reference a globally unique reference to an entity
+    * @return the sorted list of tags (must not be changed)
+    */
+   protected List<String> getStoredTags(String reference) {
+      List<String> tags = tagsCache == null ? null : tagsCache.get(reference);
+      if (tags == null) {
+         long generation = tagsCache == null ? 0 : tagsCache.getGeneration();
+         tags = makeTagsList( readStoredTags(reference) );
+         if (tagsCache != null) {
+            tagsCache.put(reference, tags, generation);
+         }
+      }
+      return tags;
+   }
+
+   private Set<String> readStoredTags(String reference) {
+      Set<String> tagSet = new HashSet<String>();
+      List<EntityTagApplication> results = dao.findBySearch(EntityTagApplication.class, new Search("entityRef", reference));
+      for (EntityTagApplication entityTagApplication : results) {
+         tagSet.add(entityTagApplication.getTag());
+      }
+      return tagSet;
+   }
+
+   /**
+    * Throws away the cached tags for a reference after they are stored
+    * and tells the other servers to do the same
+    */
+   private void invalidateCachedTags(String reference) {
+      if (tagsCache != null) {
+         tagsCache.invalidate(reference);
+         if (entityBrokerManager.getExternalIntegrationProvider() != null) {
+            entityBrokerManager.getExternalIntegrationProvider().fireEvent(EVENT_TAGS_UPDATE, reference);
+         }
+      }
+   }
+
+   private List<String> makeTagsList(Set<String> tags) {
+      List<String> l = new ArrayList<String>(tags);
+      Collections.sort(l);
+      return Collections.unmodifiableList(l);
+   }
+
 }
@@ -39,6 +39,7 @@ import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
 import org.sakaiproject.entitybroker.util.SakaiToolData;
 import org.sakaiproject.entitybroker.util.devhelper.AbstractDeveloperHelperService;
+import org.sakaiproject.entitybroker.util.devhelper.ThreadStateClearable;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SitePage;
@@ -59,7 +60,7 @@ import org.sakaiproject.util.ResourceLoader;
  * 
  * @author Aaron Zeckoski (aaron@caret.cam.ac.uk)
  */
-public class DeveloperHelperServiceImpl extends AbstractDeveloperHelperService {
+public class DeveloperHelperServiceImpl extends AbstractDeveloperHelperService implements ThreadStateClearable {
 
     protected DeveloperHelperServiceImpl() {}
 
@@ -105,6 +106,7 @@ public class DeveloperHelperServiceImpl extends AbstractDeveloperHelperService {
     public static String PORTAL_BASE = "/portal";
 
     protected final String CURRENT_USER_MARKER = "originalCurrentUser";
+    protected final String STARTED_SESSION_MARKER = "startedForCurrentUser";
 
     // SAKAI
     private AuthzGroupService authzGroupService;
@@ -154,6 +156,7 @@ public class DeveloperHelperServiceImpl extends AbstractDeveloperHelperService {
         if (currentSession == null) {
             // start a session if none is around
             currentSession = sessionManager.startSession(userId);
+            currentSession.setAttribute(STARTED_SESSION_MARKER, Boolean.TRUE);
         }
         String currentUserId = currentSession.getUserId();
         if (currentSession.getAttribute(CURRENT_USER_MARKER) == null) {
@@ -189,6 +192,20 @@ public class DeveloperHelperServiceImpl extends AbstractDeveloperHelperService {
         return getUserRefFromUserId(currentUserId);
     }
 
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.util.devhelper.ThreadStateClearable#clearCurrentThreadState()
+     */
+    public void clearCurrentThreadState() {
+        // a session which was only started by setCurrentUser is also invalidated
+        Session currentSession = sessionManager.getCurrentSession();
+        if (currentSession != null
+                && currentSession.getAttribute(STARTED_SESSION_MARKER) != null) {
+            // this session only existed to hold the switched user so it goes away with the thread state
+            currentSession.invalidate();
+        }
+        threadLocalManager.clear();
+    }
+
 
     // CONFIG
 
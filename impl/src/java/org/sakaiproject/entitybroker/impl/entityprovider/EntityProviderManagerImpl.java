@@ -21,6 +21,7 @@
 package org.sakaiproject.entitybroker.impl.entityprovider;
 
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -32,6 +33,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.azeckoski.reflectutils.ReflectUtils;
 import org.azeckoski.reflectutils.refmap.ReferenceMap;
@@ -138,7 +141,35 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
     private boolean filterServices = false;
     private Set<String> allowedServices;
 
-    protected ReferenceMap<String, EntityProvider> prefixMap = new ReferenceMap<String, EntityProvider>(ReferenceType.STRONG, ReferenceType.SOFT);
+    /**
+     * The registered providers for each prefix indexed by capability slot, the registrations are
+     * never changed once they are in here (they are replaced) so they can be read without locking
+     */
+    protected Map<String, PrefixRegistration> prefixRegistry = new ConcurrentHashMap<String, PrefixRegistration>();
+    /**
+     * capability class name -> slot, slots are handed out as capabilities are first registered and are never reused
+     */
+    protected Map<String, Integer> capabilitySlots = new ConcurrentHashMap<String, Integer>();
+    /**
+     * slot -> capability class name
+     */
+    private volatile String[] slotCapabilities = new String[0];
+    /**
+     * slot -> sorted prefixes registered for that capability, null when it has to be rebuilt
+     */
+    private volatile String[][] capabilityPrefixes = null;
+    private final Object registryLock = new Object();
+    /**
+     * incremented every time the registrations change
+     */
+    private final AtomicLong registryVersion = new AtomicLong(0);
+    // these are always registered first so they have known slots
+    private static final int ENTITY_PROVIDER_SLOT = 0;
+    private static final int CORE_ENTITY_PROVIDER_SLOT = 1;
+    {
+        getCapabilitySlot(EntityProvider.class.getName(), true);
+        getCapabilitySlot(CoreEntityProvider.class.getName(), true);
+    }
 
     @SuppressWarnings("unchecked")
     protected ReferenceMap<String, EntityProviderListener> listenerMap = new ReferenceMap<String, EntityProviderListener>(ReferenceType.STRONG, ReferenceType.SOFT);
@@ -151,9 +182,13 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
      * @see org.sakaiproject.entitybroker.managers.EntityProviderManager#getProviderByPrefix(java.lang.String)
      */
     public EntityProvider getProviderByPrefix(String prefix) {
-        EntityProvider provider = getProviderByPrefixAndCapability(prefix, CoreEntityProvider.class);
-        if (provider == null) {
-            provider = getProviderByPrefixAndCapability(prefix, EntityProvider.class);
+        EntityProvider provider = null;
+        PrefixRegistration registration = prefix == null ? null : prefixRegistry.get(prefix);
+        if (registration != null) {
+            provider = registration.getProvider(CORE_ENTITY_PROVIDER_SLOT);
+            if (provider == null) {
+                provider = registration.getProvider(ENTITY_PROVIDER_SLOT);
+            }
         }
         return provider;
     }
@@ -167,8 +202,15 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         if (capability == null) {
             throw new NullPointerException("capability cannot be null");
         }
-        String bikey = getBiKey(prefix, capability);
-        provider = (T) prefixMap.get(bikey);
+        if (prefix != null) {
+            PrefixRegistration registration = prefixRegistry.get(prefix);
+            if (registration != null) {
+                Integer slot = capabilitySlots.get(capability.getName());
+                if (slot != null) {
+                    provider = (T) registration.getProvider(slot);
+                }
+            }
+        }
         return provider;
     }
 
@@ -178,8 +220,10 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
      */
     public Set<String> getRegisteredPrefixes() {
         Set<String> togo = new HashSet<String>();
-        for (String bikey : prefixMap.keySet()) {
-            togo.add(getPrefix(bikey));
+        for (PrefixRegistration registration : prefixRegistry.values()) {
+            if (registration.isRegistered()) {
+                togo.add(registration.prefix);
+            }
         }
         return togo;
     }
@@ -189,18 +233,9 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
      */
     public List<Class<? extends EntityProvider>> getPrefixCapabilities(String prefix) {
         List<Class<? extends EntityProvider>> caps = new ArrayList<Class<? extends EntityProvider>>();
-        for (String bikey : prefixMap.keySet()) {
-            String curPrefix = EntityProviderManagerImpl.getPrefix(bikey);
-            if (curPrefix.equals(prefix)) {
-                try {
-                    Class<? extends EntityProvider> capability = getCapability(bikey);
-                    caps.add( capability );
-                } catch (RuntimeException e) {
-                    // added because there will be times where we cannot resolve capabilities 
-                    // because of shifting ClassLoaders or CL visibility and that should not cause this to die
-                    System.out.println("WARN getPrefixCapabilities: Unable to retrieve class for capability bikey ("+bikey+"), skipping this capability");
-                }
-            }
+        PrefixRegistration registration = prefix == null ? null : prefixRegistry.get(prefix);
+        if (registration != null) {
+            addCapabilities(registration, caps, "getPrefixCapabilities");
         }
         Collections.sort(caps, new ClassComparator());
         return caps;
@@ -211,36 +246,43 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
      */
     public Map<String, List<Class<? extends EntityProvider>>> getRegisteredEntityCapabilities() {
         Map<String, List<Class<? extends EntityProvider>>> m = new HashMap<String, List<Class<? extends EntityProvider>>>();
-        ArrayList<String> list = new ArrayList<String>( prefixMap.keySet() );
-        Collections.sort(list);
-        for (String bikey : list) {
-            String prefix = getPrefix(bikey);
-            if (! m.containsKey(prefix)) {
-                m.put(prefix, new ArrayList<Class<? extends EntityProvider>>());
+        for (PrefixRegistration registration : prefixRegistry.values()) {
+            if (registration.isRegistered()) {
+                List<Class<? extends EntityProvider>> caps = new ArrayList<Class<? extends EntityProvider>>();
+                addCapabilities(registration, caps, "getRegisteredEntityCapabilities");
+                Collections.sort(caps, new ClassComparator());
+                m.put(registration.prefix, caps);
             }
-            try {
-                Class<? extends EntityProvider> capability = getCapability(bikey);
-                m.get(prefix).add( capability );
-            } catch (RuntimeException e) {
-                // added because there will be times where we cannot resolve capabilities 
-                // because of shifting ClassLoaders or CL visibility and that should not cause this to die
-                System.out.println("WARN getRegisteredEntityCapabilities: Unable to retrieve class for capability bikey ("+bikey+"), skipping this capability");
-            }
-        }      
+        }
         return m;
     }
 
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.EntityProviderManager#getRegistryVersion()
+     */
+    public long getRegistryVersion() {
+        return registryVersion.get();
+    }
+
     /* (non-Javadoc)
      * @see org.sakaiproject.entitybroker.entityprovider.EntityProviderManager#getProvidersByCapability(java.lang.Class)
      */
     @SuppressWarnings("unchecked")
     public <T extends EntityProvider> List<T> getProvidersByCapability(Class<T> capability) {
         ArrayList<T> providers = new ArrayList<T>();
-        String capName = capability.getName();
-        for (Entry<String, EntityProvider> entry : prefixMap.entrySet()) {
-            String name = EntityProviderManagerImpl.getCapabilityName(entry.getKey());
-            if (capName.equals(name)) {
-                providers.add((T)entry.getValue());
+        Integer slot = capabilitySlots.get(capability.getName());
+        if (slot != null) {
+            String[][] index = getCapabilityPrefixes();
+            if (slot < index.length) {
+                String[] prefixes = index[slot];
+                providers.ensureCapacity(prefixes.length);
+                for (int i = 0; i < prefixes.length; i++) {
+                    PrefixRegistration registration = prefixRegistry.get(prefixes[i]);
+                    EntityProvider provider = registration == null ? null : registration.getProvider(slot);
+                    if (provider != null) {
+                        providers.add((T) provider);
+                    }
+                }
             }
         }
         Collections.sort(providers, new EntityProviderComparator());
@@ -252,14 +294,21 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
      */
     public <T extends EntityProvider> List<String> getPrefixesByCapability(Class<T> capability) {
         ArrayList<String> prefixes = new ArrayList<String>();
-        String capName = capability.getName();
-        for (Entry<String, EntityProvider> entry : prefixMap.entrySet()) {
-            String name = EntityProviderManagerImpl.getCapabilityName(entry.getKey());
-            if (capName.equals(name)) {
-                prefixes.add( EntityProviderManagerImpl.getPrefix(entry.getKey()) );
+        Integer slot = capabilitySlots.get(capability.getName());
+        if (slot != null) {
+            String[][] index = getCapabilityPrefixes();
+            if (slot < index.length) {
+                String[] slotPrefixes = index[slot];
+                prefixes.ensureCapacity(slotPrefixes.length);
+                for (int i = 0; i < slotPrefixes.length; i++) {
+                    PrefixRegistration registration = prefixRegistry.get(slotPrefixes[i]);
+                    if (registration != null
+                            && registration.getProvider(slot) != null) {
+                        prefixes.add(slotPrefixes[i]);
+                    }
+                }
             }
         }
-        Collections.sort(prefixes);
         return prefixes;
     }
 
@@ -352,6 +401,7 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
                 entityProviderMethodStore.addURLRedirects(prefix, redirects);
             }
         }
+        registryVersion.incrementAndGet();
         System.out.println("INFO Registered entity provider ("+entityProvider.getClass().getName()
                 +") prefix ("+prefix+") with "+count+" capabilities");
 
@@ -392,6 +442,7 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         }
         // clean up the properties cache
         entityProperties.unloadProperties(prefix);
+        registryVersion.incrementAndGet();
 
         System.out.println("INFO Unregistered entity provider ("+entityProvider.getClass().getName()+") and "+count+" capabilities");
     }
@@ -409,8 +460,19 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
             throw new IllegalArgumentException(
             "Cannot separately unregister root EntityProvider capability - use unregisterEntityProviderByPrefix instead");
         }
-        String key = getBiKey(prefix, capability);
-        prefixMap.remove(key);
+        synchronized (registryLock) {
+            PrefixRegistration registration = prefixRegistry.get(prefix);
+            Integer slot = capabilitySlots.get(capability.getName());
+            if (registration != null && slot != null) {
+                registration = registration.withProvider(slot, null);
+                if (registration.isEmpty()) {
+                    prefixRegistry.remove(prefix);
+                } else {
+                    prefixRegistry.put(prefix, registration);
+                }
+                capabilityPrefixes = null;
+            }
+        }
         // do any cleanup that needs to be done when unregistering
         if (ActionsExecutable.class.equals(capability)) {
             // clean up the list of custom actions
@@ -422,6 +484,7 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
             // clean up the redirect URLs record
             entityProviderMethodStore.removeURLRedirects(prefix);
         }
+        registryVersion.incrementAndGet();
         System.out.println("INFO Unregistered entity provider capability ("+capability.getName()+") for prefix ("+prefix+")");
     }
 
@@ -433,12 +496,11 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         if (prefix == null) {
             throw new NullPointerException("prefix cannot be null");
         }
-        for (String bikey : prefixMap.keySet()) {
-            String keypref = getPrefix(bikey);
-            if (keypref.equals(prefix)) {
-                prefixMap.remove(bikey);
-            }
+        synchronized (registryLock) {
+            prefixRegistry.remove(prefix);
+            capabilityPrefixes = null;
         }
+        registryVersion.incrementAndGet();
         System.out.println("INFO Unregistered entity prefix ("+prefix+")");
     }
 
@@ -452,8 +514,99 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
      */
     public boolean registerPrefixCapability(String prefix,
             Class<? extends EntityProvider> capability, EntityProvider entityProvider) {
-        String key = getBiKey(prefix, capability);
-        return prefixMap.put(key, entityProvider) == null;
+        synchronized (registryLock) {
+            int slot = getCapabilitySlot(capability.getName(), true);
+            PrefixRegistration registration = prefixRegistry.get(prefix);
+            EntityProvider current = null;
+            if (registration == null) {
+                registration = new PrefixRegistration(prefix);
+            } else {
+                current = registration.getProvider(slot);
+            }
+            prefixRegistry.put(prefix, registration.withProvider(slot, entityProvider));
+            capabilityPrefixes = null;
+            registryVersion.incrementAndGet();
+            return current == null;
+        }
+    }
+
+    /**
+     * Get the slot for a capability
+     * @param capabilityName the capability class name
+     * @param create if true then a new slot is made for the capability if there is not one already
+     * @return the slot OR -1 if there is no slot for this capability (and create is false)
+     */
+    protected int getCapabilitySlot(String capabilityName, boolean create) {
+        Integer slot = capabilitySlots.get(capabilityName);
+        if (slot == null && create) {
+            synchronized (registryLock) {
+                slot = capabilitySlots.get(capabilityName);
+                if (slot == null) {
+                    String[] current = slotCapabilities;
+                    String[] names = new String[current.length + 1];
+                    System.arraycopy(current, 0, names, 0, current.length);
+                    slot = current.length;
+                    names[slot] = capabilityName;
+                    slotCapabilities = names;
+                    capabilitySlots.put(capabilityName, slot);
+                }
+            }
+        }
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @return the sorted prefixes registered for each capability (indexed by slot),
+     * this is only rebuilt after the registrations change
+     */
+    private String[][] getCapabilityPrefixes() {
+        String[][] index = capabilityPrefixes;
+        if (index == null) {
+            synchronized (registryLock) {
+                index = capabilityPrefixes;
+                if (index == null) {
+                    int slots = slotCapabilities.length;
+                    List<List<String>> lists = new ArrayList<List<String>>(slots);
+                    for (int i = 0; i < slots; i++) {
+                        lists.add(new ArrayList<String>());
+                    }
+                    for (PrefixRegistration registration : prefixRegistry.values()) {
+                        for (int slot = 0; slot < registration.providers.length; slot++) {
+                            if (registration.providers[slot] != null) {
+                                lists.get(slot).add(registration.prefix);
+                            }
+                        }
+                    }
+                    index = new String[slots][];
+                    for (int i = 0; i < slots; i++) {
+                        List<String> prefixes = lists.get(i);
+                        Collections.sort(prefixes);
+                        index[i] = prefixes.toArray(new String[prefixes.size()]);
+                    }
+                    capabilityPrefixes = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Adds the classes for the capabilities registered in this registration to the list
+     */
+    private void addCapabilities(PrefixRegistration registration, List<Class<? extends EntityProvider>> caps, String caller) {
+        String[] names = slotCapabilities;
+        for (int slot = 0; slot < registration.providers.length && slot < names.length; slot++) {
+            if (registration.getProvider(slot) != null) {
+                try {
+                    caps.add( getCapability(names[slot]) );
+                } catch (RuntimeException e) {
+                    // added because there will be times where we cannot resolve capabilities 
+                    // because of shifting ClassLoaders or CL visibility and that should not cause this to die
+                    System.out.println("WARN "+caller+": Unable to retrieve class for capability ("+names[slot]+") for prefix ("
+                            +registration.prefix+"), skipping this capability");
+                }
+            }
+        }
     }
 
     /**
@@ -565,26 +718,8 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
 
     // STATICS
 
-    // BIKEY methods
-    protected static String getBiKey(String prefix, Class<? extends EntityProvider> clazz) {
-        return prefix + "/" + clazz.getName();
-    }
-
-    protected static String getPrefix(String bikey) {
-        int slashpos = bikey.indexOf('/');
-        return bikey.substring(0, slashpos);
-    }
-
-    protected static String getCapabilityName(String bikey) {
-        int slashpos = bikey.indexOf('/');
-        String className = bikey.substring(slashpos + 1);
-        return className;
-    }
-
     @SuppressWarnings("unchecked")
-    protected static Class<? extends EntityProvider> getCapability(String bikey) {
-        int slashpos = bikey.indexOf('/');
-        String className = bikey.substring(slashpos + 1);
+    protected static Class<? extends EntityProvider> getCapability(String className) {
         Class<?> c;
         try {
             c = Class.forName(className);
@@ -619,6 +754,77 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         return new ArrayList<Class<? extends EntityProvider>>(capabilities);
     }
 
+    /**
+     * The providers registered for a prefix indexed by capability slot,
+     * the providers are held with soft references to allow clean classloader unloads
+     */
+    protected static class PrefixRegistration {
+        public final String prefix;
+        protected final SoftReference<EntityProvider>[] providers;
+
+        @SuppressWarnings("unchecked")
+        public PrefixRegistration(String prefix) {
+            this(prefix, new SoftReference[0]);
+        }
+
+        private PrefixRegistration(String prefix, SoftReference<EntityProvider>[] providers) {
+            this.prefix = prefix;
+            this.providers = providers;
+        }
+
+        /**
+         * @param slot the capability slot
+         * @return the provider for this capability OR null if there is none
+         */
+        public EntityProvider getProvider(int slot) {
+            EntityProvider provider = null;
+            if (slot >= 0 && slot < providers.length) {
+                SoftReference<EntityProvider> ref = providers[slot];
+                if (ref != null) {
+                    provider = ref.get();
+                }
+            }
+            return provider;
+        }
+
+        /**
+         * @param slot the capability slot
+         * @param provider the provider for this capability OR null to remove it
+         * @return a copy of this registration with the provider for the capability changed
+         */
+        @SuppressWarnings("unchecked")
+        public PrefixRegistration withProvider(int slot, EntityProvider provider) {
+            SoftReference<EntityProvider>[] copy = new SoftReference[Math.max(providers.length, slot + 1)];
+            System.arraycopy(providers, 0, copy, 0, providers.length);
+            copy[slot] = provider == null ? null : new SoftReference<EntityProvider>(provider);
+            return new PrefixRegistration(prefix, copy);
+        }
+
+        /**
+         * @return true if any capabilities are registered for this prefix (and the providers are still around)
+         */
+        public boolean isRegistered() {
+            for (int i = 0; i < providers.length; i++) {
+                if (getProvider(i) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if no capabilities are registered for this prefix
+         */
+        public boolean isEmpty() {
+            for (int i = 0; i < providers.length; i++) {
+                if (providers[i] != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     public static class EntityProviderComparator implements Comparator<EntityProvider>, Serializable {
         public final static long serialVersionUID = 1l;
         public int compare(EntityProvider o1, EntityProvider o2) {
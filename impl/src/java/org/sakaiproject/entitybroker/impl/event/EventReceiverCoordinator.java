@@ -20,13 +20,31 @@
 
 package org.sakaiproject.entitybroker.impl.event;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.azeckoski.reflectutils.refmap.ReferenceMap;
 import org.azeckoski.reflectutils.refmap.ReferenceType;
 import org.sakaiproject.entitybroker.event.EventReceiver;
+import org.sakaiproject.entitybroker.event.EventReceiverRegistry;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.EventTrackingService;
 import org.springframework.beans.BeansException;
@@ -36,31 +54,154 @@ import org.springframework.context.ApplicationContextAware;
 /**
  * Collects beans implementing {@link EventReceiver} from around the context, and distributes
  * matching events to them.<br/>
- * FIXME - make a way to handle events by allowing manual registration of receivers,
- * the way this works now the event receivers will not be registered from webapps, bad bad
- * 
+ * Receivers which are not beans in the context (e.g. from webapps) can be registered manually
+ * using the {@link EventReceiverRegistry} methods<br/>
+ * The event name prefixes and resource prefixes of all receivers are compiled into prefix trees (rebuilt only
+ * when the receivers change) so each event is matched in a single pass over its name and resource<br/>
+ * Events are delivered in the thread which sent them by default, set async to true to place matching events
+ * on a bounded queue for each receiver and deliver them with worker threads so a slow receiver does not hold up
+ * the event system (events for a receiver with a full queue are dropped and a warning is logged)
+ *
  * @author Antranig Basman (antranig@caret.cam.ac.uk)
  * @author Aaron Zeckoski (azeckoski at gmail.com)
  */
-public class EventReceiverCoordinator implements ApplicationContextAware {
+public class EventReceiverCoordinator implements ApplicationContextAware, EventReceiverRegistry {
+
+    /**
+     * What to do with an event when the queue for a receiver is full
+     */
+    public static enum OverflowPolicy {
+        /**
+         * wait (up to the block timeout) for space in the queue and then drop the event if there is still none
+         */
+        BLOCK,
+        /**
+         * drop the new event
+         */
+        DROP_NEWEST,
+        /**
+         * drop the oldest queued event to make space for the new one
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * The max number of events delivered to one receiver before the worker moves on to another receiver
+     */
+    private static final int MAX_DELIVERIES_PER_RUN = 100;
 
     private Map<ClassLoader, EventReceiver> receivers = new ReferenceMap<ClassLoader, EventReceiver>(ReferenceType.WEAK, ReferenceType.STRONG);
+    private CopyOnWriteArrayList<EventReceiver> registeredReceivers = new CopyOnWriteArrayList<EventReceiver>();
+
+    /**
+     * the queues for all the current receivers, kept when the index is rebuilt
+     */
+    private ConcurrentHashMap<EventReceiver, ReceiverQueue> receiverQueues = new ConcurrentHashMap<EventReceiver, ReceiverQueue>();
+    /**
+     * the compiled index of all the receivers, null if it has to be rebuilt
+     */
+    private volatile ReceiverIndex receiverIndex = null;
+    /**
+     * changed every time the receivers change so an index built from older receivers is never used
+     */
+    private final AtomicInteger receiversVersion = new AtomicInteger();
+    private volatile ThreadPoolExecutor eventExecutor = null;
+    private Observer observer = null;
 
     EventTrackingService eventTrackingService;
     public void setEventTrackingService(EventTrackingService eventTrackingService) {
         this.eventTrackingService = eventTrackingService;
     }
 
+    private boolean async = false;
+    /**
+     * @param async if true then events are delivered to the receivers by worker threads,
+     * if false (default) they are delivered in the thread which sent the event
+     * (and an exception from a receiver is thrown to the sender)
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    private int threads = 2;
+    /**
+     * @param threads the number of worker threads which deliver events (default 2)
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    private int queueSize = 1000;
+    /**
+     * @param queueSize the max number of events waiting to be delivered to each receiver (default 1000)
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    /**
+     * @param overflowPolicy the name of the {@link OverflowPolicy} to use when a receiver queue is full (default DROP_NEWEST)
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+    }
+
+    private long blockTimeout = 100;
+    /**
+     * @param blockTimeout the max milliseconds to wait for space in a receiver queue with the BLOCK policy (default 100)
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
     public void init() {
-        // register a single observer for the EB system (switched from local observer)
-        eventTrackingService.addObserver(new Observer() {
-            public void update(Observable o, Object arg) {
-                if (arg instanceof Event) {
-                    Event event = (Event) arg;
-                    handleEvent(event);
+        if (async && threads > 0) {
+            eventExecutor = makeEventExecutor(threads);
+        }
+        if (eventTrackingService != null) {
+            // register a single observer for the EB system (switched from local observer)
+            observer = new Observer() {
+                public void update(Observable o, Object arg) {
+                    if (arg instanceof Event) {
+                        Event event = (Event) arg;
+                        handleEvent(event);
+                    }
                 }
+            };
+            eventTrackingService.addObserver(observer);
+        }
+    }
+
+    public void destroy() {
+        if (observer != null && eventTrackingService != null) {
+            eventTrackingService.deleteObserver(observer);
+            observer = null;
+        }
+        if (eventExecutor != null) {
+            eventExecutor.shutdown();
+            eventExecutor = null;
+        }
+    }
+
+    /**
+     * Creates the pool of threads which deliver the events, each receiver is only handled by one thread at a time
+     * so events are delivered to each receiver in the order they occurred
+     */
+    private ThreadPoolExecutor makeEventExecutor(int threads) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "entitybroker-events-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
             }
-        });
+        };
+        // there is at most one waiting task per receiver so the task queue does not need to be bounded
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /*
@@ -75,6 +216,43 @@ public class EventReceiverCoordinator implements ApplicationContextAware {
                 receivers.put(receiver.getClass().getClassLoader(), receiver);
             }
         }
+        receiversVersion.incrementAndGet();
+        receiverIndex = null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiverRegistry#registerEventReceiver(org.sakaiproject.entitybroker.event.EventReceiver)
+     */
+    public void registerEventReceiver(EventReceiver receiver) {
+        if (receiver == null) {
+            throw new IllegalArgumentException("receiver cannot be null");
+        }
+        if (registeredReceivers.addIfAbsent(receiver)) {
+            receiversVersion.incrementAndGet();
+            receiverIndex = null;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiverRegistry#unregisterEventReceiver(org.sakaiproject.entitybroker.event.EventReceiver)
+     */
+    public void unregisterEventReceiver(EventReceiver receiver) {
+        if (registeredReceivers.remove(receiver)) {
+            receiversVersion.incrementAndGet();
+            receiverIndex = null;
+        }
+    }
+
+    /**
+     * @return the delivery stats for all the current receivers
+     */
+    public List<ReceiverStats> getReceiverStats() {
+        ReceiverIndex index = getReceiverIndex();
+        List<ReceiverStats> stats = new ArrayList<ReceiverStats>(index.queues.size());
+        for (ReceiverQueue queue : index.queues) {
+            stats.add( queue.makeStats() );
+        }
+        return stats;
     }
 
     /**
@@ -82,42 +260,425 @@ public class EventReceiverCoordinator implements ApplicationContextAware {
      * @param event the event from the system
      */
     protected void handleEvent(Event event) {
-        for (EventReceiver receiver : receivers.values()) {
-            if (match(receiver, event)) {
-                receiver.receiveEvent(event.getEvent(), event.getResource());
+        handleEvent(event.getEvent(), event.getResource());
+    }
+
+    /**
+     * Sends the event to all the receivers which match it
+     * @param name the event name
+     * @param resource the event resource (reference)
+     */
+    protected void handleEvent(String name, String resource) {
+        if (name == null) {
+            name = "";
+        }
+        if (resource == null) {
+            resource = "";
+        }
+        List<ReceiverQueue> matched = getReceiverIndex().match(name, resource);
+        if (! matched.isEmpty()) {
+            ThreadPoolExecutor executor = eventExecutor;
+            long now = System.currentTimeMillis();
+            for (ReceiverQueue queue : matched) {
+                if (executor == null) {
+                    queue.deliver(name, resource, now, true);
+                } else {
+                    queue.offer(new QueuedEvent(name, resource, now), executor);
+                }
             }
         }
     }
 
     /**
-     * @param receiver
-     * @param event
-     * @return
+     * @return the current receiver index (rebuilt if the receivers changed)
      */
-    private boolean match(EventReceiver receiver, Event event) {
-        String name = event.getEvent();
-        String[] prefixes = receiver.getEventNamePrefixes();
+    private ReceiverIndex getReceiverIndex() {
+        ReceiverIndex index = receiverIndex;
+        if (index == null
+                || index.version != receiversVersion.get()
+                || index.receiversSize != receivers.size()) {
+            index = rebuildReceiverIndex();
+        }
+        return index;
+    }
+
+    private synchronized ReceiverIndex rebuildReceiverIndex() {
+        ReceiverIndex index;
+        do {
+            // build again if the receivers changed while building
+            index = buildReceiverIndex();
+        } while (index.version != receiversVersion.get());
+        receiverIndex = index;
+        return index;
+    }
 
-        boolean matchprefix = false;
-        if (prefixes == null) {
-            matchprefix = true;
-        } else {
-            for (String prefix : prefixes) {
-                if (name.startsWith(prefix)) {
-                    matchprefix = true;
+    private ReceiverIndex buildReceiverIndex() {
+        int version = receiversVersion.get();
+        int receiversSize = receivers.size();
+        List<EventReceiver> all = new ArrayList<EventReceiver>(receiversSize + registeredReceivers.size());
+        all.addAll(receivers.values());
+        all.addAll(registeredReceivers);
+        // each receiver only gets each event once even if it is in both places
+        Map<EventReceiver, Boolean> seen = new IdentityHashMap<EventReceiver, Boolean>();
+        List<ReceiverQueue> queues = new ArrayList<ReceiverQueue>(all.size());
+        for (EventReceiver receiver : all) {
+            if (seen.put(receiver, Boolean.TRUE) == null) {
+                ReceiverQueue queue = receiverQueues.get(receiver);
+                if (queue == null) {
+                    queue = new ReceiverQueue(receiver);
+                    receiverQueues.put(receiver, queue);
+                }
+                queues.add(queue);
+            }
+        }
+        // drop the queues for receivers which are gone (any waiting events are still delivered)
+        receiverQueues.keySet().retainAll(seen.keySet());
+        return new ReceiverIndex(version, receiversSize, queues);
+    }
+
+    /**
+     * The compiled prefix tree of the event name prefixes for all receivers,
+     * each node holds a prefix tree of the resource prefixes for the receivers which end at that node
+     */
+    private static class ReceiverIndex {
+        private static final ReceiverQueue[] NO_QUEUES = new ReceiverQueue[0];
+
+        final int version;
+        final int receiversSize;
+        final List<ReceiverQueue> queues;
+        final PrefixNode root = new PrefixNode();
+        /**
+         * resource prefix tree for receivers with no event name prefixes (these match all event names)
+         */
+        final PrefixNode matchAll = new PrefixNode();
+
+        ReceiverIndex(int version, int receiversSize, List<ReceiverQueue> queues) {
+            this.version = version;
+            this.receiversSize = receiversSize;
+            this.queues = Collections.unmodifiableList(queues);
+            for (ReceiverQueue queue : queues) {
+                String[] prefixes = queue.receiver.getEventNamePrefixes();
+                String resourcePrefix = queue.receiver.getResourcePrefix();
+                if (prefixes == null) {
+                    addResource(matchAll, resourcePrefix, queue);
+                } else {
+                    // sorted so any prefix which starts with another one is skipped,
+                    // this means a receiver is never found twice along one path in the tree
+                    String[] sorted = prefixes.clone();
+                    Arrays.sort(sorted, 0, sorted.length, NULLS_FIRST);
+                    String last = null;
+                    for (String prefix : sorted) {
+                        if (prefix == null
+                                || (last != null && prefix.startsWith(last))) {
+                            continue;
+                        }
+                        last = prefix;
+                        PrefixNode node = root;
+                        for (int i = 0; i < prefix.length(); i++) {
+                            node = node.makeChild(prefix.charAt(i));
+                        }
+                        if (node.resources == null) {
+                            node.resources = new PrefixNode();
+                        }
+                        addResource(node.resources, resourcePrefix, queue);
+                    }
+                }
+            }
+        }
+
+        private static void addResource(PrefixNode resources, String resourcePrefix, ReceiverQueue queue) {
+            PrefixNode node = resources;
+            if (resourcePrefix != null) {
+                for (int i = 0; i < resourcePrefix.length(); i++) {
+                    node = node.makeChild(resourcePrefix.charAt(i));
+                }
+            }
+            node.queues = append(node.queues, queue);
+        }
+
+        /**
+         * @return the queues for all receivers which match the event
+         */
+        List<ReceiverQueue> match(String name, String resource) {
+            List<ReceiverQueue> matched = new ArrayList<ReceiverQueue>(4);
+            addMatches(matched, matchAll, resource);
+            PrefixNode node = root;
+            addMatches(matched, node.resources, resource);
+            for (int i = 0; i < name.length(); i++) {
+                node = node.getChild(name.charAt(i));
+                if (node == null) {
                     break;
                 }
+                addMatches(matched, node.resources, resource);
+            }
+            return matched;
+        }
+
+        /**
+         * Adds the queues along the path of the resource in the resource prefix tree
+         */
+        private void addMatches(List<ReceiverQueue> matched, PrefixNode resources, String resource) {
+            PrefixNode node = resources;
+            for (int i = 0; node != null; i++) {
+                for (int j = 0; j < node.queues.length; j++) {
+                    matched.add(node.queues[j]);
+                }
+                node = i < resource.length() ? node.getChild(resource.charAt(i)) : null;
+            }
+        }
+
+        private static ReceiverQueue[] append(ReceiverQueue[] queues, ReceiverQueue queue) {
+            ReceiverQueue[] appended = Arrays.copyOf(queues, queues.length + 1);
+            appended[queues.length] = queue;
+            return appended;
+        }
+
+        private static final Comparator<String> NULLS_FIRST = new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                if (o1 == null) {
+                    return o2 == null ? 0 : -1;
+                }
+                return o2 == null ? 1 : o1.compareTo(o2);
+            }
+        };
+    }
+
+    /**
+     * A node in a prefix tree, the children are held in small arrays since most nodes only have one
+     */
+    private static class PrefixNode {
+        char[] labels = new char[0];
+        PrefixNode[] children = new PrefixNode[0];
+        /**
+         * the receivers whose resource prefix ends at this node (only used in the resource trees)
+         */
+        ReceiverQueue[] queues = ReceiverIndex.NO_QUEUES;
+        /**
+         * the resource prefix tree for the receivers whose event name prefix ends at this node (only used in the name tree)
+         */
+        PrefixNode resources = null;
+
+        PrefixNode getChild(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
             }
+            return null;
+        }
+
+        PrefixNode makeChild(char c) {
+            PrefixNode child = getChild(c);
+            if (child == null) {
+                child = new PrefixNode();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                labels[labels.length - 1] = c;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private static class QueuedEvent {
+        final String name;
+        final String resource;
+        final long time;
+        QueuedEvent(String name, String resource, long time) {
+            this.name = name;
+            this.resource = resource;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The queue of events waiting for one receiver and the delivery stats for it,
+     * this is run by the worker threads to deliver the waiting events
+     */
+    private class ReceiverQueue implements Runnable {
+        final EventReceiver receiver;
+        final ArrayBlockingQueue<QueuedEvent> events;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicBoolean warned = new AtomicBoolean(false);
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong maxLag = new AtomicLong();
+        volatile long lastLag = 0;
+
+        ReceiverQueue(EventReceiver receiver) {
+            this.receiver = receiver;
+            this.events = new ArrayBlockingQueue<QueuedEvent>(queueSize > 0 ? queueSize : 1);
+        }
+
+        void offer(QueuedEvent event, ThreadPoolExecutor executor) {
+            received.incrementAndGet();
+            boolean added = events.offer(event);
+            if (! added) {
+                if (OverflowPolicy.DROP_OLDEST.equals(overflowPolicy)) {
+                    while (! added) {
+                        if (events.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                        added = events.offer(event);
+                    }
+                } else if (OverflowPolicy.BLOCK.equals(overflowPolicy)) {
+                    schedule(executor); // make sure the queue is being emptied while we wait
+                    try {
+                        added = events.offer(event, blockTimeout, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (! added) {
+                    dropped.incrementAndGet();
+                }
+                if (dropped.get() > 0 && warned.compareAndSet(false, true)) {
+                    System.out.println("WARN: EventReceiverCoordinator: Event queue for receiver ("+receiver.getClass().getName()
+                            +") is full ("+queueSize+" events) so events are being dropped ("+overflowPolicy
+                            +"), the receiver stats have the number dropped");
+                }
+            }
+            schedule(executor);
+        }
+
+        void schedule(ThreadPoolExecutor executor) {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // executor is shutting down, the events are left in the queue
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < MAX_DELIVERIES_PER_RUN; i++) {
+                    QueuedEvent event = events.poll();
+                    if (event == null) {
+                        break;
+                    }
+                    deliver(event.name, event.resource, event.time, false);
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            ThreadPoolExecutor executor = eventExecutor;
+            if (! events.isEmpty() && executor != null) {
+                // go to the back of the line so other receivers get a turn
+                schedule(executor);
+            }
+        }
+
+        /**
+         * @param propagate if true then a failure in the receiver is thrown on to the caller
+         * (delivery in the sending thread), otherwise it is counted and logged
+         */
+        void deliver(String name, String resource, long time, boolean propagate) {
+            long lag = System.currentTimeMillis() - time;
+            lastLag = lag;
+            long max = maxLag.get();
+            while (lag > max && ! maxLag.compareAndSet(max, lag)) {
+                max = maxLag.get();
+            }
+            try {
+                receiver.receiveEvent(name, resource);
+                delivered.incrementAndGet();
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                if (propagate) {
+                    throw e;
+                }
+                System.out.println("WARN: EventReceiverCoordinator: Event receiver ("+receiver.getClass().getName()
+                        +") failed handling event ("+name+") for resource ("+resource+"): " + e);
+            }
+        }
+
+        ReceiverStats makeStats() {
+            return new ReceiverStats(receiver.getClass().getName(), events.size(), received.get(),
+                    delivered.get(), dropped.get(), failed.get(), lastLag, maxLag.get());
+        }
+    }
+
+    /**
+     * The event delivery stats for a single receiver
+     */
+    public static class ReceiverStats {
+        private final String receiverName;
+        private final int queued;
+        private final long received;
+        private final long delivered;
+        private final long dropped;
+        private final long failed;
+        private final long lastLagMillis;
+        private final long maxLagMillis;
+
+        public ReceiverStats(String receiverName, int queued, long received, long delivered,
+                long dropped, long failed, long lastLagMillis, long maxLagMillis) {
+            this.receiverName = receiverName;
+            this.queued = queued;
+            this.received = received;
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.failed = failed;
+            this.lastLagMillis = lastLagMillis;
+            this.maxLagMillis = maxLagMillis;
+        }
+        /**
+         * @return the class name of the receiver
+         */
+        public String getReceiverName() {
+            return receiverName;
+        }
+        /**
+         * @return the number of events waiting to be delivered
+         */
+        public int getQueued() {
+            return queued;
+        }
+        /**
+         * @return the number of events queued for the receiver (only counted when delivering asynchronously)
+         */
+        public long getReceived() {
+            return received;
+        }
+        /**
+         * @return the number of events delivered to the receiver
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+        /**
+         * @return the number of events dropped because the queue was full
+         */
+        public long getDropped() {
+            return dropped;
+        }
+        /**
+         * @return the number of events the receiver failed to handle (threw an exception)
+         */
+        public long getFailed() {
+            return failed;
+        }
+        /**
+         * @return the time between the event occurring and the last event being delivered
+         */
+        public long getLastLagMillis() {
+            return lastLagMillis;
         }
-        if (!matchprefix) {
-            return false;
+        /**
+         * @return the longest time between an event occurring and being delivered
+         */
+        public long getMaxLagMillis() {
+            return maxLagMillis;
         }
-        String resprefix = receiver.getResourcePrefix();
-        if (resprefix == null 
-                || event.getResource().startsWith(resprefix)) {
-            return true;
-        } else {
-            return false;
+        @Override
+        public String toString() {
+            return receiverName + ": queued=" + queued + ", received=" + received + ", delivered=" + delivered
+                + ", dropped=" + dropped + ", failed=" + failed + ", lag=" + lastLagMillis + "ms, maxLag=" + maxLagMillis + "ms";
         }
     }
 
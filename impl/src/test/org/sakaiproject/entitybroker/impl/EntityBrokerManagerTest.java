@@ -30,6 +30,7 @@ import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.mocks.FullReplaceUpdateableEntityProviderMock;
 import org.sakaiproject.entitybroker.mocks.data.MyEntity;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 
@@ -205,6 +206,38 @@ public class EntityBrokerManagerTest extends TestCase {
       assertNull(entity);
    }
 
+   public void testGetInputEntityObject() {
+      // updates get the current entity by default
+      Object entity = entityBrokerManager.getInputEntityObject(TestData.PREFIX6, TestData.IDS6[0]);
+      assertNotNull(entity);
+      assertSame(td.entityProvider6.myEntities.get(TestData.IDS6[0]), entity);
+      entity = entityBrokerManager.getInputEntityObject(TestData.PREFIXA1, TestData.IDSA1[0]);
+      assertSame(td.entityProviderA1.myEntities.get(TestData.IDSA1[0]), entity);
+
+      // full replace updates get a new sample with the id set
+      FullReplaceUpdateableEntityProviderMock replaceable = new FullReplaceUpdateableEntityProviderMock("replaceable", new String[] {"r1", "r2"});
+      entityBrokerManager.getEntityProviderManager().registerEntityProvider(replaceable);
+      try {
+         entity = entityBrokerManager.getInputEntityObject("replaceable", "r1");
+         assertNotNull(entity);
+         assertEquals(MyEntity.class, entity.getClass());
+         assertNotSame(replaceable.myEntities.get("r1"), entity);
+         assertEquals("r1", ((MyEntity) entity).getId());
+         assertNull(((MyEntity) entity).getStuff());
+      } finally {
+         entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(replaceable);
+      }
+
+      // new entities are always a sample
+      entity = entityBrokerManager.getInputEntityObject(TestData.PREFIX6, null);
+      assertNotNull(entity);
+      assertNull(((MyEntity) entity).getId());
+      assertNull(((MyEntity) entity).getStuff());
+
+      // nothing for providers without samples
+      assertNull(entityBrokerManager.getInputEntityObject(TestData.PREFIX2, "id"));
+   }
+
    /**
     * Test method for
     * {@link org.sakaiproject.entitybroker.impl.EntityBrokerManagerImpl#makeFullURL(java.lang.String)}.
@@ -4,6 +4,9 @@
 
 package org.sakaiproject.entitybroker.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -325,5 +328,79 @@ public class EntityMetaPropertiesServiceTest extends AbstractTransactionalSpring
       }
 
    }
+
+   /**
+    * Test method for
+    * {@link org.sakaiproject.entitybroker.impl.EntityMetaPropertiesService#getProperties(java.util.Collection)}.
+    */
+   public void testGetPropertiesBulk() {
+      Map<String, Map<String, String>> props = null;
+
+      props = propertiesService.getProperties( Arrays.asList(TestData.REF5_2, TestData.REF5, TestData.REF1, TestData.INVALID_REF, TestData.REF5) );
+      assertNotNull(props);
+      assertEquals(3, props.size());
+      // results are in the order of the references
+      assertEquals(Arrays.asList(TestData.REF5_2, TestData.REF5, TestData.REF1), new ArrayList<String>(props.keySet()));
+      assertEquals(2, props.get(TestData.REF5).size());
+      assertEquals(TestData.PROPERTY_VALUE5A, props.get(TestData.REF5).get(TestData.PROPERTY_NAME5A));
+      assertEquals(TestData.PROPERTY_VALUE5B, props.get(TestData.REF5).get(TestData.PROPERTY_NAME5B));
+      assertEquals(1, props.get(TestData.REF5_2).size());
+      assertEquals(TestData.PROPERTY_VALUE5C, props.get(TestData.REF5_2).get(TestData.PROPERTY_NAME5C));
+      assertTrue(props.get(TestData.REF1).isEmpty());
+
+      props = propertiesService.getProperties( new ArrayList<String>() );
+      assertNotNull(props);
+      assertTrue(props.isEmpty());
+   }
+
+   /**
+    * Test method for
+    * {@link org.sakaiproject.entitybroker.impl.EntityMetaPropertiesService#setPropertyValues(java.util.Map)}.
+    */
+   public void testSetPropertyValues() {
+      Map<String, Map<String, String>> values = new HashMap<String, Map<String,String>>();
+      Map<String, String> ref5 = new HashMap<String, String>();
+      ref5.put("newNameAlpha", "newValueAlpha");
+      ref5.put(TestData.PROPERTY_NAME5A, "AZnewValue");
+      ref5.put(TestData.PROPERTY_NAME5B, null);
+      values.put(TestData.REF5, ref5);
+      Map<String, String> ref5_2 = new HashMap<String, String>();
+      ref5_2.put("newNameBeta", "newValueBeta");
+      values.put(TestData.REF5_2, ref5_2);
+      propertiesService.setPropertyValues(values);
+
+      Map<String, String> m = propertiesService.getProperties(TestData.REF5);
+      assertEquals(2, m.size());
+      assertEquals("newValueAlpha", m.get("newNameAlpha"));
+      assertEquals("AZnewValue", m.get(TestData.PROPERTY_NAME5A));
+      m = propertiesService.getProperties(TestData.REF5_2);
+      assertEquals(2, m.size());
+      assertEquals(TestData.PROPERTY_VALUE5C, m.get(TestData.PROPERTY_NAME5C));
+      assertEquals("newValueBeta", m.get("newNameBeta"));
+
+      // invalid refs cause failure and nothing is stored
+      values.clear();
+      values.put(TestData.REF5, new HashMap<String, String>(ref5_2));
+      values.put(TestData.INVALID_REF, new HashMap<String, String>(ref5_2));
+      try {
+         propertiesService.setPropertyValues(values);
+         fail("Should have thrown exception");
+      } catch (IllegalArgumentException e) {
+         assertNotNull(e.getMessage());
+      }
+      assertNull(propertiesService.getPropertyValue(TestData.REF5, "newNameBeta"));
+
+      // null names cause failure
+      values.clear();
+      ref5.clear();
+      ref5.put(null, "XXXXXXXXX");
+      values.put(TestData.REF5, ref5);
+      try {
+         propertiesService.setPropertyValues(values);
+         fail("Should have thrown exception");
+      } catch (IllegalArgumentException e) {
+         assertNotNull(e.getMessage());
+      }
+   }
    
 }
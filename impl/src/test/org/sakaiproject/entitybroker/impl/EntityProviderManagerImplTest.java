@@ -230,6 +230,10 @@ public class EntityProviderManagerImplTest extends TestCase {
       assertFalse(providers.contains(td.entityProvider1));
       assertFalse(providers.contains(td.entityProvider2));
       assertFalse(providers.contains(td.entityProvider3));
+      // sorted by prefix
+      for (int i = 1; i < providers.size(); i++) {
+         assertTrue(providers.get(i-1).getEntityPrefix().compareTo(providers.get(i).getEntityPrefix()) < 0);
+      }
 
       providers = entityProviderManager.getProvidersByCapability(ActionsExecutable.class);
       assertNotNull(providers);
@@ -274,6 +278,36 @@ public class EntityProviderManagerImplTest extends TestCase {
       assertEquals(0, prefixes.size());
    }
 
+   public void testRegisterPrefixCapability() {
+      // lists are sorted by prefix
+      List<String> prefixes = entityProviderManager.getPrefixesByCapability(CRUDable.class);
+      for (int i = 1; i < prefixes.size(); i++) {
+         assertTrue(prefixes.get(i - 1).compareTo(prefixes.get(i)) < 0);
+      }
+
+      // new capabilities show up in the lookups right away
+      assertNull(entityProviderManager.getProviderByPrefixAndCapability(TestData.PREFIX2, EntityViewUrlCustomizable.class));
+      assertTrue(entityProviderManager.registerPrefixCapability(TestData.PREFIX2, EntityViewUrlCustomizable.class, td.entityProvider2));
+      assertFalse(entityProviderManager.registerPrefixCapability(TestData.PREFIX2, EntityViewUrlCustomizable.class, td.entityProvider2));
+      assertEquals(td.entityProvider2,
+            entityProviderManager.getProviderByPrefixAndCapability(TestData.PREFIX2, EntityViewUrlCustomizable.class));
+      List<EntityViewUrlCustomizable> providers = entityProviderManager.getProvidersByCapability(EntityViewUrlCustomizable.class);
+      assertEquals(1, providers.size());
+      assertTrue(providers.contains(td.entityProvider2));
+      prefixes = entityProviderManager.getPrefixesByCapability(EntityViewUrlCustomizable.class);
+      assertEquals(1, prefixes.size());
+      assertEquals(TestData.PREFIX2, prefixes.get(0));
+      assertTrue(entityProviderManager.getPrefixCapabilities(TestData.PREFIX2).contains(EntityViewUrlCustomizable.class));
+
+      // and are gone right after they are unregistered
+      entityProviderManager.unregisterCapability(TestData.PREFIX2, EntityViewUrlCustomizable.class);
+      assertNull(entityProviderManager.getProviderByPrefixAndCapability(TestData.PREFIX2, EntityViewUrlCustomizable.class));
+      assertEquals(0, entityProviderManager.getProvidersByCapability(EntityViewUrlCustomizable.class).size());
+      assertEquals(0, entityProviderManager.getPrefixesByCapability(EntityViewUrlCustomizable.class).size());
+      assertFalse(entityProviderManager.getPrefixCapabilities(TestData.PREFIX2).contains(EntityViewUrlCustomizable.class));
+      assertEquals(td.entityProvider2, entityProviderManager.getProviderByPrefix(TestData.PREFIX2));
+   }
+
    /**
     * Test method for
     * {@link org.sakaiproject.entitybroker.impl.entityprovider.EntityProviderManagerImpl#registerEntityProvider(org.sakaiproject.entitybroker.entityprovider.EntityProvider)}.
@@ -0,0 +1,99 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityReferenceCacheTest.java - entity-broker - Oct 17, 2026 11:41:52 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing the per reference cache
+ */
+public class EntityReferenceCacheTest extends TestCase {
+
+    public void testGetPut() {
+        EntityReferenceCache<String> cache = new EntityReferenceCache<String>(2, 60000);
+        assertNull(cache.get("/thing/1"));
+        cache.put("/thing/1", "one");
+        cache.put("/thing/2", "two");
+        assertEquals("one", cache.get("/thing/1"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // the least recently used is evicted
+        cache.put("/thing/3", "three");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.peek("/thing/2"));
+        assertEquals("one", cache.peek("/thing/1"));
+        assertEquals(1, cache.getHits());
+
+        // a value read while something was invalidated is not cached
+        long generation = cache.getGeneration();
+        cache.invalidate("/thing/1");
+        assertFalse(cache.put("/thing/1", "uno", generation));
+        assertNull(cache.get("/thing/1"));
+        assertTrue(cache.put("/thing/1", "uno", cache.getGeneration()));
+        assertEquals("uno", cache.get("/thing/1"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        try {
+            new EntityReferenceCache<String>(0, 1000);
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    public void testExpiry() throws Exception {
+        EntityReferenceCache<String> cache = new EntityReferenceCache<String>(10, 10);
+        cache.put("/thing/1", "one");
+        Thread.sleep(50);
+        assertNull(cache.get("/thing/1"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    public void testEvents() {
+        EntityReferenceCache<String> cache = new EntityReferenceCache<String>(10, 60000);
+        cache.put("/thing/1", "one");
+        cache.put("/thing/2", "two");
+        cache.put("/other/1", "other");
+
+        cache.receiveEvent("thing.update", "/thing/1");
+        cache.receiveEvent("thing.delete", "nothing");
+        assertEquals(3, cache.size());
+
+        cache.receiveEvent("thing.delete", "/thing/1");
+        assertNull(cache.peek("/thing/1"));
+        // extra parts of the resource are ignored
+        cache.receiveEvent("thing.del", "/thing/2/attachments/file.txt");
+        assertNull(cache.peek("/thing/2"));
+        assertEquals("other", cache.peek("/other/1"));
+        assertEquals(2, cache.getInvalidations());
+
+        // the invalidate event comes from writes on any server
+        cache.setInvalidateEventName("thing.props.update");
+        cache.receiveEvent("thing.props.update", "/other/1");
+        assertNull(cache.peek("/other/1"));
+        assertEquals(3, cache.getInvalidations());
+    }
+
+}
@@ -106,6 +106,51 @@ public class EntityTaggingServiceTest extends AbstractTransactionalSpringContext
       }
    }
 
+   public void testTagsCache() {
+      // the cache is off unless it is enabled
+      assertNull(taggingService.getTagsCache());
+      taggingService.setCacheEnabled(true);
+      EntityReferenceCache<List<String>> cache = taggingService.getTagsCache();
+      assertNotNull(cache);
+      assertEquals(EntityTaggingService.EVENT_TAGS_UPDATE, cache.getInvalidateEventName());
+
+      // internally stored tags are cached
+      List<String> tags = taggingService.getTagsForEntity(TestData.REFT1);
+      assertEquals(2, tags.size());
+      long misses = cache.getMisses();
+      tags = taggingService.getTagsForEntity(TestData.REFT1);
+      assertEquals(2, tags.size());
+      assertEquals(misses, cache.getMisses());
+      assertTrue(cache.getHits() > 0);
+
+      // writes invalidate the cache
+      taggingService.addTagsToEntity(TestData.REFT1, new String[] {"added"});
+      assertNull(cache.peek(TestData.REFT1));
+      tags = taggingService.getTagsForEntity(TestData.REFT1);
+      assertEquals(3, tags.size());
+      assertTrue(tags.contains("added"));
+      taggingService.removeTagsFromEntity(TestData.REFT1, new String[] {"test"});
+      tags = taggingService.getTagsForEntity(TestData.REFT1);
+      assertEquals(2, tags.size());
+      assertFalse(tags.contains("test"));
+      taggingService.setTagsForEntity(TestData.REFT1, new String[] {"one", "two", "three"});
+      tags = taggingService.getTagsForEntity(TestData.REFT1);
+      assertEquals(3, tags.size());
+      assertEquals("one", tags.get(0));
+      assertEquals(misses + 3, cache.getMisses());
+
+      // delete and update events from other servers clear the cache
+      cache.receiveEvent("tagging.delete", TestData.REFT1);
+      assertNull(cache.peek(TestData.REFT1));
+      assertEquals(3, taggingService.getTagsForEntity(TestData.REFT1).size());
+      assertNotNull(cache.peek(TestData.REFT1));
+      cache.receiveEvent(EntityTaggingService.EVENT_TAGS_UPDATE, TestData.REFT1);
+      assertNull(cache.peek(TestData.REFT1));
+
+      taggingService.setCacheEnabled(false);
+      assertNull(taggingService.getTagsCache());
+   }
+
    /**
     * Test method for {@link org.sakaiproject.entitybroker.impl.EntityBrokerImpl#setTags(java.lang.String, java.util.Set)}.
     */
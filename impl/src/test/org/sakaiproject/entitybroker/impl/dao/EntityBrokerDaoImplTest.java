@@ -5,9 +5,12 @@
 package org.sakaiproject.entitybroker.impl.dao;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.sakaiproject.entitybroker.dao.EntityBrokerDao;
+import org.sakaiproject.entitybroker.dao.EntityProperty;
+import org.sakaiproject.entitybroker.dao.EntityTagApplication;
 import org.sakaiproject.entitybroker.dao.impl.EntityBrokerDaoImpl;
 import org.sakaiproject.entitybroker.impl.data.TestDataPreload;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
@@ -148,6 +151,152 @@ public class EntityBrokerDaoImplTest extends AbstractTransactionalSpringContextT
       assertEquals(2, removed);
    }
 
+   /**
+    * Test method for {@link EntityBrokerDaoImpl#getPropertiesForRefs(java.util.Collection)}
+    */
+   public void testGetPropertiesForRefs() {
+      List<EntityProperty> props = null;
+
+      props = dao.getPropertiesForRefs( Arrays.asList(TestData.REF5, TestData.REF5_2, TestData.REF1) );
+      assertNotNull(props);
+      assertEquals(3, props.size());
+
+      props = dao.getPropertiesForRefs( new ArrayList<String>() );
+      assertNotNull(props);
+      assertEquals(0, props.size());
+
+      // more refs than fit in a single in-list
+      List<String> refs = new ArrayList<String>();
+      for (int i = 0; i < 2500; i++) {
+         refs.add(TestData.REF5 + "-" + i);
+      }
+      refs.add(TestData.REF5_2);
+      props = dao.getPropertiesForRefs(refs);
+      assertEquals(1, props.size());
+      assertEquals(TestData.PROPERTY_NAME5C, props.get(0).getPropertyName());
+   }
+
+   /**
+    * Test method for {@link EntityBrokerDaoImpl#saveProperties(java.util.Collection)}
+    */
+   public void testSaveProperties() {
+      List<EntityProperty> props = new ArrayList<EntityProperty>();
+      props.add( new EntityProperty(TestData.REF5, TestData.PREFIX5, TestData.PROPERTY_NAME5A, "updated") );
+      props.add( new EntityProperty(TestData.REF5, TestData.PREFIX5, TestData.PROPERTY_NAME5B, null) );
+      props.add( new EntityProperty(TestData.REF5, TestData.PREFIX5, "newName", "first") );
+      props.add( new EntityProperty(TestData.REF5, TestData.PREFIX5, "newName", "second") );
+      props.add( new EntityProperty(TestData.REF5_2, TestData.PREFIX5, TestData.PROPERTY_NAME5C, TestData.PROPERTY_VALUE5C) );
+      props.add( new EntityProperty(TestData.REF5_2, TestData.PREFIX5, "missing", null) );
+      int changed = dao.saveProperties(props);
+      // 1 update, 1 delete, 1 insert (the unchanged and missing ones do nothing)
+      assertEquals(3, changed);
+
+      List<EntityProperty> stored = dao.getPropertiesForRefs( Arrays.asList(TestData.REF5) );
+      assertEquals(2, stored.size());
+      for (EntityProperty property : stored) {
+         if (TestData.PROPERTY_NAME5A.equals(property.getPropertyName())) {
+            assertEquals("updated", property.getPropertyValue());
+         } else {
+            assertEquals("newName", property.getPropertyName());
+            assertEquals("second", property.getPropertyValue());
+            assertNotNull(property.getId());
+         }
+      }
+      assertEquals(1, dao.getPropertiesForRefs( Arrays.asList(TestData.REF5_2) ).size());
+
+      assertEquals(0, dao.saveProperties( new ArrayList<EntityProperty>() ));
+
+      try {
+         props.clear();
+         props.add( new EntityProperty(TestData.REF5, TestData.PREFIX5, null, "value") );
+         dao.saveProperties(props);
+         fail("Should have thrown exception");
+      } catch (IllegalArgumentException e) {
+         assertNotNull(e.getMessage());
+      }
+   }
+
+   /**
+    * Test method for {@link EntityBrokerDaoImpl#getEntityRefsForAllTags(String[], String[], int, int)}
+    */
+   public void testGetEntityRefsForAllTags() {
+      List<String> refs = null;
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, null, 0, 0);
+      assertNotNull(refs);
+      assertEquals(1, refs.size());
+      assertEquals(TestData.REFT1, refs.get(0));
+
+      // duplicate tags only count once
+      refs = dao.getEntityRefsForAllTags(new String[] {"AZ", "AZ"}, null, 0, 0);
+      assertEquals(2, refs.size());
+      assertEquals(TestData.REFT1, refs.get(0));
+      assertEquals(TestData.REFT1_2, refs.get(1));
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, new String[] {TestData.PREFIXT1}, 0, 0);
+      assertEquals(1, refs.size());
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, new String[] {TestData.PREFIX1}, 0, 0);
+      assertEquals(0, refs.size());
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "ZZZZZZZZZ"}, null, 0, 0);
+      assertEquals(0, refs.size());
+
+      // paging is done in the order of the refs
+      dao.save( new EntityTagApplication(TestData.REFT1_3, TestData.PREFIXT1, "test") );
+      dao.save( new EntityTagApplication(TestData.REFT1_3, TestData.PREFIXT1, "AZ") );
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, null, 0, 0);
+      assertEquals(2, refs.size());
+      assertEquals(TestData.REFT1, refs.get(0));
+      assertEquals(TestData.REFT1_3, refs.get(1));
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, null, 0, 1);
+      assertEquals(1, refs.size());
+      assertEquals(TestData.REFT1, refs.get(0));
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, null, 1, 1);
+      assertEquals(1, refs.size());
+      assertEquals(TestData.REFT1_3, refs.get(0));
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, null, 1, 0);
+      assertEquals(1, refs.size());
+      assertEquals(TestData.REFT1_3, refs.get(0));
+
+      refs = dao.getEntityRefsForAllTags(new String[] {"test", "AZ"}, null, 2, 5);
+      assertEquals(0, refs.size());
+
+      try {
+         dao.getEntityRefsForAllTags(new String[] {}, null, 0, 0);
+         fail("Should have thrown exception");
+      } catch (IllegalArgumentException e) {
+         assertNotNull(e.getMessage());
+      }
+   }
+
+   /**
+    * Test method for {@link EntityBrokerDaoImpl#getEntityRefsForAllTagsAfter(String[], String[], String, int)}
+    */
+   public void testGetEntityRefsForAllTagsAfter() {
+      List<String> refs = null;
+
+      dao.save( new EntityTagApplication(TestData.REFT1_3, TestData.PREFIXT1, "AZ") );
+      refs = dao.getEntityRefsForAllTagsAfter(new String[] {"AZ"}, null, null, 2);
+      assertEquals(2, refs.size());
+      assertEquals(TestData.REFT1, refs.get(0));
+      assertEquals(TestData.REFT1_2, refs.get(1));
+
+      // get the next page using the last ref
+      refs = dao.getEntityRefsForAllTagsAfter(new String[] {"AZ"}, null, refs.get(1), 2);
+      assertEquals(1, refs.size());
+      assertEquals(TestData.REFT1_3, refs.get(0));
+
+      refs = dao.getEntityRefsForAllTagsAfter(new String[] {"AZ"}, null, refs.get(0), 2);
+      assertEquals(0, refs.size());
+
+      refs = dao.getEntityRefsForAllTagsAfter(new String[] {"test", "AZ"}, null, TestData.REFT1, 0);
+      assertEquals(0, refs.size());
+   }
+
    public void testDeleteTags() {
       // test we can remove a tag
       int removed = dao.deleteTags(TestData.REFT1, new String[] {"test","AZ"});
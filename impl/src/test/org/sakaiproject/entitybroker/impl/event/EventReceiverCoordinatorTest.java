@@ -0,0 +1,228 @@
+/**
+ * $Id$
+ * $URL$
+ * EventReceiverCoordinatorTest.java - entity-broker - Oct 17, 2026 10:12:40 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.impl.event;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.entitybroker.event.EventReceiver;
+import org.sakaiproject.entitybroker.impl.event.EventReceiverCoordinator.ReceiverStats;
+
+/**
+ * Testing the matching and delivery of events to the receivers
+ */
+public class EventReceiverCoordinatorTest extends TestCase {
+
+    private static class TestReceiver implements EventReceiver {
+        final String[] prefixes;
+        final String resourcePrefix;
+        final List<String> received = new CopyOnWriteArrayList<String>();
+        volatile CountDownLatch latch = null;
+        volatile CountDownLatch block = null;
+        TestReceiver(String resourcePrefix, String... prefixes) {
+            this.prefixes = prefixes;
+            this.resourcePrefix = resourcePrefix;
+        }
+        public String[] getEventNamePrefixes() {
+            return prefixes;
+        }
+        public String getResourcePrefix() {
+            return resourcePrefix;
+        }
+        public void receiveEvent(String eventName, String id) {
+            if (block != null) {
+                try {
+                    block.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            received.add(eventName + ":" + id);
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+
+    public void testMatching() {
+        // events are delivered in the sending thread by default
+        EventReceiverCoordinator coordinator = new EventReceiverCoordinator();
+        coordinator.init();
+
+        TestReceiver all = new TestReceiver(null, (String[]) null);
+        TestReceiver none = new TestReceiver(null, new String[0]);
+        TestReceiver site = new TestReceiver(null, "site.", "site.upd", "content.new");
+        TestReceiver siteResource = new TestReceiver("/site/1", "site.", "");
+        TestReceiver empty = new TestReceiver("", "");
+        coordinator.registerEventReceiver(all);
+        coordinator.registerEventReceiver(none);
+        coordinator.registerEventReceiver(site);
+        coordinator.registerEventReceiver(siteResource);
+        coordinator.registerEventReceiver(empty);
+        coordinator.registerEventReceiver(site); // registering twice does nothing
+
+        coordinator.handleEvent("site.upd", "/site/123");
+        coordinator.handleEvent("content.new", "/content/thing");
+        coordinator.handleEvent("content.read", "/site/1");
+        coordinator.handleEvent("site", "/site/2");
+
+        assertEquals(4, all.received.size());
+        assertEquals(0, none.received.size());
+        assertEquals(2, site.received.size()); // only once even though 2 prefixes match
+        assertEquals("site.upd:/site/123", site.received.get(0));
+        assertEquals("content.new:/content/thing", site.received.get(1));
+        assertEquals(2, siteResource.received.size());
+        assertEquals("site.upd:/site/123", siteResource.received.get(0));
+        assertEquals("content.read:/site/1", siteResource.received.get(1));
+        assertEquals(4, empty.received.size());
+
+        // the index is rebuilt when the receivers change
+        coordinator.unregisterEventReceiver(all);
+        coordinator.handleEvent("site.upd", "/site/123");
+        assertEquals(4, all.received.size());
+        assertEquals(3, site.received.size());
+
+        List<ReceiverStats> stats = coordinator.getReceiverStats();
+        assertEquals(4, stats.size());
+        for (ReceiverStats stat : stats) {
+            assertEquals(0, stat.getQueued());
+            assertEquals(0, stat.getDropped());
+        }
+        coordinator.destroy();
+    }
+
+    public void testResourceMatching() {
+        EventReceiverCoordinator coordinator = new EventReceiverCoordinator();
+        coordinator.init();
+
+        TestReceiver sites = new TestReceiver("/site", "site.");
+        TestReceiver site1 = new TestReceiver("/site/1", "site.", "content.");
+        TestReceiver site12 = new TestReceiver("/site/12", (String[]) null);
+        TestReceiver content = new TestReceiver("/content", "site.", "content.");
+        coordinator.registerEventReceiver(sites);
+        coordinator.registerEventReceiver(site1);
+        coordinator.registerEventReceiver(site12);
+        coordinator.registerEventReceiver(content);
+
+        coordinator.handleEvent("site.upd", "/site/123");
+        coordinator.handleEvent("site.upd", "/site/2");
+        coordinator.handleEvent("content.new", "/site/1");
+        coordinator.handleEvent("content.new", "/content/thing");
+        coordinator.handleEvent("site.upd", "/si");
+        coordinator.handleEvent("site.upd", null);
+
+        assertEquals(2, sites.received.size());
+        assertEquals("site.upd:/site/123", sites.received.get(0));
+        assertEquals("site.upd:/site/2", sites.received.get(1));
+        assertEquals(2, site1.received.size());
+        assertEquals("site.upd:/site/123", site1.received.get(0));
+        assertEquals("content.new:/site/1", site1.received.get(1));
+        assertEquals(1, site12.received.size());
+        assertEquals("site.upd:/site/123", site12.received.get(0));
+        assertEquals(1, content.received.size());
+        assertEquals("content.new:/content/thing", content.received.get(0));
+        coordinator.destroy();
+    }
+
+    public void testReceiverFailure() throws Exception {
+        // failures are thrown to the sender when delivering in the sending thread
+        EventReceiverCoordinator coordinator = new EventReceiverCoordinator();
+        coordinator.init();
+        TestReceiver failing = new TestReceiver(null, "fail.") {
+            @Override
+            public void receiveEvent(String eventName, String id) {
+                throw new IllegalStateException("failed");
+            }
+        };
+        coordinator.registerEventReceiver(failing);
+        try {
+            coordinator.handleEvent("fail.event", "/thing/1");
+            fail("should have thrown exception");
+        } catch (IllegalStateException e) {
+            assertNotNull(e.getMessage());
+        }
+        assertEquals(1, coordinator.getReceiverStats().get(0).getFailed());
+
+        // receivers registered after the index is built get the events
+        TestReceiver later = new TestReceiver(null, "other.");
+        coordinator.registerEventReceiver(later);
+        coordinator.handleEvent("other.event", "/thing/2");
+        assertEquals(1, later.received.size());
+        coordinator.destroy();
+
+        // failures are only counted when delivering asynchronously
+        coordinator = new EventReceiverCoordinator();
+        coordinator.setAsync(true);
+        coordinator.init();
+        coordinator.registerEventReceiver(failing);
+        TestReceiver after = new TestReceiver(null, "fail.");
+        after.latch = new CountDownLatch(1);
+        coordinator.registerEventReceiver(after);
+        coordinator.handleEvent("fail.event", "/thing/1");
+        assertTrue( after.latch.await(5, TimeUnit.SECONDS) );
+        coordinator.destroy();
+    }
+
+    public void testAsyncDelivery() throws Exception {
+        EventReceiverCoordinator coordinator = new EventReceiverCoordinator();
+        coordinator.setAsync(true);
+        coordinator.setThreads(2);
+        coordinator.setQueueSize(2);
+        coordinator.init();
+
+        TestReceiver slow = new TestReceiver(null, "slow.");
+        slow.block = new CountDownLatch(1);
+        TestReceiver fast = new TestReceiver(null, "slow.", "fast.");
+        coordinator.registerEventReceiver(slow);
+        coordinator.registerEventReceiver(fast);
+
+        // the slow receiver does not hold up the sender or the other receivers
+        for (int i = 0; i < 6; i++) {
+            fast.latch = new CountDownLatch(1);
+            coordinator.handleEvent("slow.event", "/thing/" + i);
+            assertTrue( fast.latch.await(5, TimeUnit.SECONDS) );
+        }
+        assertEquals(6, fast.received.size());
+        // events are delivered in order
+        for (int i = 0; i < 6; i++) {
+            assertEquals("slow.event:/thing/" + i, fast.received.get(i));
+        }
+
+        // the slow receiver queue filled up so some events were dropped
+        long dropped = 0;
+        for (ReceiverStats stat : coordinator.getReceiverStats()) {
+            assertEquals(6, stat.getReceived());
+            dropped += stat.getDropped();
+        }
+        assertTrue(dropped > 0);
+
+        slow.latch = new CountDownLatch((int) (6 - dropped));
+        slow.block.countDown();
+        assertTrue( slow.latch.await(5, TimeUnit.SECONDS) );
+        assertEquals(6 - dropped, slow.received.size());
+        coordinator.destroy();
+    }
+
+}
@@ -0,0 +1,26 @@
+/**
+ * FullReplaceUpdateableEntityProviderMock.java - created on Oct 18, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import org.sakaiproject.entitybroker.entityprovider.capabilities.FullReplaceUpdateable;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
+
+/**
+ * Stub class to make it possible to test the {@link FullReplaceUpdateable} capability,
+ * works like the {@link CRUDableEntityProviderMock} but updates replace the whole {@link MyEntity}
+ */
+public class FullReplaceUpdateableEntityProviderMock extends CRUDableEntityProviderMock implements FullReplaceUpdateable {
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    *
+    * @param prefix
+    * @param ids
+    */
+   public FullReplaceUpdateableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * ImportableEntityProviderMock.java - created on Oct 18, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Importable;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+
+/**
+ * Stub class to make it possible to test the {@link Importable} and
+ * {@link org.sakaiproject.entitybroker.entityprovider.capabilities.Exportable} capabilities,
+ * the export writes exportSize bytes in small chunks and the import reads the stream
+ * in small chunks and creates one entity reference for every 1000 bytes read
+ */
+public class ImportableEntityProviderMock extends ResolvableEntityProviderMock implements Importable {
+
+   public String encodingKey = "mock-v1";
+   public int exportSize = 100;
+   public String lastReference = null;
+   public boolean lastDestructive = false;
+   public String lastEncodingKey = null;
+   public long lastImportSize = 0;
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    *
+    * @param prefix
+    * @param ids
+    */
+   public ImportableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+   public String exportData(String reference, Search search, OutputStream data, boolean destructive, Map<String, Object> params) {
+      lastReference = reference;
+      lastDestructive = destructive;
+      if (exportSize <= 0) {
+         return null;
+      }
+      byte[] chunk = new byte[100];
+      for (int i = 0; i < chunk.length; i++) {
+         chunk[i] = (byte) ('a' + (i % 26));
+      }
+      try {
+         for (int written = 0; written < exportSize; written += chunk.length) {
+            data.write(chunk, 0, Math.min(chunk.length, exportSize - written));
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Failed writing the export: " + e.getMessage(), e);
+      }
+      return encodingKey;
+   }
+
+   public String[] importData(String reference, InputStream data, String encodingKey, Map<String, Object> params) {
+      lastReference = reference;
+      lastEncodingKey = encodingKey;
+      if (encodingKey != null && ! this.encodingKey.equals(encodingKey)) {
+         throw new IllegalArgumentException("Unknown encoding key: " + encodingKey);
+      }
+      long size = 0;
+      byte[] chunk = new byte[100];
+      try {
+         int read;
+         while ((read = data.read(chunk)) != -1) {
+            size += read;
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Failed reading the import: " + e.getMessage(), e);
+      }
+      lastImportSize = size;
+      String[] refs = new String[(int) (size / 1000)];
+      for (int i = 0; i < refs.length; i++) {
+         refs[i] = "/" + getEntityPrefix() + "/imported-" + i;
+      }
+      return refs;
+   }
+
+}
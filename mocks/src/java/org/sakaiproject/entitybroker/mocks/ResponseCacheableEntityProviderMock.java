@@ -0,0 +1,59 @@
+/**
+ * ResponseCacheableEntityProviderMock.java - created on Oct 17, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import java.util.List;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+
+/**
+ * Stub class to make it possible to test the {@link ResponseCacheable} capability,
+ * the number of times the entity data was fetched is counted so tests can check
+ * when the output came from the response cache
+ */
+public class ResponseCacheableEntityProviderMock extends ResolvableEntityProviderMock implements ResponseCacheable {
+
+   public int cacheSeconds = 60;
+   public boolean shared = true;
+   public boolean accessAllowed = true;
+   public int fetchCount = 0;
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    *
+    * @param prefix
+    * @param ids
+    */
+   public ResponseCacheableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+   @Override
+   public Object getEntity(EntityReference reference) {
+      fetchCount++;
+      return super.getEntity(reference);
+   }
+
+   @Override
+   public List<?> getEntities(EntityReference ref, Search search) {
+      fetchCount++;
+      return super.getEntities(ref, search);
+   }
+
+   public int getResponseCacheSeconds() {
+      return cacheSeconds;
+   }
+
+   public boolean isResponseCacheShared() {
+      return shared;
+   }
+
+   public boolean isResponseCacheAccessAllowed(EntityReference ref, String userReference) {
+      return accessAllowed;
+   }
+
+}
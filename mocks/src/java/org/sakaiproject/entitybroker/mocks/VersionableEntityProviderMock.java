@@ -0,0 +1,67 @@
+/**
+ * VersionableEntityProviderMock.java - created on Oct 17, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+
+/**
+ * Stub class to make it possible to test the {@link Versionable} capability,
+ * every entity has the same version and last modified time and the number of times
+ * the entity data was fetched is counted so tests can check that nothing was fetched,
+ * access to everything (including the version) is denied when allowRead is false
+ */
+public class VersionableEntityProviderMock extends ResolvableEntityProviderMock implements Versionable {
+
+   public String version = "1";
+   public long lastModified = 1230000000000l;
+   public int fetchCount = 0;
+   public boolean allowRead = true;
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    *
+    * @param prefix
+    * @param ids
+    */
+   public VersionableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+   @Override
+   public Object getEntity(EntityReference reference) {
+      checkRead(reference);
+      fetchCount++;
+      return super.getEntity(reference);
+   }
+
+   @Override
+   public List<?> getEntities(EntityReference ref, Search search) {
+      checkRead(ref);
+      fetchCount++;
+      return super.getEntities(ref, search);
+   }
+
+   public String getEntityETag(EntityReference ref, Map<String, Object> params) {
+      checkRead(ref);
+      return version;
+   }
+
+   public long getEntityLastModified(EntityReference ref, Map<String, Object> params) {
+      checkRead(ref);
+      return lastModified;
+   }
+
+   private void checkRead(EntityReference ref) {
+      if (! allowRead) {
+         throw new SecurityException("Current user cannot read " + ref);
+      }
+   }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * $Id$
+ * $URL$
+ * ContentHashETagStrategy.java - entity-broker - Oct 17, 2026 2:42:15 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.util.List;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
+
+/**
+ * Makes strong ETags by hashing the encoded content as it is written (CRC32 plus the content length),
+ * this works for any data (including collections of entities without last modified times)
+ * but the encoded content is held in memory until it is complete
+ */
+public class ContentHashETagStrategy implements ETagStrategy {
+
+    public String makeETag(EntityReference ref, List<EntityData> entities, Long lastModified) {
+        return null;
+    }
+
+    public boolean isHashContent() {
+        return true;
+    }
+
+    /**
+     * Make the ETag value from the content hash
+     * @param checksum the checksum of the encoded content
+     * @param length the length of the encoded content in bytes
+     * @return the ETag
+     */
+    public static String makeContentETag(long checksum, long length) {
+        return Long.toHexString(checksum) + "-" + Long.toHexString(length);
+    }
+
+}
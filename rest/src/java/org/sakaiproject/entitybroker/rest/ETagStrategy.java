@@ -0,0 +1,52 @@
+/**
+ * $Id$
+ * $URL$
+ * ETagStrategy.java - entity-broker - Oct 17, 2026 2:31:07 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.util.List;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
+import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
+
+/**
+ * Decides how the ETag is made for entity data being output by the {@link EntityHandlerImpl},
+ * versions supplied by providers ({@link Versionable}) are always used in preference to this
+ */
+public interface ETagStrategy {
+
+    /**
+     * Make the ETag for the entity data before it is encoded
+     * 
+     * @param ref the reference for the entity or collection being output
+     * @param entities the entity data being output (may be null or empty)
+     * @param lastModified the newest last modified time of the entities OR null if it is not known for all of them
+     * @return the ETag (without quotes) OR null if one cannot be made from the data
+     */
+    public String makeETag(EntityReference ref, List<EntityData> entities, Long lastModified);
+
+    /**
+     * @return true if the ETag should be made by hashing the encoded content when
+     * {@link #makeETag(EntityReference, List, Long)} returns null,
+     * the encoded content has to be held in memory until it is hashed so this costs some memory for large responses
+     */
+    public boolean isHashContent();
+
+}
@@ -23,10 +23,10 @@ package org.sakaiproject.entitybroker.rest;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -45,7 +45,9 @@ import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.exception.EntityNotFoundException;
 import org.sakaiproject.entitybroker.exception.FormatUnsupportedException;
 import org.sakaiproject.entitybroker.util.EntityDataUtils;
-import org.sakaiproject.entitybroker.util.http.LazyResponseOutputStream;
+import org.sakaiproject.entitybroker.util.MethodInvoker;
+import org.sakaiproject.entitybroker.util.core.EntityProviderMethodStoreImpl;
+import org.sakaiproject.entitybroker.util.http.DeferredResponseOutputStream;
 import org.sakaiproject.entitybroker.util.request.RequestStorageImpl;
 import org.sakaiproject.entitybroker.util.request.RequestUtils;
 
@@ -67,6 +69,12 @@ public class EntityActionsManager {
         this.entityProviderMethodStore = entityProviderMethodStore;
     }
 
+    /**
+     * the max number of bytes of custom action output held back (so the action result can still set the status and headers)
+     * before the response is committed and the rest is streamed
+     */
+    public static final int ACTION_OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     private EntityProviderMethodStore entityProviderMethodStore;
     public void setEntityProviderMethodStore(EntityProviderMethodStore entityProviderMethodStore) {
         this.entityProviderMethodStore = entityProviderMethodStore;
@@ -92,21 +100,16 @@ public class EntityActionsManager {
         // get the action params out of the request first
         Map<String, Object> actionParams = RequestStorageImpl.getRequestValues(request, true, true, true);
         EntityReference ref = entityView.getEntityReference();
-        OutputStream outputStream = new LazyResponseOutputStream(response);
+        // stream straight into the response unless the action result can change the status or headers
+        int bufferSize = isHeaderDependentAction(actionProvider, ref.getPrefix(), action) ? ACTION_OUTPUT_BUFFER_SIZE : 0;
+        DeferredResponseOutputStream outputStream = new DeferredResponseOutputStream(response, bufferSize, entityView.getExtension());
+        // the status if the output is committed before the action returns (unless the action sets its own)
+        response.setStatus(HttpServletResponse.SC_OK);
         ActionReturn actionReturn = handleCustomActionExecution(actionProvider, ref, action, actionParams, outputStream, entityView, searchParams);
         // now process the return into the request or response as needed
         if (actionReturn != null) {
             if (actionReturn.output != null || actionReturn.outputString != null) {
-                if (actionReturn.output == null) {
-                    // write the string into the response outputstream
-                    try {
-                        outputStream.write( actionReturn.outputString.getBytes() );
-                    } catch (IOException e) {
-                        throw new RuntimeException("Failed encoding for outputstring: " + actionReturn.outputString);
-                    }
-                    actionReturn.output = outputStream;
-                }
-                // now set the encoding, mimetype into the response
+                // set the encoding, mimetype, and headers into the response before any held output is written
                 actionReturn.format = entityView.getExtension();
                 if (actionReturn.encoding == null || actionReturn.mimeType == null) {
                     // use default if not set
@@ -118,21 +121,59 @@ public class EntityActionsManager {
                     response.setCharacterEncoding(actionReturn.encoding);
                     response.setContentType(actionReturn.mimeType);
                 }
+                Map<String, String> headers = actionReturn.getHeaders();
+                if (headers != null) {
+                    for (Entry<String, String> entry : headers.entrySet()) {
+                        response.addHeader(entry.getKey(), entry.getValue());
+                    }
+                }
             }
-            // also sets the response code when handling the action
+            // also sets the response code when handling the action (otherwise it is OK or whatever the action set)
             if (actionReturn.responseCode > 0) {
                 response.setStatus(actionReturn.responseCode);
-            } else {
-                response.setStatus(HttpServletResponse.SC_OK);
+            }
+            if (actionReturn.output == null && actionReturn.outputString != null) {
+                // write the string into the response outputstream
+                try {
+                    outputStream.write( actionReturn.outputString.getBytes() );
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed encoding for outputstring: " + actionReturn.outputString);
+                }
+                actionReturn.output = outputStream;
             }
             // other returns require no extra work here
-        } else {
-            // no failure so set the status code
-            response.setStatus(HttpServletResponse.SC_OK);
         }
+        // write out anything which was held back while the status and headers were unknown
+        outputStream.finish();
         return actionReturn;
     }
 
+    /**
+     * Checks if the result of an action can change the response status or headers,
+     * only actions which can only write into the outputstream (return void, boolean, or the OutputStream)
+     * can be streamed without holding back any of the output
+     * @param actionProvider the provider of the action
+     * @param prefix an entity prefix
+     * @param action an action key
+     * @return true if the output has to be held until the action completes, false if it can be streamed
+     */
+    protected boolean isHeaderDependentAction(ActionsExecutable actionProvider, String prefix, String action) {
+        if (ActionsExecutionControllable.class.isAssignableFrom(actionProvider.getClass())) {
+            // the provider controls the execution so the result could be anything
+            return true;
+        }
+        CustomAction customAction = entityProviderMethodStore.getCustomAction(prefix, action);
+        if (customAction == null || customAction.methodName == null) {
+            return true;
+        }
+        Method method = findCustomActionMethod(actionProvider, customAction);
+        Class<?> returnType = method.getReturnType();
+        return ! (Void.TYPE.equals(returnType)
+                || Boolean.TYPE.equals(returnType)
+                || Boolean.class.equals(returnType)
+                || OutputStream.class.isAssignableFrom(returnType));
+    }
+
     /**
      * Handles the execution of custom actions based on a request for execution
      * @throws IllegalArgumentException if any args are invalid
@@ -161,72 +202,53 @@ public class EntityActionsManager {
             if (customAction.methodName == null) {
                 throw new IllegalStateException("The custom action must have the method name set, null is not allowed: " + customAction);
             }
-            Method method = customAction.getMethod();
-            if (method == null) {
-                try {
-                    // Note: this is really expensive, need to cache the Method lookup
-                    method = actionProvider.getClass().getMethod(customAction.methodName, customAction.methodArgTypes);
-                } catch (SecurityException e1) {
-                    throw new RuntimeException("Fatal error trying to get custom action method: " + customAction, e1);
-                } catch (NoSuchMethodException e1) {
-                    throw new RuntimeException("Fatal error trying to get custom action method: " + customAction, e1);
+            MethodInvoker invoker = customAction.getInvoker();
+            if (invoker == null) {
+                Method method = findCustomActionMethod(actionProvider, customAction);
+                invoker = EntityProviderMethodStoreImpl.makeCustomActionInvoker(customAction, method);
+                if (invoker == null) {
+                    throw new IllegalStateException("custom action ("+customAction+") contains an invalid methodArgTypes or cannot be accessed, " +
+                            "only valid types allowed: EntityReference, EntityView, Search, String, OutputStream, Map");
                 }
-                customAction.setMethod(method); // cache the method
+                customAction.setInvoker(invoker); // cache the compiled method
             }
-            Object[] args = new Object[customAction.methodArgTypes.length];
-            for (int i = 0; i < customAction.methodArgTypes.length; i++) {
-                Class<?> argType = customAction.methodArgTypes[i];
-                if (EntityReference.class.equals(argType)) {
-                    args[i] = ref;
-                } else if (EntityView.class.equals(argType)) {
-                    if (view == null) {
-                        view = new EntityView(ref, customAction.viewKey, null);
-                    }
-                    args[i] = view;
-                } else if (String.class.equals(argType)) {
-                    args[i] = actionProvider.getEntityPrefix();
-                } else if (Search.class.equals(argType)) {
-                    Search search = null;
-                    if (searchParams == null || searchParams.isEmpty()) {
-                        search = new Search();
-                    } else {
-                        search = RequestUtils.makeSearchFromRequestParams(searchParams);
-                    }
-                    args[i] = search;
-                } else if (OutputStream.class.equals(argType)) {
-                    args[i] = outputStream;
-                } else if (Map.class.equals(argType)) {
-                    args[i] = actionParams;
+            // only make the arguments which the method actually takes
+            if (view == null
+                    && invoker.isBound(EntityProviderMethodStoreImpl.ACTION_ARG_VIEW)) {
+                view = new EntityView(ref, customAction.viewKey, null);
+            }
+            Search search = null;
+            if (invoker.isBound(EntityProviderMethodStoreImpl.ACTION_ARG_SEARCH)) {
+                if (searchParams == null || searchParams.isEmpty()) {
+                    search = new Search();
                 } else {
-                    throw new IllegalStateException("custom action ("+customAction+") contains an invalid methodArgTypes, " +
-                            "only valid types allowed: EntityReference, EntityView, Search, String, OutputStream, Map");
+                    search = RequestUtils.makeSearchFromRequestParams(searchParams);
                 }
             }
+            String entityPrefix = actionProvider.getEntityPrefix();
             try {
-                result = method.invoke(actionProvider, args);
-            } catch (IllegalArgumentException e) {
-                throw new RuntimeException("Fatal error trying to execute custom action method: " + customAction, e);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException("Fatal error trying to execute custom action method: " + customAction, e);
-            } catch (InvocationTargetException e) {
-                if (e.getCause() != null) {
-                    if (e.getCause().getClass().isAssignableFrom(IllegalArgumentException.class)) {
-                        throw new IllegalArgumentException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                    } else if (e.getCause().getClass().isAssignableFrom(EntityNotFoundException.class)) {
-                        throw new EntityNotFoundException(e.getCause().getMessage() + " (rethrown)", ref+"", e.getCause());
-                    } else if (e.getCause().getClass().isAssignableFrom(FormatUnsupportedException.class)) {
-                        String format = ((FormatUnsupportedException)e.getCause()).format;
-                        throw new FormatUnsupportedException(e.getCause().getMessage() + " (rethrown)", e.getCause(), ref+"", format);
-                    } else if (e.getCause().getClass().isAssignableFrom(UnsupportedOperationException.class)) {
-                        throw new UnsupportedOperationException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                    } else if (e.getCause().getClass().isAssignableFrom(EntityException.class)) {
-                        int code = ((EntityException)e.getCause()).responseCode;
-                        throw new EntityException(e.getCause().getMessage() + " (rethrown)", ref+"", code);
-                    } else if (e.getCause().getClass().isAssignableFrom(IllegalStateException.class)) {
-                        throw new IllegalStateException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                    } else if (e.getCause().getClass().isAssignableFrom(SecurityException.class)) {
-                        throw new SecurityException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                    }
+                // NOTE: the static arg types must exactly match the validActionParamTypes order
+                result = (Object) invoker.getHandle().invokeExact((Object) actionProvider, ref, view, search, entityPrefix, outputStream, actionParams);
+            } catch (Error e) {
+                // errors (like out of memory) are never wrapped
+                throw e;
+            } catch (Throwable e) {
+                if (e.getClass().isAssignableFrom(IllegalArgumentException.class)) {
+                    throw new IllegalArgumentException(e.getMessage() + " (rethrown)", e);
+                } else if (e.getClass().isAssignableFrom(EntityNotFoundException.class)) {
+                    throw new EntityNotFoundException(e.getMessage() + " (rethrown)", ref+"", e);
+                } else if (e.getClass().isAssignableFrom(FormatUnsupportedException.class)) {
+                    String format = ((FormatUnsupportedException)e).format;
+                    throw new FormatUnsupportedException(e.getMessage() + " (rethrown)", e, ref+"", format);
+                } else if (e.getClass().isAssignableFrom(UnsupportedOperationException.class)) {
+                    throw new UnsupportedOperationException(e.getMessage() + " (rethrown)", e);
+                } else if (e.getClass().isAssignableFrom(EntityException.class)) {
+                    int code = ((EntityException)e).responseCode;
+                    throw new EntityException(e.getMessage() + " (rethrown)", ref+"", code);
+                } else if (e.getClass().isAssignableFrom(IllegalStateException.class)) {
+                    throw new IllegalStateException(e.getMessage() + " (rethrown)", e);
+                } else if (e.getClass().isAssignableFrom(SecurityException.class)) {
+                    throw new SecurityException(e.getMessage() + " (rethrown)", e);
                 }
                 throw new RuntimeException("Fatal error trying to execute custom action method: " + customAction, e);
             }
@@ -263,6 +285,26 @@ public class EntityActionsManager {
         return actionReturn;
     }
 
+    /**
+     * Gets the method for a custom action and caches it in the custom action
+     * @throws RuntimeException if the method cannot be found
+     */
+    private Method findCustomActionMethod(ActionsExecutable actionProvider, CustomAction customAction) {
+        Method method = customAction.getMethod();
+        if (method == null) {
+            try {
+                // Note: this is really expensive, need to cache the Method lookup
+                method = actionProvider.getClass().getMethod(customAction.methodName, customAction.methodArgTypes);
+            } catch (SecurityException e1) {
+                throw new RuntimeException("Fatal error trying to get custom action method: " + customAction, e1);
+            } catch (NoSuchMethodException e1) {
+                throw new RuntimeException("Fatal error trying to get custom action method: " + customAction, e1);
+            }
+            customAction.setMethod(method); // cache the method
+        }
+        return method;
+    }
+
     /**
      * Get the {@link CustomAction} for a prefix and action if it exists
      * @param prefix an entity prefix
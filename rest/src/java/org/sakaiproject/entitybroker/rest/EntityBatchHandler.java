@@ -20,14 +20,32 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -35,14 +53,17 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.azeckoski.reflectutils.ArrayUtils;
 import org.azeckoski.reflectutils.map.ArrayOrderedMap;
+import org.sakaiproject.entitybroker.DeveloperHelperService;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
 import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
 import org.sakaiproject.entitybroker.rest.caps.BatchProvider;
+import org.sakaiproject.entitybroker.util.devhelper.ThreadStateClearable;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
 import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
@@ -64,6 +85,46 @@ public class EntityBatchHandler {
 
     public static final String CONFIG_BATCH_ENABLE = "entitybroker.batch.enable";
     public static final boolean CONFIG_BATCH_DEFAULT = false;
+    /**
+     * Enables processing the batch references at the same time (instead of one after the other)
+     */
+    public static final String CONFIG_BATCH_PARALLEL_ENABLE = "entitybroker.batch.parallel.enable";
+    public static final boolean CONFIG_BATCH_PARALLEL_DEFAULT = false;
+    /**
+     * The max number of references from a single batch request which will be processed at once
+     */
+    public static final String CONFIG_BATCH_PARALLEL_MAX = "entitybroker.batch.parallel.max";
+    public static final int CONFIG_BATCH_PARALLEL_MAX_DEFAULT = 4;
+    /**
+     * The max number of worker threads shared by all batch requests on this server
+     */
+    public static final String CONFIG_BATCH_PARALLEL_THREADS = "entitybroker.batch.parallel.threads";
+    public static final int CONFIG_BATCH_PARALLEL_THREADS_DEFAULT = 16;
+    /**
+     * The max number of pooled connections used for external (non-EB) references on this server
+     */
+    public static final String CONFIG_BATCH_EXTERNAL_CONNECTIONS = "entitybroker.batch.external.connections";
+    public static final int CONFIG_BATCH_EXTERNAL_CONNECTIONS_DEFAULT = 20;
+    /**
+     * The max number of pooled connections to a single host used for external references
+     */
+    public static final String CONFIG_BATCH_EXTERNAL_HOST_CONNECTIONS = "entitybroker.batch.external.connections.host";
+    public static final int CONFIG_BATCH_EXTERNAL_HOST_CONNECTIONS_DEFAULT = 5;
+    /**
+     * The time (ms) to wait for a connection for an external reference
+     */
+    public static final String CONFIG_BATCH_EXTERNAL_CONNECT_TIMEOUT = "entitybroker.batch.external.timeout.connect";
+    public static final int CONFIG_BATCH_EXTERNAL_CONNECT_TIMEOUT_DEFAULT = HttpRESTUtils.DEFAULT_CONNECTION_TIMEOUT;
+    /**
+     * The time (ms) to wait for data when reading the response for an external reference
+     */
+    public static final String CONFIG_BATCH_EXTERNAL_READ_TIMEOUT = "entitybroker.batch.external.timeout.read";
+    public static final int CONFIG_BATCH_EXTERNAL_READ_TIMEOUT_DEFAULT = HttpRESTUtils.DEFAULT_READ_TIMEOUT;
+    /**
+     * Pooled connections for external references which are not used for this long (ms) are closed
+     */
+    public static final String CONFIG_BATCH_EXTERNAL_IDLE_TIMEOUT = "entitybroker.batch.external.timeout.idle";
+    public static final int CONFIG_BATCH_EXTERNAL_IDLE_TIMEOUT_DEFAULT = HttpRESTUtils.DEFAULT_IDLE_CONNECTION_TIMEOUT;
 
     private static final String HEADER_BATCH_STATUS = "batchStatus";
     private static final String HEADER_BATCH_ERRORS = "batchErrors";
@@ -77,7 +138,16 @@ public class EntityBatchHandler {
      * This is the name of the parameter which is used to pass along the reference URLs to be batch processed
      */
     public static final String REFS_PARAM_NAME = "_refs";
+    /**
+     * This is the name of the parameter which controls if the references are processed one at a time
+     * in the order they were given, defaults to true for POST/PUT/DELETE and false for GET,
+     * only has an effect when parallel batch processing is enabled
+     */
+    public static final String ORDERED_PARAM_NAME = "_ordered";
     private static final String UNIQUE_DATA_PREFIX = "X-XqReplaceQX-X-";
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 32;
 
     private static String INTERNAL_SERVER_ERROR_STATUS_STRING = HttpServletResponse.SC_INTERNAL_SERVER_ERROR+"";
 
@@ -120,6 +190,12 @@ public class EntityBatchHandler {
                 }
             };
             this.entityBrokerManager.getEntityProviderManager().registerEntityProvider(batchEP);
+            if (this.externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_PARALLEL_ENABLE, CONFIG_BATCH_PARALLEL_DEFAULT)) {
+                int threads = this.externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_PARALLEL_THREADS, CONFIG_BATCH_PARALLEL_THREADS_DEFAULT);
+                if (threads > 0) {
+                    batchExecutor = makeBatchExecutor(threads);
+                }
+            }
         } else {
             // batch provider is disabled so do not show the docs for it - this empty on purpose
         }
@@ -134,6 +210,102 @@ public class EntityBatchHandler {
                 System.out.println("WARN: EntityBatchHandler: Unable to unregister the batch provider: " + e);
             }
         }
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+        synchronized (this) {
+            if (externalClient != null) {
+                externalClient.shutdown();
+                externalClient = null;
+            }
+        }
+        HttpRESTUtils.shutdownSharedHttpClient();
+    }
+
+    /**
+     * Shared by all batch requests so the total number of batch worker threads is capped,
+     * null if parallel processing is disabled
+     */
+    private ThreadPoolExecutor batchExecutor = null;
+
+    /**
+     * Creates the pool used to process batch references at the same time,
+     * when the pool is saturated the references are simply processed in the requesting thread
+     * @param threads the max number of threads in the pool
+     * @return the executor
+     */
+    private ThreadPoolExecutor makeBatchExecutor(int threads) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "entitybroker-batch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads * 4), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * The pooled http client shared by all batch requests for the external references,
+     * null until the first external reference is processed
+     */
+    private volatile HttpClientWrapper externalClient = null;
+
+    /**
+     * @return the pooled http client for external references (created the first time this is called)
+     */
+    private HttpClientWrapper getExternalClient() {
+        HttpClientWrapper client = externalClient;
+        if (client == null) {
+            synchronized (this) {
+                client = externalClient;
+                if (client == null) {
+                    client = HttpRESTUtils.makePooledHttpClient(
+                            externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_EXTERNAL_CONNECTIONS, CONFIG_BATCH_EXTERNAL_CONNECTIONS_DEFAULT),
+                            externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_EXTERNAL_HOST_CONNECTIONS, CONFIG_BATCH_EXTERNAL_HOST_CONNECTIONS_DEFAULT),
+                            externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_EXTERNAL_CONNECT_TIMEOUT, CONFIG_BATCH_EXTERNAL_CONNECT_TIMEOUT_DEFAULT),
+                            externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_EXTERNAL_READ_TIMEOUT, CONFIG_BATCH_EXTERNAL_READ_TIMEOUT_DEFAULT),
+                            externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_EXTERNAL_IDLE_TIMEOUT, CONFIG_BATCH_EXTERNAL_IDLE_TIMEOUT_DEFAULT));
+                    externalClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * The content buffers used by the internal responses, these are reused for the references in all batch requests
+     * so the buffers do not have to be grown again for every reference
+     */
+    private final ArrayBlockingQueue<ByteArrayOutputStream> contentBuffers = new ArrayBlockingQueue<ByteArrayOutputStream>(MAX_POOLED_BUFFERS);
+
+    /**
+     * @return a buffer for the content of an internal response (reused if possible)
+     */
+    private ByteArrayOutputStream acquireBuffer() {
+        ByteArrayOutputStream buffer = contentBuffers.poll();
+        if (buffer == null) {
+            buffer = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE);
+        }
+        return buffer;
+    }
+
+    /**
+     * Puts the buffer back so it can be reused, buffers which grew too large are simply dropped
+     * @param buffer a buffer from {@link #acquireBuffer()} which is no longer being used
+     */
+    private void releaseBuffer(ByteArrayOutputStream buffer) {
+        if (buffer != null
+                && buffer.size() <= MAX_POOLED_BUFFER_SIZE) {
+            buffer.reset();
+            contentBuffers.offer(buffer);
+        }
     }
 
 
@@ -152,6 +324,15 @@ public class EntityBatchHandler {
         this.externalIntegrationProvider = externalIntegrationProvider;
     }
 
+    private DeveloperHelperService developerHelperService;
+    /**
+     * (OPTIONAL) used to carry the current user into the batch worker threads,
+     * will be looked up using the {@link ExternalIntegrationProvider} if it is not set
+     */
+    public void setDeveloperHelperService(DeveloperHelperService developerHelperService) {
+        this.developerHelperService = developerHelperService;
+    }
+
     /**
      * Can only set this after the class is constructed since it forms a circular dependency,
      * this is being set by the setter/constructor in the EntityHandlerImpl
@@ -214,12 +395,15 @@ public class EntityBatchHandler {
         // decode the params into a set of reference params
         Map<String, Map<String, String[]>> referencedParams = extractReferenceParams(req, method, refs);
 
-        // loop through all references
+        // capture the context of the calling thread so it can be carried into the workers
+        BatchContext context = makeBatchContext();
+
+        // the copy of the request which the internal requests share (made when the first one is needed)
+        EntityHttpServletRequest baseRequest = null;
+
+        // loop through all references and work out what needs to be processed
         HashSet<String> processedRefsAndURLs = new HashSet<String>(); // holds all refs which we processed in this batch
-        HashMap<String, String> dataMap = new ArrayOrderedMap<String, String>(); // the returned content data from each ref
-        Map<String, ResponseBase> results = new ArrayOrderedMap<String, ResponseBase>(); // the results of all valid refs
-        boolean successOverall = false; // true if all ok or partial ok, false if exception occurs or all fail
-        boolean failure = false;
+        List<BatchRef> batchRefs = new ArrayList<BatchRef>(refs.length);
         for (int i = 0; i < refs.length; i++) {
             String refKey = "ref" + i;
             String reference = refs[i];
@@ -252,11 +436,8 @@ public class EntityBatchHandler {
                         HttpServletResponse.SC_BAD_REQUEST);
             }
 
-            // in case there are external ones we will reuse this httpclient
-            HttpClientWrapper clientWrapper = null;
-
-            // object will hold the results of this reference request
-            ResponseBase result = null;
+            // object will hold the work to do for this reference request
+            BatchRef batchRef = null;
 
             // parse the entityURL, should hopefully not cause a failure
             URLData ud = new URLData(entityURL);
@@ -281,7 +462,8 @@ public class EntityBatchHandler {
                 } catch (IllegalArgumentException e) {
                     String errorMessage = "Failure parsing direct entityURL ("+entityURL+") from reference ("+reference+") from path ("+ud.pathInfo+"): " + e.getMessage() + ":" + e.getCause();
                     System.out.println("WARN: EntityBatchHandler: " + errorMessage);
-                    result = new ResponseError(reference, entityURL, errorMessage);
+                    batchRef = new BatchRef(refKey, reference, entityURL, context);
+                    batchRef.result = new ResponseError(reference, entityURL, errorMessage);
                 }
 
                 if (success) {
@@ -308,7 +490,14 @@ public class EntityBatchHandler {
                         continue; // skip
                     }
 
-                    result = generateInternalResult(refKey, reference, entityURL, req, res, method, referencedParams);
+                    // the request and response copies are made here since they read from the real request
+                    if (baseRequest == null) {
+                        baseRequest = makeBaseInternalRequest(req);
+                    }
+                    batchRef = new BatchRef(refKey, reference, entityURL, context);
+                    batchRef.entityRequest = makeInternalRequest(refKey, entityURL, baseRequest, method, referencedParams);
+                    batchRef.buffer = acquireBuffer();
+                    batchRef.entityResponse = new EntityHttpServletResponse(res, batchRef.buffer);
                 }
 
             } else {
@@ -317,13 +506,29 @@ public class EntityBatchHandler {
                 // http utils requires full URLs
                 entityURL = makeFullExternalURL(req, entityURL);
 
-                // set the client wrapper with cookies so we can reuse it for efficiency
-                if (clientWrapper == null) {
-                    clientWrapper = HttpRESTUtils.makeReusableHttpClient(false, 0, req.getCookies());
-                }
-                result = generateExternalResult(refKey, reference, entityURL, method, referencedParams, clientWrapper);
+                batchRef = new BatchRef(refKey, reference, entityURL, context);
+                batchRef.method = method;
+                batchRef.referencedParams = referencedParams;
+                // the external refs share the pooled client but each gets its own copy of the cookies from the request
+                batchRef.clientWrapper = getExternalClient().makeRequestClient(req.getCookies());
             }
 
+            // store the processed ref and url so we do not do them again
+            processedRefsAndURLs.add(reference);
+            processedRefsAndURLs.add(entityURL);
+            batchRefs.add(batchRef);
+        }
+
+        // process all the references (possibly at the same time)
+        executeBatchRefs(batchRefs, context, isOrdered(req, method));
+
+        // put the results back together in the original order
+        Map<String, ResponseBase> results = new ArrayOrderedMap<String, ResponseBase>(); // the results of all valid refs
+        boolean successOverall = false; // true if all ok or partial ok, false if exception occurs or all fail
+        boolean failure = false;
+        for (BatchRef batchRef : batchRefs) {
+            ResponseBase result = batchRef.result;
+
             // special handling for null result (should really not happen unless there was a logic error)
             if (result == null) {
                 successOverall = false;
@@ -336,6 +541,13 @@ public class EntityBatchHandler {
                 successOverall = false;
                 failure = true;
             } else {
+                if (batchRef.entityResponse != null) {
+                    // all cookies go into the main response
+                    Cookie[] cookies = batchRef.entityResponse.getCookies();
+                    for (Cookie cookie : cookies) {
+                        res.addCookie(cookie);
+                    }
+                }
                 // all ok, process data
                 int status = result.getStatus();
                 if (status >= 200 && status < 300) {
@@ -345,18 +557,14 @@ public class EntityBatchHandler {
                     // no content to process
                     ((ResponseResult)result).content = null;
                     ((ResponseResult)result).data = null;
+                    batchRef.content = null;
                 } else {
                     // process the content and see if it matches the expected result, if not we have to dump it in escaped
-                    String content = ((ResponseResult)result).content;
-                    String dataKey = checkContent(format, content, refKey, dataMap);
-                    ((ResponseResult)result).setDataKey(dataKey);
+                    checkContent(format, batchRef);
                 }
             }
 
-            // store the processed ref and url so we do not do them again
-            processedRefsAndURLs.add(reference);
-            processedRefsAndURLs.add(entityURL);
-            results.put(refKey, result); // use an artificial key
+            results.put(batchRef.refKey, result); // use an artificial key
         }
 
         // determine overall status
@@ -371,26 +579,148 @@ public class EntityBatchHandler {
                     +ArrayUtils.arrayToString(refs)+")", EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
         }
 
-        // compile all the responses into encoded data
-        String overallData = entityEncodingManager.encodeData(results, format, "refs", null);
-        if (Formats.XML.equals(format)) {
-            overallData = EntityEncodingManager.XML_HEADER + overallData;
+        // the raw content of each reference which is written in place of its data key
+        Map<String, ByteBuffer> dataContent = new HashMap<String, ByteBuffer>();
+        for (BatchRef batchRef : batchRefs) {
+            if (batchRef.content != null
+                    && batchRef.result instanceof ResponseResult
+                    && ((ResponseResult) batchRef.result).data != null) {
+                dataContent.put(((ResponseResult) batchRef.result).data, 
+                        ByteBuffer.wrap(batchRef.content, batchRef.contentStart, batchRef.contentEnd - batchRef.contentStart));
+            }
         }
-        // replace the data unique keys if there are any
-        overallData = reintegrateDataContent(format, dataMap, overallData);
 
         // put response, headers, and code into the http response
         applyOverallHeaders(res, results);
-        // put content into the response
-        try {
-            res.getWriter().write(overallData);
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to encode data for overall response: " + e.getMessage(), e);
-        }
         // set encoding
         RequestUtils.setResponseEncoding(format, res);
         // set overall status code
         res.setStatus(overallStatus);
+        // stream the encoded results into the response (compressed if the client allows it)
+        try {
+            OutputStream outputStream = entityRequestHandler.makeResponseOutputStream(req, res);
+            writeBatchResults(outputStream, format, results, dataContent);
+            EntityHandlerImpl.finishResponseOutputStream(outputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to encode data for overall response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Processes all the batch references which do not have a result yet,
+     * the references are processed in the current thread one at a time if parallel processing is disabled
+     * or ordered processing is requested, otherwise they are spread over the batch worker threads
+     * @param batchRefs the batch references to process (results are placed into each one)
+     * @param context the context of the requesting thread
+     * @param ordered if true then process the references one at a time in order
+     */
+    private void executeBatchRefs(List<BatchRef> batchRefs, BatchContext context, boolean ordered) {
+        List<BatchRef> pending = new ArrayList<BatchRef>(batchRefs.size());
+        for (BatchRef batchRef : batchRefs) {
+            if (batchRef.result == null) {
+                pending.add(batchRef);
+            }
+        }
+        int maxConcurrent = 1;
+        ThreadPoolExecutor executor = batchExecutor;
+        if (! ordered && executor != null
+                && context.developerHelperService != null && context.userReference != null) {
+            // only carry a known user into the workers, anonymous requests stay in this thread
+            maxConcurrent = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_PARALLEL_MAX, CONFIG_BATCH_PARALLEL_MAX_DEFAULT);
+        }
+        if (maxConcurrent <= 1 || pending.size() <= 1) {
+            // STANDARD processing in order in this thread
+            for (BatchRef batchRef : pending) {
+                batchRef.call();
+            }
+        } else {
+            // PARALLEL processing limited to the max number for this request
+            CompletionService<BatchRef> completionService = new ExecutorCompletionService<BatchRef>(executor);
+            List<Future<BatchRef>> futures = new ArrayList<Future<BatchRef>>(pending.size());
+            int submitted = 0;
+            int completed = 0;
+            try {
+                while (completed < pending.size()) {
+                    while (submitted < pending.size() 
+                            && (submitted - completed) < maxConcurrent) {
+                        futures.add( completionService.submit(pending.get(submitted)) );
+                        submitted++;
+                    }
+                    completionService.take().get();
+                    completed++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EntityException("Interrupted while processing batch references: " + e.getMessage(),
+                        EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException("Failure processing batch references: " + cause, cause);
+            } finally {
+                // stop anything that is still running if there was a failure
+                for (Future<BatchRef> future : futures) {
+                    if (! future.isDone()) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param req the current request
+     * @param method the current method
+     * @return true if the references should be processed one at a time in order,
+     * uses the {@value #ORDERED_PARAM_NAME} param if set, otherwise only GET is unordered
+     */
+    private boolean isOrdered(HttpServletRequest req, Method method) {
+        boolean ordered = ! Method.GET.equals(method);
+        String orderedParam = req.getParameter(ORDERED_PARAM_NAME);
+        if (orderedParam != null && ! "".equals(orderedParam)) {
+            ordered = Boolean.valueOf(orderedParam.trim());
+        }
+        return ordered;
+    }
+
+    /**
+     * Captures the parts of the current thread which have to be carried into the batch worker threads
+     * @return the context of the current (requesting) thread
+     */
+    private BatchContext makeBatchContext() {
+        BatchContext context = new BatchContext();
+        context.callerThread = Thread.currentThread();
+        context.classLoader = context.callerThread.getContextClassLoader();
+        if (batchExecutor != null) {
+            RequestStorageWrite requestStorage = entityBrokerManager.getRequestStorage();
+            if (requestStorage != null) {
+                context.requestStorage = requestStorage;
+                context.storedValues = requestStorage.getStorageMapCopy(true, false, false, false);
+            }
+            DeveloperHelperService dhs = getDeveloperHelperService();
+            if (dhs != null) {
+                context.developerHelperService = dhs;
+                context.userReference = dhs.getCurrentUserReference();
+            }
+        }
+        return context;
+    }
+
+    /**
+     * @return the developer helper service OR null if it cannot be found
+     */
+    private DeveloperHelperService getDeveloperHelperService() {
+        if (developerHelperService == null) {
+            try {
+                developerHelperService = externalIntegrationProvider.findService(DeveloperHelperService.class);
+            } catch (RuntimeException e) {
+                // no way to get the service so the current user cannot be carried into the workers
+                developerHelperService = null;
+            }
+        }
+        return developerHelperService;
     }
 
     /**
@@ -417,8 +747,9 @@ public class EntityBatchHandler {
             }
             // put all request params into the map
             for (Entry<String, String[]> entry : params.entrySet()) {
-                if (REFS_PARAM_NAME.equals(entry.getKey())) {
-                    continue; // skip over the refs param
+                if (REFS_PARAM_NAME.equals(entry.getKey())
+                        || ORDERED_PARAM_NAME.equals(entry.getKey())) {
+                    continue; // skip over the refs and ordered params
                 }
                 boolean found = false;
                 for (String refKey : referencedParams.keySet()) {
@@ -482,14 +813,40 @@ public class EntityBatchHandler {
 
 
     /**
-     * Processing internal (EB) requests
-     * @return the result from the request (may be an error)
+     * Creates the single copy of the real request which all the internal (EB) requests in the batch share,
+     * this reads from the real request so it must be run in the thread which owns that request
+     * @return the request to make the internal requests from
      */
-    private ResponseBase generateInternalResult(String refKey, String reference, String entityURL, HttpServletRequest req, 
-            HttpServletResponse res, Method method, Map<String, Map<String, String[]>> referencedParams) {
-        ResponseBase result = null;
-        ResponseError error = null;
+    private EntityHttpServletRequest makeBaseInternalRequest(HttpServletRequest req) {
+        EntityHttpServletRequest baseRequest = new EntityHttpServletRequest(req);
+        baseRequest.removeParameter(REFS_PARAM_NAME); // make sure this is not passed along
+        baseRequest.removeParameter(ORDERED_PARAM_NAME);
+        /* the content of each internal response is embedded in the overall response so it must come back
+         * whole and uncompressed, the overall response is compressed and versioned on its own
+         */
+        List<String> headerNames = new ArrayList<String>();
+        for (Enumeration<?> e = baseRequest.getHeaderNames(); e.hasMoreElements();) {
+            headerNames.add((String) e.nextElement());
+        }
+        for (String headerName : headerNames) {
+            if (RequestUtils.HEADER_ACCEPT_ENCODING.equalsIgnoreCase(headerName)
+                    || RequestUtils.HEADER_IF_NONE_MATCH.equalsIgnoreCase(headerName)
+                    || RequestUtils.HEADER_IF_MODIFIED_SINCE.equalsIgnoreCase(headerName)) {
+                baseRequest.removeHeader(headerName);
+            }
+        }
+        baseRequest.setUseRealDispatcher(false); // we do not want to actually have the container handle forwarding
+        return baseRequest;
+    }
 
+    /**
+     * Creates the request used to process an internal (EB) request,
+     * this shares the values in the base request and only copies the ones which are changed for this reference
+     * @param baseRequest the shared copy of the real request from {@link #makeBaseInternalRequest(HttpServletRequest)}
+     * @return the request to hand to the entity request handler
+     */
+    private EntityHttpServletRequest makeInternalRequest(String refKey, String entityURL, EntityHttpServletRequest baseRequest, 
+            Method method, Map<String, Map<String, String[]>> referencedParams) {
         /* WARNING: This is important to understand why this was done as is
          * First of all, forget the servlet forwarding, it is hopeless.
          * Why you ask? This is why, tomcat 5 has issues with calling forward using a set of custom
@@ -509,7 +866,7 @@ public class EntityBatchHandler {
          * Fun times for all
          */
 
-        EntityHttpServletRequest entityRequest = new EntityHttpServletRequest(req, entityURL);
+        EntityHttpServletRequest entityRequest = baseRequest.makeSharedCopy(entityURL);
         entityRequest.setContextPath("");
         if (Method.POST.equals(method) || Method.PUT.equals(method) ) {
             // set only the unreferenced and correct referenced params for this request
@@ -522,16 +879,25 @@ public class EntityBatchHandler {
             // set the params from the query itself again
             entityRequest.setParameters( entityRequest.pathQueryParams );
             //log.info("All request params: " + entityRequest.getStringParameters());
-        } else {
-            entityRequest.removeParameter(REFS_PARAM_NAME); // make sure this is not passed along
+            entityRequest.removeParameter(ORDERED_PARAM_NAME);
         }
-        entityRequest.setUseRealDispatcher(false); // we do not want to actually have the container handle forwarding
-        EntityHttpServletResponse entityResponse = new EntityHttpServletResponse(res);
+        return entityRequest;
+    }
+
+    /**
+     * Processing internal (EB) requests,
+     * this does not touch the real request or response so it is safe to run in a worker thread
+     * @return the result from the request (may be an error)
+     */
+    private ResponseBase generateInternalResult(String reference, String entityURL, 
+            EntityHttpServletRequest entityRequest, EntityHttpServletResponse entityResponse) {
+        ResponseBase result = null;
+        ResponseError error = null;
 
         boolean redirected = false;
         do {
             try {
-                entityRequestHandler.handleEntityAccess(entityRequest, entityResponse, null);
+                entityRequestHandler.handleInternalEntityAccess(entityRequest, entityResponse);
                 redirected = false; // assume no redirect
             } catch (Exception e) {
                 String errorMessage = "Failure attempting to process reference ("+reference+") for url ("+entityURL+"): " + e.getMessage() + ":" + e;
@@ -582,15 +948,12 @@ public class EntityBatchHandler {
         // create the result object to encode and place into the final response
         if (error == null && entityResponse != null) {
             // all ok, create the result for the response object
-            // all cookies go into the main response
-            Cookie[] cookies = entityResponse.getCookies();
-            for (Cookie cookie : cookies) {
-                res.addCookie(cookie);
-            }
+            // NOTE: cookies are merged into the main response when the results are put back together
             // status codes are compiled
             int status = entityResponse.getStatus();
             // create the result (with raw content)
-            result = new ResponseResult(reference, entityURL, status, entityResponse.getHeaders(), entityResponse.getContentAsString());
+            // the raw content is held by the batch ref as bytes so it can be written straight into the overall response
+            result = new ResponseResult(reference, entityURL, status, entityResponse.getHeaders());
         } else {
             result = error;
         }
@@ -730,65 +1093,152 @@ public class EntityBatchHandler {
     }
 
     /**
-     * Takes the overall data and reintegrates any content data that is waiting to be merged,
-     * this may do nothing if there is no content to merge
-     * @return the integrated data content
+     * Writes the overall batch response into the stream,
+     * the envelope is encoded from the results (the same way as any other data) and then the raw content
+     * of each reference (if it is valid for the format) is written straight into the place of its data key
+     * so the content is never copied into the encoded string or rescanned
+     * @param outputStream the stream to write the overall response into
+     * @param format the format of the overall response
+     * @param results the results of all the references (in the order to write them)
+     * @param dataContent the raw content to write in place of each data key in the results
+     * @throws IOException if the stream cannot be written to
      */
-    private String reintegrateDataContent(String format, HashMap<String, String> dataMap,
-            String overallData) {
-        StringBuilder sb = new StringBuilder();
+    protected void writeBatchResults(OutputStream outputStream, String format, Map<String, ResponseBase> results, 
+            Map<String, ByteBuffer> dataContent) throws IOException {
+        String overallData = entityEncodingManager.encodeData(results, format, "refs", null);
+        if (Formats.XML.equals(format)) {
+            overallData = EntityEncodingManager.XML_HEADER + overallData;
+        }
         int curLoc = 0;
-        for (Entry<String, String> entry : dataMap.entrySet()) {
-            // looping order is critical here, it must be in the same order it was added
-            if (entry.getKey() != null && ! "".equals(entry.getKey())) {
-                String key = entry.getKey();
-                String value = entry.getValue();
+        for (ResponseBase result : results.values()) {
+            String key = (result instanceof ResponseResult ? ((ResponseResult) result).data : null);
+            ByteBuffer content = (key == null ? null : dataContent.get(key));
+            if (content == null) {
+                continue;
+            }
+            if (Formats.JSON.equals(format)) {
+                key = '"' + key + '"'; // have to also replace the quotes
+            }
+            int keyLoc = overallData.indexOf(key, curLoc);
+            if (keyLoc > -1) {
+                writeString(outputStream, overallData.substring(curLoc, keyLoc));
                 if (Formats.XML.equals(format)) {
-                    value = "\n" + value; // add in a break
-                } else if (Formats.JSON.equals(format)) {
-                    key = '"' + key + '"'; // have to also replace the quotes
-                }
-                int keyLoc = overallData.indexOf(key);
-                if (keyLoc > -1) {
-                    sb.append( overallData.subSequence(curLoc, keyLoc) );
-                    sb.append( value );
-                    curLoc = keyLoc + key.length();
+                    writeString(outputStream, "\n"); // add in a break
                 }
-                //overallData = overallData.replace(key, value);
+                outputStream.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+                curLoc = keyLoc + key.length();
             }
         }
-        // add in the remainder of the overall data string
-        sb.append( overallData.subSequence(curLoc, overallData.length()) );
-        return sb.toString();
+        writeString(outputStream, overallData.substring(curLoc));
+    }
+
+    private void writeString(OutputStream outputStream, String value) throws IOException {
+        outputStream.write( value.getBytes(Formats.UTF_8) );
     }
 
     /**
-     * Checks that the content is in the correct format and is not too large,
-     * if it is too large it will not be processed and if it is in the wrong format it will be encoded as a data chunk,
-     * it is OK it will be placed into the dataMap and reintegrated after encoding
-     * @param content this it the content of the response body (if null then no processing occurs, null returned)
-     * @return the dataKey which maps to the real content, need replace the key later OR null if the content is empty or too large
+     * @return the content of the internal response as UTF-8 bytes OR null if there is no content
      */
-    private String checkContent(String format, String content, String refKey,
-            HashMap<String, String> dataMap) {
-        String dataKey = null;
-        if (content != null) {
-            content = content.trim();
-            if (! "".equals(content)) {
-                if (entityEncodingManager.validateFormat(content, format)) {
-                    if (Formats.XML.equals(format) 
-                            || Formats.HTML.equals(format)) {
-                        // strip off the xml header and doctype if it exists
-                        content = stripOutXMLTag(content, "<?", "?>");
-                        content = stripOutXMLTag(content, "<!DOCTYPE", ">");
-                    }
-                    // valid for the current format so insert later instead of merging now
-                    dataKey = UNIQUE_DATA_PREFIX + refKey;
-                    dataMap.put(dataKey, content);
+    private byte[] getContentBytes(EntityHttpServletResponse entityResponse) {
+        byte[] bytes = entityResponse.getContentAsByteArray();
+        if (bytes.length == 0) {
+            return null;
+        }
+        String encoding = entityResponse.getCharacterEncoding();
+        if (! Formats.UTF_8.equalsIgnoreCase(encoding)) {
+            // only UTF-8 content can be written into the overall response as is
+            try {
+                bytes = entityResponse.getContentAsString().getBytes(Formats.UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Unable to convert the content to UTF-8: " + e.getMessage(), e);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks that the content is in the correct format,
+     * if it is in the wrong format it will be decoded into the result content and encoded as a data chunk,
+     * if it is OK then the bounds of the content are set in the batch ref and the data key is set in the result
+     * so the content can be written into its place when the overall response is written
+     * @param format the format of the overall response
+     * @param batchRef the processed reference (if it has no content then no processing occurs)
+     */
+    private void checkContent(String format, BatchRef batchRef) {
+        byte[] content = batchRef.content;
+        if (content == null) {
+            return;
+        }
+        ResponseResult result = (ResponseResult) batchRef.result;
+        int start = skipWhitespace(content, 0);
+        int end = content.length;
+        while (end > start && content[end - 1] <= ' ' && content[end - 1] >= 0) {
+            end--;
+        }
+        boolean valid = false;
+        if (end > start) {
+            if (Formats.JSON.equals(format)) {
+                valid = content[start] == '{' && content[end - 1] == '}';
+            } else if (Formats.XML.equals(format)
+                    || Formats.HTML.equals(format)) {
+                valid = content[start] == '<' && content[end - 1] == '>';
+                if (valid) {
+                    // skip the xml header and doctype if they exist
+                    start = skipXMLTag(content, start, end, "<?", "?>");
+                    start = skipXMLTag(content, start, end, "<!DOCTYPE", ">");
                 }
+            } else {
+                valid = true;
+            }
+        }
+        if (valid) {
+            // valid for the current format so it is written in place of the key later instead of merging now
+            batchRef.contentStart = start;
+            batchRef.contentEnd = end;
+            result.setDataKey(UNIQUE_DATA_PREFIX + batchRef.refKey);
+        } else {
+            try {
+                result.content = new String(content, Formats.UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Unable to decode the content for reference ("+batchRef.reference+"): " + e.getMessage(), e);
             }
+            batchRef.content = null;
+        }
+    }
+
+    private int skipWhitespace(byte[] content, int pos) {
+        while (pos < content.length && content[pos] <= ' ' && content[pos] >= 0) {
+            pos++;
         }
-        return dataKey;
+        return pos;
+    }
+
+    /**
+     * Skips over an xml tag (like {@link #stripOutXMLTag(String, String, String)}) if the content starts with it
+     * @return the position after the tag (and any following whitespace) OR the given start position if the tag is not there
+     */
+    private int skipXMLTag(byte[] content, int start, int end, String startTag, String endTag) {
+        if (! regionMatches(content, start, end, startTag)) {
+            return start;
+        }
+        for (int i = start + startTag.length(); i <= end - endTag.length(); i++) {
+            if (regionMatches(content, i, end, endTag)) {
+                return skipWhitespace(content, i + endTag.length());
+            }
+        }
+        return start;
+    }
+
+    private boolean regionMatches(byte[] content, int pos, int end, String ascii) {
+        if (pos + ascii.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (content[pos + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -821,6 +1271,126 @@ public class EntityBatchHandler {
         return content;
     }
 
+    /**
+     * Holds the parts of the requesting thread which are carried into the batch worker threads
+     */
+    private static class BatchContext {
+        public Thread callerThread;
+        public ClassLoader classLoader;
+        public RequestStorageWrite requestStorage;
+        public Map<String, Object> storedValues;
+        public DeveloperHelperService developerHelperService;
+        public String userReference;
+    }
+
+    /**
+     * Holds a single reference from the batch and the result of processing it,
+     * the request and response copies are created before this is handed off to a worker thread
+     */
+    private class BatchRef implements Callable<BatchRef> {
+        public final String refKey;
+        public final String reference;
+        public final String entityURL;
+        public final BatchContext context;
+        // internal (EB) requests
+        public EntityHttpServletRequest entityRequest;
+        public EntityHttpServletResponse entityResponse;
+        public ByteArrayOutputStream buffer;
+        // external requests
+        public Method method;
+        public Map<String, Map<String, String[]>> referencedParams;
+        public HttpClientWrapper clientWrapper;
+        /**
+         * The result of processing this reference, null until it is processed
+         */
+        public ResponseBase result;
+        /**
+         * The raw content (UTF-8) of the response for this reference, null if there is none,
+         * only the part from contentStart to contentEnd is written out when it is merged as data
+         */
+        public byte[] content;
+        public int contentStart;
+        public int contentEnd;
+
+        public BatchRef(String refKey, String reference, String entityURL, BatchContext context) {
+            this.refKey = refKey;
+            this.reference = reference;
+            this.entityURL = entityURL;
+            this.context = context;
+        }
+
+        public BatchRef call() {
+            Thread current = Thread.currentThread();
+            if (current == context.callerThread) {
+                // already in the requesting thread so there is nothing to carry over
+                process();
+            } else {
+                ClassLoader currentClassLoader = current.getContextClassLoader();
+                boolean userSet = false;
+                try {
+                    current.setContextClassLoader(context.classLoader);
+                    if (context.requestStorage != null && context.storedValues != null) {
+                        context.requestStorage.setRequestValues(context.storedValues);
+                    }
+                    if (context.developerHelperService != null && context.userReference != null) {
+                        try {
+                            context.developerHelperService.setCurrentUser(context.userReference);
+                            userSet = true;
+                        } catch (RuntimeException e) {
+                            String errorMessage = "Failure setting the current user ("+context.userReference+") to process reference ("+reference+"): " + e.getMessage();
+                            System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+                            result = new ResponseError(reference, entityURL, errorMessage);
+                        }
+                    }
+                    if (result == null) {
+                        process();
+                    }
+                } finally {
+                    if (userSet) {
+                        context.developerHelperService.restoreCurrentUser();
+                    }
+                    if (context.requestStorage != null) {
+                        context.requestStorage.reset();
+                    }
+                    if (context.developerHelperService instanceof ThreadStateClearable) {
+                        // the worker is pooled so nothing about this user (session, thread locals) can stay on it
+                        try {
+                            ((ThreadStateClearable) context.developerHelperService).clearCurrentThreadState();
+                        } catch (RuntimeException e) {
+                            System.out.println("WARN: EntityBatchHandler: Failure clearing the worker thread state after processing reference ("+reference+"): " + e.getMessage());
+                        }
+                    }
+                    current.setContextClassLoader(currentClassLoader);
+                }
+            }
+            return this;
+        }
+
+        private void process() {
+            if (entityRequest != null) {
+                result = generateInternalResult(reference, entityURL, entityRequest, entityResponse);
+                if (result instanceof ResponseResult) {
+                    content = getContentBytes(entityResponse);
+                }
+                // the content has been copied out so the buffer can be used for another reference
+                releaseBuffer(buffer);
+                buffer = null;
+            } else {
+                result = generateExternalResult(refKey, reference, entityURL, method, referencedParams, clientWrapper);
+                if (result instanceof ResponseResult
+                        && ((ResponseResult) result).content != null) {
+                    // hold the content as bytes the same way as the internal responses
+                    try {
+                        content = ((ResponseResult) result).content.getBytes(Formats.UTF_8);
+                    } catch (UnsupportedEncodingException e) {
+                        throw new RuntimeException("Unable to encode the content for reference ("+reference+"): " + e.getMessage(), e);
+                    }
+                    ((ResponseResult) result).content = null;
+                }
+            }
+        }
+    }
+
     /**
      * Base class for all response data which will be encoded and output
      */
@@ -171,6 +171,7 @@ public class EntityBrokerRESTServiceManager {
         setInstance(null);
         this.entityRESTProvider.destroy();
         this.entityRESTProvider = null;
+        this.entityRequestHandler.destroy();
         this.entityRequestHandler = null;
         this.entityBatchHandler.destroy();
         this.entityBatchHandler = null;
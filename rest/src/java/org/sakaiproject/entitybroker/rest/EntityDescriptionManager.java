@@ -20,14 +20,17 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.CRC32;
 
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
@@ -188,6 +191,174 @@ public class EntityDescriptionManager {
         this.entityProviderMethodStore = entityProviderMethodStore;
     }
 
+    private int maxDescribeCacheEntries = 500;
+    /**
+     * @param maxDescribeCacheEntries the maximum number of rendered descriptions to keep (default 500),
+     * the least recently used ones are thrown away once there are more than this, 0 disables the caching of descriptions
+     */
+    public void setMaxDescribeCacheEntries(int maxDescribeCacheEntries) {
+        this.maxDescribeCacheEntries = maxDescribeCacheEntries;
+    }
+
+    /**
+     * rendered descriptions for the current registry version, key is made by {@link #makeDescribeKey(String, String, String, Locale)},
+     * access ordered so the least recently used descriptions are evicted first
+     */
+    @SuppressWarnings("serial")
+    private final Map<String, DescribeDocument> describeCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, DescribeDocument>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DescribeDocument> eldest) {
+                    return size() > maxDescribeCacheEntries;
+                }
+            });
+    private volatile long describeCacheVersion = -1;
+
+    /**
+     * Get the description of all entities in the system as UTF-8 bytes,
+     * this is only rendered once for each format and locale until the registered providers change
+     * 
+     * @param format XML or HTML (default is HTML)
+     * @param locale the locale to use for any translations
+     * @return the rendered description and the ETag for it
+     * @see #makeDescribeAll(String, Locale)
+     */
+    public DescribeDocument getDescribeAll(String format, Locale locale) {
+        if (locale == null) {
+            locale = entityProperties.getLocale();
+        }
+        format = Formats.XML.equals(format) ? Formats.XML : Formats.HTML;
+        long version = entityProviderManager.getRegistryVersion();
+        String key = makeDescribeKey(null, FAKE_ID, format, locale);
+        DescribeDocument doc = getCachedDescribe(key, version);
+        if (doc == null) {
+            doc = cacheDescribe(key, version, makeDescribeAll(format, locale));
+        }
+        return doc;
+    }
+
+    /**
+     * Get the description of an entity type as UTF-8 bytes,
+     * this is only rendered once for each prefix, format and locale until the registered providers change
+     * (descriptions for specific entity ids are always rendered)
+     * 
+     * @param prefix an entity prefix
+     * @param id the entity id to use for generating URLs
+     * @param format a format to output, HTML and XML supported
+     * @param locale the locale to use for translations
+     * @return the rendered description and the ETag for it
+     * @throws IllegalArgumentException if the entity does not exist
+     * @see #makeDescribeEntity(String, String, String, Locale)
+     */
+    public DescribeDocument getDescribeEntity(String prefix, String id, String format, Locale locale) {
+        if (locale == null) {
+            locale = entityProperties.getLocale();
+        }
+        if (id == null || "".equals(id)) {
+            id = FAKE_ID;
+        }
+        format = Formats.XML.equals(format) ? Formats.XML : Formats.HTML;
+        long version = entityProviderManager.getRegistryVersion();
+        String key = makeDescribeKey(prefix, id, format, locale);
+        DescribeDocument doc = null;
+        if (FAKE_ID.equals(id)) {
+            doc = getCachedDescribe(key, version);
+        }
+        if (doc == null) {
+            String output = makeDescribeEntity(prefix, id, format, locale);
+            if (FAKE_ID.equals(id)) {
+                doc = cacheDescribe(key, version, output);
+            } else {
+                doc = new DescribeDocument(output, version);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Throw away all the rendered descriptions
+     */
+    public void clearDescribeCache() {
+        describeCache.clear();
+    }
+
+    /**
+     * @return the number of rendered descriptions being held
+     */
+    public int getDescribeCacheSize() {
+        return describeCache.size();
+    }
+
+    private String makeDescribeKey(String prefix, String id, String format, Locale locale) {
+        // the servlet context is part of all the URLs in the description
+        return entityBrokerManager.getServletContext() + EntityReference.SEPARATOR + (prefix == null ? "" : prefix)
+            + EntityReference.SEPARATOR + id + EntityReference.PERIOD + format + ":" + locale;
+    }
+
+    /**
+     * @return the cached description OR null if there is none for the current registry version
+     */
+    private DescribeDocument getCachedDescribe(String key, long version) {
+        if (describeCacheVersion != version) {
+            synchronized (describeCache) {
+                if (describeCacheVersion != version) {
+                    // the registered providers changed so all the descriptions are out of date
+                    describeCache.clear();
+                    describeCacheVersion = version;
+                }
+            }
+            return null;
+        }
+        return describeCache.get(key);
+    }
+
+    private DescribeDocument cacheDescribe(String key, long version, String output) {
+        DescribeDocument doc = new DescribeDocument(output, version);
+        // only cache if the registry did not change while this was being rendered
+        if (describeCacheVersion == version
+                && maxDescribeCacheEntries > 0) {
+            describeCache.put(key, doc);
+        }
+        return doc;
+    }
+
+    /**
+     * A rendered description, this should not be changed once it is created
+     */
+    public static class DescribeDocument {
+        /**
+         * the description as UTF-8 bytes
+         */
+        public final byte[] content;
+        /**
+         * the ETag for this description (without quotes),
+         * made from the registry version and the content so it also changes when the server is restarted with different providers
+         */
+        public final String etag;
+
+        public DescribeDocument(String output, long version) {
+            try {
+                this.content = output.getBytes(Formats.UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Unable to encode the description as UTF-8: " + e.getMessage(), e);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(this.content);
+            this.etag = DESCRIBE + "-" + version + "-" + Long.toHexString(crc.getValue());
+        }
+
+        /**
+         * @return the description as a string
+         */
+        public String getContentAsString() {
+            try {
+                return new String(content, Formats.UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Unable to decode the description from UTF-8: " + e.getMessage(), e);
+            }
+        }
+    }
+
 
     /**
      * Generate a description of all entities in the system,
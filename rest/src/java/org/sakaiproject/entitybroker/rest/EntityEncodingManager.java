@@ -20,14 +20,18 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -38,9 +42,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import org.azeckoski.reflectutils.ClassFields;
-import org.azeckoski.reflectutils.ConstructorUtils;
 import org.azeckoski.reflectutils.ReflectUtils;
-import org.azeckoski.reflectutils.StringUtils;
 import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
 import org.azeckoski.reflectutils.map.ArrayOrderedMap;
 import org.azeckoski.reflectutils.transcoders.HTMLTranscoder;
@@ -68,6 +70,7 @@ import org.sakaiproject.entitybroker.exception.EntityEncodingException;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.exception.FormatUnsupportedException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.util.EntityClassMetadata;
 import org.sakaiproject.entitybroker.util.EntityDataUtils;
 
 
@@ -106,6 +109,10 @@ public class EntityEncodingManager {
     "</head>\n" +
     "<body>\n";
     protected static final String XHTML_FOOTER = "</body>\n</html>\n";
+    /**
+     * The size of the char buffer used when writing encoded output into a stream
+     */
+    protected static final int OUTPUT_BUFFER_SIZE = 8192;
 
 
     protected EntityEncodingManager() { }
@@ -127,6 +134,22 @@ public class EntityEncodingManager {
         this.entityBrokerManager = entityBrokerManager;
     }
 
+    private volatile EntityInputBinder inputBinder = new EntityInputBinder();
+    /**
+     * @param maxInputSize the maximum size (in bytes) of the input which will be translated into an entity,
+     * larger input fails with a 413 (default {@link EntityInputBinder#DEFAULT_MAX_INPUT_SIZE}), 0 or less for no limit
+     */
+    public void setMaxInputSize(long maxInputSize) {
+        this.inputBinder = new EntityInputBinder(maxInputSize, inputBinder.getMaxInputDepth());
+    }
+    /**
+     * @param maxInputDepth the maximum nesting depth of objects and arrays in the input which will be translated into an entity,
+     * deeper input fails with a 400 (default {@link EntityInputBinder#DEFAULT_MAX_INPUT_DEPTH}), 0 or less for no limit
+     */
+    public void setMaxInputDepth(int maxInputDepth) {
+        this.inputBinder = new EntityInputBinder(inputBinder.getMaxInputSize(), maxInputDepth);
+    }
+
 
     /**
      * Format and output an entity or collection included or referred to by this entity ref object
@@ -337,8 +360,8 @@ public class EntityEncodingManager {
 
         Inputable inputable = entityProviderManager.getProviderByPrefixAndCapability(ref.getPrefix(), Inputable.class);
         if (inputable != null) {
-            // get a the current entity object or a sample
-            Object current = entityBrokerManager.getSampleEntityObject(ref.getPrefix(), ref.getId());
+            // get the current entity object (or a sample for new entities and full replace updates)
+            Object current = entityBrokerManager.getInputEntityObject(ref.getPrefix(), ref.getId());
             if (current != null) {
                 if (Formats.HTML.equals(format) || format == null || "".equals(format)) {
                     // html req handled specially
@@ -363,8 +386,12 @@ public class EntityEncodingManager {
                         // no request params, bad request
                         throw new EntityException("No input for input translation (input cannot be null) for reference: " + ref, 
                                 ref.toString(), HttpServletResponse.SC_BAD_REQUEST);
+                    } else if (EntityInputBinder.isBindable(current, format)) {
+                        // bind straight from the stream into the entity
+                        entity = current;
+                        inputBinder.bind(ref, format, input, entity);
                     } else {
-                        String data = StringUtils.makeStringFromInputStream(input);
+                        String data = inputBinder.readInput(ref, input);
                         Map<String, Object> decoded = null;
                         try {
                             decoded = decodeData(data, format);
@@ -411,7 +438,9 @@ public class EntityEncodingManager {
      * @param output the outputstream to place the encoded data into
      * @param view (optional) 
      * @throws FormatUnsupportedException if you do not handle this format type (passes control to the internal handlers)
-     * @throws EntityEncodingException if you cannot encode the received data into an entity
+     * @throws EntityEncodingException if you cannot encode the received data into an entity,
+     * nothing is written if the first entity fails but a failure after that may leave a partial
+     * (already committed) response which cannot be replaced by an error
      * @throws IllegalArgumentException if any of the arguments are invalid
      * @throws IllegalStateException for all other failures
      */
@@ -445,97 +474,167 @@ public class EntityEncodingManager {
             replacementEncoding = "<div style=\"font-weight:bold;color:red;\">"+msg+"</div>";
         }
 
-        String encoded = null;
-        if (EntityView.VIEW_LIST.equals(view.getViewKey()) 
-                || ref.getId() == null) {
-            // encoding a collection of entities
-            StringBuilder sb = new StringBuilder(40);
-
-            // make header
-            if (Formats.HTML.equals(format) 
-                    || Formats.FORM.equals(format)) {
-                sb.append("<h1>"+ref.getPrefix() + COLLECTION + "</h1>\n");
-            } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
-                sb.append("{\""+ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + COLLECTION + "\": [\n");
-            } else if (Formats.XML.equals(format)) {
-                sb.append("<" + ref.getPrefix() + COLLECTION + " " + ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n");
-            } else { // general case
-                sb.append(ref.getPrefix() + COLLECTION + "\n");
-            }
+        // the encoded data is written straight into the stream as it is generated (rather than held in memory)
+        Writer writer;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new UnflushedOutputStream(output), Formats.UTF_8), OUTPUT_BUFFER_SIZE);
+        } catch (UnsupportedEncodingException e) {
+            throw new EntityEncodingException("Failed to encode UTF-8: " + ref, ref.toString(), e);
+        }
+        try {
+            if (EntityView.VIEW_LIST.equals(view.getViewKey()) 
+                    || ref.getId() == null) {
+                // encoding a collection of entities
+                // the first entity is encoded before anything is written so a failure on it leaves the output untouched
+                Iterator<EntityData> iterator = entities.iterator();
+                String encoded = null;
+                if (replacementEncoding == null && iterator.hasNext()) {
+                    encoded = encodeCollectionEntity(ref, format, iterator.next(), view);
+                }
+                writeEncodingHeader(writer, ref, format, params, view);
 
-            int encodedEntities = 0;
-            if (replacementEncoding != null) {
-                sb.append(replacementEncoding);
-            } else {
-                // loop through and encode items
-                for (EntityData entity : entities) {
-                    try {
-                        String encode = encodeEntity(ref.getPrefix(), format, entity, view);
-                        if (encode.length() > 3) {
+                // make header
+                if (Formats.HTML.equals(format) 
+                        || Formats.FORM.equals(format)) {
+                    writer.write("<h1>"+ref.getPrefix() + COLLECTION + "</h1>\n");
+                } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
+                    writer.write("{\""+ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + COLLECTION + "\": [\n");
+                } else if (Formats.XML.equals(format)) {
+                    writer.write("<" + ref.getPrefix() + COLLECTION + " " + ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n");
+                } else { // general case
+                    writer.write(ref.getPrefix() + COLLECTION + "\n");
+                }
+
+                int encodedEntities = 0;
+                if (replacementEncoding != null) {
+                    writer.write(replacementEncoding);
+                } else {
+                    // loop through and encode items
+                    while (encoded != null) {
+                        if (encoded.length() > 3) {
                             if ((Formats.JSON.equals(format) || Formats.JSONP.equals(format)) 
                                     && encodedEntities > 0) {
-                                sb.append(",");
+                                writer.write(",");
                             }
-                            sb.append(encode);
+                            writer.write(encoded);
                             encodedEntities++;
                         }
-                    } catch (RuntimeException e) {
-                        throw new EntityEncodingException("Failure during internal output encoding of entity set on entity: " + ref, ref.toString(), e);
+                        encoded = iterator.hasNext() ? encodeCollectionEntity(ref, format, iterator.next(), view) : null;
                     }
                 }
-            }
 
-            // make footer
-            if (Formats.HTML.equals(format)
-                    || Formats.FORM.equals(format)) {
-                sb.append("\n<b>Collection size:</b> "+encodedEntities+"\n");
-            } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
-                sb.append("\n]}");
-            } else if (Formats.XML.equals(format)) {
-                sb.append("</" + ref.getPrefix() + COLLECTION + ">");
-            } else { // general case
-                sb.append("\nSize: " + encodedEntities + "\n");
-            }
-            encoded = sb.toString();
-        } else {
-            // encoding a single entity
-            EntityData toEncode = entities.get(0);
-            if (replacementEncoding != null) {
-                encoded = replacementEncoding;
+                // make footer
+                if (Formats.HTML.equals(format)
+                        || Formats.FORM.equals(format)) {
+                    writer.write("\n<b>Collection size:</b> "+encodedEntities+"\n");
+                } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
+                    writer.write("\n]}");
+                } else if (Formats.XML.equals(format)) {
+                    writer.write("</" + ref.getPrefix() + COLLECTION + ">");
+                } else { // general case
+                    writer.write("\nSize: " + encodedEntities + "\n");
+                }
             } else {
-                if (toEncode == null) {
-                    throw new EntityEncodingException("Failed to encode data for entity (" + ref 
-                            + "), entity object to encode could not be found (null object in list)", ref.toString());
+                // encoding a single entity
+                String encoded;
+                EntityData toEncode = entities.get(0);
+                if (replacementEncoding != null) {
+                    encoded = replacementEncoding;
                 } else {
-                    try {
-                        encoded = encodeEntity(ref.getPrefix(), format, toEncode, view);
-                    } catch (RuntimeException e) {
-                        throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
+                    if (toEncode == null) {
+                        throw new EntityEncodingException("Failed to encode data for entity (" + ref 
+                                + "), entity object to encode could not be found (null object in list)", ref.toString());
+                    } else {
+                        try {
+                            encoded = encodeEntity(ref.getPrefix(), format, toEncode, view);
+                        } catch (RuntimeException e) {
+                            throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
+                        }
                     }
                 }
+                writeEncodingHeader(writer, ref, format, params, view);
+                writer.write(encoded);
+            }
+            // add the HTML footers
+            if (Formats.FORM.equals(format)) {
+                writer.write(XHTML_FOOTER);
+            } else if (Formats.JSONP.equals(format)) {
+                writer.write(")");
             }
+            // push anything left in the buffers into the stream
+            writer.flush();
+        } catch (IOException e) {
+            throw new EntityEncodingException("Failed to encode into output stream: " + ref, ref.toString(), e);
         }
-        // add the HTML headers and footers
+    }
+
+    /**
+     * Encodes one entity from a collection
+     * @throws EntityEncodingException if the entity cannot be encoded
+     */
+    private String encodeCollectionEntity(EntityReference ref, String format, EntityData entity, EntityView view) {
+        try {
+            return encodeEntity(ref.getPrefix(), format, entity, view);
+        } catch (RuntimeException e) {
+            throw new EntityEncodingException("Failure during internal output encoding of entity set on entity: " + ref, ref.toString(), e);
+        }
+    }
+
+    /**
+     * Writes the document level header (if there is one) for the format
+     * @param writer the writer to put the header into
+     * @param ref the entity reference
+     * @param format the format being output
+     * @param params (optional) the request params
+     * @param view the view being output
+     * @throws IOException if the writer fails
+     */
+    private void writeEncodingHeader(Writer writer, EntityReference ref, String format, Map<String, Object> params, EntityView view) throws IOException {
         if (Formats.FORM.equals(format)) {
             String title = view.getViewKey() + ":" + ref;
-            encoded = XML_HEADER + XHTML_HEADER.replace("{title}", title) + encoded + XHTML_FOOTER;
+            writer.write(XML_HEADER);
+            writer.write(XHTML_HEADER.replace("{title}", title));
         } else if (Formats.XML.equals(format)) {
-            encoded = XML_HEADER + encoded;
+            writer.write(XML_HEADER);
         } else if (Formats.JSONP.equals(format)) {
             String callback = JSON_DEFAULT_CALLBACK;
             if (params != null && params.containsKey(JSON_CALLBACK_PARAM)) {
                 callback = sanitizeJsonCallback(params.get(JSON_CALLBACK_PARAM));
             }
-            encoded = callback + "(" + encoded + ")";
+            writer.write(callback);
+            writer.write("(");
         }
-        // put the encoded data into the stream
-        try {
-            byte[] b = encoded.getBytes(Formats.UTF_8);
-            output.write(b);
-        } catch (UnsupportedEncodingException e) {
-            throw new EntityEncodingException("Failed to encode UTF-8: " + ref, ref.toString(), e);
-        } catch (IOException e) {
-            throw new EntityEncodingException("Failed to encode into output stream: " + ref, ref.toString(), e);
+    }
+
+    /**
+     * Passes all writes straight through to the wrapped stream but leaves flushing and closing
+     * to the owner of the stream, this keeps the response uncommitted until the buffers
+     * in the stream fill up (or the owner decides to flush it)
+     */
+    private static class UnflushedOutputStream extends OutputStream {
+        private final OutputStream stream;
+        public UnflushedOutputStream(OutputStream stream) {
+            this.stream = stream;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            stream.write(b);
+        }
+        @Override
+        public void write(byte[] b) throws IOException {
+            stream.write(b);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            stream.write(b, off, len);
+        }
+        @Override
+        public void flush() throws IOException {
+            // the owner of the stream controls flushing
+        }
+        @Override
+        public void close() throws IOException {
+            // the owner of the stream controls closing
         }
     }
 
@@ -763,7 +862,7 @@ public class EntityEncodingManager {
                     // no meta data except properties if there are any
                     entityProps.putAll( entityData.getEntityProperties() );
                 } else {
-                    if (ConstructorUtils.isClassBean(entityData.getData().getClass())) {
+                    if (EntityClassMetadata.getMetadata(entityData.getData().getClass()).isBean()) {
                         // encode the bean directly if it is one
                         toEncode = entityData.getData();
                         // add in the extra props
@@ -22,6 +22,7 @@ package org.sakaiproject.entitybroker.rest;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,12 +31,14 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.CRC32;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.azeckoski.reflectutils.ReflectUtils;
 import org.azeckoski.reflectutils.exceptions.FieldnameNotFoundException;
+import org.sakaiproject.entitybroker.DeveloperHelperService;
 import org.sakaiproject.entitybroker.EntityBroker;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
@@ -52,6 +55,8 @@ import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModifi
 import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsExecutable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Createable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Deleteable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Exportable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Importable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.InputTranslatable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Inputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.OutputFormattable;
@@ -59,7 +64,9 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Redirectable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestHandler;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestInterceptor;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Updateable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.CustomAction;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
@@ -68,14 +75,20 @@ import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.event.EventReceiverRegistry;
 import org.sakaiproject.entitybroker.exception.EntityEncodingException;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.exception.EntityNotFoundException;
 import org.sakaiproject.entitybroker.exception.FormatUnsupportedException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
+import org.sakaiproject.entitybroker.rest.EntityDescriptionManager.DescribeDocument;
 import org.sakaiproject.entitybroker.util.ClassLoaderReporter;
+import org.sakaiproject.entitybroker.util.EntityClassMetadata;
 import org.sakaiproject.entitybroker.util.EntityDataUtils;
 import org.sakaiproject.entitybroker.util.EntityResponse;
+import org.sakaiproject.entitybroker.util.http.CompressingResponseOutputStream;
+import org.sakaiproject.entitybroker.util.http.DeferredResponseOutputStream;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
 import org.sakaiproject.entitybroker.util.http.HttpResponse;
 import org.sakaiproject.entitybroker.util.http.LazyResponseOutputStream;
@@ -91,6 +104,53 @@ import org.sakaiproject.entitybroker.util.request.RequestUtils;
  */
 @SuppressWarnings("deprecation")
 public class EntityHandlerImpl implements EntityRequestHandler {
+
+    /**
+     * Config setting which chooses the ETag strategy: {@link #ETAG_STRATEGY_LASTMODIFIED} (default) or {@link #ETAG_STRATEGY_HASH}
+     */
+    public static final String CONFIG_ETAG_STRATEGY = "entitybroker.etag.strategy";
+    public static final String ETAG_STRATEGY_LASTMODIFIED = "lastmodified";
+    public static final String ETAG_STRATEGY_HASH = "hash";
+    /**
+     * Config setting for the maximum size in bytes of the content which is held in memory and hashed
+     * to make the ETag when using {@link #ETAG_STRATEGY_HASH} (default 262144),
+     * larger content is streamed without an ETag
+     */
+    public static final String CONFIG_ETAG_HASH_MAX = "entitybroker.etag.hash.max";
+    /**
+     * Config setting which enables the response cache for {@link ResponseCacheable} providers (default false)
+     */
+    public static final String CONFIG_RESPONSE_CACHE_ENABLE = "entitybroker.response.cache.enable";
+    /**
+     * Config setting for the maximum number of responses held in the response cache (default 1000)
+     */
+    public static final String CONFIG_RESPONSE_CACHE_MAX = "entitybroker.response.cache.max";
+    /**
+     * Config setting for the maximum total size in megabytes of the responses held in the response cache (default 16)
+     */
+    public static final String CONFIG_RESPONSE_CACHE_MAX_MB = "entitybroker.response.cache.maxmb";
+    /**
+     * Config setting which enables compression (gzip or deflate) of the response content when the client accepts it (default false)
+     */
+    public static final String CONFIG_COMPRESSION_ENABLE = "entitybroker.compression.enable";
+    /**
+     * Config setting for the minimum size in bytes of the response content before it is compressed (default 1024)
+     */
+    public static final String CONFIG_COMPRESSION_THRESHOLD = "entitybroker.compression.threshold";
+    /**
+     * Used in place of the user reference in response cache keys when there is no current user
+     */
+    protected static final String ANONYMOUS_USER_KEY = "~anonymous";
+    /**
+     * The max number of bytes of an export held back so the encoding key can be sent in a header,
+     * larger exports are streamed into the response as they are written
+     */
+    protected static final int EXPORT_HELD_SIZE = 64 * 1024;
+    /**
+     * The content type of exports when no format extension is requested
+     */
+    protected static final String EXPORT_DEFAULT_MIME_TYPE = "application/octet-stream";
+
     public static String APP_VERSION = "1.0.1";
     public static String SVN_REVISION = "$Revision$";
     public static String SVN_LAST_UPDATE = "$Date$";
@@ -125,9 +185,26 @@ public class EntityHandlerImpl implements EntityRequestHandler {
     }
 
     public void init() {
+        if (responseCache == null && entityBrokerManager != null) {
+            ExternalIntegrationProvider externalIntegrationProvider = entityBrokerManager.getExternalIntegrationProvider();
+            Boolean enabled = externalIntegrationProvider.getConfigurationSetting(CONFIG_RESPONSE_CACHE_ENABLE, Boolean.FALSE);
+            if (enabled != null && enabled) {
+                Integer maxEntries = externalIntegrationProvider.getConfigurationSetting(CONFIG_RESPONSE_CACHE_MAX, 1000);
+                Integer maxMB = externalIntegrationProvider.getConfigurationSetting(CONFIG_RESPONSE_CACHE_MAX_MB, 16);
+                setResponseCache( new EntityResponseCache(maxEntries, maxMB * 1024l * 1024l) );
+                System.out.println("INFO EntityRequestHandler response cache enabled (max="+maxEntries+", maxmb="+maxMB+")");
+            }
+        }
         System.out.println("INFO EntityRequestHandler init complete");
     }
 
+    public void destroy() {
+        setResponseCache(null);
+        // closes the pooled connections used when firing requests without a client
+        HttpRESTUtils.shutdownSharedHttpClient();
+        System.out.println("INFO EntityRequestHandler destroy complete");
+    }
+
     private EntityProviderManager entityProviderManager;
     public void setEntityProviderManager(EntityProviderManager entityProviderManager) {
         this.entityProviderManager = entityProviderManager;
@@ -186,6 +263,137 @@ public class EntityHandlerImpl implements EntityRequestHandler {
         this.requestStorage = requestStorage;
     }
 
+    private ETagStrategy etagStrategy;
+    /**
+     * Set the strategy used to make the ETags for output entity data,
+     * if this is not set then the strategy is chosen by the {@link #CONFIG_ETAG_STRATEGY} config setting
+     */
+    public void setETagStrategy(ETagStrategy etagStrategy) {
+        this.etagStrategy = etagStrategy;
+    }
+    public ETagStrategy getETagStrategy() {
+        if (this.etagStrategy == null) {
+            String strategy = entityBrokerManager.getExternalIntegrationProvider().getConfigurationSetting(CONFIG_ETAG_STRATEGY, ETAG_STRATEGY_LASTMODIFIED);
+            if (ETAG_STRATEGY_HASH.equalsIgnoreCase(strategy)) {
+                this.etagStrategy = new ContentHashETagStrategy();
+            } else {
+                this.etagStrategy = new LastModifiedETagStrategy();
+            }
+        }
+        return this.etagStrategy;
+    }
+
+    private Integer hashContentLimit;
+    /**
+     * Set the maximum size of the content which is held and hashed to make the ETag,
+     * if this is not set then it comes from the {@link #CONFIG_ETAG_HASH_MAX} config setting
+     * @param hashContentLimit the number of bytes
+     */
+    public void setHashContentLimit(int hashContentLimit) {
+        this.hashContentLimit = hashContentLimit;
+    }
+    public int getHashContentLimit() {
+        if (this.hashContentLimit == null) {
+            Integer limit = entityBrokerManager.getExternalIntegrationProvider().getConfigurationSetting(CONFIG_ETAG_HASH_MAX, 256 * 1024);
+            this.hashContentLimit = (limit == null || limit < 0) ? 0 : limit;
+        }
+        return this.hashContentLimit;
+    }
+
+    private EntityResponseCache responseCache;
+    /**
+     * Set the cache used to hold the output of {@link ResponseCacheable} providers,
+     * the cache is registered for events so it is cleared when entities change,
+     * set to null to disable response caching
+     */
+    public void setResponseCache(EntityResponseCache responseCache) {
+        EventReceiverRegistry registry = getEventReceiverRegistry();
+        if (this.responseCache != null && registry != null) {
+            registry.unregisterEventReceiver(this.responseCache);
+        }
+        this.responseCache = responseCache;
+        if (responseCache != null && registry != null) {
+            registry.registerEventReceiver(responseCache);
+        }
+    }
+    public EntityResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    private Integer compressionThreshold;
+    /**
+     * Set the minimum size of the response content before it is compressed,
+     * if this is not set then it comes from the {@link #CONFIG_COMPRESSION_ENABLE} and
+     * {@link #CONFIG_COMPRESSION_THRESHOLD} config settings
+     * @param compressionThreshold the number of bytes, less than 0 disables compression
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    public int getCompressionThreshold() {
+        if (this.compressionThreshold == null) {
+            ExternalIntegrationProvider externalIntegrationProvider = entityBrokerManager.getExternalIntegrationProvider();
+            Boolean enabled = externalIntegrationProvider.getConfigurationSetting(CONFIG_COMPRESSION_ENABLE, Boolean.FALSE);
+            if (enabled != null && enabled) {
+                Integer threshold = externalIntegrationProvider.getConfigurationSetting(CONFIG_COMPRESSION_THRESHOLD, 1024);
+                this.compressionThreshold = (threshold == null || threshold < 0) ? 0 : threshold;
+            } else {
+                this.compressionThreshold = -1;
+            }
+        }
+        return this.compressionThreshold;
+    }
+
+    private EventReceiverRegistry eventReceiverRegistry;
+    /**
+     * @return the event receiver registry OR null if it cannot be found
+     */
+    private EventReceiverRegistry getEventReceiverRegistry() {
+        if (eventReceiverRegistry == null && entityBrokerManager != null) {
+            try {
+                eventReceiverRegistry = entityBrokerManager.getExternalIntegrationProvider().findService(EventReceiverRegistry.class);
+            } catch (RuntimeException e) {
+                // no way to get the registry so cached responses will only be cleared by writes through here
+                eventReceiverRegistry = null;
+            }
+        }
+        return eventReceiverRegistry;
+    }
+
+    private DeveloperHelperService developerHelperService;
+    /**
+     * (OPTIONAL) used to find the current user for the response cache keys and to check
+     * the permissions for exports and imports (which are refused without it),
+     * will be looked up using the {@link ExternalIntegrationProvider} if it is not set
+     */
+    public void setDeveloperHelperService(DeveloperHelperService developerHelperService) {
+        this.developerHelperService = developerHelperService;
+    }
+    /**
+     * @return the developer helper service OR null if it cannot be found
+     */
+    private DeveloperHelperService getDeveloperHelperService() {
+        if (developerHelperService == null && entityBrokerManager != null) {
+            try {
+                developerHelperService = entityBrokerManager.getExternalIntegrationProvider().findService(DeveloperHelperService.class);
+            } catch (RuntimeException e) {
+                // no way to get the service so only shared responses can be cached
+                developerHelperService = null;
+            }
+        }
+        return developerHelperService;
+    }
+
+    private String exportImportPermission = "site.upd";
+    /**
+     * (OPTIONAL) the permission a user must have in the referenced entity (the _reference param)
+     * to export from it or import into it, admins can always export and import,
+     * default is site.upd (maintainers of the site)
+     */
+    public void setExportImportPermission(String exportImportPermission) {
+        this.exportImportPermission = exportImportPermission;
+    }
+
 
     // allow the servlet name to be more flexible
     private String servletContext;
@@ -213,8 +421,24 @@ public class EntityHandlerImpl implements EntityRequestHandler {
      * @see org.sakaiproject.entitybroker.EntityRequestHandler#handleEntityAccess(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
     public String handleEntityAccess(HttpServletRequest req, HttpServletResponse res, String path) {
+        return handleEntityAccess(req, res, path, false);
+    }
+
+    /**
+     * Handles a request which is made internally while handling an outer request (e.g. each reference in a batch),
+     * the servlet context and the session key handling were already done for the outer request so they are skipped
+     * @param req the internal request (the path info is used as the path)
+     * @param res the internal response
+     * @return the entity reference handled
+     * @see #handleEntityAccess(HttpServletRequest, HttpServletResponse, String)
+     */
+    public String handleInternalEntityAccess(HttpServletRequest req, HttpServletResponse res) {
+        return handleEntityAccess(req, res, null, true);
+    }
+
+    private String handleEntityAccess(HttpServletRequest req, HttpServletResponse res, String path, boolean internal) {
         // set the servlet context if not set OR we know for sure we have a request object
-        if (this.servletContext == null || req != null) {
+        if (this.servletContext == null || (req != null && ! internal)) {
             setServletContext( RequestUtils.getServletContext(req) );
         }
 
@@ -227,7 +451,7 @@ public class EntityHandlerImpl implements EntityRequestHandler {
 
         // special handling in case the session ID is sent in the request 
         // (allows setting up and reusing a session over and over without holding cookies)
-        if (entityBrokerManager.getExternalIntegrationProvider() != null) {
+        if (! internal && entityBrokerManager.getExternalIntegrationProvider() != null) {
             try {
                 entityBrokerManager.getExternalIntegrationProvider().handleUserSessionKey(req);
             } catch (SecurityException se) {
@@ -254,15 +478,8 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                     || path.startsWith(SLASH_DESCRIBE + EntityReference.PERIOD)) {
                 // SPECIAL handling for the describe all URL
                 String format = RequestUtils.findAndHandleFormat(req, res, Formats.HTML);
-                String output = entityDescriptionManager.makeDescribeAll(format, req.getLocale()); // possibly get the locale from other places?
-                res.setContentLength(output.getBytes().length);
-                try {
-                    res.getWriter().write(output);
-                } catch (IOException e) {
-                    // should never happen
-                    throw new RuntimeException("Failed to put output into the response writer: " + e.getMessage(), e);
-                }
-                res.setStatus(HttpServletResponse.SC_OK);
+                DescribeDocument doc = entityDescriptionManager.getDescribeAll(format, req.getLocale()); // possibly get the locale from other places?
+                writeDescribeDocument(req, res, doc);
                 handledReference = EntityView.SEPARATOR+"";
             } else {
                 // STANDARD processing for the incoming view
@@ -285,14 +502,8 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                     if (entityId == null || "".equals(entityId)) {
                         entityId = FAKE_ID;
                     }
-                    String output = entityDescriptionManager.makeDescribeEntity(view.getEntityReference().getPrefix(), entityId, format, req.getLocale());
-                    res.setContentLength(output.getBytes().length);
-                    try {
-                        res.getWriter().write(output);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Failed to put output into the response writer: " + e.getMessage(), e);
-                    }
-                    res.setStatus(HttpServletResponse.SC_OK);
+                    DescribeDocument doc = entityDescriptionManager.getDescribeEntity(view.getEntityReference().getPrefix(), entityId, format, req.getLocale());
+                    writeDescribeDocument(req, res, doc);
                     handledReference = view.getEntityReference().getSpaceReference() + SLASH_DESCRIBE;
 
                 } else {
@@ -323,9 +534,11 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                     if (customAction == null) {
                         customAction = entityActionsManager.getCustomAction(prefix, view.getPathSegment(2));
                     }
+                    // check for the streaming export/import of the data (custom actions with the same key take precedence)
+                    boolean exportImport = customAction == null && isExportImportRequest(prefix, view);
                     if (customAction == null) {
                         // check to see if the entity exists
-                        if (! entityBrokerManager.entityExists(view.getEntityReference()) ) {
+                        if (! exportImport && ! entityBrokerManager.entityExists(view.getEntityReference()) ) {
                             // FAILURE invalid entity reference (entity does not exist)
                             throw new EntityException( "Attempted to access an entity URL path (" + path + ") for an entity ("
                                     + view.getEntityReference() + ") that does not exist", 
@@ -366,6 +579,9 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                             // set the default format to JSON for batch handling
                             view.setExtension( RequestUtils.findAndHandleFormat(req, res, Formats.JSON) );
                             entityBatchHandler.handleBatch(view, req, res);
+                        } else if (exportImport) {
+                            // special export/import handling, the data is streamed so it never has to fit in memory
+                            handleExportImport(view, req, res);
                         } else {
                             // ensure the format is set correctly for the response and the view
                             String format = RequestUtils.findAndHandleFormat(req, res, Formats.HTML);
@@ -522,55 +738,161 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                         RequestUtils.setResponseEncoding(format, res);
 
                                                         EntityReference ref = view.getEntityReference();
-                                                        // get the entities to output
+                                                        /* check if the provider can tell us the current version without fetching the entities,
+                                                         * if so then a conditional request for the current version can be answered right away
+                                                         * (the Versionable methods must do the read access checks since nothing is fetched)
+                                                         */
+                                                        boolean versionKnown = false;
+                                                        boolean notModified = false;
+                                                        String responseETag = null;
+                                                        long responseLastModified = -1;
+                                                        if (customAction == null) {
+                                                            Versionable versionable = (Versionable) entityProviderManager.getProviderByPrefixAndCapability(prefix, Versionable.class);
+                                                            if (versionable != null) {
+                                                                Map<String, Object> params = requestStorage.getStorageMapCopy(true, false, true, true); // leave out headers
+                                                                String etag = versionable.getEntityETag(ref, params);
+                                                                long lastModified = versionable.getEntityLastModified(ref, params);
+                                                                if (etag != null || lastModified > 0) {
+                                                                    versionKnown = true;
+                                                                    responseETag = etag;
+                                                                    responseLastModified = lastModified;
+                                                                    notModified = setOutputVersionHeaders(req, res, etag, lastModified, true);
+                                                                }
+                                                            }
+                                                        }
+                                                        // check for a cached copy of the encoded response
+                                                        String cacheKey = null;
+                                                        EntityResponseCache.CachedResponse cached = null;
+                                                        if (! notModified && customAction == null) {
+                                                            cacheKey = makeResponseCacheKey(prefix, view, format, req);
+                                                            if (cacheKey != null) {
+                                                                cached = responseCache.get(cacheKey);
+                                                                if (cached != null && versionKnown
+                                                                        && (responseETag != null ? ! responseETag.equals(cached.etag) : responseLastModified != cached.lastModified)) {
+                                                                    // the provider says the cached copy is not the current version
+                                                                    cached = null;
+                                                                }
+                                                                if (cached != null
+                                                                        && ! isResponseCacheAccessAllowed(prefix, ref)) {
+                                                                    // fetch the entities normally so the provider access checks run
+                                                                    cached = null;
+                                                                }
+                                                            }
+                                                        }
                                                         List<EntityData> entities = null;
-                                                        if (customAction != null 
-                                                                && actionReturn != null) {
-                                                            // get entities from a custom action
-                                                            entities = actionReturn.entitiesList;
-                                                            if (entities != null) {
-                                                                // recode the collection
-                                                                if (entities.size() > 0) {
-                                                                    EntityData ed = entities.get(0);
-                                                                    ref = new EntityReference(ed.getEntityRef().getPrefix(), "");
+                                                        if (! notModified && cached == null) {
+                                                            // get the entities to output
+                                                            if (customAction != null 
+                                                                    && actionReturn != null) {
+                                                                // get entities from a custom action
+                                                                entities = actionReturn.entitiesList;
+                                                                if (entities != null) {
+                                                                    // recode the collection
+                                                                    if (entities.size() > 0) {
+                                                                        EntityData ed = entities.get(0);
+                                                                        ref = new EntityReference(ed.getEntityRef().getPrefix(), "");
+                                                                        view.setEntityReference( ref );
+                                                                        view.setViewKey(EntityView.VIEW_LIST);
+                                                                    }
+                                                                } else if (actionReturn.entityData != null) {
+                                                                    // this was a single object return so it should be encoded as such, thus we will recode the correct reference into the view
+                                                                    ArrayList<EntityData> eList = new ArrayList<EntityData>();
+                                                                    EntityData ed = actionReturn.entityData;
+                                                                    // set title if not set
+                                                                    if (! ed.isDisplayTitleSet()) {
+                                                                        ed.setDisplayTitle(customAction.action);
+                                                                    }
+                                                                    // add to list
+                                                                    eList.add( ed );
+                                                                    entities = eList;
+                                                                    // make entity reference
+                                                                    ref = ed.getEntityRef();
+                                                                    if (ref == null) {
+                                                                        ref = new EntityReference(prefix, customAction.action);
+                                                                    } else if (ref.getId() == null) {
+                                                                        ref = new EntityReference(ref.getPrefix(), customAction.action);
+                                                                    }
                                                                     view.setEntityReference( ref );
-                                                                    view.setViewKey(EntityView.VIEW_LIST);
-                                                                }
-                                                            } else if (actionReturn.entityData != null) {
-                                                                // this was a single object return so it should be encoded as such, thus we will recode the correct reference into the view
-                                                                ArrayList<EntityData> eList = new ArrayList<EntityData>();
-                                                                EntityData ed = actionReturn.entityData;
-                                                                // set title if not set
-                                                                if (! ed.isDisplayTitleSet()) {
-                                                                    ed.setDisplayTitle(customAction.action);
+                                                                    view.setViewKey(EntityView.VIEW_SHOW);
                                                                 }
-                                                                // add to list
-                                                                eList.add( ed );
-                                                                entities = eList;
-                                                                // make entity reference
-                                                                ref = ed.getEntityRef();
-                                                                if (ref == null) {
-                                                                    ref = new EntityReference(prefix, customAction.action);
-                                                                } else if (ref.getId() == null) {
-                                                                    ref = new EntityReference(ref.getPrefix(), customAction.action);
+                                                            } else {
+                                                                // get from a search
+                                                                Search search = RequestUtils.makeSearchFromRequestParams(requestStorage.getStorageMapCopy(true, false, true, true)); // leave out headers));
+                                                                entities = entityBrokerManager.getEntitiesData(ref, search, requestStorage.getStorageMapCopy());
+                                                            }
+                                                        }
+                                                        /* the newest last modified time of a collection does not change when an entity
+                                                         * is removed from it so If-Modified-Since is not trusted for collections
+                                                         */
+                                                        boolean collection = EntityView.VIEW_LIST.equals(view.getViewKey());
+                                                        boolean hashContent = false;
+                                                        if (cached != null) {
+                                                            // set the headers from the cached response
+                                                            if (cached.contentType != null) {
+                                                                res.setContentType(cached.contentType);
+                                                            }
+                                                            if (cached.etag != null || cached.lastModified > 0) {
+                                                                notModified = setOutputVersionHeaders(req, res, cached.etag, cached.lastModified, ! collection);
+                                                            }
+                                                        } else if (! versionKnown) {
+                                                            // set the version headers using the etag strategy (the last modified time is the newest of the entities)
+                                                            ETagStrategy strategy = getETagStrategy();
+                                                            Long lastModified = findLastModified(entities);
+                                                            String etag = strategy.makeETag(ref, entities, lastModified);
+                                                            hashContent = (etag == null && strategy.isHashContent() 
+                                                                    && ! EntityView.Method.HEAD.name().equals(view.getMethod()));
+                                                            long lm = (lastModified != null ? lastModified.longValue() : -1);
+                                                            responseETag = etag;
+                                                            responseLastModified = lm;
+                                                            if (hashContent) {
+                                                                // the etag is only known once the content is hashed
+                                                                if (lm > 0) {
+                                                                    res.setDateHeader(ActionReturn.Header.LAST_MODIFIED.toString(), lm);
                                                                 }
-                                                                view.setEntityReference( ref );
-                                                                view.setViewKey(EntityView.VIEW_SHOW);
+                                                                notModified = RequestUtils.isNotModified(req, null, collection ? -1 : lm);
+                                                            } else if (etag != null || lm > 0) {
+                                                                notModified = setOutputVersionHeaders(req, res, etag, lm, ! collection);
                                                             }
-                                                        } else {
-                                                            // get from a search
-                                                            Search search = RequestUtils.makeSearchFromRequestParams(requestStorage.getStorageMapCopy(true, false, true, true)); // leave out headers));
-                                                            entities = entityBrokerManager.getEntitiesData(ref, search, requestStorage.getStorageMapCopy());
                                                         }
-                                                        // set the modified header (use the sole entity in the list if there is one only)
-                                                        setLastModifiedHeaders(res, (entities != null && entities.size()==1 ? entities.get(0) : null), System.currentTimeMillis());
 
-                                                        if (EntityView.Method.HEAD.name().equals(view.getMethod())) {
+                                                        if (notModified) {
+                                                            // the client already has the current version of the entity
+                                                            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                                                            handled = true;
+                                                        } else if (EntityView.Method.HEAD.name().equals(view.getMethod())) {
                                                             // HEADER only
                                                             res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                                                        } else if (cached != null) {
+                                                            // GET from the response cache
+                                                            res.setStatus(HttpServletResponse.SC_OK);
+                                                            try {
+                                                                OutputStream outputStream = makeResponseOutputStream(req, res);
+                                                                outputStream.write(cached.content);
+                                                                finishResponseOutputStream(outputStream);
+                                                            } catch (IOException e) {
+                                                                throw new RuntimeException("Failed to write cached content to response: " + view, e);
+                                                            }
+                                                            handled = true;
                                                         } else {
                                                             // GET
-                                                            OutputStream outputStream = new LazyResponseOutputStream(res);
+                                                            OutputStream responseStream = makeResponseOutputStream(req, res);
+                                                            OutputStream outputStream = responseStream;
+                                                            HeldContentOutputStream heldStream = null;
+                                                            if (hashContent || cacheKey != null) {
+                                                                /* hold the content until it is all hashed (so the etag header can go out first) or
+                                                                 * so it can be cached, content over the limit is streamed without an etag and is not cached
+                                                                 */
+                                                                int heldLimit = (hashContent ? getHashContentLimit() : Integer.MAX_VALUE);
+                                                                if (cacheKey != null) {
+                                                                    // content too big to be cached is not held for the cache
+                                                                    heldLimit = Math.min(heldLimit, responseCache.getMaxContentSize());
+                                                                }
+                                                                heldStream = new HeldContentOutputStream(responseStream, res, heldLimit);
+                                                                outputStream = heldStream;
+                                                            } else {
+                                                                // nothing depends on the content so the status goes out first and the content is streamed
+                                                                res.setStatus(HttpServletResponse.SC_OK);
+                                                            }
 
                                                             /* try to use the provider formatter if one available,
                                                              * if it decided not to handle it or none is available then control passes to internal
@@ -595,7 +917,28 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                                 }
                                                             }
                                                             handled = true;
-                                                            res.setStatus(HttpServletResponse.SC_OK);
+                                                            if (heldStream != null && heldStream.isHeld()) {
+                                                                boolean contentNotModified = false;
+                                                                if (hashContent) {
+                                                                    responseETag = ContentHashETagStrategy.makeContentETag(heldStream.getChecksum(), heldStream.size());
+                                                                    contentNotModified = setOutputVersionHeaders(req, res, responseETag, -1, false);
+                                                                }
+                                                                if (cacheKey != null) {
+                                                                    cacheResponse(cacheKey, prefix, heldStream.toByteArray(), 
+                                                                            res.getContentType(), responseETag, responseLastModified);
+                                                                }
+                                                                if (contentNotModified) {
+                                                                    res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                                                                } else {
+                                                                    res.setStatus(HttpServletResponse.SC_OK);
+                                                                    try {
+                                                                        heldStream.writeHeldContent();
+                                                                    } catch (IOException e) {
+                                                                        throw new RuntimeException("Failed to write content to response: " + view, e);
+                                                                    }
+                                                                }
+                                                            }
+                                                            finishResponseOutputStream(responseStream);
                                                         }
                                                     } else {
                                                         // format type not handled
@@ -710,6 +1053,10 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                     }
                                                 }
                                             }
+                                            if (handled && responseCache != null) {
+                                                // the entities for this prefix changed so the cached responses are out of date
+                                                responseCache.invalidatePrefix(prefix);
+                                            }
                                         }
                                     } catch (FormatUnsupportedException e) {
                                         // this format could not be handled internally so we will pass it to the access provider, nothing else to do here
@@ -943,6 +1290,122 @@ public class EntityHandlerImpl implements EntityRequestHandler {
         // END classloader protection
     }
 
+    /**
+     * Makes the stream to write the response content into, the content is compressed
+     * if the client accepts compressed content and there is enough of it,
+     * {@link #finishResponseOutputStream(OutputStream)} must be called once all the content is written
+     * @param req (optional) the request
+     * @param res the response
+     * @return the stream to write the content into
+     */
+    public OutputStream makeResponseOutputStream(HttpServletRequest req, HttpServletResponse res) {
+        OutputStream outputStream = null;
+        int threshold = getCompressionThreshold();
+        if (threshold >= 0 && req != null) {
+            // caches have to keep the compressed and uncompressed content apart
+            res.setHeader(RequestUtils.HEADER_VARY, RequestUtils.HEADER_ACCEPT_ENCODING);
+            String contentEncoding = RequestUtils.findAcceptedContentEncoding(req);
+            if (contentEncoding != null) {
+                outputStream = new CompressingResponseOutputStream(res, contentEncoding, threshold);
+            }
+        }
+        if (outputStream == null) {
+            outputStream = new LazyResponseOutputStream(res);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Completes the content written into a stream from {@link #makeResponseOutputStream(HttpServletRequest, HttpServletResponse)}
+     * @param outputStream the response output stream
+     */
+    public static void finishResponseOutputStream(OutputStream outputStream) {
+        if (outputStream instanceof CompressingResponseOutputStream) {
+            try {
+                ((CompressingResponseOutputStream) outputStream).finish();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to finish writing the compressed response content", e);
+            }
+        }
+    }
+
+    /**
+     * Makes the key for the cached response to this request if it can be cached,
+     * only plain GETs for {@link ResponseCacheable} providers can be cached
+     * @param prefix the entity prefix
+     * @param view the entity view for this request
+     * @param format the output format
+     * @param req the request
+     * @return the response cache key OR null if the response to this request should not be cached
+     */
+    protected String makeResponseCacheKey(String prefix, EntityView view, String format, HttpServletRequest req) {
+        if (responseCache == null
+                || ! EntityView.Method.GET.name().equals(view.getMethod())
+                || Formats.FORM.equals(format)) {
+            return null;
+        }
+        ResponseCacheable cacheable = entityProviderManager.getProviderByPrefixAndCapability(prefix, ResponseCacheable.class);
+        if (cacheable == null
+                || cacheable.getResponseCacheSeconds() <= 0) {
+            return null;
+        }
+        if (req != null
+                && (req.getParameter("no-cache") != null || req.getParameter("nocache") != null)) {
+            return null;
+        }
+        String userReference = null;
+        if (! cacheable.isResponseCacheShared()) {
+            DeveloperHelperService dhs = getDeveloperHelperService();
+            if (dhs == null) {
+                return null; // cannot tell the users apart so this cannot be cached
+            }
+            userReference = dhs.getCurrentUserReference();
+            if (userReference == null) {
+                userReference = ANONYMOUS_USER_KEY;
+            }
+        }
+        return EntityResponseCache.makeKey(view.getEntityURL(), format, 
+                (req == null ? null : req.getQueryString()), userReference);
+    }
+
+    /**
+     * Checks with the provider that the current user can be sent a cached response,
+     * the provider access checks done while fetching the entities are skipped for cached responses
+     * @param prefix the entity prefix
+     * @param ref the reference for the entity or collection being requested
+     * @return true if the cached response can be sent
+     */
+    protected boolean isResponseCacheAccessAllowed(String prefix, EntityReference ref) {
+        ResponseCacheable cacheable = entityProviderManager.getProviderByPrefixAndCapability(prefix, ResponseCacheable.class);
+        if (cacheable == null) {
+            return false;
+        }
+        DeveloperHelperService dhs = getDeveloperHelperService();
+        String userReference = (dhs == null ? null : dhs.getCurrentUserReference());
+        return cacheable.isResponseCacheAccessAllowed(ref, userReference);
+    }
+
+    /**
+     * Puts an encoded response into the response cache
+     * @param cacheKey the key from {@link #makeResponseCacheKey(String, EntityView, String, HttpServletRequest)}
+     * @param prefix the entity prefix
+     * @param content the encoded content
+     * @param contentType the content type of the response
+     * @param etag (optional) the ETag of the content
+     * @param lastModified the last modified time of the content OR 0 or less if unknown
+     */
+    protected void cacheResponse(String cacheKey, String prefix, byte[] content, 
+            String contentType, String etag, long lastModified) {
+        ResponseCacheable cacheable = entityProviderManager.getProviderByPrefixAndCapability(prefix, ResponseCacheable.class);
+        if (cacheable != null && responseCache != null) {
+            int seconds = cacheable.getResponseCacheSeconds();
+            if (seconds > 0) {
+                responseCache.put(cacheKey, new EntityResponseCache.CachedResponse(prefix, content, 
+                        contentType, etag, lastModified, seconds * 1000l));
+            }
+        }
+    }
+
     /**
      * Force a response to be set for no caching,
      * can be run after other headers are set
@@ -1043,39 +1506,412 @@ public class EntityHandlerImpl implements EntityRequestHandler {
      */
     protected void setLastModifiedHeaders(HttpServletResponse res, EntityData ed, long lastModifiedTime) {
         long lastModified = System.currentTimeMillis();
+        if (ed != null) {
+            Long l = findLastModified(ed);
+            if (l != null) {
+                lastModified = l.longValue();
+            }
+        } else {
+            lastModified = lastModifiedTime;
+        }
+        setVersionHeaders(res, null, lastModified);
+    }
+
+    /**
+     * @param prefix an entity prefix
+     * @param view the parsed request view
+     * @return true if this is a request to export (/prefix/export) from an {@link Exportable} provider
+     * or import (/prefix/import) into an {@link Importable} provider
+     */
+    protected boolean isExportImportRequest(String prefix, EntityView view) {
+        String id = view.getEntityReference().getId();
+        if (EXPORT.equals(id)) {
+            return entityProviderManager.getProviderByPrefixAndCapability(prefix, Exportable.class) != null;
+        } else if (IMPORT.equals(id)) {
+            return entityProviderManager.getProviderByPrefixAndCapability(prefix, Importable.class) != null;
+        }
+        return false;
+    }
+
+    /**
+     * Streams an export from the provider into the response (GET /prefix/export?_reference=/site/123)
+     * or an import from the request into the provider (POST /prefix/import?_reference=/site/123&_encoding=key),
+     * the export goes out as it is written (no content length so the container sends it chunked)
+     * unless it is small enough to be held so the encoding key can go out with it
+     * (exports larger than {@link #EXPORT_HELD_SIZE} are sent without the encoding key header),
+     * the import is read by the provider straight from the request and the total count of created
+     * entities and bytes read are sent in headers once it completes<br/>
+     * Only admins or users with the export/import permission in the referenced entity can do this<br/>
+     * <b>NOTE:</b> if the provider fails after more than {@link #EXPORT_HELD_SIZE} bytes of an export
+     * have been written then the response is already committed with a 200 status, the failure is passed on
+     * so the servlet can abort the response (the connection is dropped instead of the response completing)
+     * and the client can tell the export is incomplete
+     * @param view the parsed request view (id is export or import)
+     * @param req the request
+     * @param res the response
+     * @throws EntityException if the request is invalid or the export/import fails
+     */
+    protected void handleExportImport(EntityView view, HttpServletRequest req, HttpServletResponse res) {
+        String prefix = view.getEntityReference().getPrefix();
+        String reference = req.getParameter(EXPORT_REFERENCE);
+        if (reference == null || "".equals(reference)) {
+            throw new EntityException("The " + EXPORT_REFERENCE + " parameter must be set to the reference of the entity the data is related to (e.g. /site/123)",
+                    view.getEntityReference()+"", HttpServletResponse.SC_BAD_REQUEST);
+        }
+        checkExportImportAllowed(view, reference);
+        RequestUtils.isRequestOutput(req, view); // sets the method
+        String method = view.getMethod();
+        Map<String, Object> params = requestStorage.getStorageMapCopy(true, false, true, true); // leave out headers
+        boolean changed = false;
+        try {
+            if (EXPORT.equals(view.getEntityReference().getId())) {
+                boolean destructive = Boolean.parseBoolean(req.getParameter(EXPORT_DESTRUCTIVE));
+                if (! EntityView.Method.GET.name().equals(method)
+                        && ! EntityView.Method.POST.name().equals(method)) {
+                    throw new EntityException("Exports must use GET or POST, not " + method, view+"", HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                } else if (destructive && ! EntityView.Method.POST.name().equals(method)) {
+                    throw new EntityException("Destructive exports must use POST", view+"", HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                }
+                Exportable exportable = entityProviderManager.getProviderByPrefixAndCapability(prefix, Exportable.class);
+                if (view.getExtension() != null) {
+                    RequestUtils.setResponseEncoding(view.getExtension(), res);
+                } else {
+                    res.setContentType(EXPORT_DEFAULT_MIME_TYPE);
+                }
+                res.setHeader(HEADER_ENTITY_REFERENCE, reference);
+                setNoCacheHeaders(res);
+                Search search = RequestUtils.makeSearchFromRequestParams(params);
+                DeferredResponseOutputStream outputStream = new DeferredResponseOutputStream(res, EXPORT_HELD_SIZE, null);
+                // the status if the export is too large to hold and the response is committed
+                res.setStatus(HttpServletResponse.SC_OK);
+                changed = destructive;
+                String encodingKey = exportable.exportData(reference, search, outputStream, destructive, params);
+                if (! outputStream.isCommitted()) {
+                    // the whole export was held so the headers can still be set
+                    if (encodingKey == null && outputStream.getBufferedCount() == 0) {
+                        res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    } else {
+                        if (encodingKey != null) {
+                            res.setHeader(HEADER_EXPORT_ENCODING, encodingKey);
+                        }
+                        res.setContentLength(outputStream.getBufferedCount());
+                        res.setStatus(HttpServletResponse.SC_OK);
+                    }
+                }
+                outputStream.finish();
+            } else {
+                if (! EntityView.Method.POST.name().equals(method)
+                        && ! EntityView.Method.PUT.name().equals(method)) {
+                    throw new EntityException("Imports must use POST or PUT, not " + method, view+"", HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                }
+                Importable importable = entityProviderManager.getProviderByPrefixAndCapability(prefix, Importable.class);
+                String encodingKey = req.getParameter(IMPORT_ENCODING);
+                if (encodingKey == null || "".equals(encodingKey)) {
+                    encodingKey = req.getHeader(HEADER_EXPORT_ENCODING);
+                }
+                CountingInputStream inputStream;
+                try {
+                    inputStream = new CountingInputStream(req.getInputStream());
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to get input stream from request: " + view, e);
+                }
+                changed = true;
+                String[] refs = importable.importData(reference, inputStream, encodingKey, params);
+                if (refs == null) {
+                    refs = new String[0];
+                }
+                res.setHeader(HEADER_IMPORT_TOTAL_COUNT, Integer.toString(refs.length));
+                res.setHeader(HEADER_IMPORT_TOTAL_SIZE, Long.toString(inputStream.getCount()));
+                // send back the references of the created entities
+                String format = view.getExtension() == null ? Formats.TXT : view.getExtension();
+                String output;
+                if (Formats.JSON.equals(format) || Formats.XML.equals(format)) {
+                    output = entityEncodingManager.encodeData(refs, format, "references", null);
+                } else {
+                    format = Formats.TXT;
+                    StringBuilder sb = new StringBuilder();
+                    for (String ref : refs) {
+                        sb.append(ref).append('\n');
+                    }
+                    output = sb.toString();
+                }
+                RequestUtils.setResponseEncoding(format, res);
+                res.setStatus(HttpServletResponse.SC_OK);
+                try {
+                    res.getOutputStream().write(output.getBytes(Formats.UTF_8));
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to write import results to response: " + view, e);
+                }
+            }
+        } catch (SecurityException e) {
+            throw new EntityException("Security exception handling " + view.getEntityReference().getId() + " for (" + reference + "): " + e.getMessage(),
+                    view.getEntityReference()+"", HttpServletResponse.SC_FORBIDDEN);
+        } catch (IllegalArgumentException e) {
+            throw new EntityException("Invalid " + view.getEntityReference().getId() + " request for (" + reference + "): " + e.getMessage(),
+                    view.getEntityReference()+"", HttpServletResponse.SC_BAD_REQUEST);
+        } catch (IllegalStateException e) {
+            throw new EntityException("Failure during " + view.getEntityReference().getId() + " for (" + reference + "): " + e.getMessage(),
+                    view.getEntityReference()+"", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            if (changed && responseCache != null) {
+                // the entities for this prefix changed so the cached responses are out of date
+                responseCache.invalidatePrefix(prefix);
+            }
+        }
+    }
+
+    /**
+     * Checks the current user can export from or import into the referenced entity
+     * (admins or users with the {@link #setExportImportPermission(String)} permission in it)
+     * and that the entity exists if it is handled by a registered provider,
+     * references to entities outside the entity broker are only checked for the permission
+     * @param view the parsed request view (id is export or import)
+     * @param reference the reference of the entity the data is related to
+     * @throws EntityException (403) if the user is not allowed, (404) if the entity does not exist,
+     * (400) if the reference is invalid
+     */
+    protected void checkExportImportAllowed(EntityView view, String reference) {
+        String action = view.getEntityReference().getId();
+        DeveloperHelperService dhs = getDeveloperHelperService();
+        if (dhs == null) {
+            throw new EntityException("Cannot " + action + " for (" + reference + "), there is no way to check the permissions of the current user",
+                    view.getEntityReference()+"", HttpServletResponse.SC_FORBIDDEN);
+        }
+        String userReference = dhs.getCurrentUserReference();
+        if (userReference == null
+                || (! dhs.isUserAdmin(userReference)
+                        && ! dhs.isUserAllowedInEntityReference(userReference, exportImportPermission, reference)) ) {
+            throw new EntityException("Current user (" + userReference + ") is not allowed to " + action + " for (" + reference
+                    + "), this requires admin or the " + exportImportPermission + " permission",
+                    view.getEntityReference()+"", HttpServletResponse.SC_FORBIDDEN);
+        }
+        EntityReference target;
+        try {
+            target = entityBrokerManager.parseReference(reference);
+        } catch (IllegalArgumentException e) {
+            throw new EntityException("Invalid " + EXPORT_REFERENCE + " (" + reference + ") for " + action + ": " + e.getMessage(),
+                    view.getEntityReference()+"", HttpServletResponse.SC_BAD_REQUEST);
+        }
+        if (target != null
+                && ! entityBrokerManager.entityExists(target)) {
+            throw new EntityException("Cannot " + action + " for an entity (" + reference + ") that does not exist",
+                    view.getEntityReference()+"", HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the request so the size of an import can be reported,
+     * nothing is held here so the import is only buffered as much as the provider chooses to
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+        public long getCount() {
+            return count;
+        }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Holds the content written into it (and hashes it) so it can be used before it is sent,
+     * once more than the limit is written the status is set to OK, the held content is written
+     * into the target stream and everything after that is streamed straight into the target
+     */
+    private static class HeldContentOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final HttpServletResponse res;
+        private final int limit;
+        private final CRC32 crc = new CRC32();
+        private ByteArrayOutputStream held = new ByteArrayOutputStream();
+        public HeldContentOutputStream(OutputStream target, HttpServletResponse res, int limit) {
+            this.target = target;
+            this.res = res;
+            this.limit = limit;
+        }
+        /**
+         * @return true if all the content is still held, false if it went over the limit and was streamed
+         */
+        public boolean isHeld() {
+            return held != null;
+        }
+        public int size() {
+            return held.size();
+        }
+        public long getChecksum() {
+            return crc.getValue();
+        }
+        public byte[] toByteArray() {
+            return held.toByteArray();
+        }
+        /**
+         * Writes the held content into the target stream
+         */
+        public void writeHeldContent() throws IOException {
+            held.writeTo(target);
+            held = null;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (held != null && held.size() + len > limit) {
+                res.setStatus(HttpServletResponse.SC_OK);
+                writeHeldContent();
+            }
+            if (held == null) {
+                target.write(b, off, len);
+            } else {
+                held.write(b, off, len);
+                crc.update(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Writes a rendered description into the response,
+     * the client is sent a 304 instead if it already has the current version of it
+     * @param req the request
+     * @param res the response
+     * @param doc the rendered description
+     */
+    protected void writeDescribeDocument(HttpServletRequest req, HttpServletResponse res, DescribeDocument doc) {
+        setVersionHeaders(res, doc.etag, -1);
+        if (RequestUtils.isNotModified(req, doc.etag, -1)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        res.setContentLength(doc.content.length);
+        try {
+            res.getOutputStream().write(doc.content);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to put output into the response stream: " + e.getMessage(), e);
+        }
+        res.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Sets the ETag and Last-Modified headers for the current version of the data
+     * @param res the response
+     * @param etag (optional) the ETag, if null then the last modified time is used as the ETag
+     * @param lastModified the last modified time, 0 or less if unknown (Last-Modified header is left alone)
+     */
+    protected void setVersionHeaders(HttpServletResponse res, String etag, long lastModified) {
+        if (lastModified > 0) {
+            res.setDateHeader(ActionReturn.Header.LAST_MODIFIED.toString(), lastModified);
+        }
+        String currentEtag = (etag != null ? etag : String.valueOf(lastModified));
+        res.setHeader(ActionReturn.Header.ETAG.toString(), "\"" + currentEtag + "\"");
+    }
+
+    /**
+     * Sets the version headers for entity output and checks them against the conditional request headers,
+     * the ETag is made specific to the content encoding of the response so that compressed and
+     * uncompressed copies of the same data never share an ETag
+     * @param req the request
+     * @param res the response
+     * @param etag (optional) the ETag, if null then the last modified time is used as the ETag
+     * @param lastModified the last modified time, 0 or less if unknown
+     * @param checkModifiedSince if false then If-Modified-Since is ignored (only the ETag is checked)
+     * @return true if the client already has the current version of the data
+     */
+    protected boolean setOutputVersionHeaders(HttpServletRequest req, HttpServletResponse res, String etag, 
+            long lastModified, boolean checkModifiedSince) {
+        String currentEtag = (etag != null ? etag : String.valueOf(lastModified));
+        if (getCompressionThreshold() >= 0) {
+            // not modified responses have to carry the same Vary header as the content would
+            res.setHeader(RequestUtils.HEADER_VARY, RequestUtils.HEADER_ACCEPT_ENCODING);
+            String contentEncoding = RequestUtils.findAcceptedContentEncoding(req);
+            if (contentEncoding != null) {
+                currentEtag = currentEtag + "-" + contentEncoding;
+            }
+        }
+        setVersionHeaders(res, currentEtag, lastModified);
+        return RequestUtils.isNotModified(req, currentEtag, checkModifiedSince ? lastModified : -1);
+    }
+
+    /**
+     * Find the newest last modified time for a list of entity data
+     * @param entities (optional) the entity data
+     * @return the newest last modified time OR null if the list is empty or any of the entities has no last modified time
+     */
+    protected Long findLastModified(List<EntityData> entities) {
+        Long lastModified = null;
+        if (entities != null) {
+            for (EntityData ed : entities) {
+                Long l = findLastModified(ed);
+                if (l == null) {
+                    lastModified = null;
+                    break;
+                }
+                if (lastModified == null 
+                        || l.longValue() > lastModified.longValue()) {
+                    lastModified = l;
+                }
+            }
+        }
+        return lastModified;
+    }
+
+    /**
+     * Find the last modified time for some entity data,
+     * looks in the lastModified property first and then for the {@link EntityLastModified} annotation on the entity
+     * @param ed (optional) some entity data
+     * @return the last modified time OR null if it cannot be found
+     */
+    protected Long findLastModified(EntityData ed) {
+        Long lastModified = null;
         if (ed != null) {
             // try to get from props first
-            boolean found = false;
             Object lm = ed.getEntityProperties().get("lastModified");
             if (lm != null) {
-                Long l = makeLastModified(lm);
-                if (l != null) {
-                    lastModified = l.longValue();
-                    found = true;
-                }
+                lastModified = makeLastModified(lm);
             }
-            if (!found) {
-                if (ed.getData() != null) {
-                    // look for the annotation on the entity
+            if (lastModified == null 
+                    && ed.getData() != null) {
+                // look for the annotation on the entity
+                EntityClassMetadata metadata = EntityClassMetadata.getMetadata(ed.getData().getClass());
+                if (metadata.isResolved()) {
+                    lastModified = makeLastModified( metadata.getLastModified(ed.getData()) );
+                } else {
                     try {
                         lm = ReflectUtils.getInstance().getFieldValue(ed.getData(), "lastModified", EntityLastModified.class);
-                        Long l = makeLastModified(lm);
-                        if (l != null) {
-                            lastModified = l.longValue();
-                            found = true;
-                        }
+                        lastModified = makeLastModified(lm);
                     } catch (FieldnameNotFoundException e1) {
                         // nothing to do here
                     }
                 }
             }
-        } else {
-            lastModified = lastModifiedTime;
         }
-        // ETag or Last-Modified
-        res.setDateHeader(ActionReturn.Header.LAST_MODIFIED.toString(), lastModified);
-        String currentEtag = String.valueOf(lastModified);
-        res.setHeader(ActionReturn.Header.ETAG.toString(), currentEtag);
+        return lastModified;
     }
 
     /**
@@ -0,0 +1,689 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityInputBinder.java - entity-broker - Oct 18, 2026 12:41:27 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.map.ArrayOrderedMap;
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.exception.EntityEncodingException;
+import org.sakaiproject.entitybroker.exception.EntityException;
+import org.sakaiproject.entitybroker.util.EntityClassMetadata;
+
+/**
+ * Binds JSON or XML input straight from the request stream into an entity object,
+ * the input is read token by token and each top level value is kept as it is parsed and then
+ * set on the entity (using the setters from {@link EntityClassMetadata}) once all the input has been parsed,
+ * so the body is never held as a String or decoded into an intermediate map first and input which is invalid,
+ * truncated, or over the limits leaves the entity unchanged, only values for nested objects and arrays are built
+ * (as maps and lists) before they are set<br/>
+ * This matches the data the {@link EntityEncodingManager#decodeData(String, String)} and
+ * {@link ReflectUtils#populate(Object, Map)} round trip would set: unknown properties are ignored and
+ * input which is wrapped in an object named for the entity prefix is unwrapped<br/>
+ * The size of the input (in bytes) and the nesting depth are limited, this is thread safe
+ */
+public class EntityInputBinder {
+
+    /**
+     * The default limit on the size of the input (10 MB)
+     */
+    public static final long DEFAULT_MAX_INPUT_SIZE = 10l * 1024l * 1024l;
+    /**
+     * The default limit on how deeply objects and arrays can be nested in the input
+     */
+    public static final int DEFAULT_MAX_INPUT_DEPTH = 32;
+
+    private static final String UTF_8 = "UTF-8";
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        // no DTDs or external entities in the input
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private final long maxInputSize;
+    private final int maxInputDepth;
+
+    public EntityInputBinder() {
+        this(DEFAULT_MAX_INPUT_SIZE, DEFAULT_MAX_INPUT_DEPTH);
+    }
+
+    /**
+     * @param maxInputSize the maximum size of the input in bytes, 0 or less for no limit
+     * @param maxInputDepth the maximum nesting depth of objects and arrays (the entity itself is depth 1),
+     * 0 or less for no limit
+     */
+    public EntityInputBinder(long maxInputSize, int maxInputDepth) {
+        this.maxInputSize = maxInputSize;
+        this.maxInputDepth = maxInputDepth;
+    }
+
+    public long getMaxInputSize() {
+        return maxInputSize;
+    }
+
+    public int getMaxInputDepth() {
+        return maxInputDepth;
+    }
+
+    /**
+     * @param entity the entity object which the input will be bound into
+     * @param format the format of the input (from {@link Formats})
+     * @return true if the input can be bound into this entity by this binder (JSON or XML into a bean),
+     * false if the input has to be decoded and populated instead
+     */
+    public static boolean isBindable(Object entity, String format) {
+        return entity != null
+            && (Formats.JSON.equals(format) || Formats.XML.equals(format))
+            && EntityClassMetadata.getMetadata(entity.getClass()).isResolved();
+    }
+
+    /**
+     * Bind the input into the entity object
+     *
+     * @param ref the reference for the entity (the prefix is the name of the optional wrapper object)
+     * @param format the format of the input ({@link Formats#JSON} or {@link Formats#XML})
+     * @param input the input stream, this will be read to the end of the entity data but is not closed
+     * @param entity the entity object to set the values on, must be bindable (see {@link #isBindable(Object, String)}),
+     * nothing is set on it unless all the input is parsed
+     * @throws EntityEncodingException if the input is invalid or a value cannot be set on the entity
+     * @throws EntityException (413) if the input is larger than the size limit or (400) nested deeper than the depth limit
+     */
+    public void bind(EntityReference ref, String format, InputStream input, Object entity) {
+        if (ref == null || input == null || entity == null) {
+            throw new IllegalArgumentException("ref, input, and entity must not be null");
+        }
+        EntityClassMetadata metadata = EntityClassMetadata.getMetadata(entity.getClass());
+        if (! metadata.isResolved()) {
+            throw new IllegalArgumentException("Cannot bind input into an entity which is not a bean: " + entity.getClass());
+        }
+        LimitedInputStream limited = new LimitedInputStream(input, maxInputSize);
+        Binding binding = new Binding(ref, entity, metadata);
+        try {
+            if (Formats.JSON.equals(format)) {
+                bindJSON(new JSONTokenizer(new InputStreamReader(limited, UTF_8)), binding);
+            } else if (Formats.XML.equals(format)) {
+                bindXML(limited, binding);
+            } else {
+                throw new IllegalArgumentException("Cannot bind input in format ("+format+"), only JSON and XML can be bound");
+            }
+        } catch (IOException e) {
+            checkLimit(ref, limited);
+            throw new EntityEncodingException("Unable to read input for ref ("+ref+"): " + e.getMessage(), ref+"", e);
+        } catch (XMLStreamException e) {
+            checkLimit(ref, limited);
+            throw new EntityEncodingException("Invalid XML input for ref ("+ref+"): " + e.getMessage(), ref+"", e);
+        }
+        // the input is all parsed so it is safe to change the entity now
+        for (int i = 0; i < binding.names.size(); i++) {
+            setValue(binding, binding.names.get(i), binding.values.get(i), binding.compound.get(i));
+        }
+    }
+
+    /**
+     * Read all of the input into a string (within the size limit),
+     * this is used when the input cannot be bound directly
+     *
+     * @param ref the reference for the entity
+     * @param input the input stream (UTF-8)
+     * @return the input as a string
+     * @throws EntityException (413) if the input is larger than the size limit
+     */
+    public String readInput(EntityReference ref, InputStream input) {
+        LimitedInputStream limited = new LimitedInputStream(input, maxInputSize);
+        StringBuilder sb = new StringBuilder();
+        try {
+            Reader reader = new InputStreamReader(limited, UTF_8);
+            char[] buffer = new char[READ_BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            checkLimit(ref, limited);
+            throw new EntityEncodingException("Unable to read input for ref ("+ref+"): " + e.getMessage(), ref+"", e);
+        }
+        return sb.toString();
+    }
+
+    private void checkLimit(EntityReference ref, LimitedInputStream limited) {
+        if (limited.exceeded) {
+            throw new EntityException("Input for reference ("+ref+") is larger than the limit of " + maxInputSize + " bytes",
+                    ref+"", HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+    }
+
+    private void checkDepth(EntityReference ref, int depth) {
+        if (maxInputDepth > 0 && depth > maxInputDepth) {
+            throw new EntityException("Input for reference ("+ref+") is nested deeper than the limit of " + maxInputDepth,
+                    ref+"", HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Set a parsed value on the entity being bound, unknown properties are ignored
+     */
+    private void setValue(Binding binding, String name, Object value, boolean compound) {
+        try {
+            if (compound) {
+                // let reflectutils handle converting maps and lists into the property type (same as populate)
+                ReflectUtils.getInstance().setFieldValue(binding.entity, name, value);
+            } else {
+                binding.metadata.setPropertyValue(binding.entity, name, value);
+            }
+        } catch (RuntimeException e) {
+            throw new EntityEncodingException("Unable to set property ("+name+") for ref ("+binding.ref+") from value ("
+                    + value + "): " + e.getMessage(), binding.ref+"", e);
+        }
+    }
+
+    /**
+     * @return true if the named property should be read and set, false if it should be skipped
+     */
+    private boolean isWriteable(Binding binding, String name) {
+        return binding.metadata.getPropertyType(name) != null;
+    }
+
+    /**
+     * @return true if this value is the wrapper for the entity data (named for the prefix and not a property)
+     */
+    private boolean isWrapper(Binding binding, String name) {
+        return binding.ref.getPrefix().equals(name) && ! isWriteable(binding, name);
+    }
+
+    // JSON
+
+    private void bindJSON(JSONTokenizer tokenizer, Binding binding) throws IOException {
+        if (tokenizer.peek() != '{') {
+            throw tokenizer.error("JSON input must be an object");
+        }
+        bindJSONObject(tokenizer, binding, 1);
+        if (tokenizer.peek() != -1) {
+            throw tokenizer.error("Unexpected data after the end of the JSON object");
+        }
+    }
+
+    private void bindJSONObject(JSONTokenizer tokenizer, Binding binding, int depth) throws IOException {
+        checkDepth(binding.ref, depth);
+        tokenizer.expect('{');
+        if (tokenizer.peek() == '}') {
+            tokenizer.read();
+            return;
+        }
+        while (true) {
+            String name = tokenizer.readString();
+            tokenizer.expect(':');
+            int next = tokenizer.peek();
+            if (next == '{' && depth == 1 && isWrapper(binding, name)) {
+                bindJSONObject(tokenizer, binding, depth + 1);
+            } else if (isWriteable(binding, name)) {
+                boolean compound = next == '{' || next == '[';
+                binding.add(name, readJSONValue(tokenizer, binding.ref, depth + 1), compound);
+            } else {
+                skipJSONValue(tokenizer, binding.ref, depth + 1);
+            }
+            int c = tokenizer.read();
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                throw tokenizer.error("Expected , or } in JSON object");
+            }
+        }
+    }
+
+    private Object readJSONValue(JSONTokenizer tokenizer, EntityReference ref, int depth) throws IOException {
+        Object value;
+        int c = tokenizer.peek();
+        if (c == '{') {
+            checkDepth(ref, depth);
+            tokenizer.read();
+            Map<String, Object> map = new ArrayOrderedMap<String, Object>();
+            if (tokenizer.peek() == '}') {
+                tokenizer.read();
+            } else {
+                while (true) {
+                    String name = tokenizer.readString();
+                    tokenizer.expect(':');
+                    map.put(name, readJSONValue(tokenizer, ref, depth + 1));
+                    int n = tokenizer.read();
+                    if (n == '}') {
+                        break;
+                    } else if (n != ',') {
+                        throw tokenizer.error("Expected , or } in JSON object");
+                    }
+                }
+            }
+            value = map;
+        } else if (c == '[') {
+            checkDepth(ref, depth);
+            tokenizer.read();
+            List<Object> list = new ArrayList<Object>();
+            if (tokenizer.peek() == ']') {
+                tokenizer.read();
+            } else {
+                while (true) {
+                    list.add( readJSONValue(tokenizer, ref, depth + 1) );
+                    int n = tokenizer.read();
+                    if (n == ']') {
+                        break;
+                    } else if (n != ',') {
+                        throw tokenizer.error("Expected , or ] in JSON array");
+                    }
+                }
+            }
+            value = list;
+        } else if (c == '"') {
+            value = tokenizer.readString();
+        } else {
+            value = tokenizer.readLiteral();
+        }
+        return value;
+    }
+
+    /**
+     * Skips over a value without building it (strings are still unescaped to find the end)
+     */
+    private void skipJSONValue(JSONTokenizer tokenizer, EntityReference ref, int depth) throws IOException {
+        int c = tokenizer.peek();
+        if (c == '{' || c == '[') {
+            checkDepth(ref, depth);
+            tokenizer.read();
+            int end = c == '{' ? '}' : ']';
+            if (tokenizer.peek() == end) {
+                tokenizer.read();
+                return;
+            }
+            while (true) {
+                if (c == '{') {
+                    tokenizer.readString();
+                    tokenizer.expect(':');
+                }
+                skipJSONValue(tokenizer, ref, depth + 1);
+                int n = tokenizer.read();
+                if (n == end) {
+                    break;
+                } else if (n != ',') {
+                    throw tokenizer.error("Expected , or " + (char) end + " in JSON input");
+                }
+            }
+        } else if (c == '"') {
+            tokenizer.readString();
+        } else {
+            tokenizer.readLiteral();
+        }
+    }
+
+    // XML
+
+    private void bindXML(InputStream input, Binding binding) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(input);
+        try {
+            // move to the root element, the name of it does not matter
+            while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip the prolog
+            }
+            if (! reader.isStartElement()) {
+                throw new EntityEncodingException("XML input for ref ("+binding.ref+") has no root element", binding.ref+"");
+            }
+            bindXMLElement(reader, binding, 1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Binds the child elements of the current element into the entity, ends on the end of the current element
+     */
+    private void bindXMLElement(XMLStreamReader reader, Binding binding, int depth) throws XMLStreamException {
+        checkDepth(binding.ref, depth);
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (depth == 1 && isWrapper(binding, name)) {
+                    bindXMLElement(reader, binding, depth + 1);
+                } else if (isWriteable(binding, name)) {
+                    Object value = readXMLValue(reader, binding.ref, depth + 1);
+                    binding.add(name, value, value instanceof Map || value instanceof List);
+                } else {
+                    skipXMLElement(reader, binding.ref, depth + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the current element as a value (string for text, map or list if there are child elements),
+     * ends on the end of the current element
+     */
+    private Object readXMLValue(XMLStreamReader reader, EntityReference ref, int depth) throws XMLStreamException {
+        String type = reader.getAttributeValue(null, "type");
+        boolean typedList = "array".equals(type) || "collection".equals(type) || "list".equals(type);
+        StringBuilder text = null;
+        Map<String, Object> map = null;
+        List<Object> list = null;
+        boolean sameNames = true;
+        String lastName = null;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (list == null) {
+                    checkDepth(ref, depth);
+                    map = new ArrayOrderedMap<String, Object>();
+                    list = new ArrayList<Object>();
+                }
+                String name = reader.getLocalName();
+                if (lastName != null && ! lastName.equals(name)) {
+                    sameNames = false;
+                }
+                lastName = name;
+                Object value = readXMLValue(reader, ref, depth + 1);
+                map.put(name, value);
+                list.add(value);
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (text == null) {
+                    text = new StringBuilder();
+                }
+                text.append(reader.getText());
+            }
+        }
+        Object value;
+        if (list != null) {
+            // repeated elements with the same name are an array
+            value = (typedList || (sameNames && list.size() > 1)) ? list : map;
+        } else if (typedList) {
+            value = new ArrayList<Object>(0);
+        } else if ("null".equals(type)) {
+            value = null;
+        } else {
+            value = text == null ? "" : text.toString().trim();
+        }
+        return value;
+    }
+
+    private void skipXMLElement(XMLStreamReader reader, EntityReference ref, int depth) throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                checkDepth(ref, depth);
+                skipXMLElement(reader, ref, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * The entity being bound and the values parsed for it (in input order) which have not been set yet
+     */
+    private static class Binding {
+        final EntityReference ref;
+        final Object entity;
+        final EntityClassMetadata metadata;
+        final List<String> names = new ArrayList<String>();
+        final List<Object> values = new ArrayList<Object>();
+        final List<Boolean> compound = new ArrayList<Boolean>();
+        Binding(EntityReference ref, Object entity, EntityClassMetadata metadata) {
+            this.ref = ref;
+            this.entity = entity;
+            this.metadata = metadata;
+        }
+        void add(String name, Object value, boolean compoundValue) {
+            names.add(name);
+            values.add(value);
+            compound.add(compoundValue);
+        }
+    }
+
+    /**
+     * Stops reading (with an IOException) once more than the limit has been read
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count = 0;
+        boolean exceeded = false;
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+        private void count(long read) throws IOException {
+            if (read > 0) {
+                count += read;
+                if (limit > 0 && count > limit) {
+                    exceeded = true;
+                    throw new IOException("Input is larger than the limit of " + limit + " bytes");
+                }
+            }
+        }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            count(read);
+            return read;
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        @Override
+        public void close() throws IOException {
+            // the request stream is closed by the container
+        }
+    }
+
+    /**
+     * A minimal JSON tokenizer which reads from a buffered reader one char at a time
+     */
+    private static class JSONTokenizer {
+        private final Reader reader;
+        private final char[] buffer = new char[READ_BUFFER_SIZE];
+        private int position = 0;
+        private int length = 0;
+        private long offset = 0;
+        private final StringBuilder sb = new StringBuilder();
+
+        JSONTokenizer(Reader reader) {
+            this.reader = reader;
+        }
+
+        private boolean fill() throws IOException {
+            if (position >= length) {
+                offset += length;
+                length = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (length <= 0) {
+                    length = 0;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the next char (not whitespace) without consuming it OR -1 if the end of the input is reached
+         */
+        int peek() throws IOException {
+            while (fill()) {
+                char c = buffer[position];
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                    position++;
+                } else {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the next char (not whitespace) OR -1 if the end of the input is reached
+         */
+        int read() throws IOException {
+            int c = peek();
+            if (c != -1) {
+                position++;
+            }
+            return c;
+        }
+
+        private int readRaw() throws IOException {
+            if (! fill()) {
+                throw error("Unexpected end of JSON input");
+            }
+            return buffer[position++];
+        }
+
+        void expect(char expected) throws IOException {
+            if (read() != expected) {
+                throw error("Expected " + expected + " in JSON input");
+            }
+        }
+
+        String readString() throws IOException {
+            expect('"');
+            sb.setLength(0);
+            while (true) {
+                int c = readRaw();
+                if (c == '"') {
+                    break;
+                } else if (c == '\\') {
+                    int e = readRaw();
+                    switch (e) {
+                        case '"': sb.append('"'); break;
+                        case '\\': sb.append('\\'); break;
+                        case '/': sb.append('/'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'u':
+                            int code = 0;
+                            for (int i = 0; i < 4; i++) {
+                                int digit = Character.digit(readRaw(), 16);
+                                if (digit < 0) {
+                                    throw error("Invalid unicode escape in JSON string");
+                                }
+                                code = (code << 4) + digit;
+                            }
+                            sb.append((char) code);
+                            break;
+                        default:
+                            throw error("Invalid escape in JSON string");
+                    }
+                } else {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return the value of a number, true, false, or null
+         */
+        Object readLiteral() throws IOException {
+            sb.setLength(0);
+            while (fill()) {
+                char c = buffer[position];
+                if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E') {
+                    sb.append(c);
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            String literal = sb.toString();
+            Object value;
+            if ("null".equals(literal)) {
+                value = null;
+            } else if ("true".equals(literal)) {
+                value = Boolean.TRUE;
+            } else if ("false".equals(literal)) {
+                value = Boolean.FALSE;
+            } else {
+                value = parseNumber(literal);
+            }
+            return value;
+        }
+
+        private Object parseNumber(String literal) throws IOException {
+            if (literal.length() == 0) {
+                throw error("Expected a value in JSON input");
+            }
+            try {
+                if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0) {
+                    return Double.valueOf(literal);
+                }
+                // anything shorter than 10 chars fits in an int and shorter than 19 fits in a long
+                if (literal.length() < 10) {
+                    return Integer.valueOf(literal);
+                } else if (literal.length() < 19) {
+                    return Long.valueOf(literal);
+                }
+                return new BigInteger(literal);
+            } catch (NumberFormatException e) {
+                throw error("Invalid value (" + literal + ") in JSON input");
+            }
+        }
+
+        IOException error(String message) {
+            return new IOException(message + " at char " + (offset + position));
+        }
+    }
+
+}
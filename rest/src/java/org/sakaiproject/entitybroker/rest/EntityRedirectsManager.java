@@ -20,7 +20,6 @@
 
 package org.sakaiproject.entitybroker.rest;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -37,9 +36,11 @@ import org.sakaiproject.entitybroker.entityprovider.extension.URLRedirect;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.exception.EntityNotFoundException;
 import org.sakaiproject.entitybroker.exception.FormatUnsupportedException;
+import org.sakaiproject.entitybroker.util.MethodInvoker;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.PreProcessedTemplate;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil.ProcessedTemplate;
+import org.sakaiproject.entitybroker.util.core.EntityProviderMethodStoreImpl;
 
 
 /**
@@ -161,58 +162,55 @@ public class EntityRedirectsManager {
                     } else if (redirect.methodName != null) {
                         // call the redirect method
                         Object result = null;
-                        Method method = redirect.getMethod();
-                        if (method == null) {
-                            try {
-                                // Note: this is really expensive, need to cache the Method lookup
-                                method = entityProvider.getClass().getMethod(redirect.methodName, redirect.methodArgTypes);
-                            } catch (SecurityException e1) {
-                                throw new RuntimeException("Fatal error trying to get URL redirect method: " + redirect, e1);
-                            } catch (NoSuchMethodException e1) {
-                                throw new RuntimeException("Fatal error trying to get URL redirect method: " + redirect, e1);
+                        MethodInvoker invoker = redirect.getInvoker();
+                        if (invoker == null) {
+                            Method method = redirect.getMethod();
+                            if (method == null) {
+                                try {
+                                    // Note: this is really expensive, need to cache the Method lookup
+                                    method = entityProvider.getClass().getMethod(redirect.methodName, redirect.methodArgTypes);
+                                } catch (SecurityException e1) {
+                                    throw new RuntimeException("Fatal error trying to get URL redirect method: " + redirect, e1);
+                                } catch (NoSuchMethodException e1) {
+                                    throw new RuntimeException("Fatal error trying to get URL redirect method: " + redirect, e1);
+                                }
+                                redirect.setMethod(method); // cache this method lookup
                             }
-                            redirect.setMethod(method); // cache this method lookup
-                        }
-                        Object[] args = new Object[redirect.methodArgTypes.length];
-                        for (int i = 0; i < redirect.methodArgTypes.length; i++) {
-                            Class<?> argType = redirect.methodArgTypes[i];
-                            if (String.class.equals(argType)) {
-                                args[i] = incomingURL;
-                            } else if (String[].class.equals(argType)) {
-                                args[i] = processedTemplate.variableNames.toArray(new String[processedTemplate.variableNames.size()]);
-                            } else if (Map.class.equals(argType)) {
-                                args[i] = segmentValues;
-                            } else {
-                                throw new IllegalStateException("URL redirect method ("+redirect+") contains an invalid methodArgTypes, " +
+                            invoker = EntityProviderMethodStoreImpl.makeURLRedirectInvoker(redirect, method);
+                            if (invoker == null) {
+                                throw new IllegalStateException("URL redirect method ("+redirect+") contains an invalid methodArgTypes or cannot be accessed, " +
                                 "only valid types allowed: String, String[], Map");
                             }
+                            redirect.setInvoker(invoker); // cache the compiled method
+                        }
+                        String[] variableNames = null;
+                        if (invoker.isBound(EntityProviderMethodStoreImpl.REDIRECT_ARG_VARIABLE_NAMES)) {
+                            variableNames = processedTemplate.variableNames.toArray(new String[processedTemplate.variableNames.size()]);
                         }
                         try {
-                            result = method.invoke(entityProvider, args);
-                        } catch (IllegalArgumentException e) {
-                            throw new RuntimeException("Fatal error trying to execute URL redirect method: " + redirect, e);
-                        } catch (IllegalAccessException e) {
-                            throw new RuntimeException("Fatal error trying to execute URL redirect method: " + redirect, e);
-                        } catch (InvocationTargetException e) {
+                            // NOTE: the static arg types must exactly match the validRedirectParamTypes order
+                            result = (Object) invoker.getHandle().invokeExact((Object) entityProvider, incomingURL, variableNames, segmentValues);
+                        } catch (Error e) {
+                            // errors (like out of memory) are never wrapped
+                            throw e;
+                        } catch (Throwable e) {
                             String reference = incomingURL;
-                            if (e.getCause() != null) {
-                                if (e.getCause().getClass().isAssignableFrom(IllegalArgumentException.class)) {
-                                    throw new IllegalArgumentException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                                } else if (e.getCause().getClass().isAssignableFrom(EntityNotFoundException.class)) {
-                                    throw new EntityNotFoundException(e.getCause().getMessage() + " (rethrown)", reference, e.getCause());
-                                } else if (e.getCause().getClass().isAssignableFrom(FormatUnsupportedException.class)) {
-                                    String format = ((FormatUnsupportedException)e.getCause()).format;
-                                    throw new FormatUnsupportedException(e.getCause().getMessage() + " (rethrown)", e.getCause(), reference, format);
-                                } else if (e.getCause().getClass().isAssignableFrom(UnsupportedOperationException.class)) {
-                                    throw new UnsupportedOperationException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                                } else if (e.getCause().getClass().isAssignableFrom(EntityException.class)) {
-                                    int code = ((EntityException)e.getCause()).responseCode;
-                                    throw new EntityException(e.getCause().getMessage() + " (rethrown)", reference, code);
-                                } else if (e.getCause().getClass().isAssignableFrom(IllegalStateException.class)) {
-                                    throw new IllegalStateException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                                } else if (e.getCause().getClass().isAssignableFrom(SecurityException.class)) {
-                                    throw new SecurityException(e.getCause().getMessage() + " (rethrown)", e.getCause());
-                                }
+                            if (e.getClass().isAssignableFrom(IllegalArgumentException.class)) {
+                                throw new IllegalArgumentException(e.getMessage() + " (rethrown)", e);
+                            } else if (e.getClass().isAssignableFrom(EntityNotFoundException.class)) {
+                                throw new EntityNotFoundException(e.getMessage() + " (rethrown)", reference, e);
+                            } else if (e.getClass().isAssignableFrom(FormatUnsupportedException.class)) {
+                                String format = ((FormatUnsupportedException)e).format;
+                                throw new FormatUnsupportedException(e.getMessage() + " (rethrown)", e, reference, format);
+                            } else if (e.getClass().isAssignableFrom(UnsupportedOperationException.class)) {
+                                throw new UnsupportedOperationException(e.getMessage() + " (rethrown)", e);
+                            } else if (e.getClass().isAssignableFrom(EntityException.class)) {
+                                int code = ((EntityException)e).responseCode;
+                                throw new EntityException(e.getMessage() + " (rethrown)", reference, code);
+                            } else if (e.getClass().isAssignableFrom(IllegalStateException.class)) {
+                                throw new IllegalStateException(e.getMessage() + " (rethrown)", e);
+                            } else if (e.getClass().isAssignableFrom(SecurityException.class)) {
+                                throw new SecurityException(e.getMessage() + " (rethrown)", e);
                             }
                             throw new RuntimeException("Fatal error trying to execute URL redirect method: " + redirect, e);
                         }
@@ -0,0 +1,277 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityResponseCache.java - entity-broker - Oct 17, 2026 4:21:36 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ResponseCacheable;
+import org.sakaiproject.entitybroker.event.EventReceiver;
+
+/**
+ * Holds the encoded output of read requests for {@link ResponseCacheable} entity providers,
+ * entries are evicted when they expire, when the cache is over the maximum number of entries
+ * or bytes (least recently used first), or when an event happens for an entity with the same prefix
+ */
+public class EntityResponseCache implements EventReceiver {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    /**
+     * access ordered so the eldest entry is the least recently used one
+     */
+    private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<String, CachedResponse>(64, 0.75f, true);
+    /**
+     * the number of cached entries for each prefix, allows events for uncached prefixes to be ignored quickly
+     */
+    private final Map<String, Integer> prefixCounts = new HashMap<String, Integer>();
+
+    /**
+     * @param maxEntries the maximum number of responses to hold
+     * @param maxBytes the maximum total size of the responses to hold,
+     * responses larger than a quarter of this are never cached
+     */
+    public EntityResponseCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must both be greater than 0");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Make the key for a cached response
+     * @param entityURL the entity URL (including the extension)
+     * @param format the output format
+     * @param queryString (optional) the query string of the request
+     * @param userReference (optional) the current user, null if the response is shared by all users
+     * @return the cache key
+     */
+    public static String makeKey(String entityURL, String format, String queryString, String userReference) {
+        StringBuilder sb = new StringBuilder(entityURL.length() + 32);
+        sb.append(entityURL);
+        sb.append('|');
+        sb.append(format);
+        sb.append('|');
+        if (queryString != null) {
+            sb.append(queryString);
+        }
+        sb.append('|');
+        if (userReference != null) {
+            sb.append(userReference);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get a cached response
+     * @param key the key made by {@link #makeKey(String, String, String, String)}
+     * @return the cached response OR null if there is none or it has expired
+     */
+    public synchronized CachedResponse get(String key) {
+        CachedResponse response = cache.get(key);
+        if (response != null
+                && response.expires < System.currentTimeMillis()) {
+            removeEntry(key);
+            response = null;
+        }
+        if (response == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return response;
+    }
+
+    /**
+     * Cache a response, the least recently used responses are evicted to make space for it
+     * @param key the key made by {@link #makeKey(String, String, String, String)}
+     * @param response the response to cache
+     */
+    public synchronized void put(String key, CachedResponse response) {
+        if (response.content.length > getMaxContentSize()) {
+            return; // too big to cache
+        }
+        removeEntry(key);
+        cache.put(key, response);
+        currentBytes += response.content.length;
+        Integer count = prefixCounts.get(response.prefix);
+        prefixCounts.put(response.prefix, count == null ? 1 : count + 1);
+        // evict the least recently used until we are under the limits again
+        Iterator<Entry<String, CachedResponse>> it = cache.entrySet().iterator();
+        while ((cache.size() > maxEntries || currentBytes > maxBytes)
+                && it.hasNext()) {
+            Entry<String, CachedResponse> eldest = it.next();
+            it.remove();
+            entryRemoved(eldest.getValue());
+        }
+    }
+
+    /**
+     * Throw away all cached responses for an entity prefix
+     * @param prefix an entity prefix
+     */
+    public synchronized void invalidatePrefix(String prefix) {
+        if (prefix != null
+                && prefixCounts.containsKey(prefix)) {
+            for (Iterator<CachedResponse> it = cache.values().iterator(); it.hasNext();) {
+                CachedResponse response = it.next();
+                if (prefix.equals(response.prefix)) {
+                    it.remove();
+                    entryRemoved(response);
+                }
+            }
+        }
+    }
+
+    /**
+     * Throw away all cached responses
+     */
+    public synchronized void clear() {
+        cache.clear();
+        prefixCounts.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * @return the largest response (in bytes) which will be cached, 
+     * there is no point holding onto more than this much output while it is written
+     */
+    public int getMaxContentSize() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / 4);
+    }
+
+    /**
+     * @return the number of cached responses
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the total size of the cached responses in bytes
+     */
+    public synchronized long getSizeInBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return the number of times a cached response was found
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of times no cached response was found
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void removeEntry(String key) {
+        CachedResponse old = cache.remove(key);
+        if (old != null) {
+            entryRemoved(old);
+        }
+    }
+
+    private void entryRemoved(CachedResponse response) {
+        currentBytes -= response.content.length;
+        Integer count = prefixCounts.get(response.prefix);
+        if (count == null || count <= 1) {
+            prefixCounts.remove(response.prefix);
+        } else {
+            prefixCounts.put(response.prefix, count - 1);
+        }
+    }
+
+    // EVENTS
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiver#getEventNamePrefixes()
+     */
+    public String[] getEventNamePrefixes() {
+        return null; // all events
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiver#getResourcePrefix()
+     */
+    public String getResourcePrefix() {
+        return null; // all resources
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EventReceiver#receiveEvent(java.lang.String, java.lang.String)
+     */
+    public void receiveEvent(String eventName, String resource) {
+        if (resource != null
+                && resource.length() > 1
+                && resource.charAt(0) == EntityReference.SEPARATOR) {
+            String prefix;
+            try {
+                prefix = EntityReference.getPrefix(resource);
+            } catch (RuntimeException e) {
+                // not an entity reference so it cannot affect anything in here
+                prefix = null;
+            }
+            invalidatePrefix(prefix);
+        }
+    }
+
+    /**
+     * A cached response
+     */
+    public static class CachedResponse {
+        public final String prefix;
+        public final byte[] content;
+        public final String contentType;
+        public final String etag;
+        public final long lastModified;
+        public final long expires;
+        /**
+         * @param prefix the entity prefix the response is for
+         * @param content the encoded content
+         * @param contentType the content (mime) type of the response
+         * @param etag (optional) the ETag of the content
+         * @param lastModified the last modified time of the content OR 0 or less if unknown
+         * @param ttl the number of milliseconds the response can be cached for
+         */
+        public CachedResponse(String prefix, byte[] content, String contentType, String etag,
+                long lastModified, long ttl) {
+            this.prefix = prefix;
+            this.content = content;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+    }
+
+}
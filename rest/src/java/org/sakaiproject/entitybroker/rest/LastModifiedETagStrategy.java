@@ -0,0 +1,57 @@
+/**
+ * $Id$
+ * $URL$
+ * LastModifiedETagStrategy.java - entity-broker - Oct 17, 2026 2:36:52 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.util.List;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
+
+/**
+ * Makes the ETag from the newest last modified time of the entities being output
+ * (all of them have to have a last modified time), this is the default strategy,
+ * for collections the number of entities and a hash of their references are included so that
+ * removing (or swapping) an entity in a collection changes the ETag
+ */
+public class LastModifiedETagStrategy implements ETagStrategy {
+
+    public String makeETag(EntityReference ref, List<EntityData> entities, Long lastModified) {
+        String etag = null;
+        if (lastModified != null) {
+            boolean collection = (ref != null && ref.getId() == null);
+            if (entities == null || (! collection && entities.size() <= 1)) {
+                etag = String.valueOf(lastModified);
+            } else {
+                int refsHash = 1;
+                for (EntityData ed : entities) {
+                    refsHash = 31 * refsHash + (ed == null || ed.getEntityReference() == null ? 0 : ed.getEntityReference().hashCode());
+                }
+                etag = lastModified + "-" + entities.size() + "-" + Integer.toHexString(refsHash);
+            }
+        }
+        return etag;
+    }
+
+    public boolean isHashContent() {
+        return false;
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityBatchHandlerTest.java - entity-broker - Oct 18, 2026 9:41:27 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.mocks.data.TestData;
+import org.sakaiproject.entitybroker.rest.EntityBatchHandler.ResponseBase;
+import org.sakaiproject.entitybroker.rest.EntityBatchHandler.ResponseError;
+import org.sakaiproject.entitybroker.rest.EntityBatchHandler.ResponseResult;
+
+/**
+ * Testing the batch handler
+ */
+public class EntityBatchHandlerTest extends TestCase {
+
+    private static final String DATA_KEY = "X-XqReplaceQX-X-ref0";
+
+    private EntityBatchHandler entityBatchHandler;
+    private EntityEncodingManager entityEncodingManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ServiceTestManager stm = new ServiceTestManager(new TestData());
+        entityBatchHandler = stm.entityBatchHandler;
+        entityEncodingManager = stm.entityEncodingManager;
+    }
+
+    /**
+     * The streamed batch results must be exactly the same as encoding all the results at once
+     * and then replacing the data keys with the content (the way it was done before)
+     */
+    public void testWriteBatchResults() throws IOException {
+        Map<String, String> rawContent = new HashMap<String, String>();
+        rawContent.put(Formats.JSON, "{\"id\": \"4-one\", \"title\": \"One\"}");
+        rawContent.put(Formats.XML, "<myPrefix4>\n  <id>4-one</id>\n  <title>One</title>\n</myPrefix4>");
+        rawContent.put(Formats.HTML, "<div>4-one <b>One</b></div>");
+
+        for (String format : new String[] {Formats.JSON, Formats.XML, Formats.HTML}) {
+            Map<String, ResponseBase> results = makeResults();
+            String content = rawContent.get(format);
+
+            String expected = encodeAndReplace(format, results, DATA_KEY, content);
+
+            Map<String, ByteBuffer> dataContent = new HashMap<String, ByteBuffer>();
+            // only a part of the buffer holds the content
+            byte[] bytes = ("  " + content + "\n").getBytes(Formats.UTF_8);
+            dataContent.put(DATA_KEY, ByteBuffer.wrap(bytes, 2, bytes.length - 3));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            entityBatchHandler.writeBatchResults(output, format, results, dataContent);
+            String actual = output.toString(Formats.UTF_8);
+
+            assertEquals("batch results differ for format " + format, expected, actual);
+            assertTrue(actual.contains(content));
+            assertFalse(actual.contains(DATA_KEY));
+        }
+    }
+
+    private Map<String, ResponseBase> makeResults() {
+        Map<String, ResponseBase> results = new LinkedHashMap<String, ResponseBase>();
+        Map<String, String[]> headers = new HashMap<String, String[]>();
+        headers.put("Content-Type", new String[] {"text/plain"});
+        ResponseResult data = new ResponseResult(TestData.REF4, "/direct" + TestData.REF4, 200, headers);
+        data.setDataKey(DATA_KEY);
+        results.put("ref0", data);
+        results.put("ref1", new ResponseResult(TestData.REF4_two, "/direct" + TestData.REF4_two, 200, headers, "plain <content> & stuff"));
+        results.put("ref2", new ResponseError("/fake/thing", "/direct/fake/thing", "Failure: no such thing"));
+        return results;
+    }
+
+    /**
+     * Encodes the results and replaces the data keys with the content all in memory
+     */
+    private String encodeAndReplace(String format, Map<String, ResponseBase> results, String dataKey, String content) {
+        String overallData = entityEncodingManager.encodeData(results, format, "refs", null);
+        if (Formats.XML.equals(format)) {
+            overallData = EntityEncodingManager.XML_HEADER + overallData;
+        }
+        Map<String, String> dataMap = new LinkedHashMap<String, String>();
+        dataMap.put(dataKey, content);
+        StringBuilder sb = new StringBuilder();
+        int curLoc = 0;
+        for (Entry<String, String> entry : dataMap.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (Formats.XML.equals(format)) {
+                value = "\n" + value;
+            } else if (Formats.JSON.equals(format)) {
+                key = '"' + key + '"';
+            }
+            int keyLoc = overallData.indexOf(key);
+            if (keyLoc > -1) {
+                sb.append( overallData.subSequence(curLoc, keyLoc) );
+                sb.append( value );
+                curLoc = keyLoc + key.length();
+            }
+        }
+        sb.append( overallData.subSequence(curLoc, overallData.length()) );
+        return sb.toString();
+    }
+
+}
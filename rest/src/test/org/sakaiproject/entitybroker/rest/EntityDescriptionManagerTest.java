@@ -20,8 +20,12 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.util.Locale;
+
 import junit.framework.TestCase;
 
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 import org.sakaiproject.entitybroker.rest.EntityDescriptionManager;
@@ -35,13 +39,15 @@ public class EntityDescriptionManagerTest extends TestCase {
 
    protected EntityDescriptionManager entityDescriptionManager;
    private TestData td;
+   private ServiceTestManager serviceTestManager;
 
    @Override
    protected void setUp() throws Exception {
       super.setUp();
       // setup things
       td = new TestData();
-      entityDescriptionManager = new ServiceTestManager(td).entityDescriptionManager;
+      serviceTestManager = new ServiceTestManager(td);
+      entityDescriptionManager = serviceTestManager.entityDescriptionManager;
    }
 
    public void testReplacePrefix() {
@@ -155,4 +161,64 @@ public class EntityDescriptionManagerTest extends TestCase {
       
    }
 
+   public void testDescribeCache() {
+      EntityDescriptionManager.DescribeDocument doc = entityDescriptionManager.getDescribeAll(Formats.XML, null);
+      assertNotNull(doc);
+      assertNotNull(doc.etag);
+      assertEquals(entityDescriptionManager.makeDescribeAll(Formats.XML, null), doc.getContentAsString());
+      // the same rendered description is returned until the registry changes
+      assertSame(doc, entityDescriptionManager.getDescribeAll(Formats.XML, null));
+      EntityDescriptionManager.DescribeDocument html = entityDescriptionManager.getDescribeAll(Formats.HTML, null);
+      assertNotSame(doc, html);
+      assertSame(html, entityDescriptionManager.getDescribeAll(null, null));
+
+      EntityDescriptionManager.DescribeDocument entityDoc = entityDescriptionManager.getDescribeEntity(TestData.PREFIX1, null, Formats.XML, null);
+      assertTrue(entityDoc.getContentAsString().contains(TestData.PREFIX1));
+      assertSame(entityDoc, entityDescriptionManager.getDescribeEntity(TestData.PREFIX1, null, Formats.XML, null));
+      // specific ids are not cached
+      EntityDescriptionManager.DescribeDocument idDoc = entityDescriptionManager.getDescribeEntity(TestData.PREFIX1, "test", Formats.XML, null);
+      assertNotSame(idDoc, entityDescriptionManager.getDescribeEntity(TestData.PREFIX1, "test", Formats.XML, null));
+      assertEquals(3, entityDescriptionManager.getDescribeCacheSize());
+
+      // registering a provider changes the registry version so the descriptions are rendered again
+      EntityProviderManager entityProviderManager = serviceTestManager.entityBrokerManager.getEntityProviderManager();
+      doc = entityDescriptionManager.getDescribeAll(Formats.XML, null);
+      long version = entityProviderManager.getRegistryVersion();
+      entityProviderManager.registerEntityProvider(new EntityProvider() {
+         public String getEntityPrefix() {
+            return "newprefix";
+         }
+      });
+      assertTrue(entityProviderManager.getRegistryVersion() > version);
+      EntityDescriptionManager.DescribeDocument newDoc = entityDescriptionManager.getDescribeAll(Formats.XML, null);
+      assertNotSame(doc, newDoc);
+      assertFalse(doc.etag.equals(newDoc.etag));
+      assertFalse(doc.getContentAsString().contains("newprefix"));
+      assertTrue(newDoc.getContentAsString().contains("newprefix"));
+      assertEquals(1, entityDescriptionManager.getDescribeCacheSize());
+
+      entityProviderManager.unregisterEntityProviderByPrefix("newprefix");
+      assertFalse(entityDescriptionManager.getDescribeAll(Formats.XML, null).getContentAsString().contains("newprefix"));
+   }
+
+   public void testDescribeCacheLimit() {
+      entityDescriptionManager.clearDescribeCache();
+      entityDescriptionManager.setMaxDescribeCacheEntries(2);
+      try {
+         EntityDescriptionManager.DescribeDocument doc = entityDescriptionManager.getDescribeAll(Formats.XML, Locale.ENGLISH);
+         entityDescriptionManager.getDescribeAll(Formats.XML, Locale.FRENCH);
+         // using the first one keeps it when the cache is full
+         assertSame(doc, entityDescriptionManager.getDescribeAll(Formats.XML, Locale.ENGLISH));
+         entityDescriptionManager.getDescribeAll(Formats.XML, Locale.GERMAN);
+         assertEquals(2, entityDescriptionManager.getDescribeCacheSize());
+         assertSame(doc, entityDescriptionManager.getDescribeAll(Formats.XML, Locale.ENGLISH));
+         // new descriptions are still cached once the cache is full
+         EntityDescriptionManager.DescribeDocument italian = entityDescriptionManager.getDescribeAll(Formats.XML, Locale.ITALIAN);
+         assertSame(italian, entityDescriptionManager.getDescribeAll(Formats.XML, Locale.ITALIAN));
+         assertEquals(2, entityDescriptionManager.getDescribeCacheSize());
+      } finally {
+         entityDescriptionManager.setMaxDescribeCacheEntries(500);
+      }
+   }
+
 }
@@ -86,6 +86,34 @@ public class EntityEncodingManagerTest extends TestCase {
         assertEquals("TEST", me2.getStuff());
         assertEquals(5, me2.getNumber());
 
+        // the wrapped json is still handled
+        json = "{\""+TestData.PREFIX6+"\" : { \"stuff\" : \"WRAPPED\", \"number\" : 6 }}";
+        inputStream = new ByteArrayInputStream(json.getBytes());
+        me2 = (MyEntity) entityEncodingManager.translateInputToEntity(
+                new EntityReference(TestData.PREFIX6,""), Formats.JSON, inputStream, null);
+        assertNotNull(me2);
+        assertEquals("WRAPPED", me2.getStuff());
+        assertEquals(6, me2.getNumber());
+
+        // input over the limits fails
+        entityEncodingManager.setMaxInputSize(20);
+        try {
+            entityEncodingManager.translateInputToEntity(new EntityReference(TestData.PREFIX6,""), Formats.XML,
+                    new ByteArrayInputStream(xml.getBytes()), null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.responseCode);
+        }
+        entityEncodingManager.setMaxInputSize(EntityInputBinder.DEFAULT_MAX_INPUT_SIZE);
+        entityEncodingManager.setMaxInputDepth(2);
+        json = "{ \"stuff\" : { \"a\" : { \"b\" : 1 } } }";
+        try {
+            entityEncodingManager.translateInputToEntity(new EntityReference(TestData.PREFIX6,""), Formats.JSON,
+                    new ByteArrayInputStream(json.getBytes()), null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
      }
 
     public void testEncodeEntity() {
@@ -20,23 +20,37 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 
 import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.mocks.ActionsEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.ImportableEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.ResponseCacheableEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.VersionableEntityProviderMock;
 import org.sakaiproject.entitybroker.mocks.data.MyEntity;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
 import org.sakaiproject.entitybroker.rest.EntityEncodingManager;
 import org.sakaiproject.entitybroker.rest.EntityHandlerImpl;
+import org.sakaiproject.entitybroker.util.devhelper.DeveloperHelperServiceMock;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+import org.sakaiproject.entitybroker.util.request.RequestUtils;
 
 /**
  * Testing the central logic of the entity handler
@@ -58,6 +72,13 @@ public class EntityHandlerImplTest extends TestCase {
         entityHandler = new ServiceTestManager(td).entityRequestHandler;
     }
 
+    @Override
+    protected void tearDown() throws Exception {
+        // some tests switch the current user
+        DeveloperHelperServiceMock.currentUserRef = DeveloperHelperServiceMock.defaultUserRef;
+        super.tearDown();
+    }
+
     /**
      * Test method for {@link org.sakaiproject.entitybroker.rest.EntityHandlerImpl#handleEntityAccess(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, java.lang.String)}.
      */
@@ -712,6 +733,18 @@ public class EntityHandlerImplTest extends TestCase {
             assertEquals(HttpServletResponse.SC_NOT_IMPLEMENTED, e.responseCode);
         }      
 
+        // describe has an etag and a matching etag gets a not modified
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + EntityRequestHandler.DESCRIBE + "." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        String etag = res.getHeader("ETag");
+        assertNotNull(etag);
+        req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals("", res.getContentAsString());
     }
 
 
@@ -917,6 +950,560 @@ public class EntityHandlerImplTest extends TestCase {
     }
 
 
+    /**
+     * Testing the conditional GET handling (If-None-Match / If-Modified-Since)
+     */
+    public void testConditionalGet() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        VersionableEntityProviderMock versionable = new VersionableEntityProviderMock("versioned", new String[] {"v1", "v2"});
+        ServiceTestManager stm = new ServiceTestManager(td);
+        stm.entityBrokerManager.getEntityProviderManager().registerEntityProvider(versionable);
+        EntityHandlerImpl handler = stm.entityRequestHandler;
+
+        // normal request gets the data and the version headers
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/versioned/v1." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals("\"1\"", res.getHeader("ETag"));
+        assertEquals(versionable.lastModified+"", res.getHeader("Last-Modified"));
+        assertTrue(res.getContentAsString().contains("<id>v1</id>"));
+        assertTrue(versionable.fetchCount > 0);
+        int fetchCount = versionable.fetchCount;
+
+        // matching etag means nothing is fetched
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/versioned/v1." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, "\"1\"");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals("", res.getContentAsString());
+        assertEquals(fetchCount, versionable.fetchCount);
+
+        // old etag gets the data
+        versionable.version = "2";
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals("\"2\"", res.getHeader("ETag"));
+        assertTrue(versionable.fetchCount > fetchCount);
+        fetchCount = versionable.fetchCount;
+
+        // unchanged since the last modified time
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/versioned." + Formats.JSON);
+        req.addHeader(RequestUtils.HEADER_IF_MODIFIED_SINCE, versionable.lastModified+"");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals(fetchCount, versionable.fetchCount);
+
+        // changed since the last modified time
+        versionable.lastModified += 5000;
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertTrue(versionable.fetchCount > fetchCount);
+
+        // users without access are not told the entity is unchanged
+        versionable.allowRead = false;
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/versioned/v1." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, "\"2\"");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, e.responseCode);
+        }
+        assertNull(res.getHeader("ETag"));
+        versionable.allowRead = true;
+
+        // without any version info the entity is always sent
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_IF_MODIFIED_SINCE, System.currentTimeMillis()+"");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+    }
+
+    public void testCompression() throws IOException {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        // compression is off by default
+        assertEquals(-1, entityHandler.getCompressionThreshold());
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader(RequestUtils.HEADER_CONTENT_ENCODING));
+        assertNull(res.getHeader(RequestUtils.HEADER_VARY));
+
+        // uncompressed content to compare against
+        entityHandler.setCompressionThreshold(1024);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader(RequestUtils.HEADER_CONTENT_ENCODING));
+        assertEquals(RequestUtils.HEADER_ACCEPT_ENCODING, res.getHeader(RequestUtils.HEADER_VARY));
+        String content = res.getContentAsString();
+        assertTrue(content.length() > 0);
+
+        // gzip
+        entityHandler.setCompressionThreshold(10);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip, deflate");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(RequestUtils.CONTENT_ENCODING_GZIP, res.getHeader(RequestUtils.HEADER_CONTENT_ENCODING));
+        assertEquals(content, inflate(new GZIPInputStream(new ByteArrayInputStream(res.getContentAsByteArray()))));
+
+        // deflate
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "deflate");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(RequestUtils.CONTENT_ENCODING_DEFLATE, res.getHeader(RequestUtils.HEADER_CONTENT_ENCODING));
+        assertEquals(content, inflate(new InflaterInputStream(new ByteArrayInputStream(res.getContentAsByteArray()))));
+
+        // under the threshold is not compressed
+        entityHandler.setCompressionThreshold(content.length() + 1000);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader(RequestUtils.HEADER_CONTENT_ENCODING));
+        assertEquals(content, res.getContentAsString());
+
+        // disabled
+        entityHandler.setCompressionThreshold(-1);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "." + Formats.XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader(RequestUtils.HEADER_CONTENT_ENCODING));
+        assertNull(res.getHeader(RequestUtils.HEADER_VARY));
+        assertEquals(content, res.getContentAsString());
+    }
+
+    private String inflate(InputStream stream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return baos.toString(Formats.UTF_8);
+    }
+
+    public void testResponseCache() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        ResponseCacheableEntityProviderMock cacheable = new ResponseCacheableEntityProviderMock("cached", new String[] {"c1", "c2"});
+        ServiceTestManager stm = new ServiceTestManager(td);
+        stm.entityBrokerManager.getEntityProviderManager().registerEntityProvider(cacheable);
+        EntityHandlerImpl handler = stm.entityRequestHandler;
+        assertNull(handler.getResponseCache()); // disabled by default
+        EntityResponseCache cache = new EntityResponseCache(10, 1024 * 1024);
+        handler.setResponseCache(cache);
+
+        // first request fetches the data and caches it
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/cached/c1." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        String content = res.getContentAsString();
+        assertTrue(content.contains("<id>c1</id>"));
+        assertTrue(cacheable.fetchCount > 0);
+        assertEquals(1, cache.size());
+        int fetchCount = cacheable.fetchCount;
+
+        // second request comes from the cache
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(content, res.getContentAsString());
+        assertEquals(fetchCount, cacheable.fetchCount);
+        assertEquals(1, cache.getHits());
+
+        // other formats are cached separately
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/cached/c1." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertTrue(cacheable.fetchCount > fetchCount);
+        assertEquals(2, cache.size());
+        fetchCount = cacheable.fetchCount;
+
+        // an event for this prefix clears the cached responses
+        cache.receiveEvent("cached.update", "/cached/c1");
+        assertEquals(0, cache.size());
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/cached/c1." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(content, res.getContentAsString());
+        assertTrue(cacheable.fetchCount > fetchCount);
+        fetchCount = cacheable.fetchCount;
+
+        // cached responses are not sent when the provider does not allow access to them
+        assertEquals(1, cache.size());
+        cacheable.accessAllowed = false;
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(content, res.getContentAsString());
+        assertTrue(cacheable.fetchCount > fetchCount);
+        fetchCount = cacheable.fetchCount;
+        cacheable.accessAllowed = true;
+
+        // responses too big to cache are streamed and not held
+        EntityResponseCache smallCache = new EntityResponseCache(10, 40);
+        handler.setResponseCache(smallCache);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(content, res.getContentAsString());
+        assertEquals(0, smallCache.size());
+        handler.setResponseCache(cache);
+
+        // per user responses cannot be cached without a way to find the current user
+        cache.clear();
+        cacheable.shared = false;
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(0, cache.size());
+
+        // providers which are not cacheable are never cached
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Testing the etag strategies
+     */
+    public void testETagStrategies() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        // default strategy uses the last modified times
+        assertTrue(entityHandler.getETagStrategy() instanceof LastModifiedETagStrategy);
+        ETagStrategy strategy = entityHandler.getETagStrategy();
+        assertNull( strategy.makeETag(new EntityReference(TestData.REF4), null, null) );
+        assertEquals("1000", strategy.makeETag(new EntityReference(TestData.REF4), null, 1000l) );
+        List<EntityData> entities = new ArrayList<EntityData>();
+        entities.add( new EntityData(TestData.REF4, "one") );
+        entities.add( new EntityData(TestData.REF4_two, "two") );
+        String collectionETag = strategy.makeETag(new EntityReference(TestData.SPACE4), entities, 1000l);
+        assertNotNull(collectionETag);
+        assertTrue(collectionETag.startsWith("1000-2-"));
+        // removing an entity from a collection changes the etag even if the newest time is the same
+        entities.remove(1);
+        assertTrue(strategy.makeETag(new EntityReference(TestData.SPACE4), entities, 1000l).startsWith("1000-1-"));
+        assertFalse(collectionETag.equals(strategy.makeETag(new EntityReference(TestData.SPACE4), entities, 1000l)));
+        // swapping an entity changes it too
+        entities.add( new EntityData(TestData.REF4_3, "three") );
+        assertFalse(collectionETag.equals(strategy.makeETag(new EntityReference(TestData.SPACE4), entities, 1000l)));
+
+        // content hashes are the same for the same content
+        entityHandler.setETagStrategy( new ContentHashETagStrategy() );
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.COLLECTION_URL4_XML);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        String etag = res.getHeader("ETag");
+        assertNotNull(etag);
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        String content = res.getContentAsString();
+        assertTrue(content.contains(TestData.PREFIX4));
+
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(etag, res.getHeader("ETag"));
+        assertEquals(content, res.getContentAsString());
+
+        // different content gets a different hash
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.COLLECTION_URL4_JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertFalse(etag.equals(res.getHeader("ETag")));
+
+        // current content is not sent again
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.COLLECTION_URL4_XML);
+        req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals("", res.getContentAsString());
+
+        // compressed content has its own etag
+        entityHandler.setCompressionThreshold(10);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.COLLECTION_URL4_XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip");
+        req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        String gzipETag = res.getHeader("ETag");
+        assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"", gzipETag);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.COLLECTION_URL4_XML);
+        req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip");
+        req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, gzipETag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals(RequestUtils.HEADER_ACCEPT_ENCODING, res.getHeader(RequestUtils.HEADER_VARY));
+        entityHandler.setCompressionThreshold(-1);
+
+        // content over the hashing limit is streamed without an etag
+        entityHandler.setHashContentLimit(10);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.COLLECTION_URL4_XML);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader("ETag"));
+        assertEquals(content, res.getContentAsString());
+    }
+
+    /**
+     * Testing the streaming export and import
+     */
+    public void testExportImport() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        ImportableEntityProviderMock importable = new ImportableEntityProviderMock("archive", new String[] {"a1", "a2"});
+        ServiceTestManager stm = new ServiceTestManager(td);
+        stm.entityBrokerManager.getEntityProviderManager().registerEntityProvider(importable);
+        EntityHandlerImpl handler = stm.entityRequestHandler;
+        handler.setDeveloperHelperService(new DeveloperHelperServiceMock());
+        DeveloperHelperServiceMock.currentUserRef = "admin";
+
+        // small exports are held so the encoding key can be sent
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals("/site/123", importable.lastReference);
+        assertFalse(importable.lastDestructive);
+        assertEquals("mock-v1", res.getHeader(EntityRequestHandler.HEADER_EXPORT_ENCODING));
+        assertEquals(100, res.getContentLength());
+        assertEquals("application/octet-stream", res.getContentType());
+        assertEquals(100, res.getContentAsString().length());
+
+        // large exports are streamed as they are written
+        importable.exportSize = 300000;
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export." + Formats.XML, EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader(EntityRequestHandler.HEADER_EXPORT_ENCODING));
+        assertEquals(0, res.getContentLength());
+        assertEquals(Formats.XML_MIME_TYPE, res.getContentType());
+        assertEquals(300000, res.getContentAsByteArray().length);
+
+        // nothing to export
+        importable.exportSize = 0;
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NO_CONTENT, res.getStatus());
+
+        // destructive exports must be posted
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", 
+                EntityRequestHandler.EXPORT_REFERENCE, "/site/123", EntityRequestHandler.EXPORT_DESTRUCTIVE, "true");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, e.responseCode);
+        }
+        req.setMethod("POST");
+        handler.handleEntityAccess(req, res, null);
+        assertTrue(importable.lastDestructive);
+
+        // the reference is required
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
+
+        // the referenced entity must exist if it is handled by a provider
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/archive/a1");
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals("/archive/a1", importable.lastReference);
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/archive/a9");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.responseCode);
+        }
+
+        // import is read by the provider from the request
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + "/archive/import", 
+                EntityRequestHandler.EXPORT_REFERENCE, "/site/456", EntityRequestHandler.IMPORT_ENCODING, "mock-v1");
+        req.setContent(new byte[2500]);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals("/site/456", importable.lastReference);
+        assertEquals("mock-v1", importable.lastEncodingKey);
+        assertEquals(2500, importable.lastImportSize);
+        assertEquals("2", res.getHeader(EntityRequestHandler.HEADER_IMPORT_TOTAL_COUNT));
+        assertEquals("2500", res.getHeader(EntityRequestHandler.HEADER_IMPORT_TOTAL_SIZE));
+        assertEquals("/archive/imported-0\n/archive/imported-1\n", res.getContentAsString());
+
+        // the encoding key can be sent in the header
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + "/archive/import." + Formats.JSON, EntityRequestHandler.EXPORT_REFERENCE, "/site/456");
+        req.addHeader(EntityRequestHandler.HEADER_EXPORT_ENCODING, "mock-v1");
+        req.setContent(new byte[1000]);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals("mock-v1", importable.lastEncodingKey);
+        assertTrue(res.getContentAsString().contains("imported-0"));
+
+        // invalid imports are bad requests
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + "/archive/import", 
+                EntityRequestHandler.EXPORT_REFERENCE, "/site/456", EntityRequestHandler.IMPORT_ENCODING, "other-v2");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
+        req.setMethod("GET");
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, e.responseCode);
+        }
+
+        // providers which are not exportable do not get the special handling
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + TestData.PREFIX4 + "/export", EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.responseCode);
+        }
+    }
+
+    /**
+     * Testing that only admins or users with the permission in the referenced entity can export and import
+     */
+    public void testExportImportPermissions() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        ImportableEntityProviderMock importable = new ImportableEntityProviderMock("archive", new String[] {"a1", "a2"});
+        ServiceTestManager stm = new ServiceTestManager(td);
+        stm.entityBrokerManager.getEntityProviderManager().registerEntityProvider(importable);
+        EntityHandlerImpl handler = stm.entityRequestHandler;
+
+        // nothing is allowed when the permissions cannot be checked
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, e.responseCode);
+        }
+        handler.setDeveloperHelperService(new DeveloperHelperServiceMock());
+
+        // users without the permission in the referenced entity cannot export or import
+        DeveloperHelperServiceMock.currentUserRef = DeveloperHelperServiceMock.defaultUserRef;
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, e.responseCode);
+        }
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + "/archive/import", 
+                EntityRequestHandler.EXPORT_REFERENCE, "/site/123", EntityRequestHandler.IMPORT_ENCODING, "mock-v1");
+        req.setContent(new byte[1000]);
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, e.responseCode);
+        }
+        assertNull(importable.lastReference);
+
+        // anonymous users cannot export or import
+        DeveloperHelperServiceMock.currentUserRef = null;
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", 
+                EntityRequestHandler.EXPORT_REFERENCE, DeveloperHelperServiceMock.defaultEntityRef);
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, e.responseCode);
+        }
+        assertNull(importable.lastReference);
+
+        // users with the permission in the referenced entity can export and import
+        handler.setExportImportPermission(DeveloperHelperServiceMock.defaultPermAllowed);
+        DeveloperHelperServiceMock.currentUserRef = DeveloperHelperServiceMock.defaultUserRef;
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", 
+                EntityRequestHandler.EXPORT_REFERENCE, DeveloperHelperServiceMock.defaultEntityRef);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(DeveloperHelperServiceMock.defaultEntityRef, importable.lastReference);
+
+        importable.lastReference = null;
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + "/archive/import", 
+                EntityRequestHandler.EXPORT_REFERENCE, DeveloperHelperServiceMock.defaultEntityRef, EntityRequestHandler.IMPORT_ENCODING, "mock-v1");
+        req.setContent(new byte[1000]);
+        res = new EntityHttpServletResponse();
+        handler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(DeveloperHelperServiceMock.defaultEntityRef, importable.lastReference);
+        assertEquals("1", res.getHeader(EntityRequestHandler.HEADER_IMPORT_TOTAL_COUNT));
+
+        // but not in other entities
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/archive/export", EntityRequestHandler.EXPORT_REFERENCE, "/site/123");
+        res = new EntityHttpServletResponse();
+        try {
+            handler.handleEntityAccess(req, res, null);
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, e.responseCode);
+        }
+    }
+
     /**
      * Convenience method for making byte content encoded into UTF-8
      */
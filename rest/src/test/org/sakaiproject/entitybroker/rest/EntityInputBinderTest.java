@@ -0,0 +1,262 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityInputBinderTest.java - entity-broker - Oct 18, 2026 1:07:52 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.exception.EntityEncodingException;
+import org.sakaiproject.entitybroker.exception.EntityException;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
+
+/**
+ * Testing the streaming input binder
+ */
+public class EntityInputBinderTest extends TestCase {
+
+    public static class Thing {
+        private String name;
+        private long size;
+        private Boolean active;
+        private List<String> tags;
+        private Map<String, Object> extra;
+        public String getName() {
+            return name;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+        public long getSize() {
+            return size;
+        }
+        public void setSize(long size) {
+            this.size = size;
+        }
+        public Boolean getActive() {
+            return active;
+        }
+        public void setActive(Boolean active) {
+            this.active = active;
+        }
+        public List<String> getTags() {
+            return tags;
+        }
+        public void setTags(List<String> tags) {
+            this.tags = tags;
+        }
+        public Map<String, Object> getExtra() {
+            return extra;
+        }
+        public void setExtra(Map<String, Object> extra) {
+            this.extra = extra;
+        }
+    }
+
+    private EntityReference ref = new EntityReference("thing", "");
+
+    private InputStream makeInput(String data) {
+        try {
+            return new ByteArrayInputStream(data.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testIsBindable() {
+        assertTrue(EntityInputBinder.isBindable(new Thing(), Formats.JSON));
+        assertTrue(EntityInputBinder.isBindable(new Thing(), Formats.XML));
+        assertFalse(EntityInputBinder.isBindable(new Thing(), Formats.HTML));
+        assertFalse(EntityInputBinder.isBindable(new HashMap<String, Object>(), Formats.JSON));
+        assertFalse(EntityInputBinder.isBindable(null, Formats.JSON));
+    }
+
+    public void testBindJSON() {
+        EntityInputBinder binder = new EntityInputBinder();
+        Thing thing = new Thing();
+        binder.bind(ref, Formats.JSON, makeInput("{\"name\":\"A \\\"quoted\\\" \\u00e9 name\", \"size\" : 1221493247004, "
+                + "\"active\":true, \"unknown\":{\"a\":[1,2,{\"b\":null}]}, \"tags\":[\"A\",\"B\"], "
+                + "\"extra\":{\"num\":5,\"list\":[1.5,\"x\"]}}"), thing);
+        assertEquals("A \"quoted\" \u00e9 name", thing.getName());
+        assertEquals(1221493247004l, thing.getSize());
+        assertEquals(Boolean.TRUE, thing.getActive());
+        assertEquals(2, thing.getTags().size());
+        assertEquals("B", thing.getTags().get(1));
+        assertEquals(5, thing.getExtra().get("num"));
+        assertEquals(2, ((List<?>) thing.getExtra().get("list")).size());
+
+        // values are converted and nulls are skipped for primitives
+        thing = new Thing();
+        thing.setName("old");
+        binder.bind(ref, Formats.JSON, makeInput("{\"name\":null,\"size\":\"15\",\"active\":\"false\"}"), thing);
+        assertNull(thing.getName());
+        assertEquals(15l, thing.getSize());
+        assertEquals(Boolean.FALSE, thing.getActive());
+        binder.bind(ref, Formats.JSON, makeInput("{\"size\":null}"), thing);
+        assertEquals(15l, thing.getSize());
+
+        // wrapped in an object named for the prefix
+        thing = new Thing();
+        binder.bind(ref, Formats.JSON, makeInput("{\"thing\":{\"name\":\"wrapped\"}}"), thing);
+        assertEquals("wrapped", thing.getName());
+
+        // empty object
+        thing = new Thing();
+        binder.bind(ref, Formats.JSON, makeInput(" {} "), thing);
+        assertNull(thing.getName());
+
+        MyEntity me = new MyEntity();
+        binder.bind(ref, Formats.JSON, makeInput("{ \"stuff\" : \"TEST\", \"number\" : 5 }"), me);
+        assertEquals("TEST", me.getStuff());
+        assertEquals(5, me.getNumber());
+    }
+
+    public void testBindXML() {
+        EntityInputBinder binder = new EntityInputBinder();
+        Thing thing = new Thing();
+        binder.bind(ref, Formats.XML, makeInput("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                + "<thing><name>AZ &amp; co</name><size type='number'>123</size><active type='boolean'>true</active>"
+                + "<unknown><a>1</a></unknown><tags type='array'><string>A</string><string>B</string></tags>"
+                + "<extra type='map'><num type='number'>5</num></extra></thing>"), thing);
+        assertEquals("AZ & co", thing.getName());
+        assertEquals(123l, thing.getSize());
+        assertEquals(Boolean.TRUE, thing.getActive());
+        assertEquals(2, thing.getTags().size());
+        assertEquals("A", thing.getTags().get(0));
+        assertEquals("5", thing.getExtra().get("num"));
+
+        // wrapped inside another root
+        thing = new Thing();
+        binder.bind(ref, Formats.XML, makeInput("<data><thing><name>wrapped</name></thing></data>"), thing);
+        assertEquals("wrapped", thing.getName());
+    }
+
+    public void testInvalidInput() {
+        EntityInputBinder binder = new EntityInputBinder();
+        String[] invalid = new String[] {"", "[1,2]", "{\"name\":\"unclosed}", "{\"name\" \"x\"}", "{\"size\":12x}", "{} {}"};
+        for (String json : invalid) {
+            try {
+                binder.bind(ref, Formats.JSON, makeInput(json), new Thing());
+                fail("should have thrown exception for: " + json);
+            } catch (EntityEncodingException e) {
+                assertNotNull(e.getMessage());
+            }
+        }
+        try {
+            binder.bind(ref, Formats.XML, makeInput("<thing><name>x</thing>"), new Thing());
+            fail("should have thrown exception");
+        } catch (EntityEncodingException e) {
+            assertNotNull(e.getMessage());
+        }
+        try {
+            binder.bind(ref, Formats.JSON, makeInput("{\"size\":\"big\"}"), new Thing());
+            fail("should have thrown exception");
+        } catch (EntityEncodingException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    public void testTargetUnchangedOnFailure() {
+        EntityInputBinder binder = new EntityInputBinder(70, 3);
+        String[] jsonInputs = new String[] {
+                "{\"name\":\"changed\",\"size\":10,\"tags\":[\"a\"", // truncated
+                "{\"name\":\"changed\",\"size\":\"big\"}", // invalid value after a valid one
+                "{\"name\":\"changed\",\"extra\":\"a value which is much too long to fit in the limit\"}", // too large
+                "{\"name\":\"changed\",\"x\":{\"a\":[[1]]}}" // too deep
+        };
+        String[] xmlInputs = new String[] {
+                "<thing><name>changed</name><size>10</size>", // truncated
+                "<thing><name>changed</name><x><a><b><c>1</c></b></a></x></thing>" // too deep
+        };
+        for (int i = 0; i < jsonInputs.length + xmlInputs.length; i++) {
+            Thing thing = new Thing();
+            thing.setName("original");
+            thing.setSize(5);
+            boolean json = i < jsonInputs.length;
+            String input = json ? jsonInputs[i] : xmlInputs[i - jsonInputs.length];
+            try {
+                binder.bind(ref, json ? Formats.JSON : Formats.XML, makeInput(input), thing);
+                fail("should have thrown exception for: " + input);
+            } catch (EntityException e) {
+                assertNotNull(e.getMessage());
+            } catch (EntityEncodingException e) {
+                assertNotNull(e.getMessage());
+            }
+            assertEquals("original", thing.getName());
+            assertEquals(5, thing.getSize());
+            assertNull(thing.getTags());
+        }
+    }
+
+    public void testLimits() {
+        EntityInputBinder binder = new EntityInputBinder(30, 3);
+        String json = "{\"name\":\"a name which is too long to fit\"}";
+        try {
+            binder.bind(ref, Formats.JSON, makeInput(json), new Thing());
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.responseCode);
+        }
+        try {
+            binder.readInput(ref, makeInput(json));
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.responseCode);
+        }
+        try {
+            binder.bind(ref, Formats.XML, makeInput("<thing><name>a name which is too long to fit</name></thing>"), new Thing());
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.responseCode);
+        }
+
+        // depth applies to skipped values as well
+        binder = new EntityInputBinder(0, 3);
+        binder.bind(ref, Formats.XML, makeInput("<t><x><a><b>1</b></a></x></t>"), new Thing());
+        binder.bind(ref, Formats.JSON, makeInput("{\"x\":{\"a\":[1]}}"), new Thing());
+        try {
+            binder.bind(ref, Formats.JSON, makeInput("{\"x\":{\"a\":[[1]]}}"), new Thing());
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
+        try {
+            binder.bind(ref, Formats.XML, makeInput("<t><x><a><b><c>1</c></b></a></x></t>"), new Thing());
+            fail("should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
+
+        // no limits
+        binder = new EntityInputBinder(0, 0);
+        assertEquals(json, binder.readInput(ref, makeInput(json)));
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityResponseCacheTest.java - entity-broker - Oct 17, 2026 5:02:13 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.rest;
+
+import junit.framework.TestCase;
+
+import org.sakaiproject.entitybroker.rest.EntityResponseCache.CachedResponse;
+
+/**
+ * Testing the response cache
+ */
+public class EntityResponseCacheTest extends TestCase {
+
+    private CachedResponse makeResponse(String prefix, int size, long ttl) {
+        return new CachedResponse(prefix, new byte[size], "text/xml", null, -1, ttl);
+    }
+
+    public void testMakeKey() {
+        String key1 = EntityResponseCache.makeKey("/prefix/1.xml", "xml", null, null);
+        String key2 = EntityResponseCache.makeKey("/prefix/1.xml", "xml", "a=b", null);
+        String key3 = EntityResponseCache.makeKey("/prefix/1.xml", "xml", null, "/user/aaron");
+        String key4 = EntityResponseCache.makeKey("/prefix/1.xml", "json", null, null);
+        assertFalse(key1.equals(key2));
+        assertFalse(key1.equals(key3));
+        assertFalse(key1.equals(key4));
+        assertFalse(key2.equals(key3));
+        assertEquals(key1, EntityResponseCache.makeKey("/prefix/1.xml", "xml", null, null));
+    }
+
+    public void testGetPut() {
+        EntityResponseCache cache = new EntityResponseCache(10, 1000);
+        assertNull(cache.get("key1"));
+        assertEquals(1, cache.getMisses());
+
+        CachedResponse response = makeResponse("prefix", 10, 60000);
+        cache.put("key1", response);
+        assertEquals(1, cache.size());
+        assertEquals(10, cache.getSizeInBytes());
+        assertSame(response, cache.get("key1"));
+        assertEquals(1, cache.getHits());
+
+        // replacing does not count twice
+        cache.put("key1", makeResponse("prefix", 20, 60000));
+        assertEquals(1, cache.size());
+        assertEquals(20, cache.getSizeInBytes());
+
+        // too big to cache
+        cache.put("big", makeResponse("prefix", 300, 60000));
+        assertNull(cache.get("big"));
+
+        // expired
+        cache.put("expired", makeResponse("prefix", 10, -1));
+        assertNull(cache.get("expired"));
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getSizeInBytes());
+
+        try {
+            new EntityResponseCache(0, 1000);
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    public void testEviction() {
+        // entry limit
+        EntityResponseCache cache = new EntityResponseCache(3, 1000);
+        cache.put("key1", makeResponse("prefix", 10, 60000));
+        cache.put("key2", makeResponse("prefix", 10, 60000));
+        cache.put("key3", makeResponse("prefix", 10, 60000));
+        assertNotNull(cache.get("key1")); // key2 is now the least recently used
+        cache.put("key4", makeResponse("prefix", 10, 60000));
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get("key1"));
+        assertNull(cache.get("key2"));
+        assertNotNull(cache.get("key3"));
+        assertNotNull(cache.get("key4"));
+
+        // byte limit
+        cache = new EntityResponseCache(100, 100);
+        for (int i = 0; i < 5; i++) {
+            cache.put("key" + i, makeResponse("prefix", 25, 60000));
+        }
+        assertEquals(4, cache.size());
+        assertEquals(100, cache.getSizeInBytes());
+        assertNull(cache.get("key0"));
+        assertNotNull(cache.get("key4"));
+    }
+
+    public void testInvalidation() {
+        EntityResponseCache cache = new EntityResponseCache(10, 1000);
+        cache.put("key1", makeResponse("prefix1", 10, 60000));
+        cache.put("key2", makeResponse("prefix1", 10, 60000));
+        cache.put("key3", makeResponse("prefix2", 10, 60000));
+
+        cache.invalidatePrefix("other");
+        assertEquals(3, cache.size());
+        cache.invalidatePrefix("prefix1");
+        assertEquals(1, cache.size());
+        assertEquals(10, cache.getSizeInBytes());
+        assertNotNull(cache.get("key3"));
+
+        // events for entities clear the prefix
+        cache.receiveEvent("something.update", "not-a-reference");
+        assertEquals(1, cache.size());
+        cache.receiveEvent("something.update", "/prefix2/123");
+        assertEquals(0, cache.size());
+    }
+
+}
@@ -172,6 +172,7 @@ public class EntityBrokerServletTest {
             assertTrue(content.contains("myPrefix4"));
             assertTrue(content.contains("4-one"));
             assertTrue(content.contains("\"id\": \"4-one\""));
+            assertFalse(content.contains("X-XqReplaceQX-X-"));
             assertTrue(content.contains("\"entityReference\":"));
             assertTrue(content.contains("\\/myPrefix4\\/4-one"));
             assertFalse(content.contains("4-two"));
@@ -337,6 +338,8 @@ public class EntityBrokerServletTest {
             assertTrue(content.contains("<id>4-one</id>"));
             assertTrue(content.contains("<entityId>4-one</entityId>"));
             assertTrue(content.contains("/myPrefix4/4-one"));
+            // the content is merged into place, no data keys are left behind
+            assertFalse(content.contains("X-XqReplaceQX-X-"));
         } catch (Exception e) {
             fail("Could not get content: " + e.getMessage());
         }
@@ -0,0 +1,428 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityClassMetadata.java - entity-broker - Oct 17, 2026 8:31:52 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.azeckoski.reflectutils.ConstructorUtils;
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityId;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityTitle;
+
+/**
+ * The entity metadata (id, title, last modified) accessors for an entity class, these are worked out
+ * once per class (the annotations are only scanned the first time a class is seen) and the values are
+ * read using precompiled method handles<br/>
+ * The writeable properties (public setters and fields) are also worked out once so that input can be
+ * bound into an entity without looking up the setters again for every value<br/>
+ * The metadata is held with a {@link ClassValue} so it does not keep provider classes
+ * (or their ClassLoaders) from being unloaded<br/>
+ * Only bean classes are handled here, for anything else (maps, simple types, etc.) {@link #isResolved()}
+ * is false and the values have to be found using {@link ReflectUtils}
+ */
+public class EntityClassMetadata {
+
+    private static final ClassValue<EntityClassMetadata> METADATA = new ClassValue<EntityClassMetadata>() {
+        @Override
+        protected EntityClassMetadata computeValue(Class<?> type) {
+            return new EntityClassMetadata(type);
+        }
+    };
+
+    /**
+     * @param type any entity class
+     * @return the metadata for the class (this is only worked out the first time a class is seen)
+     */
+    public static EntityClassMetadata getMetadata(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type must not be null");
+        }
+        return METADATA.get(type);
+    }
+
+    private final boolean bean;
+    private final boolean resolved;
+    private final String idField;
+    private final Accessor idAccessor;
+    private final Accessor titleAccessor;
+    private final Accessor lastModifiedAccessor;
+    private final Map<String, Mutator> mutators;
+
+    protected EntityClassMetadata(Class<?> type) {
+        boolean isBean = ConstructorUtils.isClassBean(type);
+        boolean isResolved = isBean;
+        String id = null;
+        Accessor idA = null, titleA = null, lastModifiedA = null;
+        Map<String, Mutator> writeable = Collections.emptyMap();
+        if (isBean) {
+            try {
+                Map<String, Accessor> properties = findReadableProperties(type);
+                writeable = findWriteableProperties(type, properties);
+                Accessor annotatedId = findAnnotated(type, properties, EntityId.class);
+                // the id field is the annotated one OR id, the id value can also come from entityId
+                if (annotatedId != null) {
+                    id = annotatedId.name;
+                    idA = annotatedId;
+                } else {
+                    id = properties.containsKey("id") ? "id" : null;
+                    idA = properties.containsKey("entityId") ? properties.get("entityId") : properties.get("id");
+                }
+                titleA = findAnnotated(type, properties, EntityTitle.class);
+                if (titleA == null) {
+                    titleA = properties.get("title");
+                }
+                lastModifiedA = findAnnotated(type, properties, EntityLastModified.class);
+                if (lastModifiedA == null) {
+                    lastModifiedA = properties.get("lastModified");
+                }
+            } catch (IllegalArgumentException e) {
+                // the accessors cannot be made for this class so it will be handled using ReflectUtils
+                System.out.println("WARN EntityClassMetadata: Unable to make the entity accessors for class ("
+                        +type.getName()+"), will use reflection instead: " + e.getMessage());
+                isResolved = false;
+                id = null;
+                idA = titleA = lastModifiedA = null;
+                writeable = Collections.emptyMap();
+            }
+        }
+        this.bean = isBean;
+        this.resolved = isResolved;
+        this.idField = id;
+        this.idAccessor = idA;
+        this.titleAccessor = titleA;
+        this.lastModifiedAccessor = lastModifiedA;
+        this.mutators = writeable;
+    }
+
+    /**
+     * @return true if the class is a bean (same as {@link ConstructorUtils#isClassBean(Class)})
+     */
+    public boolean isBean() {
+        return bean;
+    }
+
+    /**
+     * @return true if the accessors for this class were made and the values can be read using this metadata,
+     * false if the values need to be found using {@link ReflectUtils} instead
+     */
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    /**
+     * @return the name of the identifier field ({@link EntityId} or "id") OR null if there is none
+     */
+    public String getIdField() {
+        return idField;
+    }
+
+    /**
+     * @param entity an entity of this class
+     * @return the id of the entity ({@link EntityId}, "entityId", or "id") as a string OR null if there is none
+     */
+    public String getEntityId(Object entity) {
+        return idAccessor == null ? null : toString(idAccessor.get(entity));
+    }
+
+    /**
+     * @param entity an entity of this class
+     * @return the display title of the entity ({@link EntityTitle} or "title") as a string OR null if there is none
+     */
+    public String getTitle(Object entity) {
+        return titleAccessor == null ? null : toString(titleAccessor.get(entity));
+    }
+
+    /**
+     * @param entity an entity of this class
+     * @return the last modified value ({@link EntityLastModified} or "lastModified") OR null if there is none
+     */
+    public Object getLastModified(Object entity) {
+        return lastModifiedAccessor == null ? null : lastModifiedAccessor.get(entity);
+    }
+
+    /**
+     * @param name the name of a property
+     * @return the type of the writeable property (public setter or public non-final field) with this name
+     * OR null if there is no writeable property with this name
+     */
+    public Class<?> getPropertyType(String name) {
+        Mutator mutator = mutators.get(name);
+        return mutator == null ? null : mutator.type;
+    }
+
+    /**
+     * Set the value of a writeable property on an entity of this class,
+     * the value will be converted to the type of the property if needed (using {@link ReflectUtils#convert(Object, Class)}),
+     * null values are skipped for primitive properties
+     * 
+     * @param entity an entity of this class
+     * @param name the name of a property
+     * @param value the value to set
+     * @return true if the property is writeable, false if there is no writeable property with this name
+     * @throws UnsupportedOperationException if the value cannot be converted to the type of the property
+     */
+    public boolean setPropertyValue(Object entity, String name, Object value) {
+        Mutator mutator = mutators.get(name);
+        if (mutator == null) {
+            return false;
+        }
+        if (value == null) {
+            if (! mutator.type.isPrimitive()) {
+                mutator.set(entity, null);
+            }
+        } else if (mutator.boxedType.isInstance(value)) {
+            mutator.set(entity, value);
+        } else {
+            mutator.set(entity, ReflectUtils.getInstance().convert(value, mutator.type));
+        }
+        return true;
+    }
+
+    private static String toString(Object value) {
+        String s = null;
+        if (value != null) {
+            if (value instanceof String) {
+                s = (String) value;
+            } else {
+                s = ReflectUtils.getInstance().convert(value, String.class);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @return the readable properties (public getters and public fields) for the class, in name order
+     */
+    private static Map<String, Accessor> findReadableProperties(Class<?> type) {
+        Map<String, Accessor> properties = new TreeMap<String, Accessor>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())
+                    || method.getParameterTypes().length > 0
+                    || void.class.equals(method.getReturnType())
+                    || Object.class.equals(method.getDeclaringClass())) {
+                continue;
+            }
+            String methodName = method.getName();
+            String name = null;
+            if (methodName.startsWith("get") && methodName.length() > 3) {
+                name = methodName.substring(3);
+            } else if (methodName.startsWith("is") && methodName.length() > 2
+                    && (boolean.class.equals(method.getReturnType()) || Boolean.class.equals(method.getReturnType()))) {
+                name = methodName.substring(2);
+            }
+            if (name != null) {
+                name = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+                if (! properties.containsKey(name)) {
+                    properties.put(name, new Accessor(name, method));
+                }
+            }
+        }
+        for (Field field : type.getFields()) {
+            if (! Modifier.isStatic(field.getModifiers())
+                    && ! properties.containsKey(field.getName())) {
+                properties.put(field.getName(), new Accessor(field.getName(), field));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @return the writeable properties (public single argument setters and public non-final fields) for the class,
+     * when a setter is overloaded the one which matches the type of the getter is used
+     */
+    private static Map<String, Mutator> findWriteableProperties(Class<?> type, Map<String, Accessor> readable) {
+        Map<String, Mutator> properties = new HashMap<String, Mutator>();
+        for (Method method : type.getMethods()) {
+            String methodName = method.getName();
+            if (Modifier.isStatic(method.getModifiers())
+                    || method.getParameterTypes().length != 1
+                    || ! methodName.startsWith("set") || methodName.length() <= 3
+                    || Object.class.equals(method.getDeclaringClass())) {
+                continue;
+            }
+            String name = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+            Class<?> paramType = method.getParameterTypes()[0];
+            Mutator existing = properties.get(name);
+            if (existing == null || paramType.equals(readableType(readable.get(name)))) {
+                properties.put(name, new Mutator(name, paramType, method));
+            }
+        }
+        for (Field field : type.getFields()) {
+            if (! Modifier.isStatic(field.getModifiers())
+                    && ! Modifier.isFinal(field.getModifiers())
+                    && ! properties.containsKey(field.getName())) {
+                properties.put(field.getName(), new Mutator(field.getName(), field.getType(), field));
+            }
+        }
+        return properties;
+    }
+
+    private static Class<?> readableType(Accessor accessor) {
+        Class<?> type = null;
+        if (accessor != null) {
+            if (accessor.member instanceof Method) {
+                type = ((Method) accessor.member).getReturnType();
+            } else {
+                type = ((Field) accessor.member).getType();
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @return the first property (by name) which has this annotation on the getter, field, or setter OR null if none do
+     */
+    private static Accessor findAnnotated(Class<?> type, Map<String, Accessor> properties, Class<? extends Annotation> annotation) {
+        for (Accessor accessor : properties.values()) {
+            if (accessor.member.isAnnotationPresent(annotation)) {
+                return accessor;
+            }
+            // check the (possibly private) field with the same name
+            for (Class<?> c = type; c != null && ! Object.class.equals(c); c = c.getSuperclass()) {
+                try {
+                    Field field = c.getDeclaredField(accessor.name);
+                    if (field.isAnnotationPresent(annotation)) {
+                        return accessor;
+                    }
+                    break;
+                } catch (NoSuchFieldException e) {
+                    // try the superclass
+                } catch (SecurityException e) {
+                    break;
+                }
+            }
+            // check the setter
+            if (accessor.member instanceof Method) {
+                String setterName = "set" + Character.toUpperCase(accessor.name.charAt(0)) + accessor.name.substring(1);
+                try {
+                    Method setter = type.getMethod(setterName, ((Method) accessor.member).getReturnType());
+                    if (setter.isAnnotationPresent(annotation)) {
+                        return accessor;
+                    }
+                } catch (NoSuchMethodException e) {
+                    // no setter
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A precompiled getter for a property
+     */
+    private static class Accessor {
+        final String name;
+        final AccessibleObject member;
+        final MethodHandle getter;
+        Accessor(String name, AccessibleObject member) {
+            this.name = name;
+            this.member = member;
+            MethodHandle mh;
+            try {
+                mh = unreflect(MethodHandles.publicLookup(), member);
+            } catch (IllegalAccessException e) {
+                // public member on a class which is not public
+                try {
+                    member.setAccessible(true);
+                    mh = unreflect(MethodHandles.lookup(), member);
+                } catch (Exception e1) {
+                    throw new IllegalArgumentException("Cannot access property ("+name+"): " + e1.getMessage(), e1);
+                }
+            }
+            this.getter = mh.asType(MethodType.methodType(Object.class, Object.class));
+        }
+        private static MethodHandle unreflect(MethodHandles.Lookup lookup, AccessibleObject member) throws IllegalAccessException {
+            if (member instanceof Method) {
+                return lookup.unreflect((Method) member);
+            }
+            return lookup.unreflectGetter((Field) member);
+        }
+        Object get(Object entity) {
+            try {
+                return (Object) getter.invokeExact(entity);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to get the value of property ("+name+") from entity: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * A precompiled setter for a property
+     */
+    private static class Mutator {
+        final String name;
+        final Class<?> type;
+        final Class<?> boxedType;
+        final MethodHandle setter;
+        Mutator(String name, Class<?> type, AccessibleObject member) {
+            this.name = name;
+            this.type = type;
+            this.boxedType = MethodType.methodType(type).wrap().returnType();
+            MethodHandle mh;
+            try {
+                mh = unreflect(MethodHandles.publicLookup(), member);
+            } catch (IllegalAccessException e) {
+                // public member on a class which is not public
+                try {
+                    member.setAccessible(true);
+                    mh = unreflect(MethodHandles.lookup(), member);
+                } catch (Exception e1) {
+                    throw new IllegalArgumentException("Cannot access property ("+name+"): " + e1.getMessage(), e1);
+                }
+            }
+            this.setter = mh.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+        private static MethodHandle unreflect(MethodHandles.Lookup lookup, AccessibleObject member) throws IllegalAccessException {
+            if (member instanceof Method) {
+                return lookup.unreflect((Method) member);
+            }
+            return lookup.unreflectSetter((Field) member);
+        }
+        void set(Object entity, Object value) {
+            try {
+                setter.invokeExact(entity, value);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to set the value of property ("+name+") on entity: " + e.getMessage(), e);
+            }
+        }
+    }
+
+}
@@ -164,6 +164,12 @@ public class EntityDataUtils {
      */
     public static String getEntityId(Object entity) {
         String entityId = null;
+        if (entity != null) {
+            EntityClassMetadata metadata = EntityClassMetadata.getMetadata(entity.getClass());
+            if (metadata.isResolved()) {
+                return metadata.getEntityId(entity);
+            }
+        }
         try {
             entityId = ReflectUtils.getInstance().getFieldValueAsString(entity, "entityId", EntityId.class);
         } catch (FieldnameNotFoundException e) {
@@ -183,6 +189,12 @@ public class EntityDataUtils {
      * @return the name of the identifier field for this entity OR null if it cannot be determined
      */
     public static String getEntityIdField(Class<?> type) {
+        if (type != null) {
+            EntityClassMetadata metadata = EntityClassMetadata.getMetadata(type);
+            if (metadata.isResolved()) {
+                return metadata.getIdField();
+            }
+        }
         String entityIdField = ReflectUtils.getInstance().getFieldNameWithAnnotation(type, EntityId.class);
         if (entityIdField == null) {
             try {
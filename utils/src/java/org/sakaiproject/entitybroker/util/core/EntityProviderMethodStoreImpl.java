@@ -48,6 +48,7 @@ import org.sakaiproject.entitybroker.entityprovider.extension.TemplateMap;
 import org.sakaiproject.entitybroker.entityprovider.extension.URLRedirect;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
 
+import org.sakaiproject.entitybroker.util.MethodInvoker;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
 
 
@@ -103,6 +104,7 @@ public class EntityProviderMethodStoreImpl implements EntityProviderMethodStore
                     }
                 }
                 ca.setMethod(method); // store the method in the ca
+                ca.setInvoker(makeCustomActionInvoker(ca, method));
                 actions.add(ca);
             } else if (method.getName().endsWith(ActionsExecutable.ACTION_METHOD_SUFFIX)) {
                 String action = method.getName().substring(0, method.getName().length() - ActionsExecutable.ACTION_METHOD_SUFFIX.length());
@@ -116,6 +118,7 @@ public class EntityProviderMethodStoreImpl implements EntityProviderMethodStore
                     continue;
                 }
                 ca.setMethod(method); // store the method in the ca
+                ca.setInvoker(makeCustomActionInvoker(ca, method));
                 actions.add(ca);
             }
         }
@@ -229,6 +232,7 @@ public class EntityProviderMethodStoreImpl implements EntityProviderMethodStore
                             +entityProvider.getEntityPrefix() + "): " + e.getMessage(), e);
                 }
                 redirect.setMethod(method); // cache to reduce lookup cost
+                redirect.setInvoker(makeURLRedirectInvoker(redirect, method));
                 redirects.add(redirect);
             }
         }
@@ -305,6 +309,63 @@ public class EntityProviderMethodStoreImpl implements EntityProviderMethodStore
         String[].class,
         Map.class
     };
+
+    /**
+     * The positions of the arguments passed to the handle of a custom action {@link MethodInvoker},
+     * these match the order of the {@link #validActionParamTypes}
+     */
+    public static final int ACTION_ARG_REFERENCE = 0;
+    public static final int ACTION_ARG_VIEW = 1;
+    public static final int ACTION_ARG_SEARCH = 2;
+    public static final int ACTION_ARG_PREFIX = 3;
+    public static final int ACTION_ARG_OUTPUT_STREAM = 4;
+    public static final int ACTION_ARG_PARAMS = 5;
+    /**
+     * The positions of the arguments passed to the handle of a URL redirect {@link MethodInvoker},
+     * these match the order of the {@link #validRedirectParamTypes}
+     */
+    public static final int REDIRECT_ARG_URL = 0;
+    public static final int REDIRECT_ARG_VARIABLE_NAMES = 1;
+    public static final int REDIRECT_ARG_VALUES = 2;
+
+    /**
+     * Compiles the method for a custom action into an invoker which is called with all the possible
+     * arguments (EntityReference, EntityView, Search, String, OutputStream, Map) in that order
+     * @param customAction the custom action (with the methodArgTypes set)
+     * @param method the method for the custom action
+     * @return the invoker OR null if it could not be made (invalid arg types or the method is not accessible)
+     */
+    public static MethodInvoker makeCustomActionInvoker(CustomAction customAction, Method method) {
+        MethodInvoker invoker = null;
+        if (customAction.methodArgTypes != null) {
+            try {
+                invoker = new MethodInvoker(method, customAction.methodArgTypes, validActionParamTypes);
+            } catch (IllegalArgumentException e) {
+                System.out.println("WARN Could not compile the invoker for custom action ("+customAction+"): " + e.getMessage());
+            }
+        }
+        return invoker;
+    }
+
+    /**
+     * Compiles the method for a URL redirect into an invoker which is called with all the possible
+     * arguments (String, String[], Map) in that order
+     * @param redirect the URL redirect (with the methodArgTypes set)
+     * @param method the method for the redirect
+     * @return the invoker OR null if it could not be made (invalid arg types or the method is not accessible)
+     */
+    public static MethodInvoker makeURLRedirectInvoker(URLRedirect redirect, Method method) {
+        MethodInvoker invoker = null;
+        if (redirect.methodArgTypes != null) {
+            try {
+                invoker = new MethodInvoker(method, redirect.methodArgTypes, validRedirectParamTypes);
+            } catch (IllegalArgumentException e) {
+                System.out.println("WARN Could not compile the invoker for URL redirect ("+redirect+"): " + e.getMessage());
+            }
+        }
+        return invoker;
+    }
+
     /**
      * Validates the parameter types on a method to make sure they are valid
      * @param paramTypes an array of parameter types
@@ -386,6 +447,7 @@ public class EntityProviderMethodStoreImpl implements EntityProviderMethodStore
                 if (name.equals(ca.methodName)) {
                     ca.methodArgTypes = validateActionParamTypes(method.getParameterTypes(), ca.methodName);
                     ca.setMethod(method); // store the method in the ca
+                    ca.setInvoker(makeCustomActionInvoker(ca, method));
                     found = true;
                     break;
                 }
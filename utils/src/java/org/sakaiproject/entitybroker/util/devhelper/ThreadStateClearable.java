@@ -0,0 +1,37 @@
+/**
+ * $Id$
+ * $URL$
+ * ThreadStateClearable.java - entity-broker - Oct 18, 2026 5:02:14 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.devhelper;
+
+/**
+ * INTERNAL USE ONLY<br/>
+ * Implemented by developer helper services which bind user and request state to the current thread
+ * so that the pooled threads (like the batch workers) can be cleaned up after each piece of work
+ */
+public interface ThreadStateClearable {
+
+    /**
+     * Clears all the user and request state (current session, current user, and any other thread bound data)
+     * from the current thread, this should be called when work is finished on a pooled thread
+     * so that none of it leaks into the next piece of work handled by the same thread
+     */
+    public void clearCurrentThreadState();
+
+}
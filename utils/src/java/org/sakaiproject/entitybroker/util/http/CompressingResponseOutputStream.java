@@ -0,0 +1,191 @@
+/**
+ * $Id$
+ * $URL$
+ * CompressingResponseOutputStream.java - entity-broker - Oct 17, 2026 5:40:12 PM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.sakaiproject.entitybroker.util.request.RequestUtils;
+
+/**
+ * Compresses the data written to it into the response (gzip or deflate) once there is more of it
+ * than the threshold, smaller responses (and content types which are already compressed)
+ * are written out as is<br/>
+ * The data is held in memory until the threshold is reached so the Content-Encoding header can
+ * still be set, {@link #finish()} (or {@link #close()}) MUST be called once all the data is written<br/>
+ * Does not open the response output stream until there is something to write
+ * (like the {@link LazyResponseOutputStream})
+ */
+public class CompressingResponseOutputStream extends OutputStream {
+
+    private final HttpServletResponse response;
+    private final String contentEncoding;
+    private final int threshold;
+    private byte[] buffer;
+    private int count = 0;
+    /**
+     * the stream the data is going to once the threshold is passed (compressed or not)
+     */
+    private OutputStream stream = null;
+    private DeflaterOutputStream compressedStream = null;
+    private boolean finished = false;
+
+    /**
+     * @param response the response to write the data into
+     * @param contentEncoding the compression to use, {@link RequestUtils#CONTENT_ENCODING_GZIP} or {@link RequestUtils#CONTENT_ENCODING_DEFLATE}
+     * @param threshold the number of bytes which have to be written before the data is compressed
+     */
+    public CompressingResponseOutputStream(HttpServletResponse response, String contentEncoding, int threshold) {
+        if (response == null) {
+            throw new IllegalArgumentException("response cannot be null");
+        }
+        if (! RequestUtils.CONTENT_ENCODING_GZIP.equals(contentEncoding)
+                && ! RequestUtils.CONTENT_ENCODING_DEFLATE.equals(contentEncoding)) {
+            throw new IllegalArgumentException("contentEncoding must be gzip or deflate: " + contentEncoding);
+        }
+        this.response = response;
+        this.contentEncoding = contentEncoding;
+        this.threshold = threshold < 0 ? 0 : threshold;
+        this.buffer = new byte[Math.min(this.threshold + 1, 8192)];
+    }
+
+    /**
+     * @param contentType a response content type (mime type)
+     * @return true if data of this type is worth compressing (text, xml, json, javascript), false otherwise
+     */
+    public static boolean isCompressibleContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase();
+        return contentType.startsWith("text/")
+            || contentType.indexOf("xml") >= 0
+            || contentType.indexOf("json") >= 0
+            || contentType.indexOf("javascript") >= 0;
+    }
+
+    /**
+     * @return true if the data is being compressed, false if it is not (or not yet)
+     */
+    public boolean isCompressing() {
+        return compressedStream != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (stream != null) {
+            stream.write(b);
+        } else {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Cannot write to the stream after it is finished");
+        }
+        if (stream != null) {
+            stream.write(b, off, len);
+        } else if (count + len <= threshold) {
+            // hold it until we know if the data will be compressed
+            if (count + len > buffer.length) {
+                byte[] newBuffer = new byte[Math.min(Math.max(buffer.length * 2, count + len), threshold + 1)];
+                System.arraycopy(buffer, 0, newBuffer, 0, count);
+                buffer = newBuffer;
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        } else {
+            openStream(true);
+            stream.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // data under the threshold is held until the end
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Writes out any held data and completes the compressed data,
+     * this does not close the response output stream
+     * @throws IOException if the response cannot be written
+     */
+    public void finish() throws IOException {
+        if (! finished) {
+            if (stream == null) {
+                if (count > 0) {
+                    openStream(false);
+                }
+            }
+            if (compressedStream != null) {
+                compressedStream.finish();
+            }
+            if (stream != null) {
+                stream.flush();
+            }
+            finished = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private void openStream(boolean overThreshold) throws IOException {
+        OutputStream responseStream = new LazyResponseOutputStream(response);
+        if (overThreshold
+                && isCompressibleContentType(response.getContentType())) {
+            response.setHeader(RequestUtils.HEADER_CONTENT_ENCODING, contentEncoding);
+            if (RequestUtils.CONTENT_ENCODING_GZIP.equals(contentEncoding)) {
+                compressedStream = new GZIPOutputStream(responseStream, 8192);
+            } else {
+                compressedStream = new DeflaterOutputStream(responseStream);
+            }
+            stream = compressedStream;
+        } else {
+            stream = responseStream;
+        }
+        if (count > 0) {
+            stream.write(buffer, 0, count);
+        }
+        buffer = null;
+        count = 0;
+    }
+
+}
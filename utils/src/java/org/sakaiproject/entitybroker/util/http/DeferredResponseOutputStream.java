@@ -0,0 +1,174 @@
+/**
+ * $Id$
+ * $URL$
+ * DeferredResponseOutputStream.java - entity-broker - Oct 18, 2026 1:58:12 AM
+ **************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.sakaiproject.entitybroker.util.request.RequestUtils;
+
+/**
+ * An outputstream which writes into the response but holds back up to bufferSize bytes
+ * so the status and headers can still be set after the data has been written,
+ * once more than bufferSize bytes are written the response is committed
+ * (the encoding from the format is set if there is one and no content type was set already,
+ * the status is left as it is) and everything after that is streamed straight into the response<br/>
+ * A bufferSize of 0 commits on the first write so nothing is held in memory<br/>
+ * Like the {@link LazyResponseOutputStream} this does not get the outputstream
+ * from the response until something is written into it,
+ * {@link #finish()} must be called once the headers are set to write out any held data
+ */
+public class DeferredResponseOutputStream extends OutputStream {
+
+    private HttpServletResponse response;
+    private String format;
+    private int bufferSize;
+    private byte[] buffer;
+    private int count = 0;
+    private OutputStream stream = null;
+    private boolean closed = false;
+
+    /**
+     * @param response the response that will be used to get the outputstream
+     * @param bufferSize the max number of bytes to hold before committing the response, 0 to commit on the first write
+     * @param format (optional) the format used to set the response encoding if this has to commit the response
+     * and no content type has been set, if null then the encoding in the response is left as is
+     */
+    public DeferredResponseOutputStream(HttpServletResponse response, int bufferSize, String format) {
+        if (response == null) {
+            throw new IllegalArgumentException("response cannot be null");
+        }
+        if (bufferSize < 0) {
+            bufferSize = 0;
+        }
+        this.response = response;
+        this.bufferSize = bufferSize;
+        this.format = format;
+    }
+
+    /**
+     * @return true if the response has been committed and data is being written straight into it
+     */
+    public boolean isCommitted() {
+        return stream != null;
+    }
+
+    /**
+     * @return the number of bytes being held (not written into the response yet)
+     */
+    public int getBufferedCount() {
+        return count;
+    }
+
+    /**
+     * Writes out any held data into the response, call this once the status and headers are set,
+     * this does nothing if nothing was written
+     * @throws RuntimeException if the response outputstream cannot be written to
+     */
+    public void finish() {
+        try {
+            if (count > 0) {
+                getStream().write(buffer, 0, count);
+                count = 0;
+            }
+            buffer = null;
+            if (stream != null && ! closed) {
+                stream.flush();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("DeferredResponseOutputStream failed writing to the response output stream", e);
+        }
+    }
+
+    private OutputStream getStream() throws IOException {
+        if (stream == null) {
+            stream = response.getOutputStream();
+        }
+        return stream;
+    }
+
+    /**
+     * Sets the default encoding (if none was set) and then writes any held data into the response,
+     * the status and content type set by whatever is writing the output are not changed
+     */
+    private OutputStream commit() throws IOException {
+        if (format != null
+                && response.getContentType() == null) {
+            RequestUtils.setResponseEncoding(format, response);
+        }
+        OutputStream out = getStream();
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer = null;
+        return out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (stream != null) {
+            stream.write(b, off, len);
+        } else if (count + len > bufferSize) {
+            commit().write(b, off, len);
+        } else {
+            if (buffer == null) {
+                buffer = new byte[Math.min(bufferSize, Math.max(len, 1024))];
+            } else if (count + len > buffer.length) {
+                byte[] bigger = new byte[Math.min(bufferSize, Math.max(count + len, buffer.length * 2))];
+                System.arraycopy(buffer, 0, bigger, 0, count);
+                buffer = bigger;
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+    @Override
+    public void flush() throws IOException {
+        // flushing held data would commit the response so only flush once committed
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+    @Override
+    public void close() throws IOException {
+        // held data still has to be written by finish so only close once committed
+        if (stream != null && ! closed) {
+            closed = true;
+            stream.close();
+        }
+    }
+    @Override
+    public String toString() {
+        return super.toString() + ":" + (stream == null ? "held=" + count : "committed");
+    }
+
+}
@@ -107,6 +107,11 @@ public class EntityHttpServletRequest implements HttpServletRequest {
     ConcurrentHashMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
     ConcurrentHashMap<String, String[]> parameters = new ConcurrentHashMap<String, String[]>();
     Vector<Cookie> cookies = new Vector<Cookie>();
+    // true when the collection is shared with another request and must be copied before it is changed
+    boolean sharedHeaders = false;
+    boolean sharedAttributes = false;
+    boolean sharedParameters = false;
+    boolean sharedCookies = false;
     Locale locale = Locale.getDefault();
     String contentType = "text/plain";
     String characterEncoding = "UTF-8";
@@ -231,13 +236,13 @@ public class EntityHttpServletRequest implements HttpServletRequest {
             String name = (String) attribNames.nextElement();
             Object obj = req.getAttribute(name);
             if (obj != null) {
-                attributes.put(name, obj);
+                writeAttributes().put(name, obj);
             }
         }
         Cookie[] ck = req.getCookies();
         if (ck != null) {
             for (int i = 0; i < ck.length; i++) {
-                cookies.add(ck[i]);
+                writeCookies().add(ck[i]);
             }
         }
         Enumeration<String> headerNames = req.getHeaderNames();
@@ -251,7 +256,7 @@ public class EntityHttpServletRequest implements HttpServletRequest {
             }
         }
         for (Entry<String, String[]> entry : (Set<Entry<String, String[]>>) req.getParameterMap().entrySet()) {
-            parameters.put(entry.getKey(), entry.getValue());
+            writeParameters().put(entry.getKey(), entry.getValue());
         }
         // get the basic values out
         this.locale = req.getLocale();
@@ -276,6 +281,77 @@ public class EntityHttpServletRequest implements HttpServletRequest {
         this.realDispatcher = true;
     }
 
+    /**
+     * Makes a new request which shares the values in this one and modifies it based on the path string,
+     * the headers, attributes, parameters, and cookies are only copied when one of the requests changes them
+     * (copy on write) so this is much cheaper than copying a request over and over
+     * (e.g. when making many internal requests from one copy of the real request)
+     * @param pathString any full path or URL (/direct/prefix/id.xml)
+     * @return the new request
+     */
+    public EntityHttpServletRequest makeSharedCopy(String pathString) {
+        EntityHttpServletRequest req = new EntityHttpServletRequest(this.method, null, (String[]) null);
+        req.copy = this.copy;
+        this.sharedHeaders = this.sharedAttributes = this.sharedParameters = this.sharedCookies = true;
+        req.sharedHeaders = req.sharedAttributes = req.sharedParameters = req.sharedCookies = true;
+        req.headers = this.headers;
+        req.attributes = this.attributes;
+        req.parameters = this.parameters;
+        req.cookies = this.cookies;
+        req.locale = this.locale;
+        req.contentType = this.contentType;
+        req.characterEncoding = this.characterEncoding;
+        req.contentStream = this.contentStream;
+        req.contentLength = this.contentLength;
+        req.internalSession = this.internalSession;
+        req.scheme = this.scheme;
+        req.protocol = this.protocol;
+        req.serverName = this.serverName;
+        req.serverPort = this.serverPort;
+        req.remoteAddr = this.remoteAddr;
+        req.remoteHost = this.remoteHost;
+        req.contextPath = this.contextPath;
+        req.pathInfo = this.pathInfo;
+        req.queryString = this.queryString;
+        req.requestURI = this.requestURI;
+        req.servletPath = this.servletPath;
+        req.realDispatcher = this.realDispatcher;
+        req.setPathString(pathString);
+        return req;
+    }
+
+    private ConcurrentHashMap<String, Vector<String>> writeHeaders() {
+        if (sharedHeaders) {
+            headers = new ConcurrentHashMap<String, Vector<String>>(headers);
+            sharedHeaders = false;
+        }
+        return headers;
+    }
+
+    private ConcurrentHashMap<String, Object> writeAttributes() {
+        if (sharedAttributes) {
+            attributes = new ConcurrentHashMap<String, Object>(attributes);
+            sharedAttributes = false;
+        }
+        return attributes;
+    }
+
+    private ConcurrentHashMap<String, String[]> writeParameters() {
+        if (sharedParameters) {
+            parameters = new ConcurrentHashMap<String, String[]>(parameters);
+            sharedParameters = false;
+        }
+        return parameters;
+    }
+
+    private Vector<Cookie> writeCookies() {
+        if (sharedCookies) {
+            cookies = new Vector<Cookie>(cookies);
+            sharedCookies = false;
+        }
+        return cookies;
+    }
+
     /**
      * This stores all the query params found when the request was created
      */
@@ -408,18 +484,20 @@ public class EntityHttpServletRequest implements HttpServletRequest {
     }
 
     public void removeAttribute(String name) {
-        attributes.remove(name);
+        if (attributes.containsKey(name)) {
+            writeAttributes().remove(name);
+        }
     }
 
     public void setAttribute(String name, Object o) {
-        attributes.put(name, o);
+        writeAttributes().put(name, o);
     }
 
     /**
      * Remove all attributes
      */
     public void clearAttributes() {
-        this.attributes.clear();
+        writeAttributes().clear();
     }
 
     public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
@@ -554,13 +632,13 @@ public class EntityHttpServletRequest implements HttpServletRequest {
         if (cookie == null) {
             throw new IllegalArgumentException("Cookie cannot be null");
         }
-        for (Iterator<Cookie> iterator = cookies.iterator(); iterator.hasNext();) {
+        for (Iterator<Cookie> iterator = writeCookies().iterator(); iterator.hasNext();) {
             Cookie c = iterator.next();
             if (cookie.getName().equals(c.getName())) {
                 iterator.remove();
             }
         }
-        cookies.add(cookie);
+        writeCookies().add(cookie);
     }
 
     /**
@@ -571,7 +649,7 @@ public class EntityHttpServletRequest implements HttpServletRequest {
         if (name == null || "".equals(name)) {
             throw new IllegalArgumentException("name cannot be null");
         }
-        for (Iterator<Cookie> iterator = cookies.iterator(); iterator.hasNext();) {
+        for (Iterator<Cookie> iterator = writeCookies().iterator(); iterator.hasNext();) {
             Cookie c = iterator.next();
             if (name.equals(c.getName())) {
                 iterator.remove();
@@ -593,7 +671,7 @@ public class EntityHttpServletRequest implements HttpServletRequest {
      * Remove all cookies
      */
     public void clearCookies() {
-        this.cookies.clear();
+        writeCookies().clear();
     }
 
     public void addHeader(String name, String... content) {
@@ -608,11 +686,13 @@ public class EntityHttpServletRequest implements HttpServletRequest {
             String c = content[i];
             v.add(c);
         }
-        headers.put(name, v);
+        writeHeaders().put(name, v);
     }
 
     public void removeHeader(String name) {
-        headers.remove(name);
+        if (headers.containsKey(name)) {
+            writeHeaders().remove(name);
+        }
     }
 
     public String getHeader(String name) {
@@ -677,7 +757,7 @@ public class EntityHttpServletRequest implements HttpServletRequest {
      * Remove all headers
      */
     public void clearHeaders() {
-        this.headers.clear();
+        writeHeaders().clear();
     }
 
     public String getAuthType() {
@@ -789,9 +869,9 @@ public class EntityHttpServletRequest implements HttpServletRequest {
             String[] newArr = new String[oldArr.length + values.length];
             System.arraycopy(oldArr, 0, newArr, 0, oldArr.length);
             System.arraycopy(values, 0, newArr, oldArr.length, values.length);
-            this.parameters.put(name, newArr);
+            writeParameters().put(name, newArr);
         } else {
-            this.parameters.put(name, values);
+            writeParameters().put(name, values);
         }
     }
 
@@ -805,7 +885,7 @@ public class EntityHttpServletRequest implements HttpServletRequest {
         if (values == null || values.length < 1) {
             throw new IllegalArgumentException("values cannot be null or empty");
         }
-        this.parameters.put(name, values);
+        writeParameters().put(name, values);
     }
 
     /**
@@ -815,7 +895,7 @@ public class EntityHttpServletRequest implements HttpServletRequest {
      */
     public void setParameters(Map<String, String[]> params) {
         if (params != null && params.size() > 0) {
-            this.parameters.putAll( params );
+            writeParameters().putAll( params );
         }
     }
 
@@ -827,14 +907,21 @@ public class EntityHttpServletRequest implements HttpServletRequest {
         if (name == null || "".equals(name)) {
             throw new IllegalArgumentException("name cannot be null");
         }
-        this.parameters.remove(name);
+        if (this.parameters.containsKey(name)) {
+            writeParameters().remove(name);
+        }
     }
     
     /**
      * Remove all parameters
      */
     public void clearParameters() {
-        this.parameters.clear();
+        if (sharedParameters) {
+            this.parameters = new ConcurrentHashMap<String, String[]>();
+            sharedParameters = false;
+        } else {
+            this.parameters.clear();
+        }
     }
 
     public String getProtocol() {
@@ -67,7 +67,22 @@ public class EntityHttpServletResponse implements HttpServletResponse {
      * @param response any valid response, cannot be null
      */
     public EntityHttpServletResponse(HttpServletResponse response) {
-        this.content = new ByteArrayOutputStream(512);
+        this(response, new ByteArrayOutputStream(512));
+    }
+
+    /**
+     * Create a servlet response using the various values and codes stored in the given one
+     * which writes its content into the given buffer,
+     * this allows a buffer to be reused for many responses (the buffer is reset here)
+     * @param response any valid response, cannot be null
+     * @param buffer the buffer to hold the content of this response, cannot be null
+     */
+    public EntityHttpServletResponse(HttpServletResponse response, ByteArrayOutputStream buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer cannot be null");
+        }
+        buffer.reset();
+        this.content = buffer;
         this.outputStream = new EntityServletOutputStream(content);
         if (response == null) {
             throw new IllegalArgumentException("response to copy cannot be null");
@@ -20,9 +20,12 @@
 
 package org.sakaiproject.entitybroker.util.http;
 
+import javax.servlet.http.Cookie;
+
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
 /**
  * Allows us to cleanly wrap an httpclient object without exposing the actual object class
@@ -37,6 +40,16 @@ public class HttpClientWrapper {
     }
     private MultiThreadedHttpConnectionManager connectionManager;
     private HttpState initialHttpState;
+    private IdleConnectionTimeoutThread idleConnectionThread;
+    /**
+     * the state to use for requests when the client is shared, null if the client state is used
+     */
+    private HttpState requestState;
+    private Cookie[] requestCookies;
+    /**
+     * true if the client belongs to another wrapper (so it is not shutdown by this one)
+     */
+    private boolean shared = false;
     /**
      * This is meant for system use so you should not be constructing this,
      * use the {@link HttpRESTUtils#makeReusableHttpClient(boolean, int, javax.servlet.http.Cookie[])} instead
@@ -44,17 +57,57 @@ public class HttpClientWrapper {
     public HttpClientWrapper(HttpClient httpClient, 
             MultiThreadedHttpConnectionManager multiThreadedHttpConnectionManager,
             HttpState initialHttpState) {
+        this(httpClient, multiThreadedHttpConnectionManager, initialHttpState, null);
+    }
+    /**
+     * This is meant for system use so you should not be constructing this,
+     * use the {@link HttpRESTUtils#makePooledHttpClient(int, int, int, int, int)} instead
+     */
+    public HttpClientWrapper(HttpClient httpClient, 
+            MultiThreadedHttpConnectionManager multiThreadedHttpConnectionManager,
+            HttpState initialHttpState, IdleConnectionTimeoutThread idleConnectionThread) {
         super();
         this.httpClient = httpClient;
         this.connectionManager = multiThreadedHttpConnectionManager;
         this.initialHttpState = initialHttpState;
+        this.idleConnectionThread = idleConnectionThread;
+    }
+    /**
+     * Makes a wrapper which sends requests through the same client (and connection pool) as this one
+     * but keeps its own copy of the cookies, this is how a pooled client should be used for requests for a specific user,
+     * make one of these for each request target since the cookie state is changed by the responses
+     * and is not meant to be used by more than one thread at a time,
+     * shutting down the new wrapper does not shutdown this one
+     * @param cookies (optional) cookies to send along with every request from the new wrapper
+     * @return the wrapper for the requests
+     */
+    public HttpClientWrapper makeRequestClient(Cookie[] cookies) {
+        HttpClientWrapper wrapper = new HttpClientWrapper(httpClient, null, null);
+        wrapper.requestCookies = cookies;
+        wrapper.requestState = HttpRESTUtils.makeHttpState(cookies);
+        wrapper.shared = true;
+        return wrapper;
+    }
+    /**
+     * @return the state (cookies) to use for the next request OR null if the state of the client should be used,
+     * a pooled client which is used directly gets a new state for every request so cookies are never shared
+     */
+    public HttpState getRequestState() {
+        HttpState state = requestState;
+        if (state == null 
+                && idleConnectionThread != null) {
+            state = new HttpState();
+        }
+        return state;
     }
     /**
      * Resets the http client state between requests,
      * this is not necessarily required but might be a good idea
      */
     public void resetState() {
-        if (initialHttpState != null) {
+        if (shared) {
+            requestState = HttpRESTUtils.makeHttpState(requestCookies);
+        } else if (initialHttpState != null) {
             httpClient.setState(initialHttpState);
         } else {
             httpClient.setState( new HttpState() );
@@ -64,8 +117,13 @@ public class HttpClientWrapper {
      * cleanup and shutdown the http client
      */
     public void shutdown() {
-        if (this.connectionManager != null) {
-            this.connectionManager.shutdown();
+        if (! shared) {
+            if (this.idleConnectionThread != null) {
+                this.idleConnectionThread.shutdown();
+            }
+            if (this.connectionManager != null) {
+                this.connectionManager.shutdown();
+            }
         }
         this.httpClient = null;
     }
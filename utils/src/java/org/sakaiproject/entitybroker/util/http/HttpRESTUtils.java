@@ -23,8 +23,12 @@ package org.sakaiproject.entitybroker.util.http;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
@@ -40,6 +44,7 @@ import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.DeleteMethod;
@@ -51,8 +56,10 @@ import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
 
 /**
@@ -68,6 +75,11 @@ public class HttpRESTUtils {
     public static final String ENCODING_UTF8 = "UTF-8";
     public static enum Method {POST, GET, PUT, DELETE, HEAD, OPTIONS, TRACE};
     public static final int MAX_RESPONSE_SIZE_CHARS = 1024*1024; // about a million chars max
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_IDLE_CONNECTION_TIMEOUT = 30000;
 
     /**
      * Fire off a request to a URL using the specified method,
@@ -141,8 +153,7 @@ public class HttpRESTUtils {
      * the response data will be returned in the object if the request can be carried out
      * 
      * @param httpClientWrapper (optional) allows the http client to be reused for efficiency,
-     * if null a new one will be created each time, use {@link #makeReusableHttpClient(boolean, int)} to
-     * create a reusable instance
+     * if null the shared pooled client is used (see {@link #getSharedHttpClient()})
      * @param URL the url to send the request to (absolute or relative, can include query params)
      * @param method the method to use (e.g. GET, POST, etc.)
      * @param params (optional) params to send along with the request, will be encoded in the query string or in the body depending on the method
@@ -162,8 +173,7 @@ public class HttpRESTUtils {
      * the response data will be returned in the object if the request can be carried out
      * 
      * @param httpClientWrapper (optional) allows the http client to be reused for efficiency,
-     * if null a new one will be created each time, use {@link #makeReusableHttpClient(boolean, int)} to
-     * create a reusable instance
+     * if null the shared pooled client is used (see {@link #getSharedHttpClient()})
      * @param URL the url to send the request to (absolute or relative, can include query params)
      * @param method the method to use (e.g. GET, POST, etc.)
      * @param params (optional) params to send along with the request, will be encoded in the query string or in the body depending on the method
@@ -183,7 +193,7 @@ public class HttpRESTUtils {
         }
 
         if (httpClientWrapper == null || httpClientWrapper.getHttpClient() == null) {
-            httpClientWrapper = makeReusableHttpClient(false, 0, null);
+            httpClientWrapper = getSharedHttpClient();
         }
 
         HttpMethod httpMethod = null;
@@ -241,21 +251,12 @@ public class HttpRESTUtils {
 
         HttpResponse response = null;
         try {
-            int responseCode = httpClientWrapper.getHttpClient().executeMethod(httpMethod);
+            // the state is separate from the client when the client is shared (e.g. the pooled client)
+            int responseCode = httpClientWrapper.getHttpClient().executeMethod(null, httpMethod, httpClientWrapper.getRequestState());
             response = new HttpResponse(responseCode);
             
             // Avoid DOS because of large responses using up all memory in the system - https://jira.sakaiproject.org/browse/SAK-20405
-			InputStream is = httpMethod.getResponseBodyAsStream();
-			StringBuffer out = new StringBuffer();
-		    byte[] b = new byte[4096];
-		    for (int n; (n = is.read(b)) != -1;) {
-		        out.append(new String(b, 0, n));
-		        if (out.length() > MAX_RESPONSE_SIZE_CHARS) {
-		        	// die if the response exceeds the maximum chars allowed
-		        	throw new HttpRequestException("Response size ("+out.length()+" chars) from url ("+URL+") exceeded the maximum allowed batch response size ("+MAX_RESPONSE_SIZE_CHARS+" chars) while processing the response");
-		        }
-		    }
-			String body = out.toString();
+            String body = readResponseBody(httpMethod.getResponseBodyAsStream(), findResponseCharset(httpMethod), MAX_RESPONSE_SIZE_CHARS, URL);
 
             //String body = httpMethod.getResponseBodyAsString();
             //         byte[] responseBody = httpMethod.getResponseBody();
@@ -443,6 +444,134 @@ public class HttpRESTUtils {
         return m;
     }
 
+    /**
+     * Reads the body of a response using the charset of the response,
+     * the characters are decoded as a stream so multibyte characters are never split
+     * 
+     * @param is the response body stream (can be null if there is no body)
+     * @param charset the charset of the response body
+     * @param maxChars the maximum number of chars the body can have
+     * @param URL the url the response is from (only used for the error message)
+     * @return the response body OR empty string if there is none
+     * @throws IOException if the response cannot be read
+     * @throws HttpRequestException if the response is larger than maxChars
+     */
+    public static String readResponseBody(InputStream is, String charset, int maxChars, String URL) throws IOException {
+        if (is == null) {
+            return "";
+        }
+        Reader reader = new InputStreamReader(is, charset);
+        StringBuilder out = new StringBuilder();
+        char[] buffer = new char[4096];
+        for (int n; (n = reader.read(buffer)) != -1;) {
+            if (out.length() + n > maxChars) {
+                // die if the response exceeds the maximum chars allowed
+                throw new HttpRequestException("Response size ("+(out.length() + n)+" chars) from url ("+URL+") exceeded the maximum allowed batch response size ("+maxChars+" chars) while processing the response");
+            }
+            out.append(buffer, 0, n);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param httpMethod a method which has been executed
+     * @return the charset from the content type of the response OR UTF-8 if there is none or it is not supported
+     */
+    protected static String findResponseCharset(HttpMethod httpMethod) {
+        Header contentType = httpMethod.getResponseHeader("Content-Type");
+        if (contentType != null) {
+            for (HeaderElement element : contentType.getElements()) {
+                NameValuePair param = element.getParameterByName("charset");
+                if (param != null && param.getValue() != null) {
+                    String charset = param.getValue().trim();
+                    try {
+                        if (Charset.isSupported(charset)) {
+                            return charset;
+                        }
+                    } catch (IllegalCharsetNameException e) {
+                        // invalid so use the default
+                    }
+                }
+            }
+        }
+        return ENCODING_UTF8;
+    }
+
+    private static volatile HttpClientWrapper sharedHttpClient = null;
+    /**
+     * Get the pooled http client which is used by {@link #fireRequest(HttpClientWrapper, String, Method, Map, Object, boolean)}
+     * when no client is given, it is created with the defaults the first time it is needed
+     * @return the shared pooled http client wrapper
+     */
+    public static HttpClientWrapper getSharedHttpClient() {
+        HttpClientWrapper client = sharedHttpClient;
+        if (client == null) {
+            synchronized (HttpRESTUtils.class) {
+                client = sharedHttpClient;
+                if (client == null) {
+                    client = makePooledHttpClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, 
+                            DEFAULT_CONNECTION_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_IDLE_CONNECTION_TIMEOUT);
+                    sharedHttpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Shuts down the shared http client (closes all pooled connections and stops the idle connection thread),
+     * a new one will be created if it is needed again
+     */
+    public static void shutdownSharedHttpClient() {
+        synchronized (HttpRESTUtils.class) {
+            if (sharedHttpClient != null) {
+                sharedHttpClient.shutdown();
+                sharedHttpClient = null;
+            }
+        }
+    }
+
+    /**
+     * Generates a pooled http client wrapper which keeps connections open (keep-alive) and reuses them
+     * for requests to the same host, the client can be used by many threads at once,
+     * use {@link HttpClientWrapper#makeRequestClient(Cookie[])} to send cookies along with requests,
+     * {@link HttpClientWrapper#shutdown()} must be called when the client is no longer needed
+     * 
+     * @param maxConnections the maximum number of open connections for all hosts
+     * @param maxConnectionsPerHost the maximum number of open connections to a single host
+     * @param connectionTimeout the time to wait (ms) for a connection to be opened or for a pooled connection to be free
+     * @param readTimeout the time to wait (ms) for data when reading a response
+     * @param idleConnectionTimeout connections which have not been used for this long (ms) are closed
+     * @return the pooled http client wrapper
+     */
+    public static HttpClientWrapper makePooledHttpClient(int maxConnections, int maxConnectionsPerHost, 
+            int connectionTimeout, int readTimeout, int idleConnectionTimeout) {
+        if (maxConnections <= 0 || maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnections and maxConnectionsPerHost must be greater than 0");
+        }
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setMaxTotalConnections(maxConnections);
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setConnectionTimeout(connectionTimeout);
+        params.setSoTimeout(readTimeout);
+        // check the pooled connections were not closed by the server before they are reused
+        params.setStaleCheckingEnabled(true);
+        HttpClient client = new HttpClient(connectionManager);
+        client.getParams().setConnectionManagerTimeout(connectionTimeout);
+        setClientDefaults(client);
+        if (idleConnectionTimeout <= 0) {
+            idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+        }
+        IdleConnectionTimeoutThread idleConnectionThread = new IdleConnectionTimeoutThread();
+        idleConnectionThread.setName("entitybroker-http-idle");
+        idleConnectionThread.setConnectionTimeout(idleConnectionTimeout);
+        idleConnectionThread.setTimeoutInterval(Math.max(1000, idleConnectionTimeout / 2));
+        idleConnectionThread.addConnectionManager(connectionManager);
+        idleConnectionThread.start();
+        return new HttpClientWrapper(client, connectionManager, null, idleConnectionThread);
+    }
+
     /**
      * Generates a reusable http client wrapper which can be given to {@link #fireRequest(HttpClientWrapper, String, Method, Map, Object, boolean)}
      * as an efficiency mechanism
@@ -468,22 +597,39 @@ public class HttpRESTUtils {
         client.getHttpConnectionManager().closeIdleConnections(idleConnectionTimeout);
         client.getHttpConnectionManager().getParams().setConnectionTimeout(idleConnectionTimeout);
         // create the initial state
-        HttpState initialState = new HttpState();
+        HttpState initialState = makeHttpState(cookies);
+        if (cookies != null && cookies.length > 0) {
+            client.setState(initialState);
+        }
+        setClientDefaults(client);
+        wrapper = new HttpClientWrapper(client, connectionManager, initialState);
+        return wrapper;
+    }
+
+    /**
+     * @param cookies (optional) cookies to send along with the requests
+     * @return the http state which holds the cookies
+     */
+    protected static HttpState makeHttpState(Cookie[] cookies) {
+        HttpState state = new HttpState();
         if (cookies != null && cookies.length > 0) {
             for (int i = 0; i < cookies.length; i++) {
                 Cookie c = cookies[i];
                 org.apache.commons.httpclient.Cookie mycookie = 
                     new org.apache.commons.httpclient.Cookie(c.getDomain(), c.getName(), c.getValue(), c.getPath(), c.getMaxAge(), c.getSecure());
-                initialState.addCookie(mycookie);
+                state.addCookie(mycookie);
             }
-            client.setState(initialState);
         }
-        // set some defaults
+        return state;
+    }
+
+    /**
+     * Set the defaults used by all the clients
+     */
+    private static void setClientDefaults(HttpClient client) {
         client.getParams().setParameter(HttpMethodParams.USER_AGENT, "Mozilla/5.0 (Windows; U; Windows NT 5.1; en-US; rv:1.9.0.1) Gecko/2008070208 Firefox/3.0.1");
         client.getParams().setCookiePolicy(CookiePolicy.BROWSER_COMPATIBILITY);
         client.getParams().setBooleanParameter(HttpMethodParams.SINGLE_COOKIE_HEADER, true);
-        wrapper = new HttpClientWrapper(client, connectionManager, initialState);
-        return wrapper;
     }
 
     /**
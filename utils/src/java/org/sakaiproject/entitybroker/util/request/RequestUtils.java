@@ -57,6 +57,29 @@ public class RequestUtils {
     private static final String DIVIDER = "||";
     private static final String ENTITY_REDIRECT_CHECK = "_entityRedirectCheck";
 
+    /**
+     * The conditional request header which holds the ETags the client already has
+     */
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    /**
+     * The conditional request header which holds the last modified date of the version the client already has
+     */
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    /**
+     * The request header which holds the content encodings (compression) the client understands
+     */
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    /**
+     * The response header which holds the content encoding (compression) used for the response body
+     */
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    /**
+     * The response header which lists the request headers used to choose the response representation
+     */
+    public static final String HEADER_VARY = "Vary";
+    public static final String CONTENT_ENCODING_GZIP = "gzip";
+    public static final String CONTENT_ENCODING_DEFLATE = "deflate";
+
     /**
      * A map from mimetypes to format constants
      */
@@ -351,6 +374,9 @@ public class RequestUtils {
     // put the keys which should be ignored in this array which will be placed in a set and ignored
     public static String[] ignoreForSearch = new String[] {
         EntityRequestHandler.COMPENSATE_METHOD,
+        EntityRequestHandler.EXPORT_REFERENCE,
+        EntityRequestHandler.EXPORT_DESTRUCTIVE,
+        EntityRequestHandler.IMPORT_ENCODING,
         "queryString", 
         "pathInfo", 
         "method", 
@@ -506,6 +532,121 @@ public class RequestUtils {
         res.setCharacterEncoding(Formats.UTF_8);
     }
 
+    /**
+     * Checks the conditional request headers (If-None-Match and If-Modified-Since) against
+     * the current version of the requested data, If-None-Match is used in preference to
+     * If-Modified-Since when both are sent (as per the HTTP spec)
+     * @param req the incoming request
+     * @param etag (optional) the current ETag for the data (without quotes) OR null if unknown
+     * @param lastModified the current last modified time (ms) for the data OR 0 or less if unknown
+     * @return true if the client already has the current version (send back a 304 not modified),
+     * false if the data should be sent
+     */
+    public static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        boolean notModified = false;
+        String ifNoneMatch = req.getHeader(HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (etag != null) {
+                etag = unquoteETag(etag);
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if ("*".equals(tag) 
+                            || etag.equals(unquoteETag(tag))) {
+                        notModified = true;
+                        break;
+                    }
+                }
+            }
+        } else if (lastModified > 0) {
+            long ifModifiedSince = -1;
+            try {
+                ifModifiedSince = req.getDateHeader(HEADER_IF_MODIFIED_SINCE);
+            } catch (IllegalArgumentException e) {
+                // invalid date header so it has to be ignored
+                ifModifiedSince = -1;
+            }
+            // http dates only go down to the second
+            if (ifModifiedSince > 0 
+                    && (lastModified / 1000) <= (ifModifiedSince / 1000)) {
+                notModified = true;
+            }
+        }
+        return notModified;
+    }
+
+    /**
+     * Finds the compression to use for the response from the Accept-Encoding header of the request,
+     * gzip is preferred over deflate when the client rates them the same
+     * @param req the incoming request
+     * @return {@link #CONTENT_ENCODING_GZIP} or {@link #CONTENT_ENCODING_DEFLATE} OR null if the client 
+     * did not ask for either of them (the response should not be compressed)
+     */
+    public static String findAcceptedContentEncoding(HttpServletRequest req) {
+        String acceptEncoding = req.getHeader(HEADER_ACCEPT_ENCODING);
+        if (acceptEncoding == null || "".equals(acceptEncoding)) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String coding = part.trim();
+            float quality = 1.0f;
+            int semicolon = coding.indexOf(';');
+            if (semicolon >= 0) {
+                String param = coding.substring(semicolon + 1).trim();
+                coding = coding.substring(0, semicolon).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        // invalid quality so the coding cannot be trusted
+                        quality = 0;
+                    }
+                }
+            }
+            coding = coding.toLowerCase();
+            if (CONTENT_ENCODING_GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = quality;
+            } else if (CONTENT_ENCODING_DEFLATE.equals(coding)) {
+                deflate = quality;
+            } else if ("*".equals(coding)) {
+                any = quality;
+            }
+        }
+        // the wildcard only counts for codings which were not listed
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        String encoding = null;
+        if (gzip > 0 && gzip >= deflate) {
+            encoding = CONTENT_ENCODING_GZIP;
+        } else if (deflate > 0) {
+            encoding = CONTENT_ENCODING_DEFLATE;
+        }
+        return encoding;
+    }
+
+    /**
+     * Strips the weak indicator (W/) and quotes off an ETag
+     * @param etag an ETag value
+     * @return the bare ETag value
+     */
+    private static String unquoteETag(String etag) {
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        if (etag.length() > 1 
+                && etag.startsWith("\"") 
+                && etag.endsWith("\"")) {
+            etag = etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
     /**
      * This finds the correct servlet path or returns the default one,
      * will not return "" or null
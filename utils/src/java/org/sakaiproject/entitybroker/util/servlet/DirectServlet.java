@@ -188,6 +188,7 @@ public abstract class DirectServlet extends HttpServlet {
                 //                  e.responseCode == HttpServletResponse.SC_FORBIDDEN) {
                 //               throw new SecurityException(e.getMessage(), e);
                 //            }
+                abortIfCommitted(res, e);
                 sendError(res, e.responseCode, e.getMessage());
             }
         } catch (SecurityException e) {
@@ -208,6 +209,7 @@ public abstract class DirectServlet extends HttpServlet {
             sendError(res, HttpServletResponse.SC_FORBIDDEN, msg);
         } catch (Exception e) {
             // all other cases
+            abortIfCommitted(res, e);
             String msg = entityRequestHandler.handleEntityError(req, e);
             System.err.println("WARN " + msg + " :" + e);
             sendError(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg);
@@ -215,6 +217,26 @@ public abstract class DirectServlet extends HttpServlet {
 
     }
 
+    /**
+     * Passes the failure on to the container if the response was already committed
+     * (some of the content was sent so an error cannot replace it),
+     * the container then drops the connection instead of completing the response
+     * so the client can tell that the content it got is incomplete
+     * 
+     * @param res the http servlet response (back to the client)
+     * @param e the failure
+     * @throws ServletException if the response is committed
+     */
+    protected void abortIfCommitted(HttpServletResponse res, Exception e) throws ServletException {
+        if (res.isCommitted()) {
+            if (e instanceof ServletException) {
+                throw (ServletException) e;
+            }
+            System.err.println("WARN Failure after the response was committed, aborting the response: " + e);
+            throw new ServletException("Failure after the response was committed: " + e.getMessage(), e);
+        }
+    }
+
     /**
      * handles sending back servlet errors to the client,
      * feel free to override this if you like to handle errors in a particular way
@@ -0,0 +1,108 @@
+/**
+ * $Id$
+ * $URL$
+ * DeferredResponseOutputStreamTest.java - entity-broker - Oct 18, 2026 2:11:40 AM
+ **********************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **********************************************************************************/
+
+package org.sakaiproject.entitybroker.util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.util.http.DeferredResponseOutputStream;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+
+
+/**
+ * Testing the response stream which holds output until the headers are set
+ */
+public class DeferredResponseOutputStreamTest {
+
+    @Test
+    public void testHeldOutput() throws IOException {
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        DeferredResponseOutputStream stream = new DeferredResponseOutputStream(res, 10, Formats.XML);
+        stream.write("abc".getBytes());
+        stream.write('d');
+        stream.flush();
+        assertFalse(stream.isCommitted());
+        assertEquals(4, stream.getBufferedCount());
+        assertEquals("", res.getContentAsString());
+
+        // headers can still be set after the output is written
+        res.setStatus(HttpServletResponse.SC_CREATED);
+        res.setContentType(Formats.TXT_MIME_TYPE);
+        stream.finish();
+        assertEquals("abcd", res.getContentAsString());
+        assertEquals(HttpServletResponse.SC_CREATED, res.getStatus());
+        assertEquals(Formats.TXT_MIME_TYPE, res.getContentType());
+
+        // nothing written does not touch the response
+        res = new EntityHttpServletResponse();
+        stream = new DeferredResponseOutputStream(res, 10, Formats.XML);
+        stream.finish();
+        assertFalse(stream.isCommitted());
+        assertNotNull(res.getWriter());
+    }
+
+    @Test
+    public void testCommittedOutput() throws IOException {
+        // going past the buffer size commits with the encoding from the format
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        res.setStatus(HttpServletResponse.SC_OK);
+        DeferredResponseOutputStream stream = new DeferredResponseOutputStream(res, 5, Formats.XML);
+        stream.write("abc".getBytes());
+        stream.write("defgh".getBytes());
+        assertTrue(stream.isCommitted());
+        assertEquals(0, stream.getBufferedCount());
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(Formats.XML_MIME_TYPE, res.getContentType());
+        stream.write('i');
+        stream.finish();
+        assertEquals("abcdefghi", res.getContentAsString());
+
+        // the status and content type set by the writer are not changed by committing
+        res = new EntityHttpServletResponse();
+        res.setStatus(HttpServletResponse.SC_CREATED);
+        res.setContentType("text/csv");
+        stream = new DeferredResponseOutputStream(res, 0, Formats.TXT);
+        stream.write("a,b".getBytes());
+        assertTrue(stream.isCommitted());
+        assertEquals(HttpServletResponse.SC_CREATED, res.getStatus());
+        assertEquals("text/csv", res.getContentType());
+        stream.finish();
+        assertEquals("a,b", res.getContentAsString());
+
+        // no buffer streams everything, no format leaves the encoding alone
+        res = new EntityHttpServletResponse();
+        res.setContentType("application/octet-stream");
+        stream = new DeferredResponseOutputStream(res, 0, null);
+        stream.write('a');
+        assertTrue(stream.isCommitted());
+        assertEquals("application/octet-stream", res.getContentType());
+        stream.write("bc".getBytes());
+        stream.close();
+        stream.finish();
+        assertEquals("abc", res.getContentAsString());
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityClassMetadataTest.java - entity-broker - Oct 17, 2026 8:58:20 PM
+ **********************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **********************************************************************************/
+
+package org.sakaiproject.entitybroker.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityId;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityTitle;
+
+
+/**
+ * Testing the per class entity metadata
+ */
+public class EntityClassMetadataTest {
+
+    public static class AnnotatedThing {
+        @EntityId
+        private String key;
+        @EntityTitle
+        private String name;
+        private Date updated;
+        public AnnotatedThing() {}
+        public AnnotatedThing(String key, String name, Date updated) {
+            this.key = key;
+            this.name = name;
+            this.updated = updated;
+        }
+        public String getKey() {
+            return key;
+        }
+        public String getName() {
+            return name;
+        }
+        @EntityLastModified
+        public Date getUpdated() {
+            return updated;
+        }
+    }
+
+    public static class PlainThing {
+        public String title;
+        private Long id;
+        private long lastModified;
+        public PlainThing() {}
+        public PlainThing(Long id, String title, long lastModified) {
+            this.id = id;
+            this.title = title;
+            this.lastModified = lastModified;
+        }
+        public Long getId() {
+            return id;
+        }
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    public static class WritableThing {
+        public final String constant = "constant";
+        public String title;
+        private int count;
+        private Date updated;
+        public int getCount() {
+            return count;
+        }
+        public void setCount(int count) {
+            this.count = count;
+        }
+        public void setCount(String count) {
+            this.count = Integer.parseInt(count) * 10;
+        }
+        public Date getUpdated() {
+            return updated;
+        }
+        public void setUpdated(Date updated) {
+            this.updated = updated;
+        }
+    }
+
+    public static class EmptyThing {
+        public String getSomething() {
+            return "something";
+        }
+    }
+
+    @Test
+    public void testAnnotations() {
+        Date updated = new Date();
+        AnnotatedThing thing = new AnnotatedThing("AZ", "Aaron", updated);
+        EntityClassMetadata metadata = EntityClassMetadata.getMetadata(AnnotatedThing.class);
+        assertTrue(metadata.isBean());
+        assertTrue(metadata.isResolved());
+        assertEquals("key", metadata.getIdField());
+        assertEquals("AZ", metadata.getEntityId(thing));
+        assertEquals("Aaron", metadata.getTitle(thing));
+        assertEquals(updated, metadata.getLastModified(thing));
+        assertNull(metadata.getTitle(new AnnotatedThing()));
+
+        // the same metadata is used for the class every time
+        assertSame(metadata, EntityClassMetadata.getMetadata(AnnotatedThing.class));
+    }
+
+    @Test
+    public void testConventions() {
+        PlainThing thing = new PlainThing(123l, "Becky", 1000l);
+        EntityClassMetadata metadata = EntityClassMetadata.getMetadata(PlainThing.class);
+        assertTrue(metadata.isResolved());
+        assertEquals("id", metadata.getIdField());
+        assertEquals("123", metadata.getEntityId(thing));
+        assertEquals("Becky", metadata.getTitle(thing));
+        assertEquals(Long.valueOf(1000l), metadata.getLastModified(thing));
+
+        metadata = EntityClassMetadata.getMetadata(EmptyThing.class);
+        assertTrue(metadata.isResolved());
+        assertNull(metadata.getIdField());
+        assertNull(metadata.getEntityId(new EmptyThing()));
+        assertNull(metadata.getTitle(new EmptyThing()));
+        assertNull(metadata.getLastModified(new EmptyThing()));
+    }
+
+    @Test
+    public void testSetters() {
+        EntityClassMetadata metadata = EntityClassMetadata.getMetadata(WritableThing.class);
+        assertEquals(String.class, metadata.getPropertyType("title"));
+        // the overloaded setter which matches the getter is used
+        assertEquals(int.class, metadata.getPropertyType("count"));
+        assertEquals(Date.class, metadata.getPropertyType("updated"));
+        assertNull(metadata.getPropertyType("constant"));
+        assertNull(metadata.getPropertyType("class"));
+        assertNull(metadata.getPropertyType("unknown"));
+
+        WritableThing thing = new WritableThing();
+        assertTrue(metadata.setPropertyValue(thing, "title", "Aaron"));
+        assertEquals("Aaron", thing.title);
+        assertTrue(metadata.setPropertyValue(thing, "count", 5));
+        assertEquals(5, thing.getCount());
+        assertTrue(metadata.setPropertyValue(thing, "count", "7"));
+        assertEquals(7, thing.getCount());
+        // null is skipped for primitives
+        assertTrue(metadata.setPropertyValue(thing, "count", null));
+        assertEquals(7, thing.getCount());
+        Date updated = new Date();
+        assertTrue(metadata.setPropertyValue(thing, "updated", updated));
+        assertEquals(updated, thing.getUpdated());
+        assertTrue(metadata.setPropertyValue(thing, "title", null));
+        assertNull(thing.title);
+        assertFalse(metadata.setPropertyValue(thing, "unknown", "value"));
+
+        // nothing is writeable for things which are not beans
+        assertNull(EntityClassMetadata.getMetadata(HashMap.class).getPropertyType("size"));
+    }
+
+    @Test
+    public void testNotBeans() {
+        assertFalse( EntityClassMetadata.getMetadata(HashMap.class).isResolved() );
+        assertFalse( EntityClassMetadata.getMetadata(String.class).isResolved() );
+        try {
+            EntityClassMetadata.getMetadata(null);
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testEntityDataUtils() {
+        assertEquals("AZ", EntityDataUtils.getEntityId(new AnnotatedThing("AZ", "Aaron", null)));
+        assertEquals("123", EntityDataUtils.getEntityId(new PlainThing(123l, "Becky", 1000l)));
+        assertNull(EntityDataUtils.getEntityId(new EmptyThing()));
+        assertEquals("key", EntityDataUtils.getEntityIdField(AnnotatedThing.class));
+        assertEquals("id", EntityDataUtils.getEntityIdField(PlainThing.class));
+        assertNull(EntityDataUtils.getEntityIdField(EmptyThing.class));
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityHttpServletRequestTest.java - entity-broker - Oct 17, 2026 9:41:12 PM
+ **********************************************************************************
+ * Copyright (c) 2008, 2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **********************************************************************************/
+
+package org.sakaiproject.entitybroker.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+
+
+/**
+ * Testing the request and response copies used for internal requests
+ */
+public class EntityHttpServletRequestTest {
+
+    @Test
+    public void testMakeSharedCopy() {
+        EntityHttpServletRequest base = new EntityHttpServletRequest("GET", "/direct/prefix/one.xml", "aaron", "az", "_refs", "/one");
+        base.setAttribute("attrib", "value");
+        base.addHeader("Accept", "text/xml");
+        base.addCookie(new Cookie("cookie", "yum"));
+
+        EntityHttpServletRequest copy = base.makeSharedCopy("/direct/prefix/two.json?becky=wife");
+        assertEquals("GET", copy.getMethod());
+        assertEquals("/prefix/two.json", copy.getPathInfo());
+        assertEquals("becky=wife", copy.getQueryString());
+        assertEquals("az", copy.getParameter("aaron"));
+        assertEquals("wife", copy.getParameter("becky"));
+        assertEquals("value", copy.getAttribute("attrib"));
+        assertEquals("text/xml", copy.getHeader("Accept"));
+        assertEquals(1, copy.getCookies().length);
+
+        // changes in the copy do not leak into the base
+        assertNull(base.getParameter("becky"));
+        copy.removeParameter("_refs");
+        copy.setAttribute("entity-format", "json");
+        copy.removeHeader("Accept");
+        copy.addCookie(new Cookie("other", "thing"));
+        assertNull(copy.getParameter("_refs"));
+        assertEquals("/one", base.getParameter("_refs"));
+        assertNull(base.getAttribute("entity-format"));
+        assertEquals("text/xml", base.getHeader("Accept"));
+        assertEquals(1, base.getCookies().length);
+        assertEquals(2, copy.getCookies().length);
+
+        // changes in the base do not leak into the copies
+        EntityHttpServletRequest copy2 = base.makeSharedCopy("/direct/prefix/three.xml");
+        base.clearParameters();
+        assertNull(base.getParameter("aaron"));
+        assertEquals("az", copy2.getParameter("aaron"));
+        assertEquals("/one", copy2.getParameter("_refs"));
+        copy2.setAttribute("attrib", "changed");
+        assertEquals("value", base.getAttribute("attrib"));
+        assertEquals("value", base.makeSharedCopy("/direct/prefix/four").getAttribute("attrib"));
+    }
+
+    @Test
+    public void testResponseBuffer() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.write("old".getBytes("UTF-8"));
+        EntityHttpServletResponse res = new EntityHttpServletResponse(new EntityHttpServletResponse(), buffer);
+        res.getWriter().print("new content");
+        assertEquals("new content", res.getContentAsString());
+        assertEquals("new content", buffer.toString("UTF-8"));
+    }
+
+}
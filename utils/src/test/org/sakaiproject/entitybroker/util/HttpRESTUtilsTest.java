@@ -22,11 +22,16 @@ package org.sakaiproject.entitybroker.util;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.servlet.http.Cookie;
+
 import org.junit.Test;
+import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
+import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.HttpRequestException;
 import org.sakaiproject.entitybroker.util.http.URLData;
 
 
@@ -207,6 +212,52 @@ public class HttpRESTUtilsTest {
         }
     }
 
+    @Test
+    public void testReadResponseBody() throws Exception {
+        // multibyte chars which cross the read buffer boundaries are decoded correctly
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("a\u00e9\u20ac");
+        }
+        String body = sb.toString();
+        byte[] bytes = body.getBytes("UTF-8");
+        assertEquals(body, HttpRESTUtils.readResponseBody(new ByteArrayInputStream(bytes), "UTF-8", 10000, "/url"));
+        assertEquals("", HttpRESTUtils.readResponseBody(null, "UTF-8", 10000, "/url"));
+        assertEquals("\u00e9", HttpRESTUtils.readResponseBody(new ByteArrayInputStream(new byte[] {(byte) 0xe9}), "ISO-8859-1", 10, "/url"));
+
+        // responses over the max size are stopped
+        try {
+            HttpRESTUtils.readResponseBody(new ByteArrayInputStream(bytes), "UTF-8", 8999, "/url");
+            fail("should have thrown exception");
+        } catch (HttpRequestException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRequestClientState() {
+        HttpClientWrapper pooled = HttpRESTUtils.makePooledHttpClient(4, 2, 1000, 1000, 1000);
+        try {
+            Cookie[] cookies = new Cookie[] { new Cookie("JSESSIONID", "abc") };
+            cookies[0].setDomain("localhost");
+            cookies[0].setPath("/");
+            // each request client gets its own copy of the cookies
+            HttpClientWrapper client1 = pooled.makeRequestClient(cookies);
+            HttpClientWrapper client2 = pooled.makeRequestClient(cookies);
+            assertSame(pooled.getHttpClient(), client1.getHttpClient());
+            assertNotSame(client1.getRequestState(), client2.getRequestState());
+            assertEquals(1, client1.getRequestState().getCookies().length);
+            client1.getRequestState().addCookie( new org.apache.commons.httpclient.Cookie("localhost", "other", "1", "/", -1, false) );
+            assertEquals(2, client1.getRequestState().getCookies().length);
+            assertEquals(1, client2.getRequestState().getCookies().length);
+            // shutting down a request client leaves the pool alone
+            client1.shutdown();
+            assertNotNull(pooled.getHttpClient());
+        } finally {
+            pooled.shutdown();
+        }
+    }
+
     // Cannot handle partial URLs
 //    public void testParseURL() {
 //        URL url = null;
@@ -273,4 +273,91 @@ public class RequestUtilsTest extends TestCase {
        assertEquals(Formats.HTML, format);
    }
 
+   public void testIsNotModified() {
+       EntityHttpServletRequest req = null;
+       long lastModified = 1230000000000l;
+
+       // no conditional headers
+       req = new EntityHttpServletRequest("/stuff/111");
+       assertFalse( RequestUtils.isNotModified(req, "abc", lastModified) );
+
+       // etags can be quoted, weak, or in a list
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, "abc");
+       assertTrue( RequestUtils.isNotModified(req, "abc", lastModified) );
+       assertFalse( RequestUtils.isNotModified(req, "xyz", lastModified) );
+       assertFalse( RequestUtils.isNotModified(req, null, lastModified) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, "\"xyz\", W/\"abc\"");
+       assertTrue( RequestUtils.isNotModified(req, "abc", lastModified) );
+       assertTrue( RequestUtils.isNotModified(req, "\"xyz\"", lastModified) );
+       assertFalse( RequestUtils.isNotModified(req, "ab", lastModified) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, "*");
+       assertTrue( RequestUtils.isNotModified(req, "abc", lastModified) );
+
+       // if-none-match wins over if-modified-since
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_IF_NONE_MATCH, "xyz");
+       req.addHeader(RequestUtils.HEADER_IF_MODIFIED_SINCE, lastModified+"");
+       assertFalse( RequestUtils.isNotModified(req, "abc", lastModified) );
+
+       // dates only compare to the second
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_IF_MODIFIED_SINCE, lastModified+"");
+       assertTrue( RequestUtils.isNotModified(req, "abc", lastModified) );
+       assertTrue( RequestUtils.isNotModified(req, "abc", lastModified + 500) );
+       assertTrue( RequestUtils.isNotModified(req, null, lastModified - 5000) );
+       assertFalse( RequestUtils.isNotModified(req, null, lastModified + 1000) );
+       assertFalse( RequestUtils.isNotModified(req, null, -1) );
+
+       // invalid dates are ignored
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_IF_MODIFIED_SINCE, "not a date");
+       assertFalse( RequestUtils.isNotModified(req, "abc", lastModified) );
+   }
+
+   public void testFindAcceptedContentEncoding() {
+       EntityHttpServletRequest req = null;
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       assertNull( RequestUtils.findAcceptedContentEncoding(req) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip, deflate");
+       assertEquals(RequestUtils.CONTENT_ENCODING_GZIP, RequestUtils.findAcceptedContentEncoding(req) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "deflate");
+       assertEquals(RequestUtils.CONTENT_ENCODING_DEFLATE, RequestUtils.findAcceptedContentEncoding(req) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip;q=0.5, deflate;q=0.8");
+       assertEquals(RequestUtils.CONTENT_ENCODING_DEFLATE, RequestUtils.findAcceptedContentEncoding(req) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "X-GZIP");
+       assertEquals(RequestUtils.CONTENT_ENCODING_GZIP, RequestUtils.findAcceptedContentEncoding(req) );
+
+       // wildcard
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "*");
+       assertEquals(RequestUtils.CONTENT_ENCODING_GZIP, RequestUtils.findAcceptedContentEncoding(req) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip;q=0, *");
+       assertEquals(RequestUtils.CONTENT_ENCODING_DEFLATE, RequestUtils.findAcceptedContentEncoding(req) );
+
+       // refused or unknown
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "gzip;q=0, deflate;q=0");
+       assertNull( RequestUtils.findAcceptedContentEncoding(req) );
+
+       req = new EntityHttpServletRequest("/stuff/111");
+       req.addHeader(RequestUtils.HEADER_ACCEPT_ENCODING, "identity, br");
+       assertNull( RequestUtils.findAcceptedContentEncoding(req) );
+   }
+
 }